@@ -44,6 +44,7 @@ import org.json.simple.JSONValue;
 import uk.org.opentrv.ETV.ETVPerHouseholdComputation.ETVPerHouseholdComputationSystemStatus;
 import uk.org.opentrv.ETV.filter.StatusSegmentation;
 import uk.org.opentrv.ETV.output.ETVPerHouseholdComputationSystemStatusSummaryCSV;
+import uk.org.opentrv.comms.json.FlatLeafJSONTokenizer;
 import uk.org.opentrv.hdd.HDDUtil;
 
 /**Process OpenTRV device log files for key activity.
@@ -177,6 +178,7 @@ public final class OTLogActivityParse
 //            Pattern.compile(".*','cf [0-9a-z][0-9a-z] " + valveSecondaryID + " .*") : null;
 
         final LineNumberReader lr = new LineNumberReader(r);
+        final FlatLeafJSONTokenizer tokenizer = new FlatLeafJSONTokenizer();
 
         String line;
         while(null != (line = lr.readLine()))
@@ -196,34 +198,57 @@ public final class OTLogActivityParse
             // Parse the (UTC) timestamp to get the underlying time.
             // Also extract the JSON stats map/object.
             final long time;
-            final JSONObject leafObject;
             boolean valveOpen = false;
             boolean tSCPresent = false;
             boolean tempSetback = false;
             if(isCanon)
                 {
-                // Parse the input and prepare the new string output.
-                final Object o = JSONValue.parse(line); // FIXME: use retained parser for efficiency.
-                if(!(o instanceof JSONArray)) { System.err.println("input line is not a JSON array: " + line); continue; }
-                final JSONArray array = (JSONArray)o;
-                if(3 != array.size()) { System.err.println("input line JSON array has wrong number of elements: " + line); continue; }
-                if(!(array.get(0) instanceof String)) { System.err.println("input line timestamp ([0]) is not a string: " + line); continue; }
-                final String timeStamp = (String) array.get(0);
-                if(!(array.get(2) instanceof JSONObject)) { System.err.println("input line leaf JSON ([2]) is not an object/map: " + line); continue; }
-                leafObject = (JSONObject)array.get(2);
-                // Apply filtering by primary ID if needed.
-                if((null != valvePrimaryID) && !valvePrimaryID.equals(leafObject.get("@"))) { continue; }
+                final String timeStamp;
+                if(FlatLeafJSONTokenizer.enabled && tokenizer.parseLogLine(line))
+                    {
+                    // Fast path for the usual flat leaf object.
+                    // Apply filtering by primary ID if needed.
+                    if(null != valvePrimaryID)
+                        {
+                        final int idi = tokenizer.indexOf("@");
+                        if((-1 == idi) || !tokenizer.stringValueEquals(idi, valvePrimaryID)) { continue; }
+                        }
+                    timeStamp = tokenizer.getLogTimestamp();
+                    // Check the important fields.
+                    final int pFv = tokenizer.indexOf(FIELD_VALVE_PC_OPEN);
+                    if((-1 != pFv) && (FlatLeafJSONTokenizer.KIND_LONG == tokenizer.getKind(pFv)) && ((int)tokenizer.getLong(pFv) > 0)) { valveOpen = true; }
+                    final int pFs = tokenizer.indexOf(FIELD_TEMP_SETBACK_C);
+                    if((-1 != pFs) && (FlatLeafJSONTokenizer.KIND_LONG == tokenizer.getKind(pFs)))
+                        {
+                        tSCPresent = true;
+                        if((int)tokenizer.getLong(pFs) > 0) { tempSetback = true; }
+                        }
+                    }
+                else
+                    {
+                    // Parse the input in full.
+                    final Object o = JSONValue.parse(line);
+                    if(!(o instanceof JSONArray)) { System.err.println("input line is not a JSON array: " + line); continue; }
+                    final JSONArray array = (JSONArray)o;
+                    if(3 != array.size()) { System.err.println("input line JSON array has wrong number of elements: " + line); continue; }
+                    if(!(array.get(0) instanceof String)) { System.err.println("input line timestamp ([0]) is not a string: " + line); continue; }
+                    timeStamp = (String) array.get(0);
+                    if(!(array.get(2) instanceof JSONObject)) { System.err.println("input line leaf JSON ([2]) is not an object/map: " + line); continue; }
+                    final JSONObject leafObject = (JSONObject)array.get(2);
+                    // Apply filtering by primary ID if needed.
+                    if((null != valvePrimaryID) && !valvePrimaryID.equals(leafObject.get("@"))) { continue; }
+                    // Check the important fields.
+                    final Object pFv = leafObject.get(FIELD_VALVE_PC_OPEN);
+                    if((pFv instanceof Number) && (((Number)pFv).intValue() > 0)) { valveOpen = true; }
+                    final Object pFs = leafObject.get(FIELD_TEMP_SETBACK_C);
+                    // Slight optimisation handling tSC values...
+                    final boolean pFsIsNumber = pFs instanceof Number;
+                    if(pFsIsNumber) { tSCPresent = true; }
+                    if(pFsIsNumber && (((Number)pFs).intValue() > 0)) { tempSetback = true; }
+                    }
                 // Parse the timestamp...
                 final Instant instant = Instant.parse(timeStamp);
                 time = instant.getEpochSecond() * 1000L;
-                // Check the important fields.
-                final Object pFv = leafObject.get(FIELD_VALVE_PC_OPEN);
-                if((pFv instanceof Number) && (((Number)pFv).intValue() > 0)) { valveOpen = true; }
-                final Object pFs = leafObject.get(FIELD_TEMP_SETBACK_C);
-                // Slight optimisation handling tSC values...
-                final boolean pFsIsNumber = pFs instanceof Number;
-                if(pFsIsNumber) { tSCPresent = true; }
-                if(pFsIsNumber && (((Number)pFs).intValue() > 0)) { tempSetback = true; }
                 }
             else
                 {
@@ -356,6 +381,9 @@ S001,synthd2,aa ab ac ad
         }
 
     /**Find and analyse the log if any for the given valve (identified by primary or secondary ID); null if not found.
+     * Compressed (.gz) logs are tried first;
+     * with HDDUtil.getDirSmartFileReader() these may be block-compressed (BlockGZIP) and are then decompressed in parallel,
+     * and a plaintext name is also satisfied by its .gz version if only that is present.
      * @param dataReader  smart reader Function; never null
      * @param valvePrimaryID  primary valve ID; never null
      * @param valveSecondaryID  secondary valve ID; may be null
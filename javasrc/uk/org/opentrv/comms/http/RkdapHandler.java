@@ -18,25 +18,30 @@ Author(s) / Copyright (s): Damon Hart-Davis 2015
 
 package uk.org.opentrv.comms.http;
 
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
 import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsString;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-
+import uk.org.opentrv.comms.cfg.ConfigException;
+import uk.org.opentrv.comms.http.RkdapPayload.DataItem;
 import uk.org.opentrv.comms.statshandlers.StatsHandler;
 import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
 import uk.org.opentrv.comms.util.CommonSensorLabels;
-import uk.org.opentrv.comms.util.ParsedRemoteBinaryStatsRecord;
+import uk.org.opentrv.comms.util.RemoteBinaryStatsView;
 
 /**
  * Stats handler that sends data over HTTP POST using the RKDAP format
@@ -45,8 +50,25 @@ import uk.org.opentrv.comms.util.ParsedRemoteBinaryStatsRecord;
  * The RKDAP format is a simple JSON format. It requires a DAD ID
  * (Data Acquisition Device Identifier) that is assigned by the system
  * the URL points to.
+ * <p>
+ * Uploads reuse HTTP connections (keep-alive) where the server allows,
+ * with at most maxConnections uploads in progress at once.
+ * Each response is drained fully into a reusable buffer
+ * so that its connection can go back into the JDK's keep-alive cache;
+ * the cache size is set by the standard <code>http.maxConnections</code> system property.
+ * <p>
+ * If batchIntervalMS is positive, data items from many stats lines are
+ * accumulated into one RKDAP payload, which is sent when the interval elapses
+ * or when maxBatchItems are waiting, whichever is sooner.
+ * Items from a batch that cannot be sent are put back at the front of the batch
+ * and retried at the next flush, keeping at most maxPendingItems (oldest discarded first);
+ * while sends are failing only the periodic flush retries, so that callers are not held up.
+ * If any items have had to be discarded the next call to processStatsMessage() reports it
+ * with an IOException and does not accept that message.
+ * <p>
+ * Thread-safe.
  */
-public final class RkdapHandler implements StatsHandler {
+public final class RkdapHandler implements StatsHandler, AutoCloseable {
 
     public static final String REQUEST_METHOD = "POST";
     public static final String CHARSET = "UTF-8";
@@ -54,9 +76,48 @@ public final class RkdapHandler implements StatsHandler {
     public static final String CONTENT_TYPE_VALUE = "application/json";
     public static final String CONTENT_LENGTH_KEY = "Content-Length";
 
+    /** Default maximum concurrent uploads. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    /** Default maximum data items per batched upload. */
+    public static final int DEFAULT_MAX_BATCH_ITEMS = 100;
+    /** Default maximum data items kept waiting to be sent, including after failed sends. */
+    public static final int DEFAULT_MAX_PENDING_ITEMS = 10000;
+    /** Default connect and read timeout for uploads. */
+    public static final int DEFAULT_TIMEOUT_MS = 30000;
+
+    /** Size of the per-thread buffer that responses are drained into. */
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+
     private final URL url;
     private final String dadId;
 
+    /** Maximum data items per batched upload; strictly positive. */
+    private final int maxBatchItems;
+    /** Maximum data items kept waiting to be sent; no less than maxBatchItems. */
+    private final int maxPendingItems;
+    /** Connect and read timeout; strictly positive. */
+    private final int timeoutMS;
+
+    /** Bounds concurrent uploads and thus open connections. */
+    private final Semaphore connections;
+
+    /** Reusable per-thread buffer for draining responses. */
+    private static final ThreadLocal<byte[]> drainBuffer = new ThreadLocal<byte[]>() {
+        @Override protected byte[] initialValue() { return new byte[DRAIN_BUFFER_SIZE]; }
+    };
+
+    /** Data items waiting to be sent, oldest first; guarded by itself; null if not batching. */
+    private final List<DataItem> batch;
+    /** Count of data items discarded and not yet reported to a caller; guarded by batch. */
+    private int unreportedDiscards;
+    /** True while the last batched send failed. */
+    private volatile boolean failing;
+    /** Periodic batch flusher; null if not batching. */
+    private final ScheduledExecutorService flusher;
+
+    /** Reusable view for parsing binary records; lock on it while in use. */
+    private final RemoteBinaryStatsView binaryView = new RemoteBinaryStatsView();
+
     /**
      * Create a new RkdapHandler from a full URL. This URL is expected to include
      * the DAD ID in its user info part so should be of the form:
@@ -67,36 +128,93 @@ public final class RkdapHandler implements StatsHandler {
      * @throws MalformedURLException
      */
     public RkdapHandler(final String fullUrl) throws MalformedURLException {
-        final URL tmpUrl = new URL(fullUrl);
-        this.url = new URL(
+        this(new URL(fullUrl));
+    }
+
+    private RkdapHandler(final URL tmpUrl) throws MalformedURLException {
+        this(new URL(
                 tmpUrl.getProtocol(),
                 tmpUrl.getHost(),
                 tmpUrl.getPort(),
-                tmpUrl.getFile());
-        this.dadId = tmpUrl.getUserInfo();
+                tmpUrl.getFile()).toString(),
+             tmpUrl.getUserInfo());
     }
 
     /**
      * Create a new RdkapHandler from a configuration map that contains a
-     * URL and DAD ID.
+     * URL and DAD ID, and optionally batchIntervalMS, maxBatchItems,
+     * maxConnections, timeoutMS and maxPendingItems.
      *
      * @param config the configuration map
      * @throws MalformedURLException
      */
-    public RkdapHandler(final Map config) throws MalformedURLException {
-        this(getAsString(config, "url"), getAsString(config, "dadID"));
+    public RkdapHandler(final Map config) throws MalformedURLException, ConfigException {
+        this(getAsString(config, "url"), getAsString(config, "dadID"),
+             getAsNumber(config, "batchIntervalMS", 0).intValue(),
+             getAsNumber(config, "maxBatchItems", DEFAULT_MAX_BATCH_ITEMS).intValue(),
+             getAsNumber(config, "maxConnections", DEFAULT_MAX_CONNECTIONS).intValue(),
+             getAsNumber(config, "timeoutMS", DEFAULT_TIMEOUT_MS).intValue(),
+             getAsNumber(config, "maxPendingItems", DEFAULT_MAX_PENDING_ITEMS).intValue());
     }
 
     /**
-     * Create a new RdkapHandler from a URL and DAD ID.
+     * Create a new RdkapHandler from a URL and DAD ID, sending each line as it arrives.
      *
      * @param url the URL without the DAD ID information
      * @param dadID the DAD ID to use by the handler
      * @throws MalformedURLException
      */
     public RkdapHandler(final String url, final String dadID) throws MalformedURLException {
+        this(url, dadID, 0, DEFAULT_MAX_BATCH_ITEMS, DEFAULT_MAX_CONNECTIONS, DEFAULT_TIMEOUT_MS, DEFAULT_MAX_PENDING_ITEMS);
+    }
+
+    /**
+     * Create a new RdkapHandler.
+     *
+     * @param url the URL without the DAD ID information
+     * @param dadID the DAD ID to use by the handler
+     * @param batchIntervalMS if positive, batch data items for up to this long
+     * @param maxBatchItems maximum data items per batched upload; strictly positive
+     * @param maxConnections maximum concurrent uploads; strictly positive
+     * @param timeoutMS connect and read timeout; strictly positive
+     * @param maxPendingItems maximum data items kept waiting to be sent, including after failed sends; no less than maxBatchItems
+     * @throws MalformedURLException
+     */
+    public RkdapHandler(final String url, final String dadID,
+            final int batchIntervalMS, final int maxBatchItems, final int maxConnections, final int timeoutMS,
+            final int maxPendingItems)
+        throws MalformedURLException {
+        if (batchIntervalMS < 0 || maxBatchItems < 1 || maxConnections < 1 || timeoutMS < 1 || maxPendingItems < maxBatchItems) {
+            throw new IllegalArgumentException();
+        }
         this.url = new URL(url);
         this.dadId = dadID;
+        this.maxBatchItems = maxBatchItems;
+        this.maxPendingItems = maxPendingItems;
+        this.timeoutMS = timeoutMS;
+        this.connections = new Semaphore(maxConnections);
+        if (batchIntervalMS > 0) {
+            batch = new ArrayList<DataItem>();
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "RKDAP batch flusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override public void run() {
+                    try {
+                        flush();
+                    } catch (final IOException e) {
+                        System.err.println("Could not send RKDAP batch to "+RkdapHandler.this.url+": "+e);
+                    }
+                }
+            }, batchIntervalMS, batchIntervalMS, TimeUnit.MILLISECONDS);
+        } else {
+            batch = null;
+            flusher = null;
+        }
     }
 
     public URL getURL() {
@@ -149,38 +267,161 @@ public final class RkdapHandler implements StatsHandler {
         final char firstChar = swmd.message.charAt(0);
         final RkdapPayload payloadObj;
         if('{' == firstChar) {
-            // Process potential JSON; reject if bad.
+            // Process potential JSON (parsed at most once per message); reject if bad.
             final long nowms = System.currentTimeMillis();
-            final JSONParser parser = new JSONParser();
-            try {
-                final Object obj = parser.parse(swmd.message);
-                final JSONObject jsonObj = (JSONObject)obj;
-                payloadObj = new RkdapPayload(dadId, nowms, jsonObj);
-            } catch(final ParseException pe) {
+            final Map<String, Object> jsonObj = swmd.parseStatsAsMap();
+            if(null == jsonObj) {
                 return;
             }
+            payloadObj = new RkdapPayload(dadId, nowms, jsonObj);
         } else if(CommonSensorLabels.ID.getLabel() == firstChar) {
-            // Process potential binary record.
-            final ParsedRemoteBinaryStatsRecord parsed = new ParsedRemoteBinaryStatsRecord(swmd.message);
-            payloadObj = new RkdapPayload(dadId, parsed);
+            // Process potential binary record in place, without intermediate Strings.
+            synchronized(binaryView) {
+                if(!binaryView.wrap(swmd.message)) {
+                    return;
+                }
+                payloadObj = new RkdapPayload(dadId, swmd.timestamp, binaryView);
+            }
         } else {
             // Ignore all other lines.
             return;
         }
-        System.out.println("Sending: "+payloadObj.toJSONString());
-        final byte[] payload = payloadObj.toJSONString().getBytes(CHARSET);
+        if (null == batch) {
+            send(payloadObj);
+            return;
+        }
+        synchronized (batch) {
+            if (0 != unreportedDiscards) {
+                final int n = unreportedDiscards;
+                unreportedDiscards = 0;
+                throw new IOException("Discarded "+n+" unsent RKDAP data items for "+url);
+            }
+            batch.addAll(payloadObj.getDataItems());
+            if (failing || batch.size() < maxBatchItems) {
+                return;
+            }
+        }
+        try {
+            flush(maxBatchItems);
+        } catch (final IOException e) {
+            // The items are kept for the next flush.
+            System.err.println("Could not send RKDAP batch to "+url+": "+e);
+        }
+    }
 
-        final HttpURLConnection conn = (HttpURLConnection)this.url.openConnection();
-        conn.setRequestMethod(REQUEST_METHOD);
-        conn.setRequestProperty(CONTENT_TYPE_KEY, CONTENT_TYPE_VALUE);
-        conn.setRequestProperty(CONTENT_LENGTH_KEY, String.valueOf(payload.length));
-        conn.setDoOutput(true);
-        conn.setDoInput(true);
-        conn.getOutputStream().write(payload);
+    public boolean isBatching() {
+        return null != batch;
+    }
+
+    /**
+     * Send all batched data items now, at most maxBatchItems per upload;
+     * does nothing if not batching or nothing is waiting.
+     * If an upload fails its items are put back at the front of the batch for the next flush.
+     */
+    public void flush() throws IOException {
+        flush(1);
+    }
+
+    /**
+     * Send batched data items while at least minItems are waiting, at most maxBatchItems per upload.
+     */
+    private void flush(final int minItems) throws IOException {
+        if (null == batch) {
+            return;
+        }
+        for ( ; ; ) {
+            final List<DataItem> items;
+            synchronized (batch) {
+                if (batch.size() < minItems) {
+                    return;
+                }
+                final List<DataItem> head = batch.subList(0, Math.min(maxBatchItems, batch.size()));
+                items = new ArrayList<DataItem>(head);
+                head.clear();
+            }
+            try {
+                send(new RkdapPayload(dadId, System.currentTimeMillis(), items));
+            } catch (final IOException e) {
+                failing = true;
+                synchronized (batch) {
+                    batch.addAll(0, items);
+                    final int excess = batch.size() - maxPendingItems;
+                    if (excess > 0) {
+                        batch.subList(0, excess).clear();
+                        unreportedDiscards += excess;
+                    }
+                }
+                throw e;
+            }
+            failing = false;
+        }
+    }
+
+    /**
+     * Get the number of data items waiting to be sent; zero if not batching.
+     */
+    public int getPendingCount() {
+        if (null == batch) {
+            return 0;
+        }
+        synchronized (batch) {
+            return batch.size();
+        }
+    }
 
-        final Reader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), CHARSET));
-        for (int c; (c = in.read()) >= 0; System.out.print((char)c)) {
+    /**
+     * POST one payload, draining the response so that the connection can be reused.
+     */
+    private void send(final RkdapPayload payloadObj) throws IOException {
+        final byte[] payload = payloadObj.toJSONString().getBytes(CHARSET);
+        try {
+            connections.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for a connection", e);
+        }
+        try {
+            final HttpURLConnection conn = (HttpURLConnection)this.url.openConnection();
+            conn.setRequestMethod(REQUEST_METHOD);
+            conn.setRequestProperty(CONTENT_TYPE_KEY, CONTENT_TYPE_VALUE);
+            conn.setRequestProperty(CONTENT_LENGTH_KEY, String.valueOf(payload.length));
+            conn.setConnectTimeout(timeoutMS);
+            conn.setReadTimeout(timeoutMS);
+            conn.setDoOutput(true);
+            conn.setDoInput(true);
+            try (final OutputStream os = conn.getOutputStream()) {
+                os.write(payload);
+            }
+            final int code = conn.getResponseCode();
+            // Drain and close either stream so that the connection stays alive.
+            final InputStream is = (code >= 400) ? conn.getErrorStream() : conn.getInputStream();
+            if (null != is) {
+                try {
+                    final byte[] buf = drainBuffer.get();
+                    while (is.read(buf) >= 0) {
+                    }
+                } finally {
+                    is.close();
+                }
             }
+            if (code >= 400) {
+                throw new IOException("RKDAP upload to "+url+" failed: HTTP "+code);
+            }
+        } finally {
+            connections.release();
+        }
+    }
+
+    /**
+     * Send any batched data items and stop the batch flusher.
+     * @throws IOException if batched items could not be sent, and so have been lost
+     */
+    @Override
+    public void close() throws IOException {
+        if (null != flusher) {
+            flusher.shutdown();
+        }
+        flush();
     }
 
-}
+}
\ No newline at end of file
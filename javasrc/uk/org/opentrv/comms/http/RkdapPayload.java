@@ -32,6 +32,7 @@ import org.json.simple.JSONObject;
 
 import uk.org.opentrv.comms.util.CommonSensorLabels;
 import uk.org.opentrv.comms.util.ParsedRemoteBinaryStatsRecord;
+import uk.org.opentrv.comms.util.RemoteBinaryStatsView;
 
 /**
  * Lightweight object that represents a RKDAP payload.
@@ -97,10 +98,35 @@ public class RkdapPayload implements JSONAware {
 		}
 	}
 
+    /**
+     * Create a RKDAP payload given a view of a binary record,
+     * parsing values in place.
+     */
+	public RkdapPayload(final String dadId, final long timestamp, final RemoteBinaryStatsView record) {
+		this.dadId = dadId;
+		this.timestamp = timestamp;
+		this.dataItems = new ArrayList<DataItem>();
+		final String deviceID = record.getID();
+		// Skip the leading @ section as it's part of the key anyway
+		for(int i = 1; i < record.getSectionCount(); ++i) {
+			final char label = record.getSectionLabel(i);
+			final Number value = record.getValueAsNumber(label);
+			if(null == value) {
+				continue;
+			}
+			dataItems.add(new DataItem(
+					deviceID,
+					String.valueOf(label),
+					this.timestamp,
+					value
+			));
+		}
+	}
+
     /**
      * Create a RKDAP payload given a JSON record.
      */
-	public RkdapPayload(final String dadId, final long constructionTime, final JSONObject record) {
+	public RkdapPayload(final String dadId, final long constructionTime, final Map<?, ?> record) {
 		this.dadId = dadId;
 		this.timestamp = constructionTime;
 		this.dataItems = new ArrayList<DataItem>();
@@ -150,6 +176,23 @@ public class RkdapPayload implements JSONAware {
 		}
 	}
 
+    /**
+     * Create a RKDAP payload from data items already extracted,
+     * eg to combine items from several records into one upload.
+     */
+	public RkdapPayload(final String dadId, final long timestamp, final List<DataItem> dataItems) {
+		this.dadId = dadId;
+		this.timestamp = timestamp;
+		this.dataItems = dataItems;
+	}
+
+    /**
+     * Get the data items in this payload; not to be modified.
+     */
+	public List<DataItem> getDataItems() {
+		return dataItems;
+	}
+
     @Override
     public String toJSONString() {
         return toJSONObject().toString();
@@ -0,0 +1,390 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.comms.json;
+
+import java.util.Arrays;
+
+import org.json.simple.JSONObject;
+
+/**Single-pass, allocation-light tokenizer for flat leaf JSON objects such as <tt>{"@":"cdfb","T|C16":296,"H|%":87}</tt>.
+ * This covers the overwhelming majority of leaf stats messages and log lines
+ * far more cheaply than json-simple, which builds a HashMap of boxed values for every line.
+ * <p>
+ * Only a strict subset of JSON is accepted:
+ * a single object whose keys are strings without escapes,
+ * and whose values are strings without escapes, integers in the range of a long,
+ * <tt>true</tt>, <tt>false</tt> or <tt>null</tt>.
+ * Anything else (nested objects or arrays, escapes, non-integer numbers, malformed input)
+ * is rejected so that the caller can fall back to json-simple,
+ * which remains the reference for what is valid.
+ * Anything accepted here is valid JSON and yields the same values as json-simple.
+ * <p>
+ * The tokenizer retains offsets into the source text and parsed integer values,
+ * so no Strings or boxed values are created unless explicitly requested.
+ * An instance may be reused for each new line, but is not thread-safe;
+ * see perThread() for a convenient per-thread instance.
+ * <p>
+ * All use of this tokenizer in place of json-simple is controlled by enabled,
+ * so that throughput may be compared with and without it.
+ */
+public final class FlatLeafJSONTokenizer
+    {
+    /**If true (the default) use this tokenizer in preference to json-simple where possible.
+     * May be set false with the system property <tt>uk.org.opentrv.comms.json.flatLeafJSON=false</tt>
+     * or directly, eg for comparative measurement.
+     */
+    public static volatile boolean enabled =
+        !"false".equalsIgnoreCase(System.getProperty("uk.org.opentrv.comms.json.flatLeafJSON"));
+
+    /**Value is a string. */
+    public static final byte KIND_STRING = 1;
+    /**Value is an integer, available as a long. */
+    public static final byte KIND_LONG = 2;
+    /**Value is true or false, available as a long 1 or 0. */
+    public static final byte KIND_BOOLEAN = 3;
+    /**Value is null. */
+    public static final byte KIND_NULL = 4;
+
+    /**Initial field capacity; typical leaf messages have fewer fields than this. */
+    private static final int INITIAL_FIELDS = 16;
+
+    /**Source text of last parse; null if none or if the last parse failed. */
+    private CharSequence src;
+    /**Number of fields in last successfully-parsed object. */
+    private int fieldCount;
+    /**Offset of first char of each key (after the opening double quote). */
+    private int[] keyStart = new int[INITIAL_FIELDS];
+    /**Offset of closing double quote of each key. */
+    private int[] keyEnd = new int[INITIAL_FIELDS];
+    /**Kind of each value. */
+    private byte[] kind = new byte[INITIAL_FIELDS];
+    /**Offset of first char of each value (after the opening double quote for strings). */
+    private int[] valueStart = new int[INITIAL_FIELDS];
+    /**Offset just past the last char of each value (the closing double quote for strings). */
+    private int[] valueEnd = new int[INITIAL_FIELDS];
+    /**Parsed value for KIND_LONG and KIND_BOOLEAN. */
+    private long[] longValue = new long[INITIAL_FIELDS];
+
+    /**Offsets of the timestamp and concentrator ID string contents from parseLogLine(). */
+    private int logTimeStart, logTimeEnd, logConcStart, logConcEnd;
+
+    /**Per-thread reusable instances. */
+    private static final ThreadLocal<FlatLeafJSONTokenizer> perThread = new ThreadLocal<FlatLeafJSONTokenizer>()
+        { @Override protected FlatLeafJSONTokenizer initialValue() { return(new FlatLeafJSONTokenizer()); } };
+
+    /**Get an instance private to the calling thread; never null.
+     * Must not be retained or handed to another thread,
+     * and its content will be overwritten by the next parse on this thread.
+     */
+    public static FlatLeafJSONTokenizer perThread() { return(perThread.get()); }
+
+    /**Parse the whole of the supplied text as a flat object; returns false if not in the accepted subset.
+     * Leading and trailing whitespace is allowed.
+     * The text must not change while its values are being accessed.
+     */
+    public boolean parse(final CharSequence text)
+        {
+        reset();
+        if(null == text) { return(false); }
+        final int len = text.length();
+        int pos = parseObject(text, skipWS(text, 0, len), len);
+        if(pos < 0) { return(false); }
+        if(skipWS(text, pos, len) != len) { return(false); }
+        src = text;
+        return(true);
+        }
+
+    /**Parse a canonical array-per-line log record with a flat leaf object; returns false if not in the accepted subset.
+     * The line is of the form <tt>[ "2014-11-23T17:27:54Z", "concID", {...} ]</tt>
+     * as generated by SimpleFileLoggingStatsHandler.wrapLeafJSONAsArrayLogLine().
+     * On success the leaf object fields are available as for parse(),
+     * and the timestamp and concentrator ID via getLogTimestamp() and getLogConcentratorID().
+     */
+    public boolean parseLogLine(final CharSequence line)
+        {
+        reset();
+        if(null == line) { return(false); }
+        final int len = line.length();
+        int pos = skipWS(line, 0, len);
+        if((pos >= len) || ('[' != line.charAt(pos))) { return(false); }
+        pos = skipWS(line, pos+1, len);
+        logTimeStart = pos + 1;
+        if((pos = scanString(line, pos, len)) < 0) { return(false); }
+        logTimeEnd = pos - 1;
+        pos = skipWS(line, pos, len);
+        if((pos >= len) || (',' != line.charAt(pos))) { return(false); }
+        pos = skipWS(line, pos+1, len);
+        logConcStart = pos + 1;
+        if((pos = scanString(line, pos, len)) < 0) { return(false); }
+        logConcEnd = pos - 1;
+        pos = skipWS(line, pos, len);
+        if((pos >= len) || (',' != line.charAt(pos))) { return(false); }
+        if((pos = parseObject(line, skipWS(line, pos+1, len), len)) < 0) { return(false); }
+        pos = skipWS(line, pos, len);
+        if((pos >= len) || (']' != line.charAt(pos))) { return(false); }
+        if(skipWS(line, pos+1, len) != len) { return(false); }
+        src = line;
+        return(true);
+        }
+
+    /**True iff the last parse succeeded. */
+    public boolean isValid() { return(null != src); }
+
+    /**Number of fields in the last parsed object; zero if none. */
+    public int size() { return(fieldCount); }
+
+    /**Get log line timestamp from last parseLogLine() as a new String; null if none. */
+    public String getLogTimestamp()
+        { return((null == src) || (0 == logTimeEnd) ? null : src.subSequence(logTimeStart, logTimeEnd).toString()); }
+
+    /**Append log line timestamp from last parseLogLine() to the supplied buffer; returns false (appending nothing) if none. */
+    public boolean appendLogTimestamp(final StringBuilder sb)
+        {
+        if((null == src) || (0 == logTimeEnd)) { return(false); }
+        sb.append(src, logTimeStart, logTimeEnd);
+        return(true);
+        }
+
+    /**Get log line concentrator ID from last parseLogLine() as a new String; null if none. */
+    public String getLogConcentratorID()
+        { return((null == src) || (0 == logConcEnd) ? null : src.subSequence(logConcStart, logConcEnd).toString()); }
+
+    /**Index of the field with the given key, else -1 if absent; compared in place.
+     * As with json-simple, where a key is repeated the last occurrence wins.
+     */
+    public int indexOf(final String key)
+        {
+        final int kl = key.length();
+        for(int i = fieldCount; --i >= 0; )
+            { if((keyEnd[i] - keyStart[i] == kl) && regionEquals(keyStart[i], key, kl)) { return(i); } }
+        return(-1);
+        }
+
+    /**Get the i'th key as a new String. */
+    public String getKey(final int i)
+        { checkIndex(i); return(src.subSequence(keyStart[i], keyEnd[i]).toString()); }
+
+    /**Get the kind of the i'th value, eg KIND_LONG. */
+    public byte getKind(final int i) { checkIndex(i); return(kind[i]); }
+
+    /**Get the i'th value as a long; valid for KIND_LONG, and for KIND_BOOLEAN as 1 or 0. */
+    public long getLong(final int i)
+        {
+        checkIndex(i);
+        if((KIND_LONG != kind[i]) && (KIND_BOOLEAN != kind[i])) { throw new IllegalStateException("not a number"); }
+        return(longValue[i]);
+        }
+
+    /**Get the i'th string value as a new String; null if the value is not a string. */
+    public String getString(final int i)
+        {
+        checkIndex(i);
+        if(KIND_STRING != kind[i]) { return(null); }
+        return(src.subSequence(valueStart[i], valueEnd[i]).toString());
+        }
+
+    /**True iff the i'th value is a string equal to the given (non-null) String; compared in place. */
+    public boolean stringValueEquals(final int i, final String s)
+        {
+        checkIndex(i);
+        if(KIND_STRING != kind[i]) { return(false); }
+        final int sl = s.length();
+        return((valueEnd[i] - valueStart[i] == sl) && regionEquals(valueStart[i], s, sl));
+        }
+
+    /**Append the i'th value's text to the supplied buffer as String.valueOf() would for the json-simple value. */
+    public void appendValue(final int i, final StringBuilder sb)
+        {
+        checkIndex(i);
+        switch(kind[i])
+            {
+            case KIND_STRING: sb.append(src, valueStart[i], valueEnd[i]); break;
+            case KIND_LONG: sb.append(longValue[i]); break;
+            case KIND_BOOLEAN: sb.append(0 != longValue[i]); break;
+            default: sb.append("null"); break;
+            }
+        }
+
+    /**Get the i'th value boxed as json-simple would: String, Long, Boolean or null. */
+    public Object getValue(final int i)
+        {
+        checkIndex(i);
+        switch(kind[i])
+            {
+            case KIND_STRING: return(src.subSequence(valueStart[i], valueEnd[i]).toString());
+            case KIND_LONG: return(Long.valueOf(longValue[i]));
+            case KIND_BOOLEAN: return(Boolean.valueOf(0 != longValue[i]));
+            default: return(null);
+            }
+        }
+
+    /**Build a (mutable) JSONObject of the last parsed object with the same content as json-simple would; null if none. */
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSONObject()
+        {
+        if(null == src) { return(null); }
+        final JSONObject result = new JSONObject();
+        for(int i = 0; i < fieldCount; ++i) { result.put(getKey(i), getValue(i)); }
+        return(result);
+        }
+
+    /**Convenience method to parse a flat leaf object to a JSONObject on the calling thread; null if not in the accepted subset. */
+    public static JSONObject parseAsJSONObject(final CharSequence text)
+        {
+        final FlatLeafJSONTokenizer t = perThread();
+        if(!t.parse(text)) { return(null); }
+        return(t.toJSONObject());
+        }
+
+    /**Clear any previous result. */
+    private void reset()
+        {
+        src = null;
+        fieldCount = 0;
+        logTimeEnd = 0;
+        logConcEnd = 0;
+        }
+
+    /**Throw IndexOutOfBoundsException if i is not a valid field index. */
+    private void checkIndex(final int i)
+        { if((i < 0) || (i >= fieldCount)) { throw new IndexOutOfBoundsException(); } }
+
+    /**True iff src[off,off+n) matches s[0,n). */
+    private boolean regionEquals(final int off, final String s, final int n)
+        {
+        for(int j = 0; j < n; ++j) { if(src.charAt(off + j) != s.charAt(j)) { return(false); } }
+        return(true);
+        }
+
+    /**Returns first offset at or after pos (and before end) that is not JSON whitespace. */
+    private static int skipWS(final CharSequence s, int pos, final int end)
+        {
+        while(pos < end)
+            {
+            final char c = s.charAt(pos);
+            if((' ' != c) && ('\t' != c) && ('\n' != c) && ('\r' != c)) { break; }
+            ++pos;
+            }
+        return(pos);
+        }
+
+    /**Scan a string with no escapes or control chars starting at the opening quote at pos; returns offset after the closing quote, or -1. */
+    private static int scanString(final CharSequence s, int pos, final int end)
+        {
+        if((pos >= end) || ('"' != s.charAt(pos))) { return(-1); }
+        while(++pos < end)
+            {
+            final char c = s.charAt(pos);
+            if('"' == c) { return(pos + 1); }
+            if(('\\' == c) || (c < 32)) { return(-1); }
+            }
+        return(-1);
+        }
+
+    /**True iff s[pos,...) starts with the given literal. */
+    private static boolean matchLiteral(final CharSequence s, final int pos, final int end, final String lit)
+        {
+        final int n = lit.length();
+        if(pos + n > end) { return(false); }
+        for(int j = 0; j < n; ++j) { if(s.charAt(pos + j) != lit.charAt(j)) { return(false); } }
+        return(true);
+        }
+
+    /**Ensure capacity for at least one more field. */
+    private void ensureCapacity()
+        {
+        if(fieldCount < kind.length) { return; }
+        final int n = 2 * kind.length;
+        keyStart = Arrays.copyOf(keyStart, n);
+        keyEnd = Arrays.copyOf(keyEnd, n);
+        kind = Arrays.copyOf(kind, n);
+        valueStart = Arrays.copyOf(valueStart, n);
+        valueEnd = Arrays.copyOf(valueEnd, n);
+        longValue = Arrays.copyOf(longValue, n);
+        }
+
+    /**Parse a flat object starting at the '{' at pos, recording its fields; returns offset after the closing '}', or -1. */
+    private int parseObject(final CharSequence s, int pos, final int end)
+        {
+        if((pos >= end) || ('{' != s.charAt(pos))) { return(-1); }
+        pos = skipWS(s, pos+1, end);
+        if((pos < end) && ('}' == s.charAt(pos))) { return(pos + 1); } // Empty object.
+        for( ; ; )
+            {
+            ensureCapacity();
+            final int f = fieldCount;
+            // Key.
+            keyStart[f] = pos + 1;
+            if((pos = scanString(s, pos, end)) < 0) { return(-1); }
+            keyEnd[f] = pos - 1;
+            pos = skipWS(s, pos, end);
+            if((pos >= end) || (':' != s.charAt(pos))) { return(-1); }
+            pos = skipWS(s, pos+1, end);
+            if(pos >= end) { return(-1); }
+            // Value.
+            final char c = s.charAt(pos);
+            if('"' == c)
+                {
+                valueStart[f] = pos + 1;
+                if((pos = scanString(s, pos, end)) < 0) { return(-1); }
+                valueEnd[f] = pos - 1;
+                kind[f] = KIND_STRING;
+                }
+            else if(('-' == c) || ((c >= '0') && (c <= '9')))
+                {
+                valueStart[f] = pos;
+                final boolean neg = ('-' == c);
+                if(neg) { ++pos; }
+                final int digitsStart = pos;
+                long v = 0;
+                while(pos < end)
+                    {
+                    final int d = s.charAt(pos) - '0';
+                    if((d < 0) || (d > 9)) { break; }
+                    // Reject (rather than wrap) anything outside the range of a long.
+                    if(v < (Long.MIN_VALUE + d) / 10) { return(-1); }
+                    v = (v * 10) - d; // Accumulate negatively to allow Long.MIN_VALUE.
+                    ++pos;
+                    }
+                if(pos == digitsStart) { return(-1); }
+                // Leave fractions and exponents (Double in json-simple) to the fallback.
+                if(pos < end) { final char n = s.charAt(pos); if(('.' == n) || ('e' == n) || ('E' == n)) { return(-1); } }
+                if(!neg) { if(Long.MIN_VALUE == v) { return(-1); } v = -v; }
+                valueEnd[f] = pos;
+                longValue[f] = v;
+                kind[f] = KIND_LONG;
+                }
+            else if(matchLiteral(s, pos, end, "true"))
+                { valueStart[f] = pos; pos += 4; valueEnd[f] = pos; longValue[f] = 1; kind[f] = KIND_BOOLEAN; }
+            else if(matchLiteral(s, pos, end, "false"))
+                { valueStart[f] = pos; pos += 5; valueEnd[f] = pos; longValue[f] = 0; kind[f] = KIND_BOOLEAN; }
+            else if(matchLiteral(s, pos, end, "null"))
+                { valueStart[f] = pos; pos += 4; valueEnd[f] = pos; kind[f] = KIND_NULL; }
+            else { return(-1); } // Nested or otherwise unsupported value.
+            ++fieldCount;
+            // Separator or end of object.
+            pos = skipWS(s, pos, end);
+            if(pos >= end) { return(-1); }
+            final char sep = s.charAt(pos);
+            if('}' == sep) { return(pos + 1); }
+            if(',' != sep) { return(-1); }
+            pos = skipWS(s, pos+1, end);
+            }
+        }
+    }
@@ -0,0 +1,297 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.comms.json;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**Extract many (leaf ID, field) columns from a line-oriented JSON stats log in a single pass.
+ * Where JSONStatsLineStreamReader extracts one field per pass,
+ * this extracts any number of projections at once into wide CSV output,
+ * so that (say) four fields for fifty valves take one scan of the log rather than two hundred.
+ * <p>
+ * The input is as for JSONStatsLineStreamReader.
+ * The output starts with a header line of <code>time</code> then one <code>leafID/field</code> per column,
+ * then has one row for each input record for which at least one projection matched,
+ * with the timestamp then the value for each matching column, or an empty cell elsewhere.
+ * Values are quoted as for RFC 4180 CSV where needed.
+ * <p>
+ * Each record is parsed once with FlatLeafJSONTokenizer where possible (else json-simple),
+ * and its ID is matched in place against the distinct IDs.
+ * <p>
+ * Not thread-safe.
+ */
+public final class JSONStatsColumnExtractor
+    {
+    /**One output column: a field from one leaf. */
+    public static final class Projection
+        {
+        /**Leaf ID as in the "@" field; never null. */
+        public final String id;
+        /**Field name; never null. */
+        public final String field;
+        public Projection(final String id, final String field)
+            {
+            if((null == id) || (null == field)) { throw new IllegalArgumentException(); }
+            this.id = id;
+            this.field = field;
+            }
+        @Override public String toString() { return(id + '/' + field); }
+        }
+
+    /**Make projections for every field of every ID, grouped by ID in the order given; never null. */
+    public static List<Projection> crossProduct(final List<String> ids, final List<String> fields)
+        {
+        final List<Projection> result = new ArrayList<>(ids.size() * fields.size());
+        for(final String id : ids) { for(final String field : fields) { result.add(new Projection(id, field)); } }
+        return(result);
+        }
+
+    /**Immutable projections in column order; never null. */
+    private final List<Projection> projections;
+
+    /**Distinct IDs; never null. */
+    private final String[] ids;
+    /**Fields to extract for each distinct ID, parallel to ids. */
+    private final String[][] fieldsByID;
+    /**Output column (0-based, not counting the timestamp) for each of fieldsByID. */
+    private final int[][] columnsByID;
+
+    /**Retained tokenizer for input lines. */
+    private final FlatLeafJSONTokenizer tokenizer = new FlatLeafJSONTokenizer();
+    /**Retained buffers for each column value, and for the output row. */
+    private final StringBuilder[] values;
+    private final StringBuilder row = new StringBuilder(128);
+
+    /**Count of input records and of rows output. */
+    private long recordCount, rowCount;
+
+    /**Create an extractor for the given columns.
+     * @param projections  columns in output order; never null nor empty
+     */
+    public JSONStatsColumnExtractor(final List<Projection> projections)
+        {
+        if((null == projections) || projections.isEmpty()) { throw new IllegalArgumentException(); }
+        this.projections = Collections.unmodifiableList(new ArrayList<Projection>(projections));
+        final List<String> distinct = new ArrayList<>();
+        for(final Projection p : this.projections) { if(!distinct.contains(p.id)) { distinct.add(p.id); } }
+        ids = distinct.toArray(new String[distinct.size()]);
+        fieldsByID = new String[ids.length][];
+        columnsByID = new int[ids.length][];
+        for(int i = 0; i < ids.length; ++i)
+            {
+            final List<String> f = new ArrayList<>();
+            final List<Integer> c = new ArrayList<>();
+            for(int col = 0; col < this.projections.size(); ++col)
+                {
+                final Projection p = this.projections.get(col);
+                if(p.id.equals(ids[i])) { f.add(p.field); c.add(col); }
+                }
+            fieldsByID[i] = f.toArray(new String[f.size()]);
+            columnsByID[i] = new int[c.size()];
+            for(int j = 0; j < c.size(); ++j) { columnsByID[i][j] = c.get(j); }
+            }
+        values = new StringBuilder[this.projections.size()];
+        for(int i = 0; i < values.length; ++i) { values[i] = new StringBuilder(8); }
+        }
+
+    /**Get the projections in column order; immutable and never null. */
+    public List<Projection> getProjections() { return(projections); }
+
+    /**Get the count of input records read so far. */
+    public long getRecordCount() { return(recordCount); }
+    /**Get the count of rows (not including the header) output so far. */
+    public long getRowCount() { return(rowCount); }
+
+    /**Append the CSV header line. */
+    public void writeHeader(final Appendable out) throws IOException
+        {
+        row.setLength(0);
+        row.append("time");
+        for(final Projection p : projections) { final String h = p.toString(); row.append(','); appendCSV(h, 0, h.length(), row); }
+        row.append('\n');
+        out.append(row);
+        }
+
+    /**Read all of the input, appending the header and then a row per matching record to out.
+     * @param in  input, array-per-line JSON as described for JSONStatsLineStreamReader; never null
+     * @param out  destination for CSV; never null
+     * @throws IOException  if the input cannot be read or a line is malformed
+     */
+    public void extract(final Reader in, final Appendable out) throws IOException
+        {
+        final BufferedReader br = (in instanceof BufferedReader) ? (BufferedReader)in : new BufferedReader(in);
+        writeHeader(out);
+        for( ; ; )
+            {
+            final String line = br.readLine();
+            if(null == line) { break; }
+            if(processLine(line)) { out.append(row); }
+            }
+        }
+
+    /**Process one input line, leaving any output row in the row buffer; returns true iff a row was generated. */
+    private boolean processLine(final String lineIn) throws IOException
+        {
+        ++recordCount;
+        row.setLength(0);
+        boolean matched = false;
+        final int d;
+
+        if(FlatLeafJSONTokenizer.enabled && tokenizer.parseLogLine(lineIn))
+            {
+            // Fast path for the usual flat leaf object, matching in place.
+            final int idi = tokenizer.indexOf("@");
+            if((-1 == idi) || (FlatLeafJSONTokenizer.KIND_NULL == tokenizer.getKind(idi))) { return(false); } // No ID so cannot match...
+            if(FlatLeafJSONTokenizer.KIND_STRING != tokenizer.getKind(idi)) { throw new IOException("ID (@ field) must be a string: " + lineIn); }
+            d = indexOfID(idi);
+            if(-1 == d) { return(false); }
+            final String[] fields = fieldsByID[d];
+            for(int j = 0; j < fields.length; ++j)
+                {
+                final int fi = tokenizer.indexOf(fields[j]);
+                if((-1 == fi) || (FlatLeafJSONTokenizer.KIND_NULL == tokenizer.getKind(fi))) { continue; }
+                tokenizer.appendValue(fi, values[columnsByID[d][j]]);
+                matched = true;
+                }
+            if(matched) { tokenizer.appendLogTimestamp(row); }
+            }
+        else
+            {
+            // Parse the input in full.
+            final Object o = JSONValue.parse(lineIn);
+            if(!(o instanceof JSONArray)) { throw new IOException("input line is not a JSON array: " + lineIn); }
+            final JSONArray array = (JSONArray)o;
+            if(3 != array.size()) { throw new IOException("input line JSON array has wrong number of elements: " + lineIn); }
+            if(!(array.get(0) instanceof String)) { throw new IOException("input line timestamp ([0]) is not a string: " + lineIn); }
+            if(!(array.get(2) instanceof JSONObject)) { throw new IOException("input line leaf JSON ([2]) is not an object/map: " + lineIn); }
+            final JSONObject leafObject = (JSONObject)array.get(2);
+            final Object ido = leafObject.get("@");
+            if(null == ido) { return(false); } // No ID so cannot match...
+            if(!(ido instanceof String)) { throw new IOException("ID (@ field) must be a string: " + lineIn); }
+            d = Arrays.asList(ids).indexOf(ido);
+            if(-1 == d) { return(false); }
+            final String[] fields = fieldsByID[d];
+            for(int j = 0; j < fields.length; ++j)
+                {
+                final Object fo = leafObject.get(fields[j]);
+                if(null == fo) { continue; }
+                values[columnsByID[d][j]].append(String.valueOf(fo));
+                matched = true;
+                }
+            if(matched) { row.append((String)array.get(0)); }
+            }
+
+        if(!matched) { return(false); }
+        for(int i = 0; i < values.length; ++i)
+            {
+            row.append(',');
+            final StringBuilder v = values[i];
+            if(0 != v.length()) { appendCSV(v, 0, v.length(), row); }
+            }
+        // Only this leaf's columns can have been filled in.
+        for(final int c : columnsByID[d]) { values[c].setLength(0); }
+        row.append('\n');
+        ++rowCount;
+        return(true);
+        }
+
+    /**Index in ids of the ID at field idi of the tokenizer, else -1. */
+    private int indexOfID(final int idi)
+        {
+        for(int i = 0; i < ids.length; ++i) { if(tokenizer.stringValueEquals(idi, ids[i])) { return(i); } }
+        return(-1);
+        }
+
+    /**Append s[start,end) as a CSV cell, quoting only if needed. */
+    private static void appendCSV(final CharSequence s, final int start, final int end, final StringBuilder sb)
+        {
+        boolean quote = false;
+        for(int i = start; i < end; ++i)
+            {
+            final char c = s.charAt(i);
+            if((',' == c) || ('"' == c) || ('\n' == c) || ('\r' == c)) { quote = true; break; }
+            }
+        if(!quote) { sb.append(s, start, end); return; }
+        sb.append('"');
+        for(int i = start; i < end; ++i)
+            {
+            final char c = s.charAt(i);
+            if('"' == c) { sb.append('"'); }
+            sb.append(c);
+            }
+        sb.append('"');
+        }
+
+    /**Allow this extractor to be run directly from the command line.
+     * Extracts from System.in to System.out as CSV.
+     * <p>
+     * Arguments are:
+     * <ul>
+     * <li><code>field{,field}* leafID { leafID }*</code> for every listed field of every listed leaf</li>
+     * <li><code>-projections leafID/field { leafID/field }*</code> for the given columns in order</li>
+     * </ul>
+     */
+    public static void main(final String args[])
+        {
+        if(args.length < 2)
+            {
+            System.err.println("field{,field}* leafID { leafID }* | -projections leafID/field { leafID/field }*");
+            System.exit(1);
+            return;
+            }
+
+        final List<Projection> projections = new ArrayList<>();
+        if("-projections".equals(args[0]))
+            {
+            for(int i = 1; i < args.length; ++i)
+                {
+                final int slash = args[i].indexOf('/');
+                if(slash <= 0) { System.err.println("bad projection: " + args[i]); System.exit(1); return; }
+                projections.add(new Projection(args[i].substring(0, slash), args[i].substring(slash + 1)));
+                }
+            }
+        else
+            { projections.addAll(crossProduct(Arrays.asList(args).subList(1, args.length), Arrays.asList(args[0].split(",")))); }
+
+        try(final Writer w = new BufferedWriter(new OutputStreamWriter(System.out)))
+            {
+            new JSONStatsColumnExtractor(projections).extract(new InputStreamReader(System.in), w);
+            }
+        catch(final IOException e)
+            {
+            e.printStackTrace();
+            System.exit(2);
+            return;
+            }
+        }
+    }
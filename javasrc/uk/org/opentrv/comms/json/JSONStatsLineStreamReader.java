@@ -19,11 +19,16 @@ Author(s) / Copyright (s): Damon Hart-Davis 2014
 package uk.org.opentrv.comms.json;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -62,6 +67,11 @@ public final class JSONStatsLineStreamReader extends FilterReader
     /**Offset in nextLineOut of next char to output; never >= nextLineOut.length(); */
     private int offsetNLO;
 
+    /**Retained tokenizer for input lines. */
+    private final FlatLeafJSONTokenizer tokenizer = new FlatLeafJSONTokenizer();
+    /**Retained buffer for output lines. */
+    private final StringBuilder lineOut = new StringBuilder(32);
+
     /**Returns true if output is multiID columnar format.
      * True when more than one ID is specified.
      * <p>
@@ -163,8 +173,78 @@ public final class JSONStatsLineStreamReader extends FilterReader
             final String lineIn = ((BufferedReader)in).readLine();
             if(null == lineIn) { return(-1); } // EOF.
 
-            // Parse the input and prepare the new string output.
-            final Object o = JSONValue.parse(lineIn); // FIXME: use retained parser for efficiency.
+            // Parse the input and generate output if it matches the filtering,
+            // else continue to the next input line/record, if any.
+            lineOut.setLength(0);
+            if(!filterLine(lineIn, tokenizer, field, ids, lineOut)) { continue; }
+            offsetNLO = 0;
+            nextLineOut = lineOut.toString();
+            }
+        }
+
+    /**Filter one input line, appending the '\n'-terminated output line to sb if it matches; returns true iff it matched.
+     * The output format is as for isMultiIDPOutput() for the given ids.
+     * This holds no state between lines so may be used from many threads,
+     * each with its own tokenizer and buffer.
+     * @param lineIn  one input line, array JSON as described in the class comment, without the line terminator; never null
+     * @param tokenizer  tokenizer for the fast path; never null
+     * @param field  name of field to extract; never null
+     * @param ids  ordered list of leaf IDs (as in "@" field) to select values from; null means all leaf values
+     * @param sb  buffer to append any output to; never null
+     * @throws IOException  if the line is malformed or the value is not safe to write
+     */
+    static boolean filterLine(final CharSequence lineIn, final FlatLeafJSONTokenizer tokenizer,
+            final String field, final List<String> ids, final StringBuilder sb)
+        throws IOException
+        {
+        final boolean multiID = (null != ids) && (ids.size() > 1);
+        final int mark = sb.length();
+        final int valueStart, valueEnd;
+        if(FlatLeafJSONTokenizer.enabled && tokenizer.parseLogLine(lineIn))
+            {
+            // Fast path for the usual flat leaf object, matching in place.
+            final int idi = tokenizer.indexOf("@");
+            if((-1 == idi) || (FlatLeafJSONTokenizer.KIND_NULL == tokenizer.getKind(idi))) { return(false); } // No ID so cannot match...
+            if(FlatLeafJSONTokenizer.KIND_STRING != tokenizer.getKind(idi)) { throw new IOException("ID (@ field) must be a string: " + lineIn); }
+            if(null != ids)
+                {
+                boolean found = false;
+                for(int i = ids.size(); --i >= 0; ) { if(tokenizer.stringValueEquals(idi, ids.get(i))) { found = true; break; } }
+                if(!found) { return(false); } // Failed ID match.
+                }
+            final int fi = tokenizer.indexOf(field);
+            if((-1 == fi) || (FlatLeafJSONTokenizer.KIND_NULL == tokenizer.getKind(fi))) { return(false); } // No match...
+            // All output formats start with a standard timestamp (and space).
+            tokenizer.appendLogTimestamp(sb);
+            if(!multiID)
+                {
+                sb.append(' ');
+                tokenizer.appendValue(idi, sb);
+                sb.append(' ');
+                valueStart = sb.length();
+                tokenizer.appendValue(fi, sb);
+                valueEnd = sb.length();
+                }
+            else
+                {
+                // A '-' is used in place of a value for all columns that do not match the ID.
+                int vs = -1, ve = -1;
+                for(final String cid : ids)
+                    {
+                    sb.append(' ');
+                    if(!tokenizer.stringValueEquals(idi, cid)) { sb.append('-'); continue; }
+                    vs = sb.length();
+                    tokenizer.appendValue(fi, sb);
+                    ve = sb.length();
+                    }
+                valueStart = vs;
+                valueEnd = ve;
+                }
+            }
+        else
+            {
+            // Parse the input in full.
+            final Object o = JSONValue.parse(lineIn.toString());
             if(!(o instanceof JSONArray)) { throw new IOException("input line is not a JSON array: " + lineIn); }
             final JSONArray array = (JSONArray)o;
             if(3 != array.size()) { throw new IOException("input line JSON array has wrong number of elements: " + lineIn); }
@@ -173,52 +253,54 @@ public final class JSONStatsLineStreamReader extends FilterReader
             if(!(array.get(2) instanceof JSONObject)) { throw new IOException("input line leaf JSON ([2]) is not an object/map: " + lineIn); }
             final JSONObject leafObject = (JSONObject)array.get(2);
 
-            // If the filter is not matched (or items are missing/bogus),
-            // continue to the next input line/record, if any.
+            // If the filter is not matched (or items are missing/bogus) there is no output.
             final Object ido = leafObject.get("@");
-            if(null == ido) { continue; } // No ID so cannot match...
+            if(null == ido) { return(false); } // No ID so cannot match...
             if(!(ido instanceof String)) { throw new IOException("ID (@ field) must be a string: " + lineIn); }
             final String id = (String) ido;
-            if((null != this.ids) && !this.ids.contains(id)) { continue; } // Failed ID match.
+            if((null != ids) && !ids.contains(id)) { return(false); } // Failed ID match.
             final Object fo = leafObject.get(field);
-            if(null == fo) { continue; } // No match...
+            if(null == fo) { return(false); } // No match...
             final String fos = String.valueOf(fo);
 
-            // Do not attempt to write a field value pf which the string form
-            // contains characters such as whitespace
-            // that may cause problems with parsing.
-            // Reject any character outside the range [32,126].
-            for(int i = fos.length(); --i >= 0; )
-                {
-                final char c = fos.charAt(i);
-                if((c <= 32) || (c >= 127)) { throw new IOException("field value not safe to write: " + lineIn); }
-                }
-
-            // Generate output.
-            final StringBuilder sb = new StringBuilder(32);
             // All output formats start with a standard timestamp (and space).
             sb.append(timeStamp);
-            if(!isMultiIDPOutput())
+            if(!multiID)
                 {
-                // Generate '\n'-terminated output for non-multiID format.
-                sb.append(' ').append(id).append(' ').append(fos);
+                sb.append(' ').append(id).append(' ');
+                valueStart = sb.length();
+                sb.append(fos);
+                valueEnd = sb.length();
                 }
             else
                 {
-                // Generate '\n'-terminated output for multiID multi-column format.
                 // A '-' is used in place of a value for all columns that do not match the ID.
+                int vs = -1, ve = -1;
                 for(final String cid : ids)
                     {
                     sb.append(' ');
-                    if(cid.equals(id)) { sb.append(fos); }
-                    else { sb.append('-'); }
+                    if(!cid.equals(id)) { sb.append('-'); continue; }
+                    vs = sb.length();
+                    sb.append(fos);
+                    ve = sb.length();
                     }
+                valueStart = vs;
+                valueEnd = ve;
                 }
-            // All output formats end with a newline.
-            sb.append('\n');;
-            offsetNLO = 0;
-            nextLineOut = sb.toString();
             }
+
+        // Do not write a field value of which the string form
+        // contains characters such as whitespace
+        // that may cause problems with parsing.
+        // Reject any character outside the range [32,126].
+        for(int i = valueEnd; --i >= valueStart; )
+            {
+            final char c = sb.charAt(i);
+            if((c <= 32) || (c >= 127)) { sb.setLength(mark); throw new IOException("field value not safe to write: " + lineIn); }
+            }
+        // All output formats end with a newline.
+        sb.append('\n');
+        return(true);
         }
 
     @Override
@@ -235,25 +317,43 @@ public final class JSONStatsLineStreamReader extends FilterReader
 
 
     /**Allow this filter to be run directly from the command line.
-     * Filters from System.in to System.out.
+     * Filters from System.in to System.out,
+     * or from the named files in parallel with a leading <code>-parallel N</code>.
      * <p>
      * Arguments are:
      * <ul>
      * <li><code>fieldName [leafID [concentratorID*]]</code></li>
      * <li><code>-multiID [options] fieldName leafID leafID { leafID }*</code></li>
+     * <li><code>-parallel N</code> followed by either of the above then <code>-- file { file }*</code></li>
      * </ul>
      * <p>
      * Note that the multiID format is columnar, with dashes in place of values
      * other than for the the specific ID that a matching data line is for,
      * and those columns are by ID in the order specified on the command line.
      * <p>
+     * The parallel form uses N (strictly positive) threads (see ParallelJSONStatsExtractor)
+     * and produces output in timestamp order across all the files.
+     * <p>
      * For now, the concentrator ID is always ignored.
      */
     public static void main(final String args[])
         {
-        if(args.length < 1)
+        // Strip any leading parallel option and trailing file list.
+        final boolean parallel = (args.length >= 2) && "-parallel".equals(args[0]);
+        int parallelism = 0;
+        int argStart = 0, argEnd = args.length;
+        final List<File> files = new ArrayList<>();
+        if(parallel)
             {
-            System.err.println("fieldName [leafID [concentratorID]] | -multiID [options] fieldName leafID leafID { leafID }*");
+            try { parallelism = Integer.parseInt(args[1]); } catch(final NumberFormatException e) { parallelism = 0; }
+            argStart = 2;
+            argEnd = Arrays.asList(args).indexOf("--");
+            if(argEnd >= 0) { for(int i = argEnd + 1; i < args.length; ++i) { files.add(new File(args[i])); } }
+            }
+
+        if((argEnd - argStart < 1) || (parallel && ((parallelism <= 0) || files.isEmpty())))
+            {
+            System.err.println("[-parallel N] fieldName [leafID [concentratorID]] | [-parallel N] -multiID [options] fieldName leafID leafID { leafID }* [-- file { file }*]");
             System.exit(1);
             return;
             }
@@ -261,15 +361,22 @@ public final class JSONStatsLineStreamReader extends FilterReader
         try
             {
             // Discover argument format.
-            final boolean isMultiID = "-multiID".equals(args[0]);
+            final boolean isMultiID = "-multiID".equals(args[argStart]);
 
             // Extract the field name.
-            final String fieldName = (!isMultiID) ? args[0] : args[1];
+            final String fieldName = (!isMultiID) ? args[argStart] : args[argStart+1];
 
             // Collect the IDs to extract for, if selecting/filtering.
             final List<String> ids = new ArrayList<>();
-            if(!isMultiID) { if(args.length > 1) { ids.add(args[1]); } }
-            else { for(int i = 2; i < args.length; ++i) { ids.add(args[i]); } }
+            if(!isMultiID) { if(argEnd - argStart > 1) { ids.add(args[argStart+1]); } }
+            else { for(int i = argStart+2; i < argEnd; ++i) { ids.add(args[i]); } }
+
+            if(parallel)
+                {
+                try(final Writer w = new BufferedWriter(new OutputStreamWriter(System.out)))
+                    { ParallelJSONStatsExtractor.extract(files, fieldName, ids.isEmpty() ? null : ids, parallelism, w); }
+                return;
+                }
 
             try(final BufferedReader br = new BufferedReader(new JSONStatsLineStreamReader(
                     new InputStreamReader(System.in),
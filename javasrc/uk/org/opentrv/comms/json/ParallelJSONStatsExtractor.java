@@ -0,0 +1,318 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.comms.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**Parallel equivalent of JSONStatsLineStreamReader for (multi-GB) archives of daily log files.
+ * Each file is split at line boundaries into chunks of roughly chunkBytes,
+ * which are memory-mapped and filtered on a ForkJoinPool
+ * with the same per-line logic and output format as JSONStatsLineStreamReader,
+ * then the output of all chunks is merged in timestamp order.
+ * <p>
+ * The log files are read as 8-bit (ISO-8859-1) text;
+ * values with non-ASCII characters are rejected as unsafe to write in any case.
+ * <p>
+ * Where the input files are already in timestamp order (as for daily logs named by date)
+ * the output is identical to that of JSONStatsLineStreamReader over the concatenated files.
+ * Otherwise the output is sorted stably by timestamp,
+ * ie ties are broken by file order then position in the file.
+ * <p>
+ * The output is held in memory until all chunks are done,
+ * so this is intended for selective extraction of a field and/or IDs,
+ * which is typically a small fraction of the input.
+ */
+public final class ParallelJSONStatsExtractor
+    {
+    private ParallelJSONStatsExtractor() { /* Prevent instance creation. */ }
+
+    /**Default chunk size; large enough to amortise task overhead, small enough to balance load. */
+    public static final int DEFAULT_CHUNK_BYTES = 32 << 20;
+
+    /**Size of buffer used to find line boundaries when splitting. */
+    private static final int SPLIT_SCAN_BYTES = 4096;
+
+    /**Read-only view of a region of a byte buffer as 8-bit chars; may be re-pointed, so not to be retained. */
+    private static final class ByteCharSequence implements CharSequence
+        {
+        private ByteBuffer buf;
+        private int off, len;
+        void set(final ByteBuffer buf, final int off, final int len) { this.buf = buf; this.off = off; this.len = len; }
+        @Override public int length() { return(len); }
+        @Override public char charAt(final int index) { return((char)(buf.get(off + index) & 0xff)); }
+        @Override public CharSequence subSequence(final int start, final int end)
+            {
+            if((start < 0) || (end > len) || (start > end)) { throw new IndexOutOfBoundsException(); }
+            final ByteCharSequence result = new ByteCharSequence();
+            result.set(buf, off + start, end - start);
+            return(result);
+            }
+        @Override public String toString()
+            {
+            final char[] c = new char[len];
+            for(int i = 0; i < len; ++i) { c[i] = (char)(buf.get(off + i) & 0xff); }
+            return(new String(c));
+            }
+        }
+
+    /**One chunk of one input file, and its output once processed. */
+    private static final class Chunk
+        {
+        /**Source file; never null. */
+        final File file;
+        /**Byte range [start,end) of whole lines in the file. */
+        final long start, end;
+        /**Output lines, each '\n'-terminated; null until processed. */
+        StringBuilder out;
+        Chunk(final File file, final long start, final long end) { this.file = file; this.start = start; this.end = end; }
+        }
+
+    /**Extract from the supplied files with the default chunk size, appending output to out.
+     * @param files  input files, array-per-line JSON as described for JSONStatsLineStreamReader; never null
+     * @param field  name of field to extract; never null
+     * @param ids  ordered list of leaf IDs (as in "@" field) to select values from; null means all leaf values
+     * @param parallelism  number of worker threads; strictly positive
+     * @param out  destination for the output, as from JSONStatsLineStreamReader; never null
+     */
+    public static void extract(final List<File> files, final String field, final List<String> ids,
+            final int parallelism, final Appendable out)
+        throws IOException
+        { extract(files, field, ids, parallelism, DEFAULT_CHUNK_BYTES, out); }
+
+    /**Extract from the supplied files, appending output to out.
+     * @param files  input files, array-per-line JSON as described for JSONStatsLineStreamReader; never null
+     * @param field  name of field to extract; never null
+     * @param ids  ordered list of leaf IDs (as in "@" field) to select values from; null means all leaf values
+     * @param parallelism  number of worker threads; strictly positive
+     * @param chunkBytes  nominal chunk size in bytes; strictly positive
+     * @param out  destination for the output, as from JSONStatsLineStreamReader; never null
+     * @throws IOException  if a file cannot be read or contains a malformed line
+     */
+    public static void extract(final List<File> files, final String field, final List<String> ids,
+            final int parallelism, final int chunkBytes, final Appendable out)
+        throws IOException
+        {
+        if((null == files) || (null == field) || (null == out)) { throw new IllegalArgumentException(); }
+        if((parallelism <= 0) || (chunkBytes <= 0)) { throw new IllegalArgumentException(); }
+        final List<String> idsCopy = (null == ids) ? null : Collections.unmodifiableList(new ArrayList<String>(ids));
+
+        final List<Chunk> chunks = new ArrayList<>();
+        for(final File f : files) { split(f, chunkBytes, chunks); }
+        if(chunks.isEmpty()) { return; }
+
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try { pool.invoke(new ChunksTask(chunks, 0, chunks.size(), field, idsCopy)); }
+        catch(final UncheckedIOException e) { throw e.getCause(); }
+        finally { pool.shutdown(); }
+
+        merge(chunks, out);
+        }
+
+    /**Process a range of chunks, splitting down to one chunk per task. */
+    private static final class ChunksTask extends RecursiveAction
+        {
+        private static final long serialVersionUID = 1L;
+        private final List<Chunk> chunks;
+        private final int from, to;
+        private final String field;
+        private final List<String> ids;
+        ChunksTask(final List<Chunk> chunks, final int from, final int to, final String field, final List<String> ids)
+            { this.chunks = chunks; this.from = from; this.to = to; this.field = field; this.ids = ids; }
+        @Override protected void compute()
+            {
+            if(to - from > 1)
+                {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new ChunksTask(chunks, from, mid, field, ids), new ChunksTask(chunks, mid, to, field, ids));
+                return;
+                }
+            try { process(chunks.get(from), field, ids); }
+            catch(final IOException e) { throw new UncheckedIOException(e); }
+            }
+        }
+
+    /**Split a file into chunks of whole lines of roughly chunkBytes each, appending them to chunks. */
+    private static void split(final File f, final int chunkBytes, final List<Chunk> chunks) throws IOException
+        {
+        try(final FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ))
+            {
+            final long size = fc.size();
+            final ByteBuffer scan = ByteBuffer.allocate(SPLIT_SCAN_BYTES);
+            long start = 0;
+            while(start < size)
+                {
+                // Move the nominal end forward to just after the next newline.
+                long end = Math.min(size, start + chunkBytes);
+                search: while(end < size)
+                    {
+                    scan.clear();
+                    final int n = fc.read(scan, end);
+                    if(n <= 0) { end = size; break; }
+                    for(int i = 0; i < n; ++i) { if('\n' == scan.get(i)) { end += i + 1; break search; } }
+                    end += n;
+                    }
+                if(end - start > Integer.MAX_VALUE) { throw new IOException("line too long in " + f); }
+                chunks.add(new Chunk(f, start, end));
+                start = end;
+                }
+            }
+        }
+
+    /**Filter all the lines of one chunk into its output. */
+    private static void process(final Chunk c, final String field, final List<String> ids) throws IOException
+        {
+        final StringBuilder out = new StringBuilder();
+        boolean sorted = true;
+        int lastLineStart = -1;
+        try(final FileChannel fc = FileChannel.open(c.file.toPath(), StandardOpenOption.READ))
+            {
+            final int len = (int)(c.end - c.start);
+            final MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, c.start, len);
+            final FlatLeafJSONTokenizer tokenizer = new FlatLeafJSONTokenizer();
+            final ByteCharSequence line = new ByteCharSequence();
+            for(int pos = 0; pos < len; )
+                {
+                int eol = pos;
+                while((eol < len) && ('\n' != buf.get(eol))) { ++eol; }
+                final int next = eol + 1;
+                if((eol > pos) && ('\r' == buf.get(eol - 1))) { --eol; }
+                line.set(buf, pos, eol - pos);
+                pos = next;
+                final int lineStart = out.length();
+                if(!JSONStatsLineStreamReader.filterLine(line, tokenizer, field, ids, out)) { continue; }
+                if(sorted && (lastLineStart >= 0) && (compareTimestamps(out, lastLineStart, out, lineStart) > 0)) { sorted = false; }
+                lastLineStart = lineStart;
+                }
+            }
+        // Sort out-of-order output here, in parallel, so that the merge sees only ordered runs.
+        c.out = sorted ? out : sortLines(out);
+        }
+
+    /**Stable sort of output lines by timestamp. */
+    private static StringBuilder sortLines(final StringBuilder out)
+        {
+        final List<Integer> starts = new ArrayList<>();
+        for(int i = 0; i < out.length(); )
+            {
+            starts.add(i);
+            while('\n' != out.charAt(i)) { ++i; }
+            ++i;
+            }
+        // List.sort() is stable, so lines with equal timestamps keep their order.
+        starts.sort(new Comparator<Integer>()
+            {
+            @Override public int compare(final Integer a, final Integer b) { return(compareTimestamps(out, a, out, b)); }
+            });
+        final StringBuilder result = new StringBuilder(out.length());
+        for(final int start : starts)
+            {
+            int eol = start;
+            while('\n' != out.charAt(eol)) { ++eol; }
+            result.append(out, start, eol + 1);
+            }
+        return(result);
+        }
+
+    /**Offset of the end of the timestamp (the first space or newline) of the output line starting at off. */
+    private static int timestampEnd(final CharSequence s, int off)
+        {
+        for( ; ; ++off) { final char ch = s.charAt(off); if((' ' == ch) || ('\n' == ch)) { return(off); } }
+        }
+
+    /**Compare the timestamps of two output lines; ISO-8601 UTC timestamps order lexically. */
+    private static int compareTimestamps(final CharSequence a, final int aOff, final CharSequence b, final int bOff)
+        {
+        final int aEnd = timestampEnd(a, aOff), bEnd = timestampEnd(b, bOff);
+        final int n = Math.min(aEnd - aOff, bEnd - bOff);
+        for(int i = 0; i < n; ++i)
+            {
+            final int d = a.charAt(aOff + i) - b.charAt(bOff + i);
+            if(0 != d) { return(d); }
+            }
+        return((aEnd - aOff) - (bEnd - bOff));
+        }
+
+    /**Offset of the start of the last line of non-empty output. */
+    private static int lastLineStart(final StringBuilder s)
+        {
+        int i = s.length() - 1;
+        while((i > 0) && ('\n' != s.charAt(i - 1))) { --i; }
+        return(i);
+        }
+
+    /**Read position in one chunk's output during the merge. */
+    private static final class Cursor implements Comparable<Cursor>
+        {
+        final StringBuilder out;
+        final int index;
+        int pos;
+        Cursor(final StringBuilder out, final int index) { this.out = out; this.index = index; }
+        @Override public int compareTo(final Cursor o)
+            {
+            final int c = compareTimestamps(out, pos, o.out, o.pos);
+            return((0 != c) ? c : Integer.compare(index, o.index));
+            }
+        }
+
+    /**Write the output of all chunks in timestamp order. */
+    private static void merge(final List<Chunk> chunks, final Appendable out) throws IOException
+        {
+        // Fast path: just concatenate if already in order, as is usual for daily logs.
+        boolean ordered = true;
+        StringBuilder prev = null;
+        for(final Chunk c : chunks)
+            {
+            if(0 == c.out.length()) { continue; }
+            if((null != prev) && (compareTimestamps(prev, lastLineStart(prev), c.out, 0) > 0)) { ordered = false; break; }
+            prev = c.out;
+            }
+        if(ordered)
+            {
+            for(final Chunk c : chunks) { out.append(c.out); }
+            return;
+            }
+
+        // Merge chunk outputs, each sorted by process(), ties going to the earlier chunk.
+        final PriorityQueue<Cursor> pq = new PriorityQueue<>(chunks.size());
+        for(int i = 0; i < chunks.size(); ++i)
+            { final StringBuilder o = chunks.get(i).out; if(0 != o.length()) { pq.add(new Cursor(o, i)); } }
+        while(!pq.isEmpty())
+            {
+            final Cursor c = pq.poll();
+            int eol = c.pos;
+            while('\n' != c.out.charAt(eol)) { ++eol; }
+            out.append(c.out, c.pos, eol + 1);
+            c.pos = eol + 1;
+            if(c.pos < c.out.length()) { pq.add(c); }
+            }
+        }
+    }
@@ -19,6 +19,8 @@ Author(s) / Copyright (s): Bruno Girin 2015
 
 package uk.org.opentrv.comms.statshandlers;
 
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsString;
 import static uk.org.opentrv.comms.cfg.ConfigUtil.loadConfigFile;
 
 import java.io.File;
@@ -31,6 +33,7 @@ import java.util.Map;
 
 import uk.org.opentrv.comms.cfg.ConfigException;
 import uk.org.opentrv.comms.cfg.ListConfigException;
+import uk.org.opentrv.comms.statshandlers.filter.ConcurrentStatsHandlerWrapper;
 
 /**
  * Singleton factory object that is able to create a list of handlers from
@@ -109,10 +112,11 @@ public class StatsHandlerFactory {
         } else {
             throw new ConfigException("Invalid options structure");
         }
+        StatsHandler handler;
         try {
             Class<?> hClass = Class.forName(hType);
             Constructor<?> hConstruct = hClass.getConstructor(Map.class);
-            return (StatsHandler)hConstruct.newInstance(hOptions);
+            handler = (StatsHandler)hConstruct.newInstance(hOptions);
         } catch(ClassNotFoundException cnfe) {
             throw new ConfigException("Invalid handler type", cnfe);
         } catch(NoSuchMethodException nsme) {
@@ -123,5 +127,28 @@ public class StatsHandlerFactory {
         } catch(Exception e) {
             throw new ConfigException("Could not create handler", e);
         }
+        return wrapForExecution(handler, config);
+    }
+
+    /**
+     * Wrap a handler for concurrent delivery if its config has an "execution" mode,
+     * with optional "maxConcurrency" and "maxQueueSize";
+     * see ConcurrentStatsHandlerWrapper.
+     * Only configure this for thread-safe handlers,
+     * since deliveries for different leaves may then run at the same time.
+     */
+    private static StatsHandler wrapForExecution(final StatsHandler handler, final Map<?, ?> config) throws ConfigException {
+        final String execution = getAsString(config, "execution");
+        if (execution == null) {
+            return handler;
+        }
+        try {
+            return new ConcurrentStatsHandlerWrapper(handler, execution,
+                getAsNumber(config, "maxConcurrency", ConcurrentStatsHandlerWrapper.DEFAULT_MAX_CONCURRENCY).intValue(),
+                getAsNumber(config, "maxQueueSize", ConcurrentStatsHandlerWrapper.DEFAULT_MAX_QUEUE_SIZE).intValue(),
+                ConcurrentStatsHandlerWrapper.DEFAULT_CLOSE_TIMEOUT_MS);
+        } catch(IllegalArgumentException iae) {
+            throw new ConfigException("Invalid execution options", iae);
+        }
     }
 }
\ No newline at end of file
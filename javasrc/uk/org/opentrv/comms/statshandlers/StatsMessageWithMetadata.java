@@ -17,17 +17,27 @@ Author(s) / Copyright (s): Damon Hart-Davis 2015
 */
 package uk.org.opentrv.comms.statshandlers;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.Map;
 
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import uk.org.opentrv.comms.json.FlatLeafJSONTokenizer;
+import uk.org.opentrv.comms.statshandlers.support.LeafID;
 import uk.org.opentrv.comms.statshandlers.support.Util;
+import uk.org.opentrv.comms.util.CommonSensorLabels;
 import uk.org.opentrv.comms.util.ParsedRemoteBinaryStatsRecord;
 
 /**Immutable (thread-safe) store of stats message as received.
  * Can also extract message in other formats, eg as a Map, where appropriate.
+ * <p>
+ * Extracted/parsed forms are computed lazily and memoised,
+ * so that one instance can be shared by many handlers
+ * with each form being computed (usually) at most once per message.
+ * Races between threads on first access are benign,
+ * at worst resulting in a redundant (identical) computation.
  */
 public final class StatsMessageWithMetadata
     {
@@ -82,32 +92,117 @@ public final class StatsMessageWithMetadata
     /**Get stats type as a char. */
     public char getStatsTypeAsChar() { return(message.charAt(0)); }
 
-    /**Get normalised leaf ID as a String, may be cached; null if not extractable. */
+    /**Cached normalised leaf ID; valid only if leafIDCached is true. */
+    private volatile String leafIDCache;
+    /**True once leafIDCache has been computed (even if null); written after leafIDCache. */
+    private volatile boolean leafIDCached;
+
+    /**Get normalised leaf ID as a String, cached; null if not extractable. */
     public String getLeafIDAsString()
         {
-        // TODO: consider cacheing
+        if(leafIDCached) { return(leafIDCache); }
         final String id = Util.extractNormalisedID(message);
+        leafIDCache = id;
+        leafIDCached = true;
+        return(id);
+        }
+
+    /**Marker for packed leaf ID not yet computed; neither LeafID.NONE nor a valid packed ID. */
+    private static final long LEAF_ID_UNKNOWN = -2L;
+    /**Cached packed leaf ID; valid only if not LEAF_ID_UNKNOWN. */
+    private volatile long leafIDAsLongCache = LEAF_ID_UNKNOWN;
+
+    /**Get normalised leaf ID packed as a long (see LeafID), cached; LeafID.NONE if not extractable or not packable.
+     * For '@' messages this is read directly from the raw message without creating the ID String;
+     * it always agrees with getLeafIDAsString().
+     */
+    public long getLeafIDAsLong()
+        {
+        final long cached = leafIDAsLongCache;
+        if(LEAF_ID_UNKNOWN != cached) { return(cached); }
+        long id = LeafID.extract(message);
+        if(LeafID.NONE == id) { id = LeafID.fromString(getLeafIDAsString()); }
+        leafIDAsLongCache = id;
         return(id);
         }
 
-    /**Get/parse stats as a Map, may be cached; null if not possible.
+    /**Cached parsed binary record; null until first successful parse. */
+    private volatile ParsedRemoteBinaryStatsRecord parsedBinaryCache;
+
+    /**Get parsed '@' binary stats record, cached; null if this is not a binary stats message.
+     * @throws IllegalArgumentException  if the message is of binary type but malformed
+     */
+    public ParsedRemoteBinaryStatsRecord getParsedRemoteBinaryStatsRecord()
+        {
+        final ParsedRemoteBinaryStatsRecord cached = parsedBinaryCache;
+        if(null != cached) { return(cached); }
+        if(CommonSensorLabels.ID.getLabel() != getStatsTypeAsChar()) { return(null); }
+        final ParsedRemoteBinaryStatsRecord parsed = new ParsedRemoteBinaryStatsRecord(message);
+        parsedBinaryCache = parsed;
+        return(parsed);
+        }
+
+    /**Cached immutable stats map; valid only if statsMapCached is true. */
+    private volatile Map<String, Object> statsMapCache;
+    /**True once statsMapCache has been computed (even if null); written after statsMapCache. */
+    private volatile boolean statsMapCached;
+
+    /**Get/parse stats as an immutable Map, cached; null if not possible.
      * Values are generally String or Number,
      * but may be more complex such as arrays or nested maps.
      * <p>
-     * May be cached.
+     * The same Map instance is returned to all callers,
+     * so it (and any nested values) must not be modified.
      */
-    @SuppressWarnings("unchecked")
     public Map<String, Object> parseStatsAsMap()
+        { return(parseStatsAsMap(true)); }
+
+    /**Get/parse stats as an immutable Map, optionally without caching a new parse; null if not possible.
+     * Any already-cached Map is returned.
+     * Useful for long-lived holders of the message that need the Map only transiently,
+     * as the cached Map is typically several times the size of the message text.
+     *
+     * @param cache  if true, cache a new parse as for parseStatsAsMap()
+     */
+    public Map<String, Object> parseStatsAsMap(final boolean cache)
+        {
+        if(statsMapCached) { return(statsMapCache); }
+        final Map<String, Object> m = _parseStatsAsMap(cache);
+        if(!cache) { return(m); }
+        statsMapCache = m;
+        statsMapCached = true;
+        return(m);
+        }
+
+    /**Uncached parse of stats as an immutable Map; null if not possible.
+     * @param cache  if true, any intermediate binary record parse may be cached
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> _parseStatsAsMap(final boolean cache)
         {
         final char statsType = getStatsTypeAsChar();
         switch(statsType)
             {
             case '@': // "Binary" form...
-                { return(new ParsedRemoteBinaryStatsRecord(message).getMapByString()); }
+                {
+                if(cache || (null != parsedBinaryCache)) { return(getParsedRemoteBinaryStatsRecord().getMapByString()); }
+                return(new ParsedRemoteBinaryStatsRecord(message).getMapByString());
+                }
             case '{': // JSON form...
                 {
+                // Try the cheap flat-object tokenizer first, then fall back to the full parser.
+                if(FlatLeafJSONTokenizer.enabled)
+                    {
+                    final Map<String, Object> flat = FlatLeafJSONTokenizer.parseAsJSONObject(message);
+                    if(null != flat) { return(Collections.unmodifiableMap(flat)); }
+                    }
                 final JSONParser parser = new JSONParser();
-                try { return((Map)parser.parse(message)); }
+                try
+                    {
+                    final Object o = parser.parse(message);
+                    if(!(o instanceof Map)) { return(null); }
+                    return(Collections.unmodifiableMap((Map<String, Object>)o));
+                    }
                 catch(final ParseException e) { return(null); }
                 }
             }
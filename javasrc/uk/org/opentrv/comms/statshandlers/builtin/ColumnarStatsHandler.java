@@ -0,0 +1,375 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.comms.statshandlers.builtin;
+
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsList;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.opentrv.comms.cfg.ConfigException;
+import uk.org.opentrv.comms.json.FlatLeafJSONTokenizer;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.support.ColumnarSegment;
+import uk.org.opentrv.comms.statshandlers.support.ColumnarSegment.Column;
+import uk.org.opentrv.comms.statshandlers.support.ColumnarStore;
+import uk.org.opentrv.comms.util.CommonSensorLabels;
+import uk.org.opentrv.comms.util.RemoteBinaryStatsView;
+
+/**Stores integer leaf stats as per-day, per-leaf, per-field columns for fast range queries.
+ * An alternative (or addition) to the text logs of SimpleFileLoggingStatsHandler
+ * for analysis that would otherwise re-parse many days of JSON,
+ * eg loading a year of one valve's temperatures;
+ * read back with ColumnarStore.
+ * <p>
+ * Integer fields of JSON ('{') messages are stored, except the "+" sequence number,
+ * as are the decimal sections of binary ('@') messages,
+ * with temperature stored as "T|C16" and other sections by their label.
+ * Non-integer values and messages without a leaf ID are ignored.
+ * Optionally only the listed fields are stored.
+ * <p>
+ * Readings are buffered in memory, already encoded, and written as an immutable ColumnarSegment
+ * per UTC day in statsDir/columnar/ when maxBufferedReadings are waiting,
+ * when readings arrive for a later day,
+ * at least every flushIntervalMS if that is positive,
+ * and on flush() and close().
+ * Readings still buffered are lost if the process stops without close().
+ * <p>
+ * Readings that cannot be written stay buffered and are retried at the next write,
+ * up to RETAINED_BUFFERS times maxBufferedReadings, beyond which the oldest days are discarded;
+ * the next call to processStatsMessage() then throws an IOException reporting the discards
+ * and does not accept its message.
+ * <p>
+ * Once readings arrive for a later day, the segments of each earlier day are compacted into one
+ * (see ColumnarStore.compactDay()), as are those of late readings for a complete day once written.
+ * <p>
+ * Config is of the form:
+<pre>
+{"statsDirName":"/var/log/opentrv", "fields":["T|C16","H|%","L","B|cV","v|%"], "maxBufferedReadings":100000, "flushIntervalMS":60000}
+</pre>
+ * <p>
+ * Thread-safe.
+ */
+public final class ColumnarStatsHandler implements StatsHandler, Flushable, AutoCloseable
+    {
+    /**Default maximum readings buffered before writing a segment; strictly positive. */
+    public static final int DEFAULT_MAX_BUFFERED_READINGS = 100_000;
+
+    /**Default maximum time that readings stay buffered; non-negative. */
+    public static final int DEFAULT_FLUSH_INTERVAL_MS = 60_000;
+
+    /**Multiple of maxBufferedReadings that may be retained while writes fail; strictly positive. */
+    public static final int RETAINED_BUFFERS = 4;
+
+    /**Field name used for temperature from binary messages, as for JSON messages. */
+    public static final String BINARY_TEMPERATURE_FIELD = "T|C16";
+
+    /**Sequence number field, not stored. */
+    private static final String SEQUENCE_FIELD = "+";
+
+    /**Store and its directory; never null. */
+    private final ColumnarStore store;
+    private final File dir;
+    /**Fields to store; null for all integer fields. */
+    private final Set<String> fields;
+    /**Maximum readings buffered; strictly positive. */
+    private final int maxBufferedReadings;
+    /**Periodic background flusher; null if none. */
+    private final ScheduledExecutorService flusher;
+
+    /**Buffered columns by UTC day then leaf ID then field; guarded by this. */
+    private final SortedMap<Long, SortedMap<String, SortedMap<String, Column>>> buffered = new TreeMap<>();
+    /**Count of readings buffered; guarded by this. */
+    private int bufferedReadings;
+    /**Next segment sequence number by UTC day, for days written by this instance; guarded by this. */
+    private final Map<Long, Integer> nextSeq = new HashMap<>();
+    /**Latest UTC day of any reading, before which days are complete (bar late readings); guarded by this. */
+    private long latestDay = Long.MIN_VALUE;
+    /**Count of readings discarded after failed writes and not yet reported; guarded by this. */
+    private long unreportedDiscards;
+    /**True after a write has failed, until one succeeds; guarded by this. */
+    private boolean failing;
+    /**True once closed; guarded by this. */
+    private boolean closed;
+
+    /**Reusable parsers; guarded by this. */
+    private final FlatLeafJSONTokenizer tokenizer = new FlatLeafJSONTokenizer();
+    private final RemoteBinaryStatsView binaryView = new RemoteBinaryStatsView();
+
+    /**Create from config; requires statsDirName. */
+    public ColumnarStatsHandler(final Map config) throws ConfigException
+        {
+        this(statsDirFromConfig(config),
+            fieldsFromConfig(config),
+            getAsNumber(config, "maxBufferedReadings", DEFAULT_MAX_BUFFERED_READINGS).intValue(),
+            getAsNumber(config, "flushIntervalMS", DEFAULT_FLUSH_INTERVAL_MS).intValue());
+        }
+
+    private static File statsDirFromConfig(final Map config) throws ConfigException
+        {
+        final Object statsDirNameO = config.get("statsDirName");
+        if(null == statsDirNameO) { throw new ConfigException("statsDirName required"); }
+        return(new File(statsDirNameO.toString()));
+        }
+
+    private static Collection<String> fieldsFromConfig(final Map config) throws ConfigException
+        {
+        final List l = getAsList(config, "fields");
+        if(null == l) { return(null); }
+        final List<String> result = new ArrayList<>(l.size());
+        for(final Object o : l) { result.add(String.valueOf(o)); }
+        return(result);
+        }
+
+    /**Create an instance storing all integer fields, with default buffering. */
+    public ColumnarStatsHandler(final File statsDir)
+        { this(statsDir, null, DEFAULT_MAX_BUFFERED_READINGS, DEFAULT_FLUSH_INTERVAL_MS); }
+
+    /**Create an instance.
+     * @param statsDir  top stats directory, under which the store is created; never null
+     * @param fields  fields to store; null for all integer fields
+     * @param maxBufferedReadings  maximum readings buffered before writing; strictly positive
+     * @param flushIntervalMS  if positive, maximum interval that readings stay buffered; non-negative
+     */
+    public ColumnarStatsHandler(final File statsDir, final Collection<String> fields,
+            final int maxBufferedReadings, final int flushIntervalMS)
+        {
+        if(null == statsDir) { throw new IllegalArgumentException(); }
+        if(maxBufferedReadings <= 0) { throw new IllegalArgumentException(); }
+        if(flushIntervalMS < 0) { throw new IllegalArgumentException(); }
+        this.store = new ColumnarStore(statsDir);
+        this.dir = store.getDir();
+        this.fields = (null == fields) ? null : new HashSet<String>(fields);
+        this.maxBufferedReadings = maxBufferedReadings;
+        if(flushIntervalMS > 0)
+            {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+                {
+                @Override public Thread newThread(final Runnable r)
+                    { final Thread t = new Thread(r, "columnar flusher " + statsDir); t.setDaemon(true); return(t); }
+                });
+            flusher.scheduleWithFixedDelay(new Runnable()
+                {
+                @Override public void run()
+                    { synchronized(ColumnarStatsHandler.this) { if(!closed) { writeQuietly(Long.MAX_VALUE); } } }
+                }, flushIntervalMS, flushIntervalMS, TimeUnit.MILLISECONDS);
+            }
+        else { flusher = null; }
+        }
+
+    @Override
+    public synchronized void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+        {
+        if(closed) { throw new IOException("closed"); }
+        if(0 != unreportedDiscards)
+            {
+            final long n = unreportedDiscards;
+            unreportedDiscards = 0;
+            throw new IOException("discarded " + n + " columnar reading(s) that could not be written to " + dir);
+            }
+        final String id = swmd.getLeafIDAsString();
+        if((null == id) || id.isEmpty()) { return; }
+        final long day = ColumnarStore.dayOf(swmd.timestamp);
+
+        // Once readings arrive for a new day, earlier days are complete (bar late readings).
+        if(day > latestDay)
+            {
+            latestDay = day;
+            writeQuietly(day);
+            try { store.compactDaysBefore(day); }
+            catch(final IOException e) { System.err.println("Could not compact columnar segments, will retry: " + e); }
+            }
+        else if(!buffered.isEmpty() && (buffered.firstKey() < day)) { writeQuietly(day); }
+
+        SortedMap<String, SortedMap<String, Column>> leaves = buffered.get(day);
+        if(null == leaves) { leaves = new TreeMap<>(); buffered.put(day, leaves); }
+        SortedMap<String, Column> columns = leaves.get(id);
+        if(null == columns) { columns = new TreeMap<>(); leaves.put(id, columns); }
+
+        if(CommonSensorLabels.ID.getLabel() == swmd.getStatsTypeAsChar())
+            {
+            if(!binaryView.wrap(swmd.message)) { return; }
+            for(int i = 1; i < binaryView.getSectionCount(); ++i)
+                {
+                final char label = binaryView.getSectionLabel(i);
+                if(CommonSensorLabels.TEMPERATURE.getLabel() == label)
+                    {
+                    final int c16 = binaryView.getTemperatureC16();
+                    if(RemoteBinaryStatsView.ABSENT != c16) { add(columns, BINARY_TEMPERATURE_FIELD, swmd.timestamp, c16); }
+                    continue;
+                    }
+                final int v = binaryView.getDecimal(label);
+                if(RemoteBinaryStatsView.ABSENT != v) { add(columns, String.valueOf(label), swmd.timestamp, v); }
+                }
+            }
+        else if(FlatLeafJSONTokenizer.enabled && tokenizer.parse(swmd.message))
+            {
+            for(int i = 0; i < tokenizer.size(); ++i)
+                {
+                if(FlatLeafJSONTokenizer.KIND_LONG != tokenizer.getKind(i)) { continue; }
+                final String key = tokenizer.getKey(i);
+                if(SEQUENCE_FIELD.equals(key)) { continue; }
+                add(columns, key, swmd.timestamp, tokenizer.getLong(i));
+                }
+            }
+        else
+            {
+            final Map<String, Object> m;
+            try { m = swmd.parseStatsAsMap(); }
+            catch(final IllegalArgumentException e) { return; } // Malformed: nothing to store.
+            if(null == m) { return; }
+            for(final Map.Entry<String, Object> e : m.entrySet())
+                {
+                final Object v = e.getValue();
+                if(!(v instanceof Long) && !(v instanceof Integer)) { continue; }
+                if(SEQUENCE_FIELD.equals(e.getKey())) { continue; }
+                add(columns, e.getKey(), swmd.timestamp, ((Number)v).longValue());
+                }
+            }
+        if(columns.isEmpty()) { leaves.remove(id); }
+        if(leaves.isEmpty()) { buffered.remove(day); }
+
+        if(bufferedReadings >= maxBufferedReadings) { writeQuietly(Long.MAX_VALUE); }
+        }
+
+    /**Buffer one reading if its field is to be stored; lock must be held. */
+    private void add(final SortedMap<String, Column> columns, final String field, final long timestamp, final long value)
+        {
+        if((null != fields) && !fields.contains(field)) { return; }
+        Column c = columns.get(field);
+        if(null == c) { c = new Column(); columns.put(field, c); }
+        c.append(timestamp, value);
+        ++bufferedReadings;
+        }
+
+    /**As writeDaysBefore(), logging only the first failure of a run and keeping within the buffer bound; lock must be held. */
+    private void writeQuietly(final long day)
+        {
+        try { writeDaysBefore(day); failing = false; }
+        catch(final IOException e)
+            {
+            if(!failing) { System.err.println("Could not write columnar store, will retry: " + e); }
+            failing = true;
+            }
+        // Discard the oldest days beyond the bound.
+        while(bufferedReadings > RETAINED_BUFFERS * (long)maxBufferedReadings)
+            {
+            final int readings = readings(buffered.remove(buffered.firstKey()));
+            bufferedReadings -= readings;
+            unreportedDiscards += readings;
+            }
+        }
+
+    /**Count the readings of one day. */
+    private static int readings(final SortedMap<String, SortedMap<String, Column>> day)
+        {
+        int readings = 0;
+        for(final SortedMap<String, Column> cols : day.values()) { for(final Column c : cols.values()) { readings += c.size(); } }
+        return(readings);
+        }
+
+    /**Write a segment for each buffered day before the given day, compacting complete days; lock must be held.
+     * Days that cannot be written stay buffered, to be retried.
+     */
+    private void writeDaysBefore(final long day) throws IOException
+        {
+        IOException failure = null;
+        for(final Iterator<Map.Entry<Long, SortedMap<String, SortedMap<String, Column>>>> it = buffered.entrySet().iterator(); it.hasNext(); )
+            {
+            final Map.Entry<Long, SortedMap<String, SortedMap<String, Column>>> e = it.next();
+            if(e.getKey() >= day) { break; }
+            try { ColumnarSegment.write(nextSegmentFile(e.getKey()), e.getValue()); }
+            catch(final IOException x) { failure = x; continue; }
+            it.remove();
+            bufferedReadings -= readings(e.getValue());
+            // Late readings for a complete day.
+            if(e.getKey() < latestDay)
+                {
+                try { store.compactDay(e.getKey()); }
+                catch(final IOException x) { failure = x; }
+                }
+            }
+        if(null != failure) { throw failure; }
+        }
+
+    /**Allocate a new segment file name for the given day; lock must be held. */
+    private File nextSegmentFile(final long day) throws IOException
+        {
+        if(!dir.isDirectory()) { dir.mkdirs(); }
+        Integer seq = nextSeq.get(day);
+        if(null == seq)
+            {
+            // Continue after any segments already written for this day, eg before a restart.
+            seq = 0;
+            final String prefix = ColumnarStore.dayPrefix(day);
+            final String[] names = dir.list();
+            if(null == names) { throw new IOException("cannot list " + dir); }
+            for(final String n : names) { seq = Math.max(seq, 1 + ColumnarStore.segmentSeq(n, prefix)); }
+            }
+        nextSeq.put(day, seq + 1);
+        return(new File(dir, ColumnarStore.segmentName(day, seq)));
+        }
+
+    /**Get the count of readings currently buffered. */
+    public synchronized int getBufferedReadings() { return(bufferedReadings); }
+
+    /**Write all buffered readings as segments now; any that cannot be written stay buffered. */
+    @Override
+    public synchronized void flush() throws IOException { writeDaysBefore(Long.MAX_VALUE); }
+
+    /**Write all buffered readings and stop; further messages are rejected.
+     * Throws an IOException reporting any readings that could not be written or were discarded.
+     */
+    @Override
+    public void close() throws IOException
+        {
+        if(null != flusher) { flusher.shutdown(); }
+        synchronized(this)
+            {
+            if(closed) { return; }
+            closed = true;
+            IOException failure = null;
+            try { writeDaysBefore(Long.MAX_VALUE); }
+            catch(final IOException e) { failure = e; }
+            final long n = bufferedReadings + unreportedDiscards;
+            buffered.clear();
+            bufferedReadings = 0;
+            unreportedDiscards = 0;
+            if(0 != n) { throw new IOException("discarded " + n + " columnar reading(s) that could not be written to " + dir, failure); }
+            if(null != failure) { throw failure; }
+            }
+        }
+    }
@@ -18,13 +18,17 @@ Author(s) / Copyright (s): Damon Hart-Davis 2015
 
 package uk.org.opentrv.comms.statshandlers.builtin;
 
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 
+import uk.org.opentrv.comms.cfg.ConfigException;
 import uk.org.opentrv.comms.statshandlers.StatsHandler;
 import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
-import uk.org.opentrv.comms.statshandlers.support.Util;
+import uk.org.opentrv.comms.statshandlers.support.FlagToucher;
+import uk.org.opentrv.comms.statshandlers.support.GroupCommitter;
 
 /**Very simple file flag handler that sets a flag per leaf ID on receipt of any stats from that ID.
  * Authenticated messages will have a second flag set also.
@@ -39,23 +43,38 @@ import uk.org.opentrv.comms.statshandlers.support.Util;
  * IDs that are not pure ASCII7 printable alphanumeric,
  * or are overly long,
  * are ignored.
+ * <p>
+ * Flag updates are not forced to disc by default;
+ * the durability (and syncIntervalMS) options can select a GroupCommitter policy.
+ * <p>
+ * By default each flag is touched for every message;
+ * the touchGranularityMS option allows each flag to be touched at most once per granularity
+ * (the first time at once, and the latest later one in the background),
+ * so that bursts cost few filesystem operations.
+ * Calling close() applies any pending touches.
  */
-public class FileFlagStatsHandler implements StatsHandler
+public class FileFlagStatsHandler implements StatsHandler, AutoCloseable
     {
     private final File statsDir;
 
+    /**Coalescing flag toucher; not null. */
+    private final FlagToucher toucher;
+
     /**Create a new handler from a configuration object. */
-    public FileFlagStatsHandler(final Map config)
+    public FileFlagStatsHandler(final Map config) throws ConfigException
         {
         Object statsDirNameO = config.get("statsDirName");
         if(null == statsDirNameO) { throw new IllegalArgumentException(); }
         this.statsDir = new File(statsDirNameO.toString());
+        this.toucher = new FlagToucher(getAsNumber(config, "touchGranularityMS", 0).intValue(),
+            GroupCommitter.fromConfig(config, GroupCommitter.Policy.NONE));
         }
 
     public FileFlagStatsHandler(final String statsDirName)
         {
         if(null == statsDirName) { throw new IllegalArgumentException(); }
         this.statsDir = new File(statsDirName);
+        this.toucher = new FlagToucher(0, GroupCommitter.NONE);
         }
 
     @Override
@@ -80,7 +99,7 @@ public class FileFlagStatsHandler implements StatsHandler
         final File flagFile = new File(statsDir, flagName);
         // TODO: check not 'special' in target filesystem, eg "CON" or "AUX" in Windows.
         // Touch file, creating if necessary.
-        Util.touch(flagFile);
+        toucher.touch(flagFile);
         if(swmd.authenticated)
             {
             // Construct auth flag name.
@@ -88,7 +107,11 @@ public class FileFlagStatsHandler implements StatsHandler
             final File flagFileAuth = new File(statsDir, flagNameAuth);
             // TODO: check not 'special' in target filesystem, eg "CON" or "AUX" in Windows.
             // Touch file, creating if necessary.
-            Util.touch(flagFileAuth);
+            toucher.touch(flagFileAuth);
             }
         }
+
+    /**Apply any pending flag touches and stop background work. */
+    @Override
+    public void close() throws IOException { toucher.close(); }
     }
@@ -17,22 +17,44 @@ Author(s) / Copyright (s): Damon Hart-Davis 2015
 */
 package uk.org.opentrv.comms.statshandlers.builtin;
 
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsString;
+
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
+import uk.org.opentrv.comms.cfg.ConfigException;
 import uk.org.opentrv.comms.statshandlers.StatsHandler;
 import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.support.GroupCommitter;
 import uk.org.opentrv.comms.statshandlers.support.RecentStatsWindow;
 import uk.org.opentrv.comms.statshandlers.support.Util;
 
 /**Writes JSON snapshot of recent stats to specified file as events arrive.
- * Not thread-safe; intended to be used at a single end-point sink.
+ * Intended to be used at a single end-point sink.
+ * <p>
+ * By default each new snapshot is forced to disc before replacing the old;
+ * the durability (and syncIntervalMS) options can select a different GroupCommitter policy.
+ * <p>
+ * By default the whole window is re-serialised for each message
+ * and the current-values map is left empty.
+ * In incremental mode each log entry is serialised once while in the window,
+ * the current-values map holds the latest entry for each leaf ID,
+ * and if rewriteIntervalMS is positive then rewrites are coalesced
+ * so that the file is replaced at most once per interval,
+ * with any pending snapshot written in the background,
+ * and on flush() and close().
  */
-public final class RecentStatsWindowFileWriter implements StatsHandler
+public final class RecentStatsWindowFileWriter implements StatsHandler, Flushable, AutoCloseable
     {
     /**Target file to be updated with the collated data. */
     final File targetFile;
@@ -40,20 +62,43 @@ public final class RecentStatsWindowFileWriter implements StatsHandler
     /**Where data is accumulated and collated; not null. */
     private final RecentStatsWindow rsw;
 
-    /**Create a new handler from a configuration object. */
-    public RecentStatsWindowFileWriter(final Map config)
+    /**Durability policy for snapshots; not null. */
+    private final GroupCommitter committer;
+
+    /**True if in incremental mode. */
+    private final boolean incremental;
+    /**Minimum interval between rewrites in incremental mode in milliseconds; non-negative. */
+    private final int rewriteIntervalMS;
+    /**Background writer of coalesced snapshots; null if none. */
+    private final ScheduledExecutorService writer;
+
+    /**True if the window has changed since last written; guarded by this. */
+    private boolean dirty;
+    /**True if a background write is scheduled; guarded by this. */
+    private boolean writeScheduled;
+    /**System time of last write, or 0 if none; guarded by this. */
+    private long lastWrite;
+
+    /**Create a new handler from a configuration object.
+     * This requires targetFile and optionally takes window_ms, lateness_ms, durability, syncIntervalMS,
+     * incremental and rewriteIntervalMS.
+     */
+    public RecentStatsWindowFileWriter(final Map config) throws ConfigException
+        {
+        this(targetFileFromConfig(config),
+             getAsNumber(config, "window_ms", RecentStatsWindow.DEFAULT_WINDOW_MS).longValue(),
+             GroupCommitter.fromConfig(config, GroupCommitter.Policy.PER_LINE),
+             getAsNumber(config, "lateness_ms", 0).longValue(),
+             Boolean.parseBoolean(getAsString(config, "incremental", "false")),
+             getAsNumber(config, "rewriteIntervalMS", 0).intValue());
+        }
+
+    /**Extract the mandatory target file from configuration. */
+    private static File targetFileFromConfig(final Map config)
         {
-        Object targetFileO = config.get("targetFile");
-        Object window_msO = config.get("window_ms");
+        final Object targetFileO = config.get("targetFile");
         if(null == targetFileO) { throw new IllegalArgumentException(); }
-        File targetFile = new File(targetFileO.toString());
-        long window_ms = RecentStatsWindow.DEFAULT_WINDOW_MS;
-        if(null != window_msO && window_msO instanceof Number)
-            {
-            window_ms = ((Number)window_msO).longValue();
-            }
-        this.targetFile = targetFile;
-        rsw = new RecentStatsWindow(window_ms);
+        return(new File(targetFileO.toString()));
         }
 
     /**Specify (non-null) target file; must be writable/createable as a plain file. */
@@ -64,10 +109,50 @@ public final class RecentStatsWindowFileWriter implements StatsHandler
      * @param window_ms  maximum window size in milliseconds; strictly positive
      */
     public RecentStatsWindowFileWriter(final File targetFile, final long window_ms)
+        { this(targetFile, window_ms, GroupCommitter.PER_LINE); }
+
+    /**Create instance specifying a non-default window, target file and durability policy.
+     * @param targetFile  target file name, must be writable/createable as a plain file; never null
+     * @param window_ms  maximum window size in milliseconds; strictly positive
+     * @param committer  durability policy for snapshots; never null
+     */
+    public RecentStatsWindowFileWriter(final File targetFile, final long window_ms, final GroupCommitter committer)
+        { this(targetFile, window_ms, committer, false, 0); }
+
+    /**Create instance requiring messages in order (see the full constructor). */
+    public RecentStatsWindowFileWriter(final File targetFile, final long window_ms, final GroupCommitter committer,
+                                       final boolean incremental, final int rewriteIntervalMS)
+        { this(targetFile, window_ms, committer, 0, incremental, rewriteIntervalMS); }
+
+    /**Create instance specifying all parameters.
+     * @param targetFile  target file name, must be writable/createable as a plain file; never null
+     * @param window_ms  maximum window size in milliseconds; strictly positive
+     * @param committer  durability policy for snapshots; never null
+     * @param lateness_ms  maximum lateness of messages sorted into the window rather than rejected;
+     *     non-negative and no more than window_ms
+     * @param incremental  if true, serialise entries once and maintain the current-values map
+     * @param rewriteIntervalMS  in incremental mode, if positive the minimum interval between rewrites; non-negative
+     */
+    public RecentStatsWindowFileWriter(final File targetFile, final long window_ms, final GroupCommitter committer,
+                                       final long lateness_ms, final boolean incremental, final int rewriteIntervalMS)
         {
         if(null == targetFile) { throw new IllegalArgumentException(); }
+        if(null == committer) { throw new IllegalArgumentException(); }
+        if(rewriteIntervalMS < 0) { throw new IllegalArgumentException(); }
         this.targetFile = targetFile;
-        rsw = new RecentStatsWindow(window_ms);
+        rsw = new RecentStatsWindow(window_ms, lateness_ms);
+        this.committer = committer;
+        this.incremental = incremental;
+        this.rewriteIntervalMS = incremental ? rewriteIntervalMS : 0;
+        if(this.rewriteIntervalMS > 0)
+            {
+            writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+                {
+                @Override public Thread newThread(final Runnable r)
+                    { final Thread t = new Thread(r, "recent stats writer " + targetFile); t.setDaemon(true); return(t); }
+                });
+            }
+        else { writer = null; }
         }
 
     /**Accept a new stats message.
@@ -75,18 +160,77 @@ public final class RecentStatsWindowFileWriter implements StatsHandler
      * @throws IOException  out-of-order message (bad timestamp) or other issue
      */
     @Override
-    public void processStatsMessage(final StatsMessageWithMetadata swmd)
+    public synchronized void processStatsMessage(final StatsMessageWithMetadata swmd)
         throws IOException
         {
         rsw.processStatsMessage(swmd);
 
-        // Update file with new snapshot...
-        // Output is list whose first element is the current-values map keyed by ID, and second is the log (as a list)
-        final JSONArray outerArray = new JSONArray();
-        final JSONObject valueMap = new JSONObject(); // FIXME: not yet populated.
-        outerArray.add(valueMap);
-        outerArray.add(rsw.getRecentStatsMessagesInOrderAsJSONArray());
-        Util.replacePublishedFile(targetFile.getPath(), outerArray.toString().getBytes(Util.FILE_ENCODING_ASCII7), true);
+        if(!incremental)
+            {
+            // Update file with new snapshot...
+            // Output is list whose first element is the current-values map keyed by ID, and second is the log (as a list)
+            final JSONArray outerArray = new JSONArray();
+            final JSONObject valueMap = new JSONObject(); // Only populated in incremental mode.
+            outerArray.add(valueMap);
+            outerArray.add(rsw.getRecentStatsMessagesInOrderAsJSONArray());
+            replace(outerArray.toString());
+            return;
+            }
+
+        dirty = true;
+        final long now = System.currentTimeMillis();
+        final long wait = (lastWrite + rewriteIntervalMS) - now;
+        if((null == writer) || (wait <= 0)) { write(now); return; }
+        if(!writeScheduled)
+            {
+            writeScheduled = true;
+            writer.schedule(new Runnable()
+                {
+                @Override public void run()
+                    {
+                    synchronized(RecentStatsWindowFileWriter.this)
+                        {
+                        writeScheduled = false;
+                        try { if(dirty) { write(System.currentTimeMillis()); } }
+                        catch(final IOException e) { e.printStackTrace(); }
+                        }
+                    }
+                }, wait, TimeUnit.MILLISECONDS);
+            }
         }
 
+    /**Write incremental-mode snapshot from cached fragments; lock must be held. */
+    private void write(final long now) throws IOException
+        {
+        dirty = false;
+        lastWrite = now;
+        // Same layout as the full snapshot: current-values map keyed by ID, then the log.
+        final String valueMap = rsw.getLatestMessageByLeafIDAsJSONString();
+        final String log = rsw.getRecentStatsMessagesInOrderAsJSONString();
+        final StringBuilder sb = new StringBuilder(3 + valueMap.length() + log.length());
+        sb.append('[').append(valueMap).append(',').append(log).append(']');
+        replace(sb.toString());
+        }
+
+    /**Replace the target file with the given snapshot, if changed. */
+    private void replace(final String snapshot) throws IOException
+        {
+        // Per-line durability syncs the new content before the replacement, as a crash-safe atomic update.
+        final boolean perLine = (GroupCommitter.Policy.PER_LINE == committer.getPolicy());
+        if(Util.replacePublishedFile(targetFile.getPath(), snapshot.getBytes(Util.FILE_ENCODING_ASCII7), true, perLine) && !perLine)
+            { committer.written(targetFile); }
+        }
+
+    /**Write out any pending coalesced snapshot now. */
+    @Override
+    public synchronized void flush() throws IOException
+        { if(dirty) { write(System.currentTimeMillis()); } }
+
+    /**Write out any pending coalesced snapshot and stop the background writer. */
+    @Override
+    public void close() throws IOException
+        {
+        if(null != writer) { writer.shutdownNow(); }
+        flush();
+        }
     }
@@ -19,12 +19,13 @@ Author(s) / Copyright (s): Bruno Girin 2014
 
 package uk.org.opentrv.comms.statshandlers.builtin;
 
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
+
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.text.FieldPosition;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -33,30 +34,83 @@ import java.util.TimeZone;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import uk.org.opentrv.comms.cfg.ConfigException;
+import uk.org.opentrv.comms.json.FlatLeafJSONTokenizer;
 import uk.org.opentrv.comms.statshandlers.StatsHandler;
 import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.support.DailyLogRoller;
+import uk.org.opentrv.comms.statshandlers.support.DailyLogWriterCache;
+import uk.org.opentrv.comms.statshandlers.support.GroupCommitter;
 import uk.org.opentrv.comms.statshandlers.support.Util;
 import uk.org.opentrv.comms.util.CommonSensorLabels;
 import uk.org.opentrv.comms.util.ParsedRemoteBinaryStatsRecord;
-
-/**Logs stats in a simple and efficient way. */
-public class SimpleFileLoggingStatsHandler implements StatsHandler
+import uk.org.opentrv.comms.util.RemoteBinaryStatsView;
+
+/**Logs stats in a simple and efficient way.
+ * <p>
+ * Daily log files are kept open between lines.
+ * By default each line is written out (though not forced to disc) as it arrives;
+ * optionally lines can be buffered until flushLines are waiting for a file
+ * or flushIntervalMS has elapsed, for less file traffic at the cost of some delay.
+ * <p>
+ * Writes are not forced to disc by default;
+ * the durability (and syncIntervalMS) options can select a GroupCommitter policy.
+ * <p>
+ * If indexEveryLines is positive then a sparse time and leaf-ID index
+ * is kept alongside each daily log for fast range lookups with IndexedDailyLogReader.
+ * <p>
+ * If compressAfterMS is non-negative then each daily log is compressed in the background
+ * (by a DailyLogRoller, to YYYYMMDD.extension.gz) once its UTC day has been over for that long.
+ * <p>
+ * Calling close() writes out any buffered lines and closes the files, and stops any compression.
+ * <p>
+ * Thread-safe, so may be wrapped for concurrent delivery.
+ */
+public class SimpleFileLoggingStatsHandler implements StatsHandler, AutoCloseable
     {
     /**Stats top directory to use; never null. */
     private final File statsDir;
 
-    /**Create a new handler from a configuration object. */
-    public SimpleFileLoggingStatsHandler(final Map config)
+    /**Open daily log files; never null. */
+    private final DailyLogWriterCache logs;
+
+    /**True if the logs are indexed, so leaf IDs must be extracted for them. */
+    private final boolean indexing;
+
+    /**Background compressor of completed daily logs; null if none. */
+    private final DailyLogRoller roller;
+
+    /**Interval between checks for completed daily logs to compress. */
+    private static final long ROLL_CHECK_INTERVAL_MS = 3600_000L;
+
+    /**Create a new handler from a configuration object.
+     * This requires statsDirName and optionally takes flushLines, flushIntervalMS,
+     * indexEveryLines, compressAfterMS, durability and syncIntervalMS.
+     */
+    public SimpleFileLoggingStatsHandler(final Map config) throws ConfigException
         {
         Object statsDirNameO = config.get("statsDirName");
         if(null == statsDirNameO) { throw new IllegalArgumentException(); }
         this.statsDir = new File(statsDirNameO.toString());
+        final int indexEveryLines = getAsNumber(config, "indexEveryLines", 0).intValue();
+        this.indexing = (indexEveryLines > 0);
+        this.logs = new DailyLogWriterCache(statsDir,
+            getAsNumber(config, "flushLines", 1).intValue(),
+            getAsNumber(config, "flushIntervalMS", 0).intValue(),
+            indexEveryLines,
+            GroupCommitter.fromConfig(config, GroupCommitter.Policy.NONE));
+        final long compressAfterMS = getAsNumber(config, "compressAfterMS", -1).longValue();
+        this.roller = (compressAfterMS < 0) ? null :
+            new DailyLogRoller(statsDir, Arrays.asList(localTempSubdir, remoteStatsSubdir), compressAfterMS, logs, ROLL_CHECK_INTERVAL_MS);
         }
 
     public SimpleFileLoggingStatsHandler(final String statsDirName)
         {
         if(null == statsDirName) { throw new IllegalArgumentException(); }
         this.statsDir = new File(statsDirName);
+        this.logs = new DailyLogWriterCache(statsDir);
+        this.indexing = false;
+        this.roller = null;
         }
 
     /**Filename for flag touched each time that the latest (decoded binary) log file is.
@@ -120,9 +174,9 @@ plot "sample.log" using 1:3 with linespoints
      * <p>
      * Intended to be called at most about once per minute.
      * <p>
-     * Not thread-safe.
+     * Thread-safe.
      */
-    public void processLocalStats(final String message, final long timestamp) throws IOException {
+    public synchronized void processLocalStats(final String message, final long timestamp) throws IOException {
         // Quickly extract temperature directly from initial part of status line.
         //     =F0%@19CE; ...
         // Temp in C i between '@' and ';' with the part after the C in 16ths.
@@ -133,9 +187,6 @@ plot "sample.log" using 1:3 with linespoints
         if((-1 == scPos) || (scPos > 11)) { return; } // Obviously broken.
 
         final Date now = new Date(timestamp); // new Date();
-        final File dir = new File(statsDir, localTempSubdir);
-        final File logFile;
-        synchronized(dateForFilename) { logFile = new File(dir, dateForFilename.format(now) + ".log"); }
 
         // Extract local temperature from stats line.
         final String rawTempValue = message.substring(atPos+1, scPos);
@@ -146,7 +197,8 @@ plot "sample.log" using 1:3 with linespoints
         // so save some unnecessary processing and file traffic.
         if(rawTempValue.equals(lastRawTempValueWritten))
             {
-            final long lastWrite = logFile.lastModified();
+            long lastWrite = logs.getLastAppendTime(localTempSubdir, timestamp, ".log");
+            if(0 == lastWrite) { lastWrite = logs.getLogFile(localTempSubdir, timestamp, ".log").lastModified(); }
             if((0 != lastWrite) && ((now.getTime() - lastWrite) < MIN_TEMP_LOG_WRITE_INTERVAL_UNCHANGED_MS))
                 { return; }
             }
@@ -158,17 +210,9 @@ plot "sample.log" using 1:3 with linespoints
         sb.append(temp);
         sb.append(' ');
         sb.append(message);
-        final String lineToLog = sb.toString();
 
-        if(!dir.isDirectory()) { dir.mkdirs(); }
         // Append line to file of form statsDir/localtemp/YYYYMMDD.log where date is UTC.
-        try(final PrintWriter pw = new PrintWriter(new FileWriter(logFile, true)))
-            {
-            pw.println(lineToLog);
-            pw.flush();
-            }
-        final File updatedFlag = new File(dir, UPDATED_FLAG_FILENAME);
-        Util.touch(updatedFlag);
+        logs.append(localTempSubdir, timestamp, ".log", sb, UPDATED_FLAG_FILENAME);
         lastRawTempValueWritten = rawTempValue;
     }
 
@@ -202,9 +246,12 @@ plot "sample.log" using 1:3 with linespoints
         if((null == rawJSON) || rawJSON.isEmpty()) { throw new IllegalArgumentException(); }
         for(final char c : concentratorID.toCharArray()) { if((c < 32) || (c > 126) || !Character.isLetterOrDigit(c)) { throw new IllegalArgumentException("bad char "+(int)c); } }
         for(final char c : rawJSON.toCharArray()) { if((c < 32) || (c > 126)) { throw new IllegalArgumentException(); } }
-        final JSONParser parser = new JSONParser();
-        // Reject invalid raw JSON.
-        try { parser.parse(rawJSON); } catch(final ParseException e) { throw new IllegalArgumentException(e); }
+        // Reject invalid raw JSON, cheaply if it is a simple flat leaf object.
+        if(!FlatLeafJSONTokenizer.enabled || !FlatLeafJSONTokenizer.perThread().parse(rawJSON))
+            {
+            final JSONParser parser = new JSONParser();
+            try { parser.parse(rawJSON); } catch(final ParseException e) { throw new IllegalArgumentException(e); }
+            }
 
         // Create the full log line as JSON array of time, concentrator ID, raw JSON object.
         final StringBuffer sb = new StringBuffer();
@@ -233,8 +280,21 @@ plot "sample.log" using 1:3 with linespoints
     /**Sub-directory of stats dir for recording remote stats (esp temperatures) from directly-attached OpenTRV unit. */
     public static final String remoteStatsSubdir = "remote";
 
-    /**Map from ID to last remote record written for that ID, including time; non-null. */
-    private final Map<String, ParsedRemoteBinaryStatsRecord> lastWrittenByID = new HashMap<>();
+    /**Last remote record written for a given ID, with the time it was written. */
+    private static final class LastWritten
+        {
+        /**Raw record text; never null. */
+        final String raw;
+        /**Time record was logged. */
+        final long time;
+        LastWritten(final String raw, final long time) { this.raw = raw; this.time = time; }
+        }
+
+    /**Map from ID to last remote record written for that ID, including time; guarded by binaryView; non-null. */
+    private final Map<String, LastWritten> lastWrittenByID = new HashMap<>();
+
+    /**Reusable view for parsing binary records in place; hold lock on this instance while using; not null. */
+    private final RemoteBinaryStatsView binaryView = new RemoteBinaryStatsView();
 
     /**Process remote stats message from OpenTRV V0p2 unit.
      * This is intended to process the printable-ASCII form of remote binary stats lines starting with '@', eg:
@@ -260,7 +320,7 @@ plot "sample.log" using 1:3 with linespoints
      * <p>
      * This forces out a log line periodically even in the absence of parameter change.
      * <p>
-     * Not thread-safe.
+     * Thread-safe.
      */
     public void processRemoteStats(final String message, final long timestamp) throws IOException
         {
@@ -270,70 +330,53 @@ plot "sample.log" using 1:3 with linespoints
             // Process potential JSON; reject if bad.
             final long nowms = timestamp; // System.currentTimeMillis();
             final String lineToLog = wrapLeafJSONAsArrayLogLine(nowms, "", message);
-            // Prepare to write to the log file...
-            final Date now = new Date(nowms);
-            final File dir = new File(statsDir, remoteStatsSubdir);
-            final File logFile;
-            synchronized(dateForFilename) { logFile = new File(dir, dateForFilename.format(now) + ".json"); }
-            if(!dir.isDirectory()) { dir.mkdirs(); }
             // Append line to file of form statsDir/remote/YYYYMMDD.json where date is UTC.
-            try(final PrintWriter pw = new PrintWriter(new FileWriter(logFile, true)))
-                {
-                pw.println(lineToLog);
-                pw.flush();
-                }
-            final File updatedFlag = new File(dir, UPDATED_JSON_FLAG_FILENAME);
-            Util.touch(updatedFlag);
+            logs.append(remoteStatsSubdir, nowms, ".json", lineToLog, UPDATED_JSON_FLAG_FILENAME,
+                indexing ? Util.extractNormalisedID(message) : null);
             return;
             }
 
         // Ignore all but binary/'@' format beyond here.
         if(CommonSensorLabels.ID.getLabel() != firstChar) { return; }
 
-        final ParsedRemoteBinaryStatsRecord parsed = new ParsedRemoteBinaryStatsRecord(message);
-        if("".equals(parsed.ID)) { return; } // Skip record with no ID.
-
-        // Avoid writing duplicate entries for any one node/ID within specified minimum interval.
-        // Write new log entry on change of any data item (possibly excluding any time field).
-        // TODO: consider forcing the first entry for each new log file.
-        final ParsedRemoteBinaryStatsRecord lw = lastWrittenByID.get(parsed.ID);
-        if((null != lw) &&
-           message.equals(lw.raw) &&
-           ((parsed.constructionTime - lw.constructionTime) < MIN_TEMP_LOG_WRITE_INTERVAL_UNCHANGED_MS))
-            { return; } // Reject duplicate.
-
-        final Date now = new Date(parsed.constructionTime);
-
-        // Create the full log line.
-        final StringBuffer sb = new StringBuffer(message.length() + 32);
-        synchronized(dateAndTime) { dateAndTime.format(now, sb, new FieldPosition(0)); }
-        sb.append("Z ");
-        sb.append(parsed.ID);
-        sb.append(' ');
-        sb.append(parsed.getTemperature());
-        sb.append(' ');
-        sb.append(message);
-        final String lineToLog = sb.toString();
-
-        final File dir = new File(statsDir, remoteStatsSubdir);
-        final File logFile;
-        synchronized(dateForFilename) { logFile = new File(dir, dateForFilename.format(now) + ".log"); }
-        if(!dir.isDirectory()) { dir.mkdirs(); }
-        // Append line to file of form statsDir/remote/YYYYMMDD.log where date is UTC.
-        try(final PrintWriter pw = new PrintWriter(new FileWriter(logFile, true)))
+        synchronized(binaryView)
             {
-            pw.println(lineToLog);
-            pw.flush();
+            // Parse in place; reject malformed records.
+            final RemoteBinaryStatsView parsed = binaryView;
+            if(!parsed.wrap(message)) { throw new IllegalArgumentException("bad binary stats record"); }
+            final String id = parsed.getID();
+            if("".equals(id)) { return; } // Skip record with no ID.
+
+            // Avoid writing duplicate entries for any one node/ID within specified minimum interval.
+            // Write new log entry on change of any data item (possibly excluding any time field).
+            // TODO: consider forcing the first entry for each new log file.
+            final LastWritten lw = lastWrittenByID.get(id);
+            if((null != lw) &&
+               message.equals(lw.raw) &&
+               ((timestamp - lw.time) < MIN_TEMP_LOG_WRITE_INTERVAL_UNCHANGED_MS))
+                { return; } // Reject duplicate.
+
+            final Date now = new Date(timestamp);
+
+            // Create the full log line.
+            final StringBuffer sb = new StringBuffer(message.length() + 32);
+            synchronized(dateAndTime) { dateAndTime.format(now, sb, new FieldPosition(0)); }
+            sb.append("Z ");
+            sb.append(id);
+            sb.append(' ');
+            final int tempC16 = parsed.getTemperatureC16();
+            if(RemoteBinaryStatsView.ABSENT == tempC16) { sb.append("null"); }
+            else { sb.append(tempC16 / 16f); }
+            sb.append(' ');
+            sb.append(message);
+
+            // Append line to file of form statsDir/remote/YYYYMMDD.log where date is UTC.
+            logs.append(remoteStatsSubdir, timestamp, ".log", sb, UPDATED_FLAG_FILENAME,
+                indexing ? Util.extractNormalisedID(message) : null);
+            lastWrittenByID.put(id, new LastWritten(message, timestamp));
             }
-        final File updatedFlag = new File(dir, UPDATED_FLAG_FILENAME);
-        Util.touch(updatedFlag);
-        lastWrittenByID.put(parsed.ID, parsed);
         }
 
-    /**UTC date-only format for filenames; hold lock on this instance while using for thread-safety. */
-    private static final SimpleDateFormat dateForFilename = new SimpleDateFormat("yyyyMMdd");
-    { dateForFilename.setTimeZone(TimeZone.getTimeZone("UTC")); }
-
     /**UTC full date and time format; hold lock on this instance while using for thread-safety. */
     private static final SimpleDateFormat dateAndTime = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
     { dateAndTime.setTimeZone(TimeZone.getTimeZone("UTC")); }
@@ -352,4 +395,15 @@ plot "sample.log" using 1:3 with linespoints
         if(swmd.message.startsWith("=")) { processLocalStats(swmd.message, swmd.timestamp); }
         else { processRemoteStats(swmd.message, swmd.timestamp); }
         }
+
+    /**Write out any buffered lines now. */
+    public void flush() throws IOException { logs.flush(); }
+
+    /**Write out any buffered lines and close all log files, and stop any compression. */
+    @Override
+    public void close() throws IOException
+        {
+        if(null != roller) { roller.close(); }
+        logs.close();
+        }
     }
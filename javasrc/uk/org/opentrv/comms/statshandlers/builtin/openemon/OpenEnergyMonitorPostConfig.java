@@ -29,6 +29,8 @@ import java.util.Map;
 import java.net.MalformedURLException;
 
 import uk.org.opentrv.comms.cfg.ConfigException;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.support.LeafID;
 
 /**Simple immutable configuration for posting data into OpenEnergyMonitor emonCMS.
  * This will contain a URL base to post to (HTTP or HTTPS),
@@ -78,6 +80,7 @@ public final class OpenEnergyMonitorPostConfig
 //        this.serverBaseURL = serverBaseURL;
 //        this.APIKey = APIKey;
         this.sourceIDIn = sourceIDIn;
+        this.packedSourceIDIn = LeafID.fromString(sourceIDIn);
         this.statsTypeIn = statsTypeIn;
         // Take immutable defensive copy of map.
         this.fieldNameMapInToOut = Collections.unmodifiableMap(new HashMap<>(fieldNameMapInToOut));
@@ -94,6 +97,8 @@ public final class OpenEnergyMonitorPostConfig
 //    public String getAPIKey() { return(APIKey); } // TODO: consider making this less accessible for security reasons...
 
     private final String sourceIDIn;
+    /**Source ID packed as a long (see LeafID); LeafID.NONE if not packable. */
+    private final long packedSourceIDIn;
     private final char statsTypeIn;
     private final Map<String, String> fieldNameMapInToOut;
 
@@ -104,6 +109,16 @@ public final class OpenEnergyMonitorPostConfig
     public boolean isInterestingMessage(final char statsType, final String sourceID)
         { return((statsTypeIn == statsType) && sourceIDIn.equals(sourceID)); }
 
+    /**True iff there are mappings for the given message's source/node ID and stats type.
+     * Where possible this compares the packed leaf ID and does not create the ID String.
+     */
+    public boolean isInterestingMessage(final StatsMessageWithMetadata swmd)
+        {
+        if(statsTypeIn != swmd.getStatsTypeAsChar()) { return(false); }
+        if(LeafID.NONE != packedSourceIDIn) { return(packedSourceIDIn == swmd.getLeafIDAsLong()); }
+        return(sourceIDIn.equals(swmd.getLeafIDAsString()));
+        }
+
     /**Get emon name mapped from given key from given input node, or null if none. */
     public String keyMapsToName(final char statsType, final String sourceID, final String sourceKey)
         {
@@ -79,10 +79,10 @@ public class OpenEnergyMonitorPostSimple implements StatsHandler, AutoCloseable
      */
     public static Map<String, Map<String,Number>> convertMessages(final OpenEnergyMonitorPostConfig config, final StatsMessageWithMetadata swmd)
         {
+        // Quickly reject messages not from the configured source.
+        if(!config.isInterestingMessage(swmd)) { return(Collections.emptyMap()); }
         final String sourceID = swmd.getLeafIDAsString();
-        if(null == sourceID) { return(Collections.emptyMap()); }
         final char statsType = swmd.getStatsTypeAsChar();
-        if(!config.isInterestingMessage(statsType, sourceID)) { return(Collections.emptyMap()); }
         final Map<String, Map<String,Number>> result = new HashMap<>();
         final Map<String, Object> statsAsMap = swmd.parseStatsAsMap();
         for(final String sourceKey : statsAsMap.keySet())
@@ -22,6 +22,7 @@ import java.util.Map;
 
 import uk.org.opentrv.comms.statshandlers.StatsHandler;
 import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.support.LeafID;
 import uk.org.opentrv.comms.statshandlers.support.Util;
 import winterwell.jtwitter.Status;
 import winterwell.jtwitter.Twitter;
@@ -118,7 +119,8 @@ public class SingleTwitterChannel implements StatsHandler, AutoCloseable
     public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
         {
         // Quickly and silently reject messages not for the right leaf/Twitter ID.
-        if(!config.hexID.equals(swmd.getLeafIDAsString())) { return; }
+        if(LeafID.NONE != config.packedID) { if(config.packedID != swmd.getLeafIDAsLong()) { return; } }
+        else if(!config.hexID.equals(swmd.getLeafIDAsString())) { return; }
 
         // Count all matching incoming messages.
         ++messageCount;
@@ -21,6 +21,8 @@ import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsString;
 
 import java.util.Map;
 
+import uk.org.opentrv.comms.statshandlers.support.LeafID;
+
 /**Simple immutable configuration for a single pre-created Twitter channel.
  * Contains safe defaults.
  */
@@ -44,6 +46,9 @@ public final class SingleTwitterChannelConfig
     /**Hex ID (lower case, 2--8 digits) for leaf whose data is to be forwarded to Twitter. */
     public final String hexID;
 
+    /**Hex ID packed as a long (see LeafID); LeafID.NONE if not packable, eg not all hex. */
+    public final long packedID;
+
     /**Create with a given map config.*/
     public SingleTwitterChannelConfig(final Map config)
         {
@@ -65,6 +70,7 @@ public final class SingleTwitterChannelConfig
             throw new IllegalArgumentException();
             }
         this.hexID = lchi;
+        this.packedID = LeafID.fromString(lchi);
         this.fullHandle = DEFAULT_HANDLE_PREFIX + lchi;
         }
     }
@@ -95,7 +95,7 @@ public final class SingleTwitterChannelTemperature extends SingleTwitterChannel
                 {
                 try
                     {
-                    final ParsedRemoteBinaryStatsRecord b = new ParsedRemoteBinaryStatsRecord(swmd.message);
+                    final ParsedRemoteBinaryStatsRecord b = swmd.getParsedRemoteBinaryStatsRecord();
                     final Float c = b.getTemperature();
                     if(null != c) { return(c.intValue()); } // Truncate, don't round to nearest.
                     }
@@ -0,0 +1,515 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+package uk.org.opentrv.comms.statshandlers.filter;
+
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsList;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsMap;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONValue;
+
+import uk.org.opentrv.comms.cfg.ConfigException;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.util.CommonSensorLabels;
+import uk.org.opentrv.comms.util.RemoteBinaryStatsView;
+
+/**This wrapper downsamples stats before (typically network) sinks,
+ * by aggregating the numeric fields of each leaf over tumbling time windows
+ * and passing on one synthetic '{' stats message per leaf per window.
+ * Upload volume then scales with leaves times windows rather than with the raw message rate.
+ * <p>
+ * Windows are aligned to multiples of windowMS since the epoch, by message timestamp.
+ * For each numeric field the statistics kept are chosen from
+ * mean, min, max, last and count;
+ * the first listed is output under the field's own name and the others under name:statistic,
+ * eg <code>{"@":"b39a","T|C16":301.5,"T|C16:min":300,"T|C16:max":303,"T|C16:count":4}</code>.
+ * The "+" sequence number and non-numeric fields are not aggregated.
+ * '@' binary messages are aggregated under the equivalent JSON field names,
+ * eg "T|C16" for temperature and "B|mV" for battery, so that they combine with '{' messages from the same leaf;
+ * an '@' message with any other section is passed on unchanged.
+ * <p>
+ * The synthetic message has the timestamp of the last message in the window,
+ * and is authenticated only if all the messages in the window were.
+ * <p>
+ * All leaves' windows ending at or before a message's timestamp less graceMS are passed on
+ * when that message arrives;
+ * if idleFlushMS is positive the same is done on that period by wall-clock time,
+ * so that windows are still passed on when messages stop;
+ * flush() and close() pass on all open windows, and close() then closes the wrapped handler.
+ * A leaf's window is kept open for graceMS past its end even once that leaf's own messages
+ * have moved on to the next window, so that its out-of-order messages are still included;
+ * at most one such earlier window is kept per leaf, so graceMS longer than windowMS is not fully honoured.
+ * Messages that arrive for a window of their leaf already passed on are dropped (and counted).
+ * Messages without a leaf ID or numeric fields are passed on immediately and unchanged,
+ * after any synthetic messages already waiting.
+ * <p>
+ * Synthetic messages are queued and passed on in order outside the lock on this,
+ * so that other callers and the idle flusher are not held up by the wrapped handler.
+ * A synthetic message that the wrapped handler rejects is kept and retried before later ones,
+ * up to MAX_PENDING_MESSAGES, beyond which the oldest are discarded;
+ * the next call to processStatsMessage() then throws an IOException reporting the discards
+ * and does not accept its message.
+ * A message passed on unchanged is not kept if the wrapped handler rejects it,
+ * as the exception is returned to its caller.
+ * <p>
+ * Per-leaf state is held in two reusable accumulators of primitive arrays.
+ * <p>
+ * Config is of the form:
+<pre>
+{"handler":{...}, "windowMS":300000, "graceMS":10000, "statistics":["mean","min","max","last","count"], "idleFlushMS":10000}
+</pre>
+ * <p>
+ * Thread-safe; the wrapped handler is called by one thread at a time.
+ */
+public final class AggregatingStatsHandlerWrapper implements StatsHandler, Flushable, AutoCloseable
+    {
+    /**Default window length; strictly positive. */
+    public static final int DEFAULT_WINDOW_MS = 5 * 60_000;
+
+    /**Statistics that may be kept for each field. */
+    public enum Statistic { MEAN, MIN, MAX, LAST, COUNT }
+
+    /**Default statistics, first is output under the plain field name. */
+    public static final List<Statistic> DEFAULT_STATISTICS = Arrays.asList(Statistic.values());
+
+    /**Maximum synthetic messages kept while the wrapped handler is failing; strictly positive. */
+    public static final int MAX_PENDING_MESSAGES = 4096;
+
+    /**Sequence number field, not aggregated. */
+    private static final String SEQUENCE_FIELD = "+";
+
+    /**JSON field names for '@' binary section labels, indexed by label; null if none. */
+    private static final String[] BINARY_FIELD_NAMES = new String[128];
+    static
+        {
+        BINARY_FIELD_NAMES[CommonSensorLabels.TEMPERATURE.getLabel()] = "T|C16";
+        BINARY_FIELD_NAMES[CommonSensorLabels.LIGHT.getLabel()] = "L";
+        BINARY_FIELD_NAMES[CommonSensorLabels.HUMIDITY.getLabel()] = "H|%";
+        BINARY_FIELD_NAMES[CommonSensorLabels.BATTERY.getLabel()] = "B|mV";
+        BINARY_FIELD_NAMES['O'] = "O";
+        }
+
+    /**Wrapped handler; not null. */
+    private final StatsHandler sh;
+    /**Window length; strictly positive. */
+    private final long windowMS;
+    /**Allowed lateness before a window is closed by a later message, from any leaf; non-negative. */
+    private final long graceMS;
+    /**Statistics to output, in order; never null nor empty. */
+    private final Statistic[] statistics;
+    /**Periodic closer of idle windows; null if none. */
+    private final ScheduledExecutorService idleFlusher;
+
+    /**Accumulator for one of a leaf's open windows, reused from window to window. */
+    private static final class Window
+        {
+        final String id;
+        /**Window start, or Long.MIN_VALUE if none open. */
+        long start = Long.MIN_VALUE;
+        long lastTimestamp;
+        boolean authenticated;
+        /**Number of fields seen in this window. */
+        int n;
+        String[] names = new String[8];
+        boolean[] integral = new boolean[8];
+        double[] min = new double[8], max = new double[8], sum = new double[8], last = new double[8];
+        long[] count = new long[8];
+        Window(final String id) { this.id = id; }
+
+        void open(final long s, final boolean auth)
+            { start = s; n = 0; authenticated = auth; lastTimestamp = Long.MIN_VALUE; }
+
+        void add(final String name, final Number v)
+            {
+            final double d = v.doubleValue();
+            if(Double.isNaN(d)) { return; }
+            int i = 0;
+            while((i < n) && !names[i].equals(name)) { ++i; }
+            if(i == n)
+                {
+                if(n == names.length)
+                    {
+                    final int len = 2 * n;
+                    names = Arrays.copyOf(names, len); integral = Arrays.copyOf(integral, len);
+                    min = Arrays.copyOf(min, len); max = Arrays.copyOf(max, len);
+                    sum = Arrays.copyOf(sum, len); last = Arrays.copyOf(last, len); count = Arrays.copyOf(count, len);
+                    }
+                names[i] = name; integral[i] = true;
+                min[i] = max[i] = d; sum[i] = 0; count[i] = 0;
+                ++n;
+                }
+            if(!((v instanceof Long) || (v instanceof Integer) || (v instanceof Short) || (v instanceof Byte))) { integral[i] = false; }
+            if(d < min[i]) { min[i] = d; }
+            if(d > max[i]) { max[i] = d; }
+            sum[i] += d;
+            last[i] = d;
+            ++count[i];
+            }
+        }
+
+    /**A leaf's latest window and the one before it, kept open until its grace has passed. */
+    private static final class Leaf
+        {
+        /**Latest window. */
+        Window current;
+        /**Previous window, if still open. */
+        Window previous;
+        /**Start of the latest window opened, so that late messages can be detected. */
+        long latestStart = Long.MIN_VALUE;
+        Leaf(final String id) { current = new Window(id); previous = new Window(id); }
+        }
+
+    /**Leaves' windows (open or closed) by leaf ID; guarded by this. */
+    private final Map<String, Leaf> leaves = new HashMap<>();
+    /**Earliest end of any open window, else Long.MAX_VALUE; guarded by this. */
+    private long nextClose = Long.MAX_VALUE;
+    /**Reusable view for binary messages; guarded by this. */
+    private final RemoteBinaryStatsView binaryView = new RemoteBinaryStatsView();
+
+    /**Synthetic messages waiting to be passed on, oldest first; guarded by this. */
+    private final ArrayDeque<StatsMessageWithMetadata> pending = new ArrayDeque<>();
+    /**Count of pending messages discarded and not yet reported to a caller; guarded by this. */
+    private int unreportedDiscards;
+    /**True after the wrapped handler has rejected a pending message, until all are passed on. */
+    private volatile boolean failing;
+    /**Held while passing messages on, to keep them in order; never acquired while holding this. */
+    private final Object deliveryLock = new Object();
+
+    /**Count of late messages dropped; guarded by this. */
+    private long lateCount;
+    /**Count of synthetic messages passed on; guarded by this. */
+    private long emittedCount;
+
+    /**Create from config. */
+    public AggregatingStatsHandlerWrapper(final Map config) throws ConfigException
+        {
+        this(StatsHandlerFactory.getInstance().newHandler(getAsMap(config, "handler")),
+            getAsNumber(config, "windowMS", DEFAULT_WINDOW_MS).longValue(),
+            getAsNumber(config, "graceMS", 0).longValue(),
+            statisticsFromConfig(config),
+            getAsNumber(config, "idleFlushMS", 0).intValue());
+        }
+
+    private static List<Statistic> statisticsFromConfig(final Map config) throws ConfigException
+        {
+        final List l = getAsList(config, "statistics");
+        if(null == l) { return(DEFAULT_STATISTICS); }
+        final List<Statistic> result = new ArrayList<>(l.size());
+        for(final Object o : l)
+            {
+            try { result.add(Statistic.valueOf(String.valueOf(o).toUpperCase())); }
+            catch(final IllegalArgumentException e) { throw new ConfigException("Unknown statistic " + o); }
+            }
+        if(result.isEmpty()) { throw new ConfigException("No statistics"); }
+        return(result);
+        }
+
+    /**Create an instance with the default statistics and no idle flushing. */
+    public AggregatingStatsHandlerWrapper(final StatsHandler sh, final long windowMS)
+        { this(sh, windowMS, 0, DEFAULT_STATISTICS, 0); }
+
+    /**Create an instance.
+     * @param sh  wrapped handler; never null
+     * @param windowMS  window length; strictly positive
+     * @param graceMS  lateness allowed before another message closes a window; non-negative
+     * @param statistics  statistics to output, first under the plain field name; never null nor empty
+     * @param idleFlushMS  if positive, period to close ended windows by wall-clock time; non-negative
+     */
+    public AggregatingStatsHandlerWrapper(final StatsHandler sh, final long windowMS, final long graceMS,
+            final List<Statistic> statistics, final int idleFlushMS)
+        {
+        if(null == sh) { throw new IllegalArgumentException(); }
+        if(windowMS <= 0) { throw new IllegalArgumentException(); }
+        if(graceMS < 0) { throw new IllegalArgumentException(); }
+        if((null == statistics) || statistics.isEmpty() || statistics.contains(null)) { throw new IllegalArgumentException(); }
+        if(idleFlushMS < 0) { throw new IllegalArgumentException(); }
+        this.sh = sh;
+        this.windowMS = windowMS;
+        this.graceMS = graceMS;
+        this.statistics = statistics.toArray(new Statistic[statistics.size()]);
+        if(idleFlushMS > 0)
+            {
+            idleFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+                {
+                @Override public Thread newThread(final Runnable r)
+                    { final Thread t = new Thread(r, "aggregator idle flush"); t.setDaemon(true); return(t); }
+                });
+            idleFlusher.scheduleWithFixedDelay(new Runnable()
+                {
+                @Override public void run()
+                    {
+                    synchronized(AggregatingStatsHandlerWrapper.this) { closeUpTo(System.currentTimeMillis() - graceMS); }
+                    deliverPendingQuietly();
+                    }
+                }, idleFlushMS, idleFlushMS, TimeUnit.MILLISECONDS);
+            }
+        else { idleFlusher = null; }
+        }
+
+    /**Get the count of late messages dropped so far. */
+    public synchronized long getLateCount() { return(lateCount); }
+
+    /**Get the count of synthetic messages passed on so far. */
+    public synchronized long getEmittedCount() { return(emittedCount); }
+
+    /**Get the count of synthetic messages waiting to be passed on. */
+    public synchronized int getPendingCount() { return(pending.size()); }
+
+    @Override
+    public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+        {
+        synchronized(deliveryLock)
+            {
+            final boolean passOn;
+            synchronized(this)
+                {
+                if(0 != unreportedDiscards)
+                    {
+                    final int n = unreportedDiscards;
+                    unreportedDiscards = 0;
+                    throw new IOException("discarded " + n + " aggregated stats message(s) that could not be passed on");
+                    }
+                passOn = accept(swmd);
+                }
+            if(!passOn)
+                {
+                // This message is accepted, so a failure to pass on earlier ones is not its caller's concern.
+                deliverPendingQuietly();
+                return;
+                }
+            // Keep order: anything pending goes first, else this message is not accepted.
+            deliverPending();
+            sh.processStatsMessage(swmd);
+            }
+        }
+
+    /**Close windows up to the message's time then add it to its window; true if it should be passed on unchanged; lock must be held. */
+    private boolean accept(final StatsMessageWithMetadata swmd)
+        {
+        final long t = swmd.timestamp;
+        closeUpTo(t - graceMS);
+
+        final String id = swmd.getLeafIDAsString();
+        final Leaf l = (null == id) ? null : leaves.get(id);
+        final long start = Math.floorDiv(t, windowMS) * windowMS;
+        if((null != l) && (start <= l.latestStart) && (start != l.current.start) && (start != l.previous.start))
+            {
+            // Window already passed on.
+            ++lateCount;
+            return(false);
+            }
+        return((null == id) || !accumulate(swmd, (null != l) ? l : new Leaf(id), start));
+        }
+
+    /**As deliverPending(), reporting only the first of a run of failures. */
+    private void deliverPendingQuietly()
+        {
+        try { deliverPending(); }
+        catch(final IOException e)
+            {
+            if(failing) { return; }
+            failing = true;
+            System.err.println("Could not pass on aggregated stats, will retry: " + e);
+            }
+        }
+
+    /**Pass on pending synthetic messages in order, stopping at and keeping the first that fails; lock must not be held. */
+    private void deliverPending() throws IOException
+        {
+        synchronized(deliveryLock)
+            {
+            for( ; ; )
+                {
+                final StatsMessageWithMetadata m;
+                synchronized(this) { m = pending.peekFirst(); }
+                if(null == m) { failing = false; return; }
+                sh.processStatsMessage(m);
+                synchronized(this)
+                    {
+                    // Unless discarded meanwhile to stay within the bound.
+                    if(m == pending.peekFirst()) { pending.pollFirst(); }
+                    ++emittedCount;
+                    }
+                }
+            }
+        }
+
+    /**Add the numeric fields of the message to the leaf's window, opening it if need be; false if none. */
+    private boolean accumulate(final StatsMessageWithMetadata swmd, final Leaf l, final long start)
+        {
+        // Collect numeric fields first, so that messages with none do not open a window.
+        final List<String> names = new ArrayList<>();
+        final List<Number> values = new ArrayList<>();
+        if(CommonSensorLabels.ID.getLabel() == swmd.getStatsTypeAsChar())
+            {
+            if(!binaryView.wrap(swmd.message)) { return(false); }
+            for(int i = 1; i < binaryView.getSectionCount(); ++i)
+                {
+                final char label = binaryView.getSectionLabel(i);
+                final Number v = (CommonSensorLabels.TEMPERATURE.getLabel() == label) ? temperatureC16() :
+                    binaryView.getValueAsNumber(label);
+                if(null == v) { continue; }
+                final String name = (label < BINARY_FIELD_NAMES.length) ? BINARY_FIELD_NAMES[label] : null;
+                // A section with no JSON equivalent cannot be aggregated faithfully.
+                if(null == name) { return(false); }
+                names.add(name); values.add(v);
+                }
+            }
+        else
+            {
+            final Map<String, Object> m = swmd.parseStatsAsMap();
+            if(null == m) { return(false); }
+            for(final Map.Entry<String, Object> e : m.entrySet())
+                {
+                if(!(e.getValue() instanceof Number) || SEQUENCE_FIELD.equals(e.getKey())) { continue; }
+                names.add(e.getKey()); values.add((Number)e.getValue());
+                }
+            }
+        if(names.isEmpty()) { return(false); }
+
+        final Window w;
+        if(start == l.current.start) { w = l.current; }
+        else if(start == l.previous.start) { w = l.previous; }
+        else
+            {
+            // Any current window is still within its grace, so keep it open as the previous one.
+            if(Long.MIN_VALUE != l.previous.start) { emit(l.previous); }
+            w = l.previous;
+            l.previous = l.current;
+            l.current = w;
+            w.open(start, swmd.authenticated);
+            l.latestStart = start;
+            leaves.put(w.id, l);
+            nextClose = Math.min(nextClose, start + windowMS);
+            }
+        w.authenticated &= swmd.authenticated;
+        w.lastTimestamp = Math.max(w.lastTimestamp, swmd.timestamp);
+        for(int i = 0; i < names.size(); ++i) { w.add(names.get(i), values.get(i)); }
+        return(true);
+        }
+
+    /**Temperature from the current binary view as an Integer in 1/16ths of a Celsius; null if absent or malformed. */
+    private Integer temperatureC16()
+        {
+        final int c16 = binaryView.getTemperatureC16();
+        return((RemoteBinaryStatsView.ABSENT == c16) ? null : Integer.valueOf(c16));
+        }
+
+    /**Queue all open windows ending at or before the given time to be passed on; lock must be held. */
+    private void closeUpTo(final long time)
+        {
+        if(time < nextClose) { return; }
+        nextClose = Long.MAX_VALUE;
+        for(final Leaf l : leaves.values())
+            {
+            closeIfEnded(l.previous, time);
+            closeIfEnded(l.current, time);
+            }
+        }
+
+    /**Queue the window to be passed on if open and ending at or before the given time; lock must be held. */
+    private void closeIfEnded(final Window w, final long time)
+        {
+        if(Long.MIN_VALUE == w.start) { return; }
+        final long end = w.start + windowMS;
+        if(end > time) { nextClose = Math.min(nextClose, end); return; }
+        emit(w);
+        }
+
+    /**Append a value, as an integer if integral. */
+    private static void appendNumber(final StringBuilder sb, final double d, final boolean integral)
+        {
+        if(integral || ((d == Math.rint(d)) && (Math.abs(d) < 1e15))) { sb.append((long)d); }
+        else { sb.append(Math.round(d * 1000) / 1000.0); }
+        }
+
+    /**Queue the synthetic message for a window to be passed on and mark it closed; lock must be held. */
+    private void emit(final Window w)
+        {
+        final StringBuilder sb = new StringBuilder(32 + (w.n * 24 * statistics.length));
+        sb.append("{\"@\":\"").append(JSONValue.escape(w.id)).append('"');
+        for(int i = 0; i < w.n; ++i)
+            {
+            final String name = JSONValue.escape(w.names[i]);
+            for(int s = 0; s < statistics.length; ++s)
+                {
+                sb.append(",\"").append(name);
+                if(s > 0) { sb.append(':').append(statistics[s].name().toLowerCase()); }
+                sb.append("\":");
+                switch(statistics[s])
+                    {
+                    case MEAN: appendNumber(sb, w.sum[i] / w.count[i], false); break;
+                    case MIN: appendNumber(sb, w.min[i], w.integral[i]); break;
+                    case MAX: appendNumber(sb, w.max[i], w.integral[i]); break;
+                    case LAST: appendNumber(sb, w.last[i], w.integral[i]); break;
+                    case COUNT: sb.append(w.count[i]); break;
+                    }
+                }
+            }
+        sb.append('}');
+        w.start = Long.MIN_VALUE; // Closed, but retained for reuse and late detection.
+        pending.addLast(new StatsMessageWithMetadata(sb.toString(), w.lastTimestamp, w.authenticated));
+        if(pending.size() > MAX_PENDING_MESSAGES) { pending.pollFirst(); ++unreportedDiscards; }
+        }
+
+    /**Pass on all open windows and pending messages now.
+     * @throws IOException  if the wrapped handler rejects a message, which is kept for retry
+     */
+    @Override
+    public void flush() throws IOException
+        {
+        synchronized(this) { closeUpTo(Long.MAX_VALUE); }
+        deliverPending();
+        }
+
+    /**Stop any idle flushing, pass on all open windows, then close the wrapped handler if AutoCloseable.
+     * @throws IOException  if any messages could not be passed on, and so are discarded
+     */
+    @Override
+    public void close() throws Exception
+        {
+        if(null != idleFlusher) { idleFlusher.shutdown(); }
+        Exception failure = null;
+        try { flush(); }
+        catch(final IOException e) { failure = e; }
+        final int n;
+        synchronized(this) { n = pending.size() + unreportedDiscards; pending.clear(); unreportedDiscards = 0; }
+        if(0 != n) { failure = new IOException("discarded " + n + " aggregated stats message(s) that could not be passed on"); }
+        if(sh instanceof AutoCloseable)
+            {
+            try { ((AutoCloseable)sh).close(); }
+            catch(final Exception e) { if(null == failure) { failure = e; } }
+            }
+        if(null != failure) { throw failure; }
+        }
+    }
@@ -0,0 +1,250 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+package uk.org.opentrv.comms.statshandlers.filter;
+
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsMap;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsString;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.opentrv.comms.cfg.ConfigException;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+
+
+/**This wraps a StatsHandler to deliver to it concurrently, up to a limit, while preserving order per leaf.
+ * Intended for handlers that do slow blocking (eg network) I/O,
+ * so that one stalled upload does not hold up those for other leaves.
+ * <p>
+ * Messages for any one leaf ID are delivered one at a time in the order received;
+ * messages for different leaves may be delivered concurrently, up to maxConcurrency at once,
+ * with leaves taking turns when more than that have messages waiting.
+ * Messages without an extractable leaf ID are treated as being for a single anonymous leaf.
+ * The wrapped handler must therefore be thread-safe, ie safe to call from multiple threads at once;
+ * wrapping a handler that is not risks corrupting its state.
+ * <p>
+ * Execution modes are:
+ * <ul>
+ * <li>pooled: a bounded pool of platform threads, started on demand.</li>
+ * <li>virtual: a virtual thread per delivery where the JVM supports them (Java 21+),
+ *     else falling back to pooled.</li>
+ * </ul>
+ * <p>
+ * The process...() calls complete quickly, simply queueing the message.
+ * The total queue is bounded and an IOException is thrown if it overflows.
+ * <p>
+ * Calling close() frees up resources such as threads, and closes the wrapped handler if it is AutoCloseable;
+ * any later process...() call throws an IOException.
+ */
+public final class ConcurrentStatsHandlerWrapper implements StatsHandler, AutoCloseable
+    {
+    /**Pooled platform-thread execution mode. */
+    public static final String EXECUTION_POOLED = "pooled";
+    /**Virtual-thread execution mode where available. */
+    public static final String EXECUTION_VIRTUAL = "virtual";
+
+    /**Default maximum concurrent deliveries; strictly positive. */
+    public static final int DEFAULT_MAX_CONCURRENCY = 16;
+
+    /**Default maximum messages queued across all leaves; strictly positive. */
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 256;
+
+    /**Default close()/shutdown time in milliseconds for unfinished deliveries; strictly positive. */
+    public static final int DEFAULT_CLOSE_TIMEOUT_MS = AsyncStatsHandlerWrapper.DEFAULT_CLOSE_TIMEOUT_MS;
+
+    /**Wrapped handler; not null. */
+    private final StatsHandler sh;
+
+    /**Maximum concurrent deliveries; strictly positive. */
+    private final int maxConcurrency;
+    /**Maximum messages queued; strictly positive. */
+    private final int maxQueueSize;
+    /**Close timeout in milliseconds; strictly positive. */
+    private final int closeTimeoutMS;
+
+    /**Executor for delivery tasks; not null. */
+    private final ExecutorService executor;
+    /**True if deliveries are on virtual threads. */
+    private final boolean isVirtual;
+
+    /**Pending messages for one leaf; guarded by the wrapper lock. */
+    private static final class LeafQueue
+        {
+        final String id;
+        final ArrayDeque<StatsMessageWithMetadata> pending = new ArrayDeque<>();
+        /**True while a delivery task owns this leaf or it is waiting its turn. */
+        boolean active;
+        LeafQueue(final String id) { this.id = id; }
+        }
+
+    /**Lock for queue state. */
+    private final Object lock = new Object();
+    /**Leaves with pending or in-progress messages, by ID; guarded by lock. */
+    private final Map<String, LeafQueue> leaves = new HashMap<>();
+    /**Leaves with pending messages waiting for a free delivery task, in turn order; guarded by lock. */
+    private final ArrayDeque<LeafQueue> waiting = new ArrayDeque<>();
+    /**Number of running delivery tasks; guarded by lock. */
+    private int running;
+    /**Total messages queued; guarded by lock. */
+    private int queued;
+    /**True once close() has been called; guarded by lock. */
+    private boolean closed;
+
+    public ConcurrentStatsHandlerWrapper(final Map config) throws ConfigException
+        {
+        this(
+            StatsHandlerFactory.getInstance().newHandler(getAsMap(config, "handler")),
+            getAsString(config, "execution", EXECUTION_POOLED),
+            getAsNumber(config, "maxConcurrency", DEFAULT_MAX_CONCURRENCY).intValue(),
+            getAsNumber(config, "maxQueueSize", DEFAULT_MAX_QUEUE_SIZE).intValue(),
+            getAsNumber(config, "closeTimeoutMS", DEFAULT_CLOSE_TIMEOUT_MS).intValue()
+            );
+        }
+
+    public ConcurrentStatsHandlerWrapper(final StatsHandler sh, final String execution, final int maxConcurrency)
+        { this(sh, execution, maxConcurrency, DEFAULT_MAX_QUEUE_SIZE, DEFAULT_CLOSE_TIMEOUT_MS); }
+
+    public ConcurrentStatsHandlerWrapper(final StatsHandler sh, final String execution, final int maxConcurrency,
+            final int maxQueueSize, final int closeTimeoutMS)
+        {
+        if(null == sh) { throw new IllegalArgumentException(); }
+        if(!EXECUTION_POOLED.equals(execution) && !EXECUTION_VIRTUAL.equals(execution)) { throw new IllegalArgumentException("unknown execution mode: " + execution); }
+        if(maxConcurrency < 1) { throw new IllegalArgumentException(); }
+        if(maxQueueSize < 1) { throw new IllegalArgumentException(); }
+        if(closeTimeoutMS < 1) { throw new IllegalArgumentException(); }
+        this.sh = sh;
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueueSize = maxQueueSize;
+        this.closeTimeoutMS = closeTimeoutMS;
+        final ExecutorService v = EXECUTION_VIRTUAL.equals(execution) ? newVirtualThreadExecutor() : null;
+        isVirtual = (null != v);
+        if(isVirtual) { executor = v; }
+        else
+            {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                60, TimeUnit.SECONDS, // Allow threads to die if idle for a while.
+                new LinkedBlockingQueue<Runnable>(), // Never holds more than maxConcurrency tasks.
+                new ThreadFactory()
+                    {
+                    private final ThreadFactory df = Executors.defaultThreadFactory();
+                    @Override public Thread newThread(final Runnable r)
+                        { final Thread t = df.newThread(r); t.setDaemon(true); return(t); }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+            }
+        }
+
+    /**Get a virtual-thread-per-task executor if the JVM supports it, else null. */
+    private static ExecutorService newVirtualThreadExecutor()
+        {
+        try { return((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null)); }
+        catch(final Exception e) { return(null); } // Not available in this JVM.
+        }
+
+    /**True if deliveries are running on virtual threads. */
+    public boolean isVirtual() { return(isVirtual); }
+
+    /**Get maximum concurrent deliveries. */
+    public int getMaxConcurrency() { return(maxConcurrency); }
+
+    @Override
+    public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+        {
+        final String id = swmd.getLeafIDAsString();
+        final String key = (null == id) ? "" : id;
+        synchronized(lock)
+            {
+            if(closed) { throw new IOException("closed"); }
+            if(queued >= maxQueueSize) { throw new IOException("queue full"); }
+            LeafQueue q = leaves.get(key);
+            if(null == q) { q = new LeafQueue(key); leaves.put(key, q); }
+            q.pending.add(swmd);
+            ++queued;
+            if(q.active) { return; } // Already being delivered or waiting its turn.
+            q.active = true;
+            if(running >= maxConcurrency) { waiting.add(q); return; }
+            ++running;
+            try { executor.execute(new Deliverer(q)); }
+            catch(final RejectedExecutionException e)
+                {
+                --running; q.active = false; q.pending.removeLast(); --queued;
+                throw new IOException(e);
+                }
+            }
+        }
+
+    /**Delivers messages for one leaf at a time, taking turns with any waiting leaves. */
+    private final class Deliverer implements Runnable
+        {
+        private LeafQueue q;
+        Deliverer(final LeafQueue q) { this.q = q; }
+        @Override public void run()
+            {
+            for( ; ; )
+                {
+                final StatsMessageWithMetadata swmd;
+                synchronized(lock) { swmd = q.pending.poll(); }
+                try { sh.processStatsMessage(swmd); } catch(final Exception e) { e.printStackTrace(); }
+                synchronized(lock)
+                    {
+                    --queued;
+                    if(!q.pending.isEmpty())
+                        {
+                        // Let a waiting leaf have a turn, if any.
+                        if(waiting.isEmpty()) { continue; }
+                        waiting.add(q);
+                        }
+                    else { q.active = false; leaves.remove(q.id); }
+                    q = waiting.poll();
+                    if(null == q) { --running; return; }
+                    }
+                }
+            }
+        }
+
+    /**Releases resources, letting current queued work complete if it can do so quickly, then closes the wrapped handler. */
+    @Override
+    public void close() throws Exception
+        {
+        synchronized(lock) { closed = true; }
+        Exception failure = null;
+        executor.shutdown();
+        try { executor.awaitTermination(closeTimeoutMS, TimeUnit.MILLISECONDS); }
+        catch(final InterruptedException e) { failure = e; }
+        finally { executor.shutdownNow(); }
+        if(sh instanceof AutoCloseable)
+            {
+            try { ((AutoCloseable)sh).close(); }
+            catch(final Exception e) { if(null == failure) { failure = e; } }
+            }
+        if(null != failure) { throw failure; }
+        }
+    }
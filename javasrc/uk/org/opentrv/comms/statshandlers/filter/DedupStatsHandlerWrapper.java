@@ -0,0 +1,309 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+package uk.org.opentrv.comms.statshandlers.filter;
+
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsList;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsMap;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.org.opentrv.comms.cfg.ConfigException;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.support.LeafID;
+
+/**This wrapper suppresses duplicate and near-duplicate stats messages per leaf.
+ * A message is passed on if its leaf has no message passed on within the minimum re-emit interval
+ * (by message timestamp), or if it differs from the last message passed on for its leaf.
+ * Messages without a leaf ID are always passed on.
+ * <p>
+ * By default messages are compared by a 64-bit fingerprint of the raw text,
+ * ignoring any JSON "+" sequence number, which would otherwise make every message unique.
+ * If fields are specified, only those fields of the parsed stats are compared;
+ * if deadbands are specified, those numeric fields are compared separately
+ * and count as changed only once they move further than their deadband
+ * from the value last passed on, or appear or disappear.
+ * With deadbands but no field list, all other fields except the "+" sequence number are compared by fingerprint.
+ * <p>
+ * State is a fingerprint, time and deadband values per leaf,
+ * held in an LRU map of bounded size so that memory is capped for large fleets;
+ * a leaf evicted from the map has its next message passed on.
+ * The state for a message is recorded only once the wrapped handler accepts it,
+ * so a message that fails downstream is not suppressed when it is retried.
+ * <p>
+ * Config is of the form:
+<pre>
+{"handler":{...}, "minIntervalMS":3600000, "fields":["T|C16","v|%"], "deadbands":{"T|C16":2}, "maxLeaves":4096}
+</pre>
+ * <p>
+ * Thread-safe if the wrapped handler is.
+ * Calling close() closes the wrapped handler.
+ */
+public final class DedupStatsHandlerWrapper implements StatsHandler, AutoCloseable
+    {
+    /**Default minimum interval between re-emits of an unchanged message for a leaf, as for local logging; strictly positive. */
+    public static final int DEFAULT_MIN_INTERVAL_MS = 3600_000;
+
+    /**Default maximum number of leaves with retained state; strictly positive. */
+    public static final int DEFAULT_MAX_LEAVES = 4096;
+
+    /**Sequence number field, ignored when fingerprinting all fields. */
+    private static final String SEQUENCE_FIELD = "+";
+
+    /**Wrapped handler; not null. */
+    private final StatsHandler sh;
+    /**Minimum re-emit interval for unchanged messages; strictly positive. */
+    private final long minIntervalMS;
+    /**Fields to fingerprint; null for all (except those with deadbands and the sequence number). */
+    private final String[] fields;
+    /**Fields with deadbands; never null. */
+    private final String[] deadbandFields;
+    /**Deadbands by index in deadbandFields; non-negative. */
+    private final double[] deadbands;
+    /**True if messages are compared by raw text. */
+    private final boolean raw;
+
+    /**Last message passed on for one leaf. */
+    private static final class LeafState
+        {
+        final long fingerprint;
+        final long time;
+        /**Values of deadband fields, NaN if absent; never null. */
+        final double[] values;
+        LeafState(final long fingerprint, final long time, final double[] values)
+            { this.fingerprint = fingerprint; this.time = time; this.values = values; }
+        }
+
+    /**State by leaf (packed ID as Long, else ID String), least-recently-used first; guarded by itself. */
+    private final Map<Object, LeafState> state;
+
+    /**Count of messages suppressed. */
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**Create from config. */
+    public DedupStatsHandlerWrapper(final Map config) throws ConfigException
+        {
+        this(StatsHandlerFactory.getInstance().newHandler(getAsMap(config, "handler")),
+            getAsNumber(config, "minIntervalMS", DEFAULT_MIN_INTERVAL_MS).longValue(),
+            fieldsFromConfig(config),
+            deadbandsFromConfig(config),
+            getAsNumber(config, "maxLeaves", DEFAULT_MAX_LEAVES).intValue());
+        }
+
+    private static List<String> fieldsFromConfig(final Map config) throws ConfigException
+        {
+        final List l = getAsList(config, "fields");
+        if(null == l) { return(null); }
+        final List<String> result = new ArrayList<>(l.size());
+        for(final Object o : l) { result.add(String.valueOf(o)); }
+        return(result);
+        }
+
+    private static Map<String, Number> deadbandsFromConfig(final Map config) throws ConfigException
+        {
+        final Map m = getAsMap(config, "deadbands");
+        if(null == m) { return(null); }
+        final Map<String, Number> result = new LinkedHashMap<>();
+        for(final Object k : m.keySet())
+            {
+            final Number n = getAsNumber(m, (String)k);
+            if(null == n) { throw new ConfigException("Missing deadband for " + k); }
+            result.put((String)k, n);
+            }
+        return(result);
+        }
+
+    /**Create an instance that compares raw messages with the default interval and size. */
+    public DedupStatsHandlerWrapper(final StatsHandler sh)
+        { this(sh, DEFAULT_MIN_INTERVAL_MS, null, null, DEFAULT_MAX_LEAVES); }
+
+    /**Create an instance.
+     * @param sh  wrapped handler; never null
+     * @param minIntervalMS  minimum re-emit interval for unchanged messages; strictly positive
+     * @param fields  fields to compare; null for the raw message, or all fields if deadbands are given
+     * @param deadbands  deadbands for numeric fields; null or empty if none
+     * @param maxLeaves  maximum number of leaves with retained state; strictly positive
+     */
+    public DedupStatsHandlerWrapper(final StatsHandler sh, final long minIntervalMS,
+            final List<String> fields, final Map<String, Number> deadbands, final int maxLeaves)
+        {
+        if(null == sh) { throw new IllegalArgumentException(); }
+        if(minIntervalMS <= 0) { throw new IllegalArgumentException(); }
+        if(maxLeaves <= 0) { throw new IllegalArgumentException(); }
+        this.sh = sh;
+        this.minIntervalMS = minIntervalMS;
+        final Map<String, Number> db = (null == deadbands) ? Collections.<String, Number>emptyMap() : deadbands;
+        deadbandFields = new String[db.size()];
+        this.deadbands = new double[db.size()];
+        int i = 0;
+        for(final Map.Entry<String, Number> e : db.entrySet())
+            {
+            if((null == e.getKey()) || (null == e.getValue()) || !(e.getValue().doubleValue() >= 0))
+                { throw new IllegalArgumentException(); }
+            deadbandFields[i] = e.getKey();
+            this.deadbands[i++] = e.getValue().doubleValue();
+            }
+        if(null != fields)
+            {
+            final List<String> f = new ArrayList<>(fields);
+            f.removeAll(db.keySet());
+            if(f.contains(null)) { throw new IllegalArgumentException(); }
+            this.fields = f.toArray(new String[f.size()]);
+            }
+        else { this.fields = null; }
+        raw = (null == fields) && db.isEmpty();
+        state = new LinkedHashMap<Object, LeafState>(16, 0.75f, true)
+            {
+            private static final long serialVersionUID = 1L;
+            @Override protected boolean removeEldestEntry(final Map.Entry<Object, LeafState> eldest)
+                { return(size() > maxLeaves); }
+            };
+        }
+
+    /**Get the count of messages suppressed so far. */
+    public long getSuppressedCount() { return(suppressed.get()); }
+
+    /**Mix a 64-bit value. */
+    private static long mix(long h)
+        {
+        h ^= h >>> 33; h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33; h *= 0xc4ceb9fe1a85ec53L;
+        return(h ^ (h >>> 33));
+        }
+
+    /**64-bit FNV-1a hash of text, continuing from h. */
+    private static long hash(final long h, final CharSequence s)
+        { return(hash(h, s, 0, s.length())); }
+
+    /**64-bit FNV-1a hash of text [from, to), continuing from h. */
+    private static long hash(long h, final CharSequence s, final int from, final int to)
+        {
+        for(int i = from; i < to; ++i) { h = (h ^ s.charAt(i)) * 0x100000001b3L; }
+        return(h);
+        }
+
+    /**Raw JSON form of the sequence number field name and separator. */
+    private static final String RAW_SEQUENCE_FIELD = "\"" + SEQUENCE_FIELD + "\":";
+
+    /**Hash of raw message text without any JSON sequence number field and value. */
+    private static long rawHash(final String message)
+        {
+        final int start = ('{' != message.charAt(0)) ? -1 : message.indexOf(RAW_SEQUENCE_FIELD);
+        if(start < 0) { return(hash(FNV_BASIS, message)); }
+        int end = start + RAW_SEQUENCE_FIELD.length();
+        while((end < message.length()) && Character.isDigit(message.charAt(end))) { ++end; }
+        return(hash(hash(FNV_BASIS, message, 0, start), message, end, message.length()));
+        }
+
+    /**FNV-1a offset basis. */
+    private static final long FNV_BASIS = 0xcbf29ce484222325L;
+
+    /**Fingerprint of one field and value. */
+    private static long fieldHash(final String key, final Object value)
+        { return(mix(hash(hash(FNV_BASIS, key) * 31, String.valueOf(value)))); }
+
+    /**Compute the fingerprint of the message. */
+    private long fingerprint(final StatsMessageWithMetadata swmd, final Map<String, Object> m)
+        {
+        if(null == m) { return(mix(rawHash(swmd.message))); }
+        long fp = 0;
+        if(null != fields)
+            {
+            // Order matters for the listed fields.
+            for(final String f : fields) { fp = mix(fp ^ (m.containsKey(f) ? fieldHash(f, m.get(f)) : 0)); }
+            return(fp);
+            }
+        // Order-independent combination of all fields but the sequence number and those with deadbands.
+        outer: for(final Map.Entry<String, Object> e : m.entrySet())
+            {
+            final String k = e.getKey();
+            if(SEQUENCE_FIELD.equals(k)) { continue; }
+            for(final String d : deadbandFields) { if(d.equals(k)) { continue outer; } }
+            fp += fieldHash(k, e.getValue());
+            }
+        return(fp);
+        }
+
+    @Override
+    public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+        {
+        final long packed = swmd.getLeafIDAsLong();
+        final Object key;
+        if(LeafID.NONE != packed) { key = Long.valueOf(packed); }
+        else
+            {
+            key = swmd.getLeafIDAsString();
+            if(null == key) { sh.processStatsMessage(swmd); return; }
+            }
+
+        // Parse only if comparing fields; fall back to raw text if not parseable.
+        Map<String, Object> m = null;
+        if(!raw)
+            {
+            try { m = swmd.parseStatsAsMap(); }
+            catch(final IllegalArgumentException e) { /* Malformed: compare raw. */ }
+            }
+        final long fp = fingerprint(swmd, m);
+        final double[] values = new double[deadbandFields.length];
+        for(int i = 0; i < values.length; ++i)
+            {
+            final Object v = (null == m) ? null : m.get(deadbandFields[i]);
+            values[i] = (v instanceof Number) ? ((Number)v).doubleValue() : Double.NaN;
+            }
+
+        synchronized(state)
+            {
+            final LeafState last = state.get(key);
+            if((null != last) && (swmd.timestamp - last.time < minIntervalMS) && (fp == last.fingerprint) &&
+               withinDeadbands(last.values, values))
+                {
+                suppressed.incrementAndGet();
+                return;
+                }
+            }
+
+        sh.processStatsMessage(swmd);
+        // Record only once delivered, so that a failed message is not suppressed on retry.
+        synchronized(state) { state.put(key, new LeafState(fp, swmd.timestamp, values)); }
+        }
+
+    /**True if all values are within their deadbands of the previous values, and present/absent alike. */
+    private boolean withinDeadbands(final double[] prev, final double[] now)
+        {
+        for(int i = 0; i < now.length; ++i)
+            {
+            final boolean pNaN = Double.isNaN(prev[i]), nNaN = Double.isNaN(now[i]);
+            if(pNaN != nNaN) { return(false); }
+            if(!nNaN && (Math.abs(now[i] - prev[i]) > deadbands[i])) { return(false); }
+            }
+        return(true);
+        }
+
+    /**Closes the wrapped handler if AutoCloseable. */
+    @Override
+    public void close() throws Exception
+        { if(sh instanceof AutoCloseable) { ((AutoCloseable)sh).close(); } }
+    }
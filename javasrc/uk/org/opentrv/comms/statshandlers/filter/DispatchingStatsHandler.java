@@ -0,0 +1,672 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+package uk.org.opentrv.comms.statshandlers.filter;
+
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsList;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsString;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.opentrv.comms.cfg.ConfigException;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.support.Util;
+
+
+/**Shared asynchronous dispatcher from one publisher to many handlers.
+ * An alternative to wrapping each handler in its own AsyncStatsHandlerWrapper.
+ * <p>
+ * Each message is published once into a shared bounded ring,
+ * and each handler consumes from the ring at its own cursor,
+ * so a slow handler does not hold up the others
+ * and the cost of publishing does not grow with the queue length.
+ * <p>
+ * Messages are delivered to each handler in the order published,
+ * never concurrently to any one handler,
+ * by a shared bounded pool of threads that are started only while there is work to do;
+ * each handler gives up its thread after a batch of deliveries so that others get a turn.
+ * <p>
+ * When a handler falls a full ring behind, its backpressure policy applies:
+ * <ul>
+ * <li>dropOldest: the oldest undelivered message for that handler is discarded (and counted).</li>
+ * <li>block: the publisher waits for the handler to make room, up to a timeout,
+ *     after which the oldest message for that handler is discarded.</li>
+ * <li>spill: undelivered messages for that handler are appended to a file
+ *     and replayed in order once the handler catches up;
+ *     a spill file left over from a previous run is replayed first,
+ *     less any partial last line left by a crash.
+ *     Spill file I/O is done outside the shared lock so that a slow disc does not stall other handlers.</li>
+ * </ul>
+ * <p>
+ * Lag and delivery counts for each handler are available from getMetrics().
+ * <p>
+ * Thread-safe; processStatsMessage() may be called from any thread.
+ * Calling close() frees up resources such as threads and spill files.
+ */
+public final class DispatchingStatsHandler implements StatsHandler, AutoCloseable
+    {
+    /**Default ring size; rounded up to a power of two; strictly positive. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**Default maximum time in milliseconds that a blocking policy stalls the publisher; strictly positive. */
+    public static final int DEFAULT_BLOCK_TIMEOUT_MS = 10_000;
+
+    /**Default maximum delivery threads; strictly positive. */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**Maximum deliveries by one task before giving up its thread to other handlers; strictly positive. */
+    private static final int DELIVERY_BATCH = 64;
+
+    /**Default close()/shutdown time in milliseconds for unfinished deliveries; strictly positive. */
+    public static final int DEFAULT_CLOSE_TIMEOUT_MS = AsyncStatsHandlerWrapper.DEFAULT_CLOSE_TIMEOUT_MS;
+
+    /**Action when a handler falls a full ring behind. */
+    public enum BackpressurePolicy
+        {
+        DROP_OLDEST("dropOldest"), BLOCK("block"), SPILL("spill");
+
+        /**Name as used in config; never null. */
+        public final String configName;
+        private BackpressurePolicy(final String configName) { this.configName = configName; }
+
+        /**Get policy from config name; null if not recognised. */
+        public static BackpressurePolicy fromConfigName(final String name)
+            {
+            for(final BackpressurePolicy p : values()) { if(p.configName.equals(name)) { return(p); } }
+            return(null);
+            }
+        }
+
+    /**Immutable description of one handler to dispatch to. */
+    public static final class Subscription
+        {
+        /**Name for metrics and spill file; never null nor empty. */
+        public final String name;
+        /**Handler; never null. */
+        public final StatsHandler handler;
+        /**Backpressure policy; never null. */
+        public final BackpressurePolicy policy;
+        /**Maximum publisher stall for BLOCK policy; strictly positive. */
+        public final int blockTimeoutMS;
+        /**Spill file for SPILL policy; non-null iff policy is SPILL. */
+        public final File spillFile;
+
+        public Subscription(final String name, final StatsHandler handler, final BackpressurePolicy policy,
+                final int blockTimeoutMS, final File spillFile)
+            {
+            if((null == name) || name.isEmpty()) { throw new IllegalArgumentException(); }
+            if(null == handler) { throw new IllegalArgumentException(); }
+            if(null == policy) { throw new IllegalArgumentException(); }
+            if(blockTimeoutMS < 1) { throw new IllegalArgumentException(); }
+            if((BackpressurePolicy.SPILL == policy) != (null != spillFile)) { throw new IllegalArgumentException(); }
+            this.name = name;
+            this.handler = handler;
+            this.policy = policy;
+            this.blockTimeoutMS = blockTimeoutMS;
+            this.spillFile = spillFile;
+            }
+
+        /**Create a subscription with the DROP_OLDEST policy. */
+        public Subscription(final String name, final StatsHandler handler)
+            { this(name, handler, BackpressurePolicy.DROP_OLDEST, DEFAULT_BLOCK_TIMEOUT_MS, null); }
+        }
+
+    /**Immutable snapshot of delivery metrics for one handler. */
+    public static final class HandlerMetrics
+        {
+        /**Subscription name; never null. */
+        public final String name;
+        /**Messages published but not yet delivered (including any spilled); non-negative. */
+        public final long lag;
+        /**Largest lag seen; non-negative. */
+        public final long maxLag;
+        /**Messages delivered (including any that the handler threw an exception for); non-negative. */
+        public final long delivered;
+        /**Messages discarded by backpressure policy; non-negative. */
+        public final long dropped;
+        /**Messages written to the spill file; non-negative. */
+        public final long spilled;
+        /**Messages for which the handler threw an exception; non-negative. */
+        public final long errors;
+
+        HandlerMetrics(final String name, final long lag, final long maxLag, final long delivered,
+                final long dropped, final long spilled, final long errors)
+            {
+            this.name = name;
+            this.lag = lag;
+            this.maxLag = maxLag;
+            this.delivered = delivered;
+            this.dropped = dropped;
+            this.spilled = spilled;
+            this.errors = errors;
+            }
+
+        @Override public String toString()
+            {
+            return(name + ": lag=" + lag + " maxLag=" + maxLag + " delivered=" + delivered +
+                " dropped=" + dropped + " spilled=" + spilled + " errors=" + errors);
+            }
+        }
+
+    /**Lock for all shared state. */
+    private final Object lock = new Object();
+    /**Serialises publishers, so that only one at a time can be waiting for or overwriting ring slots. */
+    private final Object publishLock = new Object();
+
+    /**Ring of published messages, indexed by sequence number & mask; never null. */
+    private final StatsMessageWithMetadata[] ring;
+    /**Ring index mask; one less than the ring length. */
+    private final int mask;
+    /**Sequence number of next message to publish; guarded by lock. */
+    private long published;
+    /**Count of publishers waiting for space; guarded by lock. */
+    private int waitingPublishers;
+    /**True once close() has been called; guarded by lock. */
+    private boolean closed;
+    /**True once close() has stopped waiting for deliveries, after which none are started; guarded by lock. */
+    private boolean stopped;
+
+    /**Consumers, one per subscription; never null. */
+    private final Consumer[] consumers;
+
+    /**Pool of delivery threads; never null. */
+    private final ThreadPoolExecutor pool;
+
+    /**Close timeout in milliseconds; strictly positive. */
+    private final int closeTimeoutMS;
+
+    /**Per-handler delivery state and task; all mutable fields are guarded by lock except as noted. */
+    private final class Consumer implements Runnable
+        {
+        final Subscription sub;
+        /**Sequence number of next message for this handler in the ring. */
+        long cursor;
+        /**True while a delivery task is queued or running. */
+        boolean scheduled;
+        /**True while messages are going to the spill file rather than the ring. */
+        boolean spilling;
+        /**Serialises spill file writes and removal; acquired before lock if both are held. */
+        final Object spillIOLock = new Object();
+        /**Spill writer, lazily opened; null if none; guarded by spillIOLock. */
+        Writer spillWriter;
+        /**Spill reader, lazily opened; null if none; only used by the delivery task. */
+        BufferedReader spillReader;
+        /**Message from the ring being delivered; null if none. */
+        StatsMessageWithMetadata inFlight;
+        /**Messages taken for spilling but not yet written to the file; never null. */
+        final ArrayDeque<StatsMessageWithMetadata> toSpill = new ArrayDeque<>();
+        /**Messages taken for spilling, written to the spill file, and read from it. */
+        long spillWritten, spillFlushed, spillRead;
+        // Metrics.
+        long maxLag, delivered, dropped, spilled, errors;
+
+        Consumer(final Subscription sub) throws IOException
+            {
+            this.sub = sub;
+            // Pick up any spill from a previous run.
+            if((null != sub.spillFile) && sub.spillFile.exists())
+                {
+                truncatePartialLine(sub.spillFile);
+                try(final BufferedReader br = openSpillReader())
+                    { while(null != br.readLine()) { ++spillWritten; } }
+                spillFlushed = spillWritten;
+                if(spillWritten > 0) { spilling = true; }
+                else if(!sub.spillFile.delete()) { throw new IOException("cannot remove old spill file " + sub.spillFile); }
+                }
+            }
+
+        /**Current lag; lock must be held. */
+        long lag() { return((published - cursor) + (spillWritten - spillRead)); }
+
+        /**True if there is anything to deliver, or a fully-replayed spill to end; lock must be held. */
+        boolean hasWork()
+            { return((cursor < published) || (spilling && ((spillRead < spillFlushed) || (spillRead == spillWritten)))); }
+
+        BufferedReader openSpillReader() throws IOException
+            { return(new BufferedReader(new InputStreamReader(new FileInputStream(sub.spillFile), Util.FILE_ENCODING_8859_1))); }
+
+        /**Take message for the spill file, to be written by writeSpill(); lock must be held. */
+        void spill(final StatsMessageWithMetadata swmd)
+            {
+            toSpill.add(swmd);
+            ++spillWritten;
+            ++spilled;
+            spilling = true;
+            }
+
+        /**Write any messages taken for spilling to the spill file then schedule their delivery; lock must not be held.
+         * Messages that cannot be written are counted as dropped.
+         */
+        void writeSpill() throws IOException
+            {
+            synchronized(spillIOLock)
+                {
+                final List<StatsMessageWithMetadata> batch;
+                synchronized(lock)
+                    {
+                    if(toSpill.isEmpty()) { return; }
+                    batch = new ArrayList<>(toSpill);
+                    toSpill.clear();
+                    }
+                boolean ok = false;
+                try
+                    {
+                    if(null == spillWriter)
+                        {
+                        sub.spillFile.getAbsoluteFile().getParentFile().mkdirs();
+                        spillWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(sub.spillFile, true), Util.FILE_ENCODING_8859_1));
+                        }
+                    for(final StatsMessageWithMetadata swmd : batch)
+                        {
+                        spillWriter.write(Long.toString(swmd.timestamp));
+                        spillWriter.write(swmd.authenticated ? " 1 " : " 0 ");
+                        spillWriter.write(swmd.message);
+                        spillWriter.write('\n');
+                        }
+                    spillWriter.flush(); // Make whole lines visible to the reader.
+                    ok = true;
+                    }
+                finally
+                    {
+                    synchronized(lock)
+                        {
+                        if(ok) { spillFlushed += batch.size(); }
+                        else { spillWritten -= batch.size(); spilled -= batch.size(); dropped += batch.size(); }
+                        if(!closed) { scheduleWork(this); }
+                        }
+                    }
+                }
+            }
+
+        /**Finish with spill file once fully replayed, unless more has been spilled meanwhile; lock must not be held. */
+        void endSpill()
+            {
+            synchronized(spillIOLock)
+                {
+                synchronized(lock)
+                    {
+                    if(spillRead != spillWritten) { return; }
+                    spillWritten = spillFlushed = spillRead = 0;
+                    spilling = false;
+                    }
+                try { if(null != spillWriter) { spillWriter.close(); } } catch(final IOException e) { e.printStackTrace(); }
+                try { if(null != spillReader) { spillReader.close(); } } catch(final IOException e) { e.printStackTrace(); }
+                spillWriter = null;
+                spillReader = null;
+                if(!sub.spillFile.delete()) { System.err.println("Cannot remove spill file " + sub.spillFile); }
+                }
+            }
+
+        /**Deliver one message to the handler, counting exceptions; lock must not be held. */
+        void deliver(final StatsMessageWithMetadata swmd)
+            {
+            boolean ok = false;
+            try { sub.handler.processStatsMessage(swmd); ok = true; }
+            catch(final Exception e) { e.printStackTrace(); }
+            synchronized(lock) { ++delivered; if(!ok) { ++errors; } inFlight = null; }
+            }
+
+        /**Deliver messages in order until there are none left, or a batch has been delivered. */
+        @Override public void run()
+            {
+            for(int n = 0; ; )
+                {
+                if(++n > DELIVERY_BATCH)
+                    {
+                    // Give other handlers a turn; if shutting down then carry on here.
+                    try { pool.execute(this); return; }
+                    catch(final RejectedExecutionException e) { n = 0; }
+                    }
+                StatsMessageWithMetadata next = null;
+                boolean fromSpill = false, drained = false;
+                synchronized(lock)
+                    {
+                    if(stopped) { scheduled = false; return; }
+                    if(cursor < published)
+                        {
+                        next = inFlight = ring[(int)(cursor & mask)];
+                        ++cursor;
+                        if(waitingPublishers > 0) { lock.notifyAll(); }
+                        }
+                    else if(spilling && (spillRead < spillFlushed)) { fromSpill = true; }
+                    else if(spilling && (spillRead == spillWritten)) { drained = true; }
+                    else { scheduled = false; return; } // Any unwritten spill is scheduled once written.
+                    }
+                if(drained) { endSpill(); continue; }
+                if(fromSpill)
+                    {
+                    // Only this task reads the spill file, and only complete lines, so no lock is needed.
+                    try
+                        {
+                        if(null == spillReader) { spillReader = openSpillReader(); }
+                        next = parseSpillLine(spillReader.readLine());
+                        }
+                    catch(final IOException e) { e.printStackTrace(); }
+                    synchronized(lock) { ++spillRead; }
+                    if(null == next) { continue; } // Skip unreadable line.
+                    }
+                deliver(next);
+                }
+            }
+        }
+
+    /**Truncate a file just after its last newline, removing any partial line left by a crash. */
+    static void truncatePartialLine(final File f) throws IOException
+        {
+        try(final RandomAccessFile raf = new RandomAccessFile(f, "rw"))
+            {
+            final byte[] buf = new byte[4096];
+            long end = raf.length();
+            while(end > 0)
+                {
+                final int n = (int)Math.min(buf.length, end);
+                raf.seek(end - n);
+                raf.readFully(buf, 0, n);
+                int i = n;
+                while((--i >= 0) && ('\n' != buf[i])) { }
+                if(i >= 0) { end -= n - (i + 1); break; }
+                end -= n;
+                }
+            if(end != raf.length()) { raf.setLength(end); }
+            }
+        }
+
+    /**Parse a line written by Consumer.writeSpill(); null if not possible. */
+    static StatsMessageWithMetadata parseSpillLine(final String line)
+        {
+        if(null == line) { return(null); }
+        final String[] parts = line.split(" ", 3);
+        if(3 != parts.length) { return(null); }
+        try { return(new StatsMessageWithMetadata(parts[2], Long.parseLong(parts[0]), "1".equals(parts[1]))); }
+        catch(final IllegalArgumentException e) { return(null); }
+        }
+
+    /**Create an instance from config.
+     * Options are:
+     * <ul>
+     * <li>handlers: list of handler configs as for StatsHandlerFactory, each optionally with
+     *     name, policy (dropOldest, block or spill) and blockTimeoutMS</li>
+     * <li>capacity, threads, closeTimeoutMS: see the main constructor</li>
+     * <li>policy, blockTimeoutMS: defaults for all handlers</li>
+     * <li>spillDir: directory for spill files; required if any handler uses the spill policy</li>
+     * </ul>
+     */
+    public DispatchingStatsHandler(final Map<?,?> config) throws ConfigException, IOException
+        {
+        this(subscriptionsFromConfig(config),
+            getAsNumber(config, "capacity", DEFAULT_CAPACITY).intValue(),
+            getAsNumber(config, "threads", 0).intValue(),
+            getAsNumber(config, "closeTimeoutMS", DEFAULT_CLOSE_TIMEOUT_MS).intValue());
+        }
+
+    /**Build subscriptions from config; never null. */
+    private static List<Subscription> subscriptionsFromConfig(final Map<?,?> config) throws ConfigException
+        {
+        final List<?> handlerConfigs = getAsList(config, "handlers");
+        if(null == handlerConfigs) { throw new ConfigException("No handlers found"); }
+        final String defaultPolicy = getAsString(config, "policy", BackpressurePolicy.DROP_OLDEST.configName);
+        final int defaultBlockTimeoutMS = getAsNumber(config, "blockTimeoutMS", DEFAULT_BLOCK_TIMEOUT_MS).intValue();
+        final String spillDir = getAsString(config, "spillDir");
+        final List<Subscription> result = new ArrayList<>(handlerConfigs.size());
+        for(int i = 0; i < handlerConfigs.size(); ++i)
+            {
+            final Object o = handlerConfigs.get(i);
+            if(!(o instanceof Map)) { throw new ConfigException("Invalid handler structure"); }
+            final Map<?,?> hc = (Map<?,?>)o;
+            final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(hc);
+            final String name = getAsString(hc, "name", "handler" + i);
+            final BackpressurePolicy policy = BackpressurePolicy.fromConfigName(getAsString(hc, "policy", defaultPolicy));
+            if(null == policy) { throw new ConfigException("Unknown backpressure policy for handler " + name); }
+            File spillFile = null;
+            if(BackpressurePolicy.SPILL == policy)
+                {
+                if(null == spillDir) { throw new ConfigException("spillDir required for spill policy"); }
+                spillFile = new File(spillDir, name.replaceAll("[^A-Za-z0-9_-]", "_") + ".spill");
+                }
+            try
+                {
+                result.add(new Subscription(name, sh, policy,
+                    getAsNumber(hc, "blockTimeoutMS", defaultBlockTimeoutMS).intValue(), spillFile));
+                }
+            catch(final IllegalArgumentException e) { throw new ConfigException("Invalid options for handler " + name, e); }
+            }
+        return(result);
+        }
+
+    /**Create an instance with the DROP_OLDEST policy for all handlers and default sizes. */
+    public DispatchingStatsHandler(final List<StatsHandler> handlers) throws IOException
+        {
+        this(subscriptionsFor(handlers), DEFAULT_CAPACITY, 0, DEFAULT_CLOSE_TIMEOUT_MS);
+        }
+
+    private static List<Subscription> subscriptionsFor(final List<StatsHandler> handlers)
+        {
+        final List<Subscription> result = new ArrayList<>(handlers.size());
+        for(int i = 0; i < handlers.size(); ++i) { result.add(new Subscription("handler" + i, handlers.get(i))); }
+        return(result);
+        }
+
+    /**Create an instance.
+     * @param subscriptions  handlers and their policies; non-null, non-empty
+     * @param capacity  ring size, rounded up to a power of two; strictly positive
+     * @param threads  maximum delivery threads; if zero, DEFAULT_THREADS (or one per handler if fewer)
+     * @param closeTimeoutMS  time allowed for deliveries to finish on close(); strictly positive
+     */
+    public DispatchingStatsHandler(final List<Subscription> subscriptions, final int capacity, final int threads,
+            final int closeTimeoutMS)
+        throws IOException
+        {
+        if((null == subscriptions) || subscriptions.isEmpty()) { throw new IllegalArgumentException(); }
+        if((capacity < 1) || (capacity > (1 << 30))) { throw new IllegalArgumentException(); }
+        if(threads < 0) { throw new IllegalArgumentException(); }
+        if(closeTimeoutMS < 1) { throw new IllegalArgumentException(); }
+        final int size = (1 == capacity) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        ring = new StatsMessageWithMetadata[size];
+        mask = size - 1;
+        this.closeTimeoutMS = closeTimeoutMS;
+        consumers = new Consumer[subscriptions.size()];
+        for(int i = 0; i < consumers.length; ++i) { consumers[i] = new Consumer(subscriptions.get(i)); }
+        final int nThreads = (0 == threads) ? Math.min(DEFAULT_THREADS, consumers.length) : threads;
+        pool = new ThreadPoolExecutor(nThreads, nThreads,
+                601, TimeUnit.SECONDS, // Allow threads to die if idle for quite a while.
+                new LinkedBlockingQueue<Runnable>()); // Holds at most one task per handler.
+        pool.allowCoreThreadTimeOut(true);
+        // Start replay of any left-over spills.
+        synchronized(lock) { scheduleWork(); }
+        }
+
+    /**Get ring size. */
+    public int getCapacity() { return(ring.length); }
+
+    /**Get the subscribed handlers in subscription order, eg to close them after this; never null. */
+    public List<StatsHandler> getHandlers()
+        {
+        final List<StatsHandler> result = new ArrayList<>(consumers.length);
+        for(final Consumer c : consumers) { result.add(c.sub.handler); }
+        return(Collections.unmodifiableList(result));
+        }
+
+    /**Publish a message once for all handlers, applying each handler's backpressure policy if it is a full ring behind.
+     * Any spill file writes are made after releasing the shared lock, but before returning.
+     * @throws IOException  if closed, or if a message could not be spilled (and so was dropped)
+     */
+    @Override
+    public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+        {
+        if(null == swmd) { throw new IllegalArgumentException(); }
+        synchronized(publishLock)
+            {
+            synchronized(lock)
+                {
+                if(closed) { throw new IOException("closed"); }
+                // Make room for the new message for each handler.
+                for(final Consumer c : consumers)
+                    {
+                    if(c.spilling) { continue; }
+                    if((published - c.cursor) < ring.length) { continue; }
+                    switch(c.sub.policy)
+                        {
+                        case BLOCK:
+                            {
+                            final long deadline = System.currentTimeMillis() + c.sub.blockTimeoutMS;
+                            ++waitingPublishers;
+                            try
+                                {
+                                long remaining;
+                                while(!closed && ((published - c.cursor) >= ring.length) &&
+                                      ((remaining = deadline - System.currentTimeMillis()) > 0))
+                                    { lock.wait(remaining); }
+                                }
+                            catch(final InterruptedException e) { Thread.currentThread().interrupt(); }
+                            finally { --waitingPublishers; }
+                            if(closed) { throw new IOException("closed"); }
+                            if((published - c.cursor) < ring.length) { break; }
+                            // Timed out, so drop the oldest.
+                            ++c.cursor; ++c.dropped;
+                            break;
+                            }
+                        case DROP_OLDEST:
+                            { ++c.cursor; ++c.dropped; break; }
+                        case SPILL:
+                            {
+                            // Move everything pending for this handler to the spill file to preserve order.
+                            for(long s = c.cursor; s < published; ++s) { c.spill(ring[(int)(s & mask)]); }
+                            c.cursor = published;
+                            break;
+                            }
+                        }
+                    }
+                // Publish the message.
+                final long seq = published;
+                ring[(int)(seq & mask)] = swmd;
+                published = seq + 1;
+                for(final Consumer c : consumers)
+                    {
+                    if(c.spilling) { c.spill(swmd); c.cursor = published; }
+                    final long lag = c.lag();
+                    if(lag > c.maxLag) { c.maxLag = lag; }
+                    }
+                scheduleWork();
+                }
+            // Still holding publishLock, so spill files are written in publication order.
+            writeSpills();
+            }
+        }
+
+    /**Write out messages taken for spilling for all handlers; lock must not be held.
+     * @throws IOException  the first failure, after attempting all handlers
+     */
+    private void writeSpills() throws IOException
+        {
+        IOException failure = null;
+        for(final Consumer c : consumers)
+            {
+            if(BackpressurePolicy.SPILL != c.sub.policy) { continue; }
+            try { c.writeSpill(); }
+            catch(final IOException e) { if(null == failure) { failure = e; } }
+            }
+        if(null != failure) { throw failure; }
+        }
+
+    /**Start a delivery task for each handler that needs one; lock must be held. */
+    private void scheduleWork() throws IOException
+        {
+        for(final Consumer c : consumers) { scheduleWork(c); }
+        }
+
+    /**Start a delivery task for the handler if it needs one; lock must be held. */
+    private void scheduleWork(final Consumer c) throws IOException
+        {
+        if(c.scheduled || !c.hasWork()) { return; }
+        c.scheduled = true;
+        try { pool.execute(c); }
+        catch(final RejectedExecutionException e) { c.scheduled = false; throw new IOException(e); }
+        }
+
+    /**Get a snapshot of the delivery metrics for each handler, in subscription order; never null. */
+    public List<HandlerMetrics> getMetrics()
+        {
+        final List<HandlerMetrics> result = new ArrayList<>(consumers.length);
+        synchronized(lock)
+            {
+            for(final Consumer c : consumers)
+                { result.add(new HandlerMetrics(c.sub.name, c.lag(), c.maxLag, c.delivered, c.dropped, c.spilled, c.errors)); }
+            }
+        return(Collections.unmodifiableList(result));
+        }
+
+    /**Releases resources, letting current queued deliveries complete if they can do so quickly.
+     * For handlers with the spill policy, messages still undelivered in the ring (or unfinished) are spilled,
+     * and all undelivered spilled messages are retained in their spill files for the next run,
+     * which may repeat some already delivered.
+     */
+    @Override
+    public void close() throws IOException
+        {
+        synchronized(lock) { closed = true; lock.notifyAll(); }
+        // Shut down threads, letting current tasks complete.
+        pool.shutdown();
+        try { pool.awaitTermination(closeTimeoutMS, TimeUnit.MILLISECONDS); }
+        catch(final InterruptedException e) { Thread.currentThread().interrupt(); }
+        synchronized(lock) { stopped = true; }
+        pool.shutdownNow();
+        synchronized(publishLock)
+            {
+            synchronized(lock)
+                {
+                for(final Consumer c : consumers)
+                    {
+                    if((BackpressurePolicy.SPILL != c.sub.policy) || c.spilling) { continue; }
+                    // Include any unfinished delivery, which may thus be repeated.
+                    if(null != c.inFlight) { c.spill(c.inFlight); }
+                    for(long s = c.cursor; s < published; ++s) { c.spill(ring[(int)(s & mask)]); }
+                    c.cursor = published;
+                    }
+                }
+            try { writeSpills(); }
+            finally
+                {
+                for(final Consumer c : consumers)
+                    {
+                    synchronized(c.spillIOLock)
+                        { if(null != c.spillWriter) { c.spillWriter.close(); c.spillWriter = null; } }
+                    }
+                }
+            }
+        }
+    }
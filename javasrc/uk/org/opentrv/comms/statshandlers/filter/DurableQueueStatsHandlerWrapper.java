@@ -0,0 +1,528 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+package uk.org.opentrv.comms.statshandlers.filter;
+
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsMap;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsString;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.opentrv.comms.cfg.ConfigException;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.support.GroupCommitter;
+import uk.org.opentrv.comms.statshandlers.support.Util;
+
+/**This wraps a StatsHandler (typically one posting over the network) with a durable on-disc queue.
+ * An alternative to AsyncStatsHandlerWrapper where readings must survive long outages downstream,
+ * or restarts of this process.
+ * <p>
+ * Each message is appended to a segmented log of memory-mapped files in queueDir
+ * and the call returns at once;
+ * a dedicated thread delivers messages from the log to the wrapped handler in order,
+ * and records the offset of the last message delivered (acknowledged) in an ack file.
+ * On restart delivery resumes after the acknowledged offset,
+ * so a message may be delivered twice if the process stops between delivery and acknowledgement.
+ * <p>
+ * If the wrapped handler throws an IOException the message is retried
+ * with exponential backoff from initialBackoffMS up to maxBackoffMS;
+ * any other exception is taken to mean that the message can never be delivered,
+ * so it is logged and skipped.
+ * <p>
+ * A failure of the queue itself while delivering, eg to read or delete a segment,
+ * is logged and retried after the same backoff; it does not stop delivery.
+ * <p>
+ * Segments entirely acknowledged are deleted; one that cannot be deleted is retried
+ * as later segments are finished with.
+ * Once unacknowledged messages fill maxBytes further messages are rejected with an IOException.
+ * <p>
+ * Appends are forced to disc (through the segment mapping) according to the durability policy of the supplied GroupCommitter;
+ * even with none, appended messages survive a crash of this process (but not of the OS).
+ * <p>
+ * Config is of the form:
+<pre>
+{"handler":{...}, "queueDir":"/var/spool/opentrv/emon", "segmentBytes":1048576, "maxBytes":268435456,
+ "initialBackoffMS":1000, "maxBackoffMS":300000, "durability":"periodic"}
+</pre>
+ * <p>
+ * Calling close() stops delivery, frees up resources such as the thread and files,
+ * and closes the wrapped handler;
+ * only one instance should use a given queueDir at once.
+ */
+public final class DurableQueueStatsHandlerWrapper implements StatsHandler, AutoCloseable
+    {
+    /**Default segment size in bytes; strictly positive. */
+    public static final int DEFAULT_SEGMENT_BYTES = 1 << 20;
+    /**Default maximum bytes of unacknowledged messages; strictly positive. */
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+    /**Default initial retry delay; strictly positive. */
+    public static final int DEFAULT_INITIAL_BACKOFF_MS = 1000;
+    /**Default maximum retry delay; strictly positive. */
+    public static final int DEFAULT_MAX_BACKOFF_MS = 5 * 60_000;
+
+    /**Record header: length (int), timestamp (long), authenticated (byte). */
+    private static final int HEADER_BYTES = 4 + 8 + 1;
+    /**Record length marking the rest of the segment as unused. */
+    private static final int SKIP = -1;
+    /**Segment file name suffix. */
+    private static final String SEGMENT_SUFFIX = ".seg";
+    /**Ack file name. */
+    private static final String ACK_FILENAME = "ack";
+
+    /**Wrapped handler; not null. */
+    private final StatsHandler sh;
+    /**Queue directory; not null. */
+    private final File queueDir;
+    /**Segment size; strictly positive. */
+    private final int segmentBytes;
+    /**Maximum bytes of unacknowledged messages; strictly positive. */
+    private final long maxBytes;
+    /**Retry delays. */
+    private final long initialBackoffMS, maxBackoffMS;
+    /**Close timeout; strictly positive. */
+    private final int closeTimeoutMS;
+    /**Durability policy for appends; never null. */
+    private final GroupCommitter committer;
+
+    /**One mapped segment. */
+    private static final class Segment
+        {
+        /**Logical offset of first byte. */
+        final long base;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buf;
+        Segment(final long base, final File file, final int size) throws IOException
+            {
+            this.base = base;
+            this.file = file;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        void close() throws IOException { channel.close(); }
+        }
+
+    /**Lock for all mutable state. */
+    private final Object lock = new Object();
+    /**Segment files by base offset; guarded by lock. */
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    /**Segment being appended to; guarded by lock. */
+    private Segment writeSeg;
+    /**Logical offset for the next append; guarded by lock. */
+    private long writeOffset;
+    /**Logical offset after the last acknowledged message; guarded by lock. */
+    private long ackOffset;
+    /**Ack file channel and mapping; guarded by lock. */
+    private final FileChannel ackChannel;
+    private final MappedByteBuffer ackBuf;
+    /**True once close() has been called; guarded by lock. */
+    private boolean closed;
+    /**Counts; guarded by lock. */
+    private long pending, delivered, retries, undeliverable;
+
+    /**Segment being delivered from, or null; delivery thread only. */
+    private Segment readSeg;
+    /**True while queue failures in delivery are being retried, so only the first is logged; delivery thread only. */
+    private boolean failing;
+
+    /**Delivery thread; never null. */
+    private final ExecutorService deliverer;
+
+    /**Create from config. */
+    public DurableQueueStatsHandlerWrapper(final Map config) throws ConfigException, IOException
+        {
+        this(StatsHandlerFactory.getInstance().newHandler(getAsMap(config, "handler")),
+            queueDirFromConfig(config),
+            getAsNumber(config, "segmentBytes", DEFAULT_SEGMENT_BYTES).intValue(),
+            getAsNumber(config, "maxBytes", DEFAULT_MAX_BYTES).longValue(),
+            getAsNumber(config, "initialBackoffMS", DEFAULT_INITIAL_BACKOFF_MS).intValue(),
+            getAsNumber(config, "maxBackoffMS", DEFAULT_MAX_BACKOFF_MS).intValue(),
+            getAsNumber(config, "closeTimeoutMS", AsyncStatsHandlerWrapper.DEFAULT_CLOSE_TIMEOUT_MS).intValue(),
+            GroupCommitter.fromConfig(config, GroupCommitter.Policy.NONE));
+        }
+
+    private static File queueDirFromConfig(final Map config) throws ConfigException
+        {
+        final String dir = getAsString(config, "queueDir");
+        if(null == dir) { throw new ConfigException("queueDir required"); }
+        return(new File(dir));
+        }
+
+    /**Create an instance with default sizes and retry delays and no forced writes. */
+    public DurableQueueStatsHandlerWrapper(final StatsHandler sh, final File queueDir) throws IOException
+        {
+        this(sh, queueDir, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_BYTES, DEFAULT_INITIAL_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS,
+            AsyncStatsHandlerWrapper.DEFAULT_CLOSE_TIMEOUT_MS, GroupCommitter.NONE);
+        }
+
+    /**Create an instance, resuming delivery of any messages left in the queue directory.
+     * @param sh  wrapped handler; never null
+     * @param queueDir  directory for the queue, created if need be; never null
+     * @param segmentBytes  segment size, which limits the message size; at least 64
+     * @param maxBytes  maximum bytes of unacknowledged messages; strictly positive
+     * @param initialBackoffMS  first retry delay; strictly positive
+     * @param maxBackoffMS  maximum retry delay; at least initialBackoffMS
+     * @param closeTimeoutMS  maximum time close() waits for a delivery in progress; strictly positive
+     * @param committer  durability policy for appends; never null
+     */
+    public DurableQueueStatsHandlerWrapper(final StatsHandler sh, final File queueDir, final int segmentBytes,
+            final long maxBytes, final int initialBackoffMS, final int maxBackoffMS, final int closeTimeoutMS,
+            final GroupCommitter committer)
+        throws IOException
+        {
+        if(null == sh) { throw new IllegalArgumentException(); }
+        if(null == queueDir) { throw new IllegalArgumentException(); }
+        if(segmentBytes < 64) { throw new IllegalArgumentException(); }
+        if(maxBytes <= 0) { throw new IllegalArgumentException(); }
+        if((initialBackoffMS <= 0) || (maxBackoffMS < initialBackoffMS)) { throw new IllegalArgumentException(); }
+        if(closeTimeoutMS <= 0) { throw new IllegalArgumentException(); }
+        if(null == committer) { throw new IllegalArgumentException(); }
+        this.sh = sh;
+        this.queueDir = queueDir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.initialBackoffMS = initialBackoffMS;
+        this.maxBackoffMS = maxBackoffMS;
+        this.closeTimeoutMS = closeTimeoutMS;
+        this.committer = committer;
+
+        if(!queueDir.isDirectory()) { queueDir.mkdirs(); }
+        if(!queueDir.isDirectory()) { throw new IOException("cannot create queue dir " + queueDir); }
+        ackChannel = FileChannel.open(new File(queueDir, ACK_FILENAME).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ackBuf = ackChannel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        recover();
+
+        deliverer = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+            @Override public Thread newThread(final Runnable r)
+                { final Thread t = new Thread(r, "durable queue " + queueDir); t.setDaemon(true); return(t); }
+            });
+        deliverer.execute(new Runnable() { @Override public void run() { deliveryLoop(); } });
+        }
+
+    /**Find existing segments, the acknowledged offset and the end of the log; lock need not be held. */
+    private void recover() throws IOException
+        {
+        final File[] files = queueDir.listFiles();
+        if(null != files)
+            {
+            for(final File f : files)
+                {
+                final String name = f.getName();
+                if(!name.endsWith(SEGMENT_SUFFIX)) { continue; }
+                try { segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16), f); }
+                catch(final NumberFormatException e) { /* Not ours. */ }
+                }
+            }
+        ackOffset = ackBuf.getLong(0);
+        // Any segment left undeleted is retried once delivery moves on.
+        try { deleteAcknowledgedSegments(); }
+        catch(final IOException e) { System.err.println("Could not delete delivered queue segment, will retry: " + e); }
+        if(segments.isEmpty())
+            {
+            // Start a fresh log at the next segment boundary after anything acknowledged.
+            writeOffset = ceilToSegment(ackOffset);
+            ackOffset = writeOffset;
+            ackBuf.putLong(0, ackOffset);
+            return;
+            }
+        if(ackOffset < segments.firstKey()) { ackOffset = segments.firstKey(); }
+        // Count pending messages and find the end of the log.
+        long offset = ackOffset;
+        for(final Long base : segments.keySet())
+            {
+            if(base + segmentBytes <= offset) { continue; }
+            final Segment s = new Segment(base, segments.get(base), segmentBytes);
+            try
+                {
+                int pos = (int)(Math.max(offset, base) - base);
+                for( ; ; )
+                    {
+                    final int len = recordLength(s.buf, pos);
+                    if(SKIP == len) { pos = segmentBytes; break; }
+                    if(len <= 0) { break; }
+                    pos += HEADER_BYTES + len;
+                    ++pending;
+                    }
+                offset = base + pos;
+                }
+            finally { s.close(); }
+            }
+        writeOffset = offset;
+        }
+
+    /**Round up to a segment boundary. */
+    private long ceilToSegment(final long offset)
+        { return(((offset + segmentBytes - 1) / segmentBytes) * segmentBytes); }
+
+    /**Get the length of the record at pos: positive, SKIP, or 0 (or other) if no valid record. */
+    private int recordLength(final ByteBuffer buf, final int pos)
+        {
+        if(pos + HEADER_BYTES > segmentBytes) { return((pos + 4 <= segmentBytes) ? buf.getInt(pos) : SKIP); }
+        final int len = buf.getInt(pos);
+        if(SKIP == len) { return(SKIP); }
+        if((len <= 0) || (pos + HEADER_BYTES + len > segmentBytes)) { return(0); }
+        return(len);
+        }
+
+    /**Delete segments entirely before the acknowledged offset; lock must be held (or in construction).
+     * Any that cannot be deleted are kept for another attempt, and reported after trying the rest.
+     */
+    private void deleteAcknowledgedSegments() throws IOException
+        {
+        IOException failure = null;
+        final Iterator<File> it = segments.headMap(ackOffset - segmentBytes, true).values().iterator();
+        while(it.hasNext())
+            {
+            final File f = it.next();
+            if((null != writeSeg) && writeSeg.file.equals(f)) { writeSeg.close(); writeSeg = null; }
+            if(!f.delete() && f.exists()) { failure = new IOException("cannot delete segment " + f); continue; }
+            it.remove();
+            }
+        if(null != failure) { throw failure; }
+        }
+
+    /**Queue the message for delivery; fails only if the queue is full, closed or unwritable. */
+    @Override
+    public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+        {
+        final byte[] body;
+        try { body = swmd.message.getBytes(Util.FILE_ENCODING_8859_1); }
+        catch(final UnsupportedEncodingException e) { throw new IOException(e); }
+        final int recordBytes = HEADER_BYTES + body.length;
+        if(recordBytes > segmentBytes) { throw new IOException("message too long for queue segment"); }
+        synchronized(lock)
+            {
+            if(closed) { throw new IOException("closed"); }
+            if(writeOffset - ackOffset + recordBytes > maxBytes) { throw new IOException("durable queue full: " + queueDir); }
+            int pos = (int)(writeOffset % segmentBytes);
+            if(pos + recordBytes > segmentBytes)
+                {
+                // Mark the rest of this segment unused and move to the next.
+                final Segment s = segmentForWrite();
+                if(pos + 4 <= segmentBytes) { s.buf.putInt(pos, SKIP); }
+                writeOffset += segmentBytes - pos;
+                pos = 0;
+                }
+            final Segment s = segmentForWrite();
+            s.buf.putLong(pos + 4, swmd.timestamp);
+            s.buf.put(pos + 12, (byte)(swmd.authenticated ? 1 : 0));
+            final ByteBuffer b = s.buf.duplicate();
+            b.position(pos + HEADER_BYTES);
+            b.put(body);
+            // Length written last, so that a partial record reads as the end of the log.
+            s.buf.putInt(pos, body.length);
+            writeOffset += recordBytes;
+            ++pending;
+            committer.written(s.buf);
+            lock.notifyAll();
+            }
+        }
+
+    /**Get the segment containing writeOffset, creating it if need be; lock must be held. */
+    private Segment segmentForWrite() throws IOException
+        {
+        final long base = writeOffset - (writeOffset % segmentBytes);
+        if((null != writeSeg) && (writeSeg.base == base)) { return(writeSeg); }
+        if(null != writeSeg) { committer.closing(writeSeg.buf); writeSeg.close(); }
+        final File f = new File(queueDir, String.format("%016x", base) + SEGMENT_SUFFIX);
+        writeSeg = new Segment(base, f, segmentBytes);
+        segments.put(base, f);
+        return(writeSeg);
+        }
+
+    /**Deliver messages until closed; failures of the queue itself are logged and retried with backoff. */
+    private void deliveryLoop()
+        {
+        try
+            {
+            for(long backoff = initialBackoffMS; ; )
+                {
+                try
+                    {
+                    deliverNext();
+                    failing = false;
+                    backoff = initialBackoffMS;
+                    }
+                catch(final IOException e)
+                    {
+                    if(!failing) { failing = true; System.err.println("Durable queue failure, will retry: " + e); }
+                    closeReadSegment();
+                    if(!backOff(backoff)) { return; }
+                    backoff = Math.min(2 * backoff, maxBackoffMS);
+                    }
+                }
+            }
+        catch(final InterruptedException e) { /* Closing. */ }
+        finally { closeReadSegment(); }
+        }
+
+    /**Close the segment being delivered from, if any; delivery thread only. */
+    private void closeReadSegment()
+        {
+        if(null == readSeg) { return; }
+        try { readSeg.close(); } catch(final IOException e) { /* Ignore. */ }
+        readSeg = null;
+        }
+
+    /**Wait for, deliver and acknowledge the next message, or skip to the next segment; delivery thread only.
+     * @throws InterruptedException  if closing
+     */
+    private void deliverNext() throws IOException, InterruptedException
+        {
+        // Wait for and read the next message.
+        final StatsMessageWithMetadata swmd;
+        final long next;
+        synchronized(lock)
+            {
+            while(!closed && (ackOffset >= writeOffset)) { lock.wait(); }
+            if(closed) { throw new InterruptedException(); }
+            final long offset = ackOffset;
+            final int pos = (int)(offset % segmentBytes);
+            final long base = offset - pos;
+            if((null == readSeg) || (readSeg.base != base))
+                {
+                closeReadSegment();
+                final File f = segments.get(base);
+                if(null == f) { throw new IOException("missing queue segment at " + base); }
+                readSeg = new Segment(base, f, segmentBytes);
+                }
+            final int len = recordLength(readSeg.buf, pos);
+            if(len <= 0)
+                {
+                // Skip to the next segment.
+                acknowledge(base + segmentBytes, false);
+                return;
+                }
+            final long timestamp = readSeg.buf.getLong(pos + 4);
+            final boolean auth = (0 != readSeg.buf.get(pos + 12));
+            final byte[] body = new byte[len];
+            final ByteBuffer b = readSeg.buf.duplicate();
+            b.position(pos + HEADER_BYTES);
+            b.get(body);
+            swmd = new StatsMessageWithMetadata(new String(body, Util.FILE_ENCODING_8859_1), timestamp, auth);
+            next = offset + HEADER_BYTES + len;
+            }
+
+        // Deliver, retrying with backoff until done or closed.
+        for(long backoff = initialBackoffMS; ; backoff = Math.min(2 * backoff, maxBackoffMS))
+            {
+            try { sh.processStatsMessage(swmd); break; }
+            catch(final IOException e)
+                {
+                synchronized(lock) { ++retries; }
+                if(!backOff(backoff)) { throw new InterruptedException(); }
+                }
+            catch(final RuntimeException e)
+                {
+                e.printStackTrace();
+                synchronized(lock) { ++undeliverable; }
+                break;
+                }
+            }
+
+        synchronized(lock) { acknowledge(next, true); }
+        }
+
+    /**Wait for the given time unless closed; returns false if closed. */
+    private boolean backOff(final long backoff) throws InterruptedException
+        {
+        synchronized(lock)
+            {
+            final long until = System.currentTimeMillis() + backoff;
+            for(long now; !closed && ((now = System.currentTimeMillis()) < until); ) { lock.wait(until - now); }
+            return(!closed);
+            }
+        }
+
+    /**Advance the acknowledged offset, removing finished segments; lock must be held.
+     * The offset is advanced even if a finished segment cannot be deleted.
+     */
+    private void acknowledge(final long offset, final boolean message) throws IOException
+        {
+        final boolean newSegment = (offset / segmentBytes) != (ackOffset / segmentBytes);
+        ackOffset = offset;
+        ackBuf.putLong(0, offset);
+        if(message) { ++delivered; --pending; }
+        if(newSegment) { deleteAcknowledgedSegments(); }
+        }
+
+    /**Get the number of messages queued but not yet acknowledged. */
+    public long getPendingCount() { synchronized(lock) { return(pending); } }
+    /**Get the number of messages delivered (or skipped as undeliverable). */
+    public long getDeliveredCount() { synchronized(lock) { return(delivered); } }
+    /**Get the number of delivery attempts that failed and were retried. */
+    public long getRetryCount() { synchronized(lock) { return(retries); } }
+    /**Get the number of messages skipped as undeliverable. */
+    public long getUndeliverableCount() { synchronized(lock) { return(undeliverable); } }
+    /**Get the number of segment files currently on disc. */
+    public int getSegmentCount() { synchronized(lock) { return(segments.size()); } }
+
+    /**Stops delivery, letting any delivery in progress complete if it can do so quickly,
+     * then closes the wrapped handler if AutoCloseable;
+     * undelivered messages remain queued on disc for the next instance.
+     */
+    @Override
+    public void close() throws Exception
+        {
+        synchronized(lock)
+            {
+            if(closed) { return; }
+            closed = true;
+            lock.notifyAll();
+            }
+        Exception failure = null;
+        try
+            {
+            deliverer.shutdown();
+            if(!deliverer.awaitTermination(closeTimeoutMS, TimeUnit.MILLISECONDS)) { deliverer.shutdownNow(); }
+            synchronized(lock)
+                {
+                try { if(null != writeSeg) { committer.closing(writeSeg.buf); writeSeg.close(); writeSeg = null; } }
+                finally
+                    {
+                    try { ackBuf.force(); }
+                    finally { ackChannel.close(); }
+                    }
+                }
+            }
+        catch(final Exception e) { failure = e; }
+        if(sh instanceof AutoCloseable)
+            {
+            try { ((AutoCloseable)sh).close(); }
+            catch(final Exception e) { if(null == failure) { failure = e; } }
+            }
+        if(null != failure) { throw failure; }
+        }
+    }
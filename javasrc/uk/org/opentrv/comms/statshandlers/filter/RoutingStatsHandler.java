@@ -0,0 +1,344 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+package uk.org.opentrv.comms.statshandlers.filter;
+
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsList;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsMap;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsString;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.org.opentrv.comms.cfg.ConfigException;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.support.LeafID;
+import uk.org.opentrv.comms.statshandlers.support.LeafIDTable;
+
+/**Content-based router that evaluates a table of simple predicates once per message
+ * and forwards the message only to the handlers of the matching routes.
+ * <p>
+ * Each route may require any combination of:
+ * <ul>
+ * <li>allowedIDs: the leaf ID is one of a set;</li>
+ * <li>statsTypes: the stats type (leading character, eg '@', '{' or '=') is one of a set;</li>
+ * <li>authenticated: the message was (or was not) authenticated;</li>
+ * <li>requiredFields: the parsed stats contain all the named fields, eg "v|%".</li>
+ * </ul>
+ * A route with no predicates matches every message.
+ * A message is passed to the handler of every matching route, in route order,
+ * and to the optional default handler if no route matches.
+ * The same handler may be used by more than one route.
+ * <p>
+ * With only allowedIDs this is a single filter stage routing by leaf ID,
+ * an alternative to wrapping each of many handlers in its own SimpleStaticFilterStatsHandlerWrapper.
+ * <p>
+ * The routing table is compiled into a decision tree,
+ * branching on stats type, then authentication, then leaf ID (by packed ID in a primitive table),
+ * leading to the (usually short) list of candidate routes
+ * that then need only their required fields checked.
+ * The stats are parsed (once, and cached in the message for downstream handlers)
+ * only if some candidate route requires fields.
+ * <p>
+ * Config is of the form:
+<pre>
+{"routes":[{"name":"valves","allowedIDs":["b39a"],"statsTypes":"{@","authenticated":true,"requiredFields":["v|%"],
+            "handler":{...}}, ...],
+ "defaultHandler":{...}}
+</pre>
+ * <p>
+ * Hits per route are available from getHitCounts().
+ * <p>
+ * If a handler throws an IOException the message is still passed to the other matching handlers,
+ * and the first exception is rethrown afterwards.
+ * <p>
+ * Thread-safe if all the handlers are.
+ */
+public final class RoutingStatsHandler implements StatsHandler, AutoCloseable
+    {
+    /**Immutable description of one route. */
+    public static final class Route
+        {
+        /**Name for hit counts; never null nor empty. */
+        public final String name;
+        /**Handler; never null. */
+        public final StatsHandler handler;
+        /**Allowed leaf IDs; null for any. */
+        public final Set<String> allowedIDs;
+        /**Allowed stats types as characters; null for any. */
+        public final String statsTypes;
+        /**Required authentication state; null for either. */
+        public final Boolean authenticated;
+        /**Fields that must all be present; never null but may be empty. */
+        public final List<String> requiredFields;
+
+        /**Hits, ie messages matched. */
+        private final AtomicLong hits = new AtomicLong();
+
+        public Route(final String name, final StatsHandler handler, final Set<String> allowedIDs,
+                final String statsTypes, final Boolean authenticated, final List<String> requiredFields)
+            {
+            if((null == name) || name.isEmpty()) { throw new IllegalArgumentException(); }
+            if(null == handler) { throw new IllegalArgumentException(); }
+            if((null != allowedIDs) && (allowedIDs.isEmpty() || allowedIDs.contains(null))) { throw new IllegalArgumentException(); }
+            if((null != statsTypes) && statsTypes.isEmpty()) { throw new IllegalArgumentException(); }
+            this.name = name;
+            this.handler = handler;
+            this.allowedIDs = (null == allowedIDs) ? null : Collections.unmodifiableSet(new LinkedHashSet<>(allowedIDs));
+            this.statsTypes = statsTypes;
+            this.authenticated = authenticated;
+            this.requiredFields = (null == requiredFields) ? Collections.<String>emptyList() :
+                Collections.unmodifiableList(new ArrayList<>(requiredFields));
+            }
+
+        /**Create a route that matches every message. */
+        public Route(final String name, final StatsHandler handler)
+            { this(name, handler, null, null, null, null); }
+
+        /**True if the type and authentication predicates allow the given values. */
+        boolean allows(final char type, final boolean auth)
+            {
+            if((null != statsTypes) && (-1 == statsTypes.indexOf(type))) { return(false); }
+            if((null != authenticated) && (authenticated.booleanValue() != auth)) { return(false); }
+            return(true);
+            }
+        }
+
+    /**Leaf of the decision tree: candidate routes by leaf ID. */
+    private static final class Node
+        {
+        /**Packed leaf IDs to index in byID; never null. */
+        final LeafIDTable packedIDs;
+        /**Unpackable leaf IDs to index in byID; never null. */
+        final Map<String, Integer> unpackedIDs;
+        /**Candidate routes for each listed leaf ID, in route order; never null. */
+        final Route[][] byID;
+        /**Candidate routes for any other leaf ID, ie those without an ID predicate; never null. */
+        final Route[] anyID;
+
+        Node(final List<Route> candidates)
+            {
+            final List<Route> any = new ArrayList<>();
+            final Set<String> ids = new LinkedHashSet<>();
+            for(final Route r : candidates)
+                {
+                if(null == r.allowedIDs) { any.add(r); }
+                else { ids.addAll(r.allowedIDs); }
+                }
+            anyID = any.toArray(new Route[any.size()]);
+            byID = new Route[ids.size()][];
+            final long[] packed = new long[ids.size()];
+            final Map<String, Integer> unpacked = new HashMap<>();
+            int i = 0;
+            for(final String id : ids)
+                {
+                final List<Route> l = new ArrayList<>();
+                for(final Route r : candidates) { if((null == r.allowedIDs) || r.allowedIDs.contains(id)) { l.add(r); } }
+                byID[i] = l.toArray(new Route[l.size()]);
+                packed[i] = LeafID.fromString(id);
+                if(LeafID.NONE == packed[i]) { unpacked.put(id, i); }
+                ++i;
+                }
+            packedIDs = new LeafIDTable(packed);
+            unpackedIDs = unpacked;
+            }
+
+        /**Get the candidate routes for the message's leaf ID; never null. */
+        Route[] candidates(final StatsMessageWithMetadata swmd)
+            {
+            if(0 == byID.length) { return(anyID); }
+            final long id = swmd.getLeafIDAsLong();
+            if(LeafID.NONE != id)
+                {
+                final int t = packedIDs.get(id);
+                return((t < 0) ? anyID : byID[t]);
+                }
+            if(unpackedIDs.isEmpty()) { return(anyID); }
+            final Integer t = unpackedIDs.get(swmd.getLeafIDAsString());
+            return((null == t) ? anyID : byID[t]);
+            }
+        }
+
+    /**Number of directly-indexed stats types (ASCII7). */
+    private static final int TYPES = 128;
+
+    /**Routes in order; never null. */
+    private final Route[] routes;
+
+    /**Decision tree: by stats type (other types at TYPES), then authenticated (0 or 1); never null. */
+    private final Node[][] tree = new Node[TYPES + 1][2];
+
+    /**Handler for messages that match no route; null if none. */
+    private final StatsHandler defaultHandler;
+
+    /**Count of messages that matched no route. */
+    private final AtomicLong unmatched = new AtomicLong();
+
+    /**Create from config. */
+    public RoutingStatsHandler(final Map config) throws ConfigException
+        {
+        this(routesFromConfig(config), defaultFromConfig(config));
+        }
+
+    /**Build routes from config; never null. */
+    private static List<Route> routesFromConfig(final Map config) throws ConfigException
+        {
+        final List routeConfigs = getAsList(config, "routes");
+        if(null == routeConfigs) { throw new ConfigException("No routes found"); }
+        final List<Route> result = new ArrayList<>(routeConfigs.size());
+        for(int i = 0; i < routeConfigs.size(); ++i)
+            {
+            final Object o = routeConfigs.get(i);
+            if(!(o instanceof Map)) { throw new ConfigException("Invalid route structure"); }
+            final Map rc = (Map)o;
+            final String name = getAsString(rc, "name", "route" + i);
+            final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(getAsMap(rc, "handler"));
+            final List ids = getAsList(rc, "allowedIDs");
+            Set<String> idSet = null;
+            if(null != ids)
+                {
+                idSet = new LinkedHashSet<>();
+                for(final Object id : ids) { idSet.add(String.valueOf(id)); }
+                }
+            final String auth = getAsString(rc, "authenticated");
+            final List fields = getAsList(rc, "requiredFields");
+            final List<String> fieldList = new ArrayList<>();
+            if(null != fields) { for(final Object f : fields) { fieldList.add(String.valueOf(f)); } }
+            try
+                {
+                result.add(new Route(name, sh, idSet, getAsString(rc, "statsTypes"),
+                    (null == auth) ? null : Boolean.valueOf(Boolean.parseBoolean(auth)), fieldList));
+                }
+            catch(final IllegalArgumentException e) { throw new ConfigException("Invalid options for route " + name, e); }
+            }
+        return(result);
+        }
+
+    /**Build default handler from config; null if none. */
+    private static StatsHandler defaultFromConfig(final Map config) throws ConfigException
+        {
+        final Map dc = getAsMap(config, "defaultHandler");
+        return((null == dc) ? null : StatsHandlerFactory.getInstance().newHandler(dc));
+        }
+
+    /**Create an instance.
+     * @param routes  routes in order; never null nor empty
+     * @param defaultHandler  handler for messages that match no route; null if none
+     */
+    public RoutingStatsHandler(final List<Route> routes, final StatsHandler defaultHandler)
+        {
+        if((null == routes) || routes.isEmpty() || routes.contains(null)) { throw new IllegalArgumentException(); }
+        this.routes = routes.toArray(new Route[routes.size()]);
+        this.defaultHandler = defaultHandler;
+        // Compile, sharing nodes with the same candidate routes.
+        final Map<List<Route>, Node> nodes = new HashMap<>();
+        for(int t = 0; t <= TYPES; ++t)
+            {
+            // Types not mentioned by any route share the 'other' branch.
+            final char type = (char)t;
+            if((t < TYPES) && !mentioned(type)) { continue; }
+            for(int a = 0; a < 2; ++a)
+                {
+                final List<Route> candidates = new ArrayList<>();
+                for(final Route r : this.routes) { if(r.allows(type, 1 == a)) { candidates.add(r); } }
+                Node n = nodes.get(candidates);
+                if(null == n) { n = new Node(candidates); nodes.put(candidates, n); }
+                tree[t][a] = n;
+                }
+            }
+        for(int t = 0; t < TYPES; ++t) { if(null == tree[t][0]) { tree[t] = tree[TYPES]; } }
+        }
+
+    /**True if some route names the given type. */
+    private boolean mentioned(final char type)
+        {
+        for(final Route r : routes) { if((null != r.statsTypes) && (-1 != r.statsTypes.indexOf(type))) { return(true); } }
+        return(false);
+        }
+
+    /**True if the message's parsed stats contain all the route's required fields. */
+    private static boolean hasFields(final Route r, final StatsMessageWithMetadata swmd)
+        {
+        if(r.requiredFields.isEmpty()) { return(true); }
+        final Map<String, Object> m;
+        try { m = swmd.parseStatsAsMap(); }
+        catch(final IllegalArgumentException e) { return(false); } // Malformed.
+        if(null == m) { return(false); }
+        for(final String f : r.requiredFields) { if(!m.containsKey(f)) { return(false); } }
+        return(true);
+        }
+
+    @Override
+    public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+        {
+        final char type = swmd.getStatsTypeAsChar();
+        final Node n = tree[(type < TYPES) ? type : TYPES][swmd.authenticated ? 1 : 0];
+        IOException failure = null;
+        boolean matched = false;
+        for(final Route r : n.candidates(swmd))
+            {
+            if(!hasFields(r, swmd)) { continue; }
+            matched = true;
+            r.hits.incrementAndGet();
+            try { r.handler.processStatsMessage(swmd); }
+            catch(final IOException e) { if(null == failure) { failure = e; } }
+            }
+        if(!matched)
+            {
+            unmatched.incrementAndGet();
+            if(null != defaultHandler) { defaultHandler.processStatsMessage(swmd); }
+            }
+        if(null != failure) { throw failure; }
+        }
+
+    /**Get a snapshot of hits by route name, in route order, plus unmatched messages under the key null; never null. */
+    public Map<String, Long> getHitCounts()
+        {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for(final Route r : routes) { result.put(r.name, r.hits.get()); }
+        result.put(null, unmatched.get());
+        return(result);
+        }
+
+    /**Close all distinct handlers that are AutoCloseable. */
+    @Override
+    public void close() throws Exception
+        {
+        final Set<StatsHandler> handlers = Collections.newSetFromMap(new IdentityHashMap<StatsHandler, Boolean>());
+        for(final Route r : routes) { handlers.add(r.handler); }
+        if(null != defaultHandler) { handlers.add(defaultHandler); }
+        Exception failure = null;
+        for(final StatsHandler sh : handlers)
+            {
+            if(!(sh instanceof AutoCloseable)) { continue; }
+            try { ((AutoCloseable)sh).close(); }
+            catch(final Exception e) { if(null == failure) { failure = e; } }
+            }
+        if(null != failure) { throw failure; }
+        }
+    }
@@ -29,11 +29,16 @@ import java.util.List;
 import uk.org.opentrv.comms.statshandlers.StatsHandler;
 import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
 import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.support.LeafID;
+import uk.org.opentrv.comms.statshandlers.support.LeafIDTable;
 import uk.org.opentrv.comms.cfg.ConfigException;
 
 
 /**This wrapper filters stats messages by leaf ID and possibly by other simple/static features.
  * Used to (for example) allow only public data through to public data sinks.
+ * <p>
+ * Hex IDs are matched as packed longs in a primitive table,
+ * so that most messages are accepted or rejected without creating or hashing an ID String.
  */
 public final class SimpleStaticFilterStatsHandlerWrapper implements StatsHandler
     {
@@ -43,6 +48,11 @@ public final class SimpleStaticFilterStatsHandlerWrapper implements StatsHandler
     /**Immutable set of IDs to allow entire messages for; not null nor empty. */
     final Set<String> allowedIDs;
 
+    /**Allowed IDs packable as longs; never null. */
+    private final LeafIDTable allowedPackedIDs;
+    /**True if some allowed IDs are not packable and must be matched as Strings. */
+    private final boolean hasUnpackedIDs;
+
     public SimpleStaticFilterStatsHandlerWrapper(final Map config) throws ConfigException
         {
         this(
@@ -59,13 +69,26 @@ public final class SimpleStaticFilterStatsHandlerWrapper implements StatsHandler
         if(immutableAllowedIDs.isEmpty()) { throw new IllegalArgumentException(); }
         this.sh = sh;
         this.allowedIDs = immutableAllowedIDs;
+        final long[] packed = new long[immutableAllowedIDs.size()];
+        boolean unpacked = false;
+        int i = 0;
+        for(final String id : immutableAllowedIDs)
+            {
+            final long p = LeafID.fromString(id);
+            if(LeafID.NONE == p) { unpacked = true; }
+            packed[i++] = p;
+            }
+        this.allowedPackedIDs = new LeafIDTable(packed);
+        this.hasUnpackedIDs = unpacked;
         }
 
     @Override
     public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
         {
         // Quickly and silently reject messages not for the right ID(s).
-        if(!allowedIDs.contains(swmd.getLeafIDAsString())) { return; }
+        final long id = swmd.getLeafIDAsLong();
+        if(LeafID.NONE != id) { if(!allowedPackedIDs.contains(id)) { return; } }
+        else if(!hasUnpackedIDs || !allowedIDs.contains(swmd.getLeafIDAsString())) { return; }
 
         // Pass message through.
         sh.processStatsMessage(swmd);
@@ -31,6 +31,7 @@ import org.json.simple.JSONObject;
 
 import uk.org.opentrv.comms.util.CommonSensorLabels;
 import uk.org.opentrv.comms.util.ParsedRemoteBinaryStatsRecord;
+import uk.org.opentrv.comms.util.RemoteBinaryStatsView;
 
 /**
  * Lightweight object that represents a MQTT payload.
@@ -84,10 +85,28 @@ public class MqttPayload implements JSONAware {
         }
     }
 
+    /**
+     * Create a MQTT payload given a view of a binary record,
+     * parsing values in place.
+     */
+    public MqttPayload(final long timestamp, final RemoteBinaryStatsView record) {
+        this.timestamp = timestamp;
+        this.data = new JSONObject();
+        this.leafTopic = record.getID();
+        // Skip the leading @ section as it's part of the key anyway
+        for(int i = 1; i < record.getSectionCount(); ++i) {
+            final char label = record.getSectionLabel(i);
+            final Number value = record.getValueAsNumber(label);
+            if(null != value) {
+                data.put(String.valueOf(label), value);
+            }
+        }
+    }
+
     /**
      * Create a MQTT payload given a JSON record.
      */
-    public MqttPayload(final long constructionTime, final JSONObject record) {
+    public MqttPayload(final long constructionTime, final Map<?, ?> record) {
         this.timestamp = constructionTime;
         this.data = new JSONObject();
         final Object deviceIDObj = record.get("@");
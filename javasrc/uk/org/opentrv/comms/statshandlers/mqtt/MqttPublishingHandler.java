@@ -21,30 +21,63 @@ import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
 import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsString;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttTopic;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import org.json.simple.JSONArray;
 
 import uk.org.opentrv.comms.cfg.ConfigException;
 import uk.org.opentrv.comms.statshandlers.StatsHandler;
 import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
 import uk.org.opentrv.comms.util.CommonSensorLabels;
-import uk.org.opentrv.comms.util.ParsedRemoteBinaryStatsRecord;
+import uk.org.opentrv.comms.util.RemoteBinaryStatsView;
 
 /**
  * Stats handler that sends data over MQTT. The payload is a JSON frame with minimal
  * alteration from what is received by the handler.
+ * <p>
+ * By default a new connection is made for each message.
+ * In persistent mode a single long-lived connection is used instead,
+ * re-established automatically (no more often than the reconnect delay) if lost,
+ * and messages are published asynchronously with at most maxInFlight awaiting completion.
+ * <p>
+ * In persistent mode, payloads may also be micro-batched:
+ * all payloads for each leaf topic within each batch interval
+ * (or until maxBatchSize accumulate) are sent as one message
+ * containing a JSON array of the individual payloads.
+ * Batches that cannot be published, eg while the broker is unreachable,
+ * are kept (up to maxUnsentPayloads, oldest discarded first) and retried in order before any newer batch;
+ * if any have had to be discarded the next call to processStatsMessage() reports it
+ * with an IOException and does not accept that message,
+ * and close() reports any that it still cannot publish.
+ * Waits for the broker never hold up callers only adding to a batch.
+ * <p>
+ * In persistent mode any failure, error or timeout from the client marks the connection as lost,
+ * so that it is re-established (no more often than the reconnect delay) for the next message.
+ * <p>
+ * Thread-safe.
  */
-public final class MqttPublishingHandler implements StatsHandler {
+public final class MqttPublishingHandler implements StatsHandler, AutoCloseable {
 
     public static final String REQUEST_METHOD = "POST";
     public static final String CHARSET = "UTF-8";
@@ -52,16 +85,64 @@ public final class MqttPublishingHandler implements StatsHandler {
     public static final String CONTENT_TYPE_VALUE = "application/json";
     public static final String CONTENT_LENGTH_KEY = "Content-Length";
 
+    /** Default maximum published messages awaiting completion in persistent mode. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    /** Default minimum interval between connection attempts in persistent mode. */
+    public static final int DEFAULT_RECONNECT_DELAY_MS = 5000;
+    /** Default maximum wait for the oldest in-flight message when the window is full. */
+    public static final int DEFAULT_PUBLISH_TIMEOUT_MS = 10000;
+    /** Default maximum payloads per topic per batch. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+    /** Default maximum payloads in batches kept for retry after failing to publish. */
+    public static final int DEFAULT_MAX_UNSENT_PAYLOADS = 4096;
+
     private final String brokerUrl;
     private final String clientId;
     private final String rootTopic;
     private final int qos;
 
+    private final boolean persistent;
+    private final int maxInFlight;
+    private final int reconnectDelayMS;
+    private final int publishTimeoutMS;
+    private final int batchIntervalMS;
+    private final int maxBatchSize;
+    private final int maxUnsentPayloads;
+
     private final MqttClient client;
     private final MqttConnectOptions conOpt;
 
+    /** Reusable view for parsing binary records; lock on it while in use. */
+    private final RemoteBinaryStatsView binaryView = new RemoteBinaryStatsView();
+
+    /** Lock for the batches and counts; never held while waiting for the client or network. */
+    private final Object lock = new Object();
+    /** Lock held while connecting and publishing, so that messages and kept batches go out in order; taken before lock if both are held. */
+    private final Object sendLock = new Object();
+    /** Published messages not yet known to be complete, oldest first; guarded by sendLock. */
+    private final ArrayDeque<MqttDeliveryToken> inFlight = new ArrayDeque<MqttDeliveryToken>();
+    /** Time of last connection attempt in persistent mode, or 0 if none; guarded by sendLock. */
+    private long lastConnectAttempt;
+    /** Count of successful connections made; guarded by lock. */
+    private int connectCount;
+    /** True once the current connection is known to be unusable, even if the client still claims to be connected. */
+    private volatile boolean lost;
+    /** Pending batched payloads by full topic name, in arrival order; guarded by lock. */
+    private final Map<String, JSONArray> batches = new LinkedHashMap<String, JSONArray>();
+    /** Complete batches to publish, oldest first, including any that have failed to publish; guarded by lock. */
+    private final ArrayDeque<Map.Entry<String, JSONArray>> unsent = new ArrayDeque<Map.Entry<String, JSONArray>>();
+    /** Total payloads in unsent; guarded by lock. */
+    private int unsentPayloads;
+    /** Count of unsent payloads discarded and not yet reported to a caller; guarded by lock. */
+    private int unreportedDiscards;
+    /** Periodic batch flusher; null if not batching. */
+    private final ScheduledExecutorService flusher;
+    /** Thread that makes all client calls in persistent mode, so that a wedged call can be abandoned; null if none; guarded by sendLock. */
+    private ExecutorService sender;
+
     /**
-     * Create a new MqttPublishingHandler from a URL, a root topic and a QOS value.
+     * Create a new MqttPublishingHandler from a URL, a root topic and a QOS value,
+     * connecting afresh for each message.
      *
      * @param brokerUrl the broker URL
      * @param clientId the client ID to use to connect to the MQTT broker
@@ -72,10 +153,49 @@ public final class MqttPublishingHandler implements StatsHandler {
     public MqttPublishingHandler(final String brokerUrl, final String clientId, final String rootTopic, final int qos)
         throws MalformedURLException, MqttException
     {
+        this(brokerUrl, clientId, rootTopic, qos, false, DEFAULT_MAX_IN_FLIGHT,
+            DEFAULT_RECONNECT_DELAY_MS, DEFAULT_PUBLISH_TIMEOUT_MS, 0, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_UNSENT_PAYLOADS);
+    }
+
+    /**
+     * Create a new MqttPublishingHandler.
+     *
+     * @param brokerUrl the broker URL
+     * @param clientId the client ID to use to connect to the MQTT broker
+     * @param rootTopic the root topic to use
+     * @param the QOS value (0, 1 or 2)
+     * @param persistent if true keep one connection open, else connect for each message
+     * @param maxInFlight maximum messages awaiting completion in persistent mode; strictly positive
+     * @param reconnectDelayMS minimum interval between connection attempts in persistent mode; non-negative
+     * @param publishTimeoutMS maximum wait for room in the in-flight window, or for the client to accept a message; strictly positive
+     * @param batchIntervalMS if positive, batch payloads per topic for this long (persistent mode only)
+     * @param maxBatchSize maximum payloads per topic per batch; strictly positive
+     * @param maxUnsentPayloads maximum payloads in batches kept for retry after failing to publish; non-negative
+     * @throws MalformedURLException
+     */
+    public MqttPublishingHandler(final String brokerUrl, final String clientId, final String rootTopic, final int qos,
+            final boolean persistent, final int maxInFlight, final int reconnectDelayMS, final int publishTimeoutMS,
+            final int batchIntervalMS, final int maxBatchSize, final int maxUnsentPayloads)
+        throws MalformedURLException, MqttException
+    {
+        if (maxInFlight < 1 || reconnectDelayMS < 0 || publishTimeoutMS < 1 || batchIntervalMS < 0 || maxBatchSize < 1 ||
+                maxUnsentPayloads < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (batchIntervalMS > 0 && !persistent) {
+            throw new IllegalArgumentException("batching requires persistent mode");
+        }
         this.brokerUrl = brokerUrl;
         this.clientId = clientId;
         this.rootTopic = rootTopic;
         this.qos = qos;
+        this.persistent = persistent;
+        this.maxInFlight = maxInFlight;
+        this.reconnectDelayMS = reconnectDelayMS;
+        this.publishTimeoutMS = publishTimeoutMS;
+        this.batchIntervalMS = batchIntervalMS;
+        this.maxBatchSize = maxBatchSize;
+        this.maxUnsentPayloads = maxUnsentPayloads;
 
         // Construct the object that contains connection parameters
         // such as cleansession and LWAT
@@ -84,11 +204,40 @@ public final class MqttPublishingHandler implements StatsHandler {
 
         // Construct the MqttClient instance
         client = new MqttClient(this.brokerUrl, clientId);
+        if (persistent) {
+            client.setCallback(new MqttCallback() {
+                @Override public void connectionLost(final Throwable cause) {
+                    System.err.println("MQTT connection to "+brokerUrl+" lost: "+cause);
+                    lost = true;
+                }
+                @Override public void messageArrived(final MqttTopic topic, final MqttMessage message) { }
+                @Override public void deliveryComplete(final MqttDeliveryToken token) { }
+            });
+        }
+
+        sender = persistent ? newSender() : null;
+
+        if (batchIntervalMS > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "MQTT batch flusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override public void run() { flushBatches(); }
+            }, batchIntervalMS, batchIntervalMS, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
     }
 
     /**
      * Create a new MqttPublishingHandler from a configuration map that contains a
-     * URL, root topic and QOS.
+     * URL, root topic and QOS,
+     * and optionally persistent (boolean), maxInFlight, reconnectDelayMS,
+     * publishTimeoutMS, batchIntervalMS, maxBatchSize and maxUnsentPayloads.
      *
      * @param config the configuration map
      * @throws MalformedURLException
@@ -100,7 +249,14 @@ public final class MqttPublishingHandler implements StatsHandler {
             getAsString(config, "brokerUrl", "tcp://localhost:1883"),
             getAsString(config, "clientId", "OpenTRV"),
             getAsString(config, "rootTopic", "OpenTRV/Local"),
-            getAsNumber(config, "qos", 0).intValue()
+            getAsNumber(config, "qos", 0).intValue(),
+            Boolean.parseBoolean(getAsString(config, "persistent", "false")),
+            getAsNumber(config, "maxInFlight", DEFAULT_MAX_IN_FLIGHT).intValue(),
+            getAsNumber(config, "reconnectDelayMS", DEFAULT_RECONNECT_DELAY_MS).intValue(),
+            getAsNumber(config, "publishTimeoutMS", DEFAULT_PUBLISH_TIMEOUT_MS).intValue(),
+            getAsNumber(config, "batchIntervalMS", 0).intValue(),
+            getAsNumber(config, "maxBatchSize", DEFAULT_MAX_BATCH_SIZE).intValue(),
+            getAsNumber(config, "maxUnsentPayloads", DEFAULT_MAX_UNSENT_PAYLOADS).intValue()
         );
     }
 
@@ -120,17 +276,212 @@ public final class MqttPublishingHandler implements StatsHandler {
         return qos;
     }
     
-    private void publish(MqttPayload payload) throws MqttException {
-        final String topicName = getRootTopic() + "/" + payload.getLeafTopic();
-        client.connect();
-        System.out.println("Connected to "+brokerUrl+" with client ID "+client.getClientId());
-        MqttTopic topic = client.getTopic(topicName);
-        MqttMessage message = new MqttMessage(payload.toJSONString().getBytes());
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * Get the number of connections made to the broker so far.
+     */
+    public int getConnectCount() {
+        synchronized (lock) {
+            return connectCount;
+        }
+    }
+
+    /**
+     * Get the number of payloads in batches waiting to be published, including any kept after failing.
+     */
+    public int getUnsentCount() {
+        synchronized (lock) {
+            int n = unsentPayloads;
+            for (final JSONArray batch : batches.values()) {
+                n += batch.size();
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Create the thread on which all client calls are made in persistent mode.
+     */
+    private static ExecutorService newSender() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "MQTT sender");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Publish raw message bytes to the given full topic name.
+     */
+    private void publish(final String topicName, final byte[] body) throws MqttException, IOException {
+        final MqttMessage message = new MqttMessage(body);
         message.setQos(qos);
-        MqttDeliveryToken token = topic.publish(message);
-        token.waitForCompletion();
-        System.out.println("Message published, disconnecting");
-        client.disconnect();
+        synchronized (sendLock) {
+            if (!persistent) {
+                client.connect();
+                synchronized (lock) {
+                    ++connectCount;
+                }
+                try {
+                    client.getTopic(topicName).publish(message).waitForCompletion();
+                } finally {
+                    client.disconnect();
+                }
+                return;
+            }
+            ensureConnected();
+            // Reclaim completed deliveries, then wait for the oldest if the window is still full.
+            while (!inFlight.isEmpty() && inFlight.peekFirst().isComplete()) {
+                inFlight.removeFirst();
+            }
+            if (inFlight.size() >= maxInFlight) {
+                final MqttDeliveryToken oldest = inFlight.removeFirst();
+                try {
+                    oldest.waitForCompletion(publishTimeoutMS);
+                } catch (final MqttException e) {
+                    // Timed out or failed.
+                    lost = true;
+                    throw new IOException("Deliveries to MQTT broker "+brokerUrl+" stalled", e);
+                }
+                if (!oldest.isComplete()) {
+                    lost = true;
+                    throw new IOException("Deliveries to MQTT broker "+brokerUrl+" stalled");
+                }
+            }
+            inFlight.addLast(callClient("publish to", publishTimeoutMS, new Callable<MqttDeliveryToken>() {
+                @Override public MqttDeliveryToken call() throws MqttException {
+                    return client.getTopic(topicName).publish(message);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Make a client call on the sender thread in persistent mode, waiting no longer than the given timeout; sendLock must be held.
+     * This is the single failure path for the persistent connection:
+     * the client can block indefinitely, or fail with checked or unchecked exceptions,
+     * if the connection is lost or is still being torn down,
+     * so any failure marks the connection as lost and is reported as an IOException,
+     * and a call that takes too long is abandoned along with its (possibly wedged) thread.
+     */
+    private <T> T callClient(final String what, final long timeoutMS, final Callable<T> call) throws IOException {
+        final Future<T> f = sender.submit(call);
+        try {
+            return f.get(timeoutMS, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            f.cancel(true);
+            sender.shutdownNow();
+            sender = newSender();
+            lost = true;
+            throw new IOException("Timed out trying to "+what+" MQTT broker "+brokerUrl);
+        } catch (final InterruptedException e) {
+            f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted trying to "+what+" MQTT broker "+brokerUrl);
+        } catch (final ExecutionException e) {
+            lost = true;
+            throw new IOException("Could not "+what+" MQTT broker "+brokerUrl, e.getCause());
+        }
+    }
+
+    /**
+     * Connect if not already connected, rate-limiting attempts; sendLock must be held.
+     */
+    private void ensureConnected() throws IOException {
+        if (!lost && client.isConnected()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (0 != lastConnectAttempt && now - lastConnectAttempt < reconnectDelayMS) {
+            throw new IOException("Not connected to MQTT broker "+brokerUrl+", waiting to reconnect");
+        }
+        lastConnectAttempt = now;
+        // Deliveries pending on the old connection are the client's to retry, if any.
+        inFlight.clear();
+        // Allow the client its own connection timeout before abandoning the attempt.
+        callClient("connect to", publishTimeoutMS + 1000L * conOpt.getConnectionTimeout(), new Callable<Void>() {
+            @Override public Void call() throws MqttException {
+                if (client.isConnected()) {
+                    try {
+                        client.disconnect(0);
+                    } catch (final MqttException e) {
+                        // Already disconnected.
+                    }
+                }
+                client.connect(conOpt);
+                return null;
+            }
+        });
+        lost = false;
+        synchronized (lock) {
+            ++connectCount;
+        }
+        System.err.println("Connected to "+brokerUrl+" with client ID "+client.getClientId());
+    }
+
+    /**
+     * Queue all pending batches for publishing, one message per topic, then publish all that can be; never throws.
+     */
+    private void flushBatches() {
+        synchronized (lock) {
+            for (final Map.Entry<String, JSONArray> e : batches.entrySet()) {
+                queueBatch(e.getKey(), e.getValue());
+            }
+            batches.clear();
+        }
+        publishUnsent();
+    }
+
+    /**
+     * Queue one complete batch for publishing after any earlier ones; lock must be held.
+     */
+    private void queueBatch(final String topicName, final JSONArray batch) {
+        unsent.addLast(new AbstractMap.SimpleImmutableEntry<String, JSONArray>(topicName, batch));
+        unsentPayloads += batch.size();
+    }
+
+    /**
+     * Publish queued batches in order, stopping at the first failure,
+     * then discard the oldest kept payloads beyond maxUnsentPayloads; lock must not be held.
+     */
+    private void publishUnsent() {
+        synchronized (sendLock) {
+            for ( ; ; ) {
+                final Map.Entry<String, JSONArray> e;
+                synchronized (lock) {
+                    e = unsent.peekFirst();
+                }
+                if (null == e) {
+                    break;
+                }
+                try {
+                    publish(e.getKey(), e.getValue().toJSONString().getBytes(CHARSET));
+                } catch (final Exception ex) {
+                    System.err.println("Could not publish batch of "+e.getValue().size()+" to MQTT topic "+e.getKey()+
+                        ", "+getUnsentCount()+" payloads kept for retry: "+ex);
+                    break;
+                }
+                synchronized (lock) {
+                    // Unless discarded meanwhile to make room.
+                    if (e == unsent.peekFirst()) {
+                        unsent.removeFirst();
+                        unsentPayloads -= e.getValue().size();
+                    }
+                }
+            }
+        }
+        synchronized (lock) {
+            while (unsentPayloads > maxUnsentPayloads) {
+                final int n = unsent.removeFirst().getValue().size();
+                unsentPayloads -= n;
+                unreportedDiscards += n;
+            }
+        }
     }
 
     /**
@@ -173,30 +524,114 @@ public final class MqttPublishingHandler implements StatsHandler {
         final char firstChar = swmd.message.charAt(0);
         final MqttPayload payloadObj;
         if('{' == firstChar) {
-            // Process potential JSON; reject if bad.
+            // Process potential JSON (parsed at most once per message); reject if bad.
             final long nowms = System.currentTimeMillis();
-            final JSONParser parser = new JSONParser();
-            try {
-                final Object obj = parser.parse(swmd.message);
-                final JSONObject jsonObj = (JSONObject)obj;
-                payloadObj = new MqttPayload(nowms, jsonObj);
-            } catch(final ParseException pe) {
+            final Map<String, Object> jsonObj = swmd.parseStatsAsMap();
+            if(null == jsonObj) {
                 return;
             }
+            payloadObj = new MqttPayload(nowms, jsonObj);
         } else if(CommonSensorLabels.ID.getLabel() == firstChar) {
-            // Process potential binary record.
-            final ParsedRemoteBinaryStatsRecord parsed = new ParsedRemoteBinaryStatsRecord(swmd.message);
-            payloadObj = new MqttPayload(parsed);
+            // Process potential binary record in place, without intermediate Strings.
+            synchronized(binaryView) {
+                if(!binaryView.wrap(swmd.message)) {
+                    return;
+                }
+                payloadObj = new MqttPayload(swmd.timestamp, binaryView);
+            }
         } else {
             // Ignore all other lines.
             return;
         }
-        System.out.println("Sending: "+payloadObj.toJSONString());
+        final String topicName = getRootTopic() + "/" + payloadObj.getLeafTopic();
+        if (null != flusher) {
+            synchronized (lock) {
+                if (0 != unreportedDiscards) {
+                    final int n = unreportedDiscards;
+                    unreportedDiscards = 0;
+                    throw new IOException("Discarded "+n+" unsent payloads for MQTT broker "+brokerUrl);
+                }
+                JSONArray batch = batches.get(topicName);
+                if (null == batch) {
+                    batch = new JSONArray();
+                    batches.put(topicName, batch);
+                }
+                batch.add(payloadObj.toJSONObject());
+                if (batch.size() < maxBatchSize) {
+                    return;
+                }
+                batches.remove(topicName);
+                queueBatch(topicName, batch);
+            }
+            publishUnsent();
+            return;
+        }
         try {
-            publish(payloadObj);
+            publish(topicName, payloadObj.toJSONString().getBytes(CHARSET));
         } catch(MqttException mqe) {
             throw new IOException("Could not publish to MQTT topic", mqe);
         }
     }
 
+    /**
+     * Flush any batches, wait briefly for in-flight messages and disconnect.
+     * Any batches that still cannot be published are discarded,
+     * and reported with an IOException along with any earlier discards not yet reported,
+     * after disconnecting.
+     */
+    @Override
+    public void close() throws Exception {
+        final int discarded;
+        MqttException failure = null;
+        try {
+            if (null != flusher) {
+                flusher.shutdown();
+                flushBatches();
+            }
+            synchronized (lock) {
+                discarded = unsentPayloads + unreportedDiscards;
+                unsent.clear();
+                unsentPayloads = 0;
+                unreportedDiscards = 0;
+            }
+            synchronized (sendLock) {
+                for (final MqttDeliveryToken token : inFlight) {
+                    try {
+                        token.waitForCompletion(publishTimeoutMS);
+                    } catch (final MqttException e) {
+                        failure = e;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            synchronized (sendLock) {
+                inFlight.clear();
+                try {
+                    if (client.isConnected()) {
+                        try {
+                            client.disconnect();
+                        } catch (final MqttException e) {
+                            // Connection lost meanwhile.
+                        }
+                    }
+                } finally {
+                    if (null != sender) {
+                        sender.shutdown();
+                    }
+                }
+            }
+        }
+        if (0 != discarded) {
+            final IOException e = new IOException("Discarded "+discarded+" unsent payloads for MQTT broker "+brokerUrl);
+            if (null != failure) {
+                e.addSuppressed(failure);
+            }
+            throw e;
+        }
+        if (null != failure) {
+            throw new IOException("Deliveries to MQTT broker "+brokerUrl+" not confirmed", failure);
+        }
+    }
+
 }
@@ -0,0 +1,352 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.comms.statshandlers.support;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**Immutable file of integer stats readings stored as per-leaf, per-field columns.
+ * Written in one go by write(), and read back via open() by column, reading only the columns needed.
+ * <p>
+ * Each column holds the readings of one field from one leaf as two blocks:
+ * timestamps (ms) encoded as delta-of-delta, and values encoded as deltas,
+ * both as zig-zag varints,
+ * so that regular readings of slowly-changing values such as T|C16 or B|cV
+ * take one or two bytes per timestamp and about a byte per value.
+ * <p>
+ * The file layout is:
+<pre>
+"OTCS" version
+column blocks...
+footer: leafCount { leafID fieldCount { field count minTime maxTime offset timeBytes valueBytes }* }*
+footerBytes(int) "OTCF"
+</pre>
+ * with strings in modified UTF-8 as for DataOutput, counts, offsets and lengths as unsigned varints,
+ * and min and max times as zig-zag varints.
+ * The footer is an index of all columns,
+ * so a reader need only read the footer then the blocks of interest.
+ */
+public final class ColumnarSegment
+    {
+    /**Header magic. */
+    private static final byte[] MAGIC = { 'O', 'T', 'C', 'S' };
+    /**Footer magic. */
+    private static final byte[] FOOTER_MAGIC = { 'O', 'T', 'C', 'F' };
+    /**Format version. */
+    private static final int VERSION = 1;
+    /**Bytes after the footer: footer length and magic. */
+    private static final int TRAILER_BYTES = 8;
+
+    /**Append-only column of readings being built in memory.
+     * Not thread-safe.
+     */
+    public static final class Column
+        {
+        /**Encoded timestamps and values. */
+        private byte[] times = new byte[16], values = new byte[16];
+        private int timeBytes, valueBytes;
+        /**Count of readings. */
+        private int count;
+        /**Previous timestamp, timestamp delta, and value. */
+        private long prevTime, prevDelta, prevValue;
+        /**Minimum and maximum timestamps. */
+        private long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+
+        /**Append a reading; timestamps should usually be ascending but need not be. */
+        public void append(final long time, final long value)
+            {
+            times = ensureSpace(times, timeBytes);
+            values = ensureSpace(values, valueBytes);
+            if(0 == count) { timeBytes = putVarLong(zigZag(time), times, timeBytes); }
+            else
+                {
+                final long delta = time - prevTime;
+                timeBytes = putVarLong(zigZag(delta - prevDelta), times, timeBytes);
+                prevDelta = delta;
+                }
+            valueBytes = putVarLong(zigZag(value - prevValue), values, valueBytes);
+            prevTime = time;
+            prevValue = value;
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            ++count;
+            }
+
+        /**Get the count of readings. */
+        public int size() { return(count); }
+
+        /**Get the approximate encoded size in bytes. */
+        public int getEncodedBytes() { return(timeBytes + valueBytes); }
+
+        /**Return buf, or a larger copy, with room for a varint at pos. */
+        private static byte[] ensureSpace(final byte[] buf, final int pos)
+            { return((pos + 10 <= buf.length) ? buf : Arrays.copyOf(buf, 2 * buf.length + 10)); }
+
+        /**Append v as an unsigned varint to buf at pos, which must have room; returns the new pos. */
+        private static int putVarLong(long v, final byte[] buf, int pos)
+            {
+            while(0 != (v & ~0x7fL)) { buf[pos++] = (byte)((v & 0x7f) | 0x80); v >>>= 7; }
+            buf[pos++] = (byte)v;
+            return(pos);
+            }
+        }
+
+    /**Readings of one column as parallel arrays in stored order. */
+    public static final class Series
+        {
+        /**Timestamps (ms); never null. */
+        public final long[] times;
+        /**Values; never null, same length as times. */
+        public final long[] values;
+        public Series(final long[] times, final long[] values)
+            {
+            if((null == times) || (null == values) || (times.length != values.length)) { throw new IllegalArgumentException(); }
+            this.times = times;
+            this.values = values;
+            }
+        /**Get the count of readings. */
+        public int size() { return(times.length); }
+        }
+
+    /**Index entry for one column in a segment file. */
+    public static final class ColumnInfo
+        {
+        /**Count of readings. */
+        public final int count;
+        /**Minimum and maximum timestamps. */
+        public final long minTime, maxTime;
+        /**Offset of the block of timestamps, followed by the block of values. */
+        final long offset;
+        final int timeBytes, valueBytes;
+        ColumnInfo(final int count, final long minTime, final long maxTime, final long offset, final int timeBytes, final int valueBytes)
+            {
+            this.count = count; this.minTime = minTime; this.maxTime = maxTime;
+            this.offset = offset; this.timeBytes = timeBytes; this.valueBytes = valueBytes;
+            }
+        }
+
+    /**Source file; never null. */
+    private final File file;
+    /**Immutable index by leaf ID then field. */
+    private final Map<String, Map<String, ColumnInfo>> index;
+
+    private ColumnarSegment(final File file, final Map<String, Map<String, ColumnInfo>> index)
+        { this.file = file; this.index = index; }
+
+    /**Get the file; never null. */
+    public File getFile() { return(file); }
+
+    /**Get the leaf IDs with columns in this segment; immutable and never null. */
+    public Set<String> getLeafIDs() { return(index.keySet()); }
+
+    /**Get the fields stored for the given leaf; immutable, empty if none. */
+    public Set<String> getFields(final String leafID)
+        {
+        final Map<String, ColumnInfo> m = index.get(leafID);
+        return((null == m) ? Collections.<String>emptySet() : m.keySet());
+        }
+
+    /**Get the index entry for a column; null if none. */
+    public ColumnInfo getColumnInfo(final String leafID, final String field)
+        {
+        final Map<String, ColumnInfo> m = index.get(leafID);
+        return((null == m) ? null : m.get(field));
+        }
+
+    /**Open a segment file, reading only its index. */
+    public static ColumnarSegment open(final File file) throws IOException
+        {
+        try(final FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+            {
+            final long size = fc.size();
+            if(size < MAGIC.length + 1 + TRAILER_BYTES) { throw new IOException("segment too short: " + file); }
+            final ByteBuffer header = readFully(fc, 0, MAGIC.length + 1);
+            for(int i = 0; i < MAGIC.length; ++i) { if(MAGIC[i] != header.get(i)) { throw new IOException("not a segment: " + file); } }
+            if(VERSION != header.get(MAGIC.length)) { throw new IOException("unsupported segment version: " + file); }
+            final ByteBuffer trailer = readFully(fc, size - TRAILER_BYTES, TRAILER_BYTES);
+            for(int i = 0; i < FOOTER_MAGIC.length; ++i) { if(FOOTER_MAGIC[i] != trailer.get(4 + i)) { throw new IOException("segment incomplete: " + file); } }
+            final int footerBytes = trailer.getInt(0);
+            if((footerBytes < 0) || (footerBytes > size - TRAILER_BYTES - MAGIC.length - 1)) { throw new IOException("bad segment footer: " + file); }
+            final ByteBuffer footer = readFully(fc, size - TRAILER_BYTES - footerBytes, footerBytes);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer.array()));
+            final Map<String, Map<String, ColumnInfo>> index = new HashMap<>();
+            for(int leaves = (int)getVarLong(in); --leaves >= 0; )
+                {
+                final String id = in.readUTF();
+                final Map<String, ColumnInfo> fields = new HashMap<>();
+                for(int n = (int)getVarLong(in); --n >= 0; )
+                    {
+                    final String field = in.readUTF();
+                    final int count = (int)getVarLong(in);
+                    final long minTime = unZigZag(getVarLong(in));
+                    final long maxTime = unZigZag(getVarLong(in));
+                    final long offset = getVarLong(in);
+                    final int timeBytes = (int)getVarLong(in);
+                    final int valueBytes = (int)getVarLong(in);
+                    if(offset + timeBytes + valueBytes > size) { throw new IOException("bad segment index: " + file); }
+                    fields.put(field, new ColumnInfo(count, minTime, maxTime, offset, timeBytes, valueBytes));
+                    }
+                index.put(id, Collections.unmodifiableMap(fields));
+                }
+            return(new ColumnarSegment(file, Collections.unmodifiableMap(index)));
+            }
+        }
+
+    /**Read one column in full; null if not present in this segment. */
+    public Series read(final String leafID, final String field) throws IOException
+        {
+        final ColumnInfo ci = getColumnInfo(leafID, field);
+        if(null == ci) { return(null); }
+        final ByteBuffer bb;
+        try(final FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+            { bb = readFully(fc, ci.offset, ci.timeBytes + ci.valueBytes); }
+        final long[] times = new long[ci.count], values = new long[ci.count];
+        final byte[] b = bb.array();
+        final int[] pos = { 0 };
+        long t = 0, delta = 0;
+        for(int i = 0; i < ci.count; ++i)
+            {
+            final long z = unZigZag(getVarLong(b, pos));
+            if(0 == i) { t = z; } else { delta += z; t += delta; }
+            times[i] = t;
+            }
+        if(pos[0] != ci.timeBytes) { throw new IOException("corrupt column " + leafID + '/' + field + " in " + file); }
+        long v = 0;
+        for(int i = 0; i < ci.count; ++i) { v += unZigZag(getVarLong(b, pos)); values[i] = v; }
+        if(pos[0] != ci.timeBytes + ci.valueBytes) { throw new IOException("corrupt column " + leafID + '/' + field + " in " + file); }
+        return(new Series(times, values));
+        }
+
+    /**Write a segment file atomically from columns by leaf ID then field.
+     * The file is written under a temporary name and forced to disc, then renamed into place,
+     * so readers never see a partial segment, even after a crash.
+     */
+    public static void write(final File file, final SortedMap<String, SortedMap<String, Column>> columns) throws IOException
+        {
+        final File tmp = new File(file.getParentFile(), Util.F_tmpPrefix + file.getName());
+        try(final FileOutputStream fos = new FileOutputStream(tmp);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos)))
+            {
+            out.write(MAGIC);
+            out.write(VERSION);
+            for(final SortedMap<String, Column> fields : columns.values())
+                {
+                for(final Column c : fields.values())
+                    {
+                    out.write(c.times, 0, c.timeBytes);
+                    out.write(c.values, 0, c.valueBytes);
+                    }
+                }
+            final int footerStart = out.size();
+            long offset = MAGIC.length + 1;
+            putVarLong(out, columns.size());
+            for(final Map.Entry<String, SortedMap<String, Column>> e : columns.entrySet())
+                {
+                out.writeUTF(e.getKey());
+                putVarLong(out, e.getValue().size());
+                for(final Map.Entry<String, Column> f : e.getValue().entrySet())
+                    {
+                    final Column c = f.getValue();
+                    out.writeUTF(f.getKey());
+                    putVarLong(out, c.count);
+                    putVarLong(out, zigZag(c.minTime));
+                    putVarLong(out, zigZag(c.maxTime));
+                    putVarLong(out, offset);
+                    putVarLong(out, c.timeBytes);
+                    putVarLong(out, c.valueBytes);
+                    offset += c.timeBytes + c.valueBytes;
+                    }
+                }
+            out.writeInt(out.size() - footerStart);
+            out.write(FOOTER_MAGIC);
+            out.flush();
+            fos.getFD().sync();
+            }
+        catch(final IOException e) { tmp.delete(); throw e; }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+    /**Read exactly len bytes at pos. */
+    private static ByteBuffer readFully(final FileChannel fc, long pos, final int len) throws IOException
+        {
+        final ByteBuffer bb = ByteBuffer.allocate(len);
+        while(bb.hasRemaining())
+            {
+            final int n = fc.read(bb, pos);
+            if(n < 0) { throw new IOException("unexpected end of segment"); }
+            pos += n;
+            }
+        return(bb);
+        }
+
+    /**Map signed to unsigned so that small magnitudes are small. */
+    static long zigZag(final long v) { return((v << 1) ^ (v >> 63)); }
+    /**Inverse of zigZag(). */
+    static long unZigZag(final long v) { return((v >>> 1) ^ -(v & 1)); }
+
+    /**Write v as an unsigned varint. */
+    private static void putVarLong(final DataOutputStream out, long v) throws IOException
+        {
+        while(0 != (v & ~0x7fL)) { out.write((int)((v & 0x7f) | 0x80)); v >>>= 7; }
+        out.write((int)v);
+        }
+
+    /**Read an unsigned varint. */
+    private static long getVarLong(final DataInputStream in) throws IOException
+        {
+        long v = 0;
+        for(int shift = 0; shift < 64; shift += 7)
+            {
+            final int b = in.readUnsignedByte();
+            v |= (long)(b & 0x7f) << shift;
+            if(0 == (b & 0x80)) { return(v); }
+            }
+        throw new IOException("bad varint");
+        }
+
+    /**Read an unsigned varint from b at pos[0], advancing it. */
+    private static long getVarLong(final byte[] b, final int[] pos) throws IOException
+        {
+        long v = 0;
+        for(int shift = 0; shift < 64; shift += 7)
+            {
+            if(pos[0] >= b.length) { throw new IOException("truncated varint"); }
+            final int x = b[pos[0]++];
+            v |= (long)(x & 0x7f) << shift;
+            if(0 == (x & 0x80)) { return(v); }
+            }
+        throw new IOException("bad varint");
+        }
+    }
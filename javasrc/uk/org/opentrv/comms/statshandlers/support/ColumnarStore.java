@@ -0,0 +1,314 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.comms.statshandlers.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import uk.org.opentrv.comms.statshandlers.support.ColumnarSegment.Column;
+import uk.org.opentrv.comms.statshandlers.support.ColumnarSegment.ColumnInfo;
+import uk.org.opentrv.comms.statshandlers.support.ColumnarSegment.Series;
+
+/**Reader for the columnar stats store written by ColumnarStatsHandler.
+ * The store is a directory (statsDir/columnar) of ColumnarSegment files named YYYYMMDD-NNNN.col,
+ * where the date is the UTC day of all the readings in the file
+ * and NNNN is a sequence number as several segments may be written for one day.
+ * Once a day is complete its segments are merged by compactDay() into one named YYYYMMDD-NNNNc.col,
+ * which supersedes all segments of the day with sequence numbers up to NNNN;
+ * superseded segments are ignored, and deleted after compaction.
+ * <p>
+ * A range query reads only the footer index of each segment for the days in range
+ * and the columns for the requested leaf and field,
+ * skipping columns whose time range does not overlap the query;
+ * the most recently used segment indexes are cached.
+ * A query that overlaps a compaction may fail as superseded segments are deleted, and can be retried.
+ * <p>
+ * Thread-safe.
+ */
+public final class ColumnarStore
+    {
+    /**Sub-directory of the stats directory for the columnar store. */
+    public static final String COLUMNAR_SUBDIR = "columnar";
+
+    /**Segment file extension. */
+    public static final String SEGMENT_SUFFIX = ".col";
+
+    /**Marker after the sequence number of a compacted segment. */
+    public static final char COMPACTED_MARK = 'c';
+
+    /**Maximum segment indexes cached, eg to cover a year of compacted days; strictly positive. */
+    public static final int MAX_CACHED_SEGMENTS = 1024;
+
+    /**Milliseconds per UTC day. */
+    private static final long DAY_MS = 24 * 3600_000L;
+
+    /**UTC date-only format for filenames. */
+    private static final DateTimeFormatter dateForFilename =
+        DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    /**Store directory; never null. */
+    private final File dir;
+
+    /**Cached segment indexes by file, least recently used first; guarded by itself. */
+    private final Map<File, ColumnarSegment> cache = new LinkedHashMap<File, ColumnarSegment>(16, 0.75f, true)
+        {
+        private static final long serialVersionUID = 1L;
+        @Override protected boolean removeEldestEntry(final Map.Entry<File, ColumnarSegment> eldest)
+            { return(size() > MAX_CACHED_SEGMENTS); }
+        };
+
+    /**Create a reader for the store under the given stats directory. */
+    public ColumnarStore(final File statsDir)
+        {
+        if(null == statsDir) { throw new IllegalArgumentException(); }
+        this.dir = new File(statsDir, COLUMNAR_SUBDIR);
+        }
+
+    /**Get the store directory; never null. */
+    public File getDir() { return(dir); }
+
+    /**Get the UTC day number for a timestamp. */
+    public static long dayOf(final long timestamp) { return(Math.floorDiv(timestamp, DAY_MS)); }
+
+    /**Get the name prefix of segment files for the given UTC day number, eg "20170101-". */
+    public static String dayPrefix(final long day)
+        { return(dateForFilename.format(Instant.ofEpochMilli(day * DAY_MS)) + '-'); }
+
+    /**Get the name of a segment file for the given UTC day number and sequence number. */
+    public static String segmentName(final long day, final int seq)
+        { return(dayPrefix(day) + String.format("%04d", seq) + SEGMENT_SUFFIX); }
+
+    /**Get the name of a compacted segment file for the given UTC day number and highest sequence number superseded. */
+    public static String compactedSegmentName(final long day, final int seq)
+        { return(dayPrefix(day) + String.format("%04d", seq) + COMPACTED_MARK + SEGMENT_SUFFIX); }
+
+    /**True if the named segment file is a compacted segment. */
+    public static boolean isCompacted(final String name)
+        { return(name.endsWith(COMPACTED_MARK + SEGMENT_SUFFIX)); }
+
+    /**Get the sequence number of a segment file name with the given day prefix, or -1 if not such a segment. */
+    public static int segmentSeq(final String name, final String prefix)
+        {
+        if(!name.startsWith(prefix) || !name.endsWith(SEGMENT_SUFFIX)) { return(-1); }
+        final int end = name.length() - SEGMENT_SUFFIX.length() - (isCompacted(name) ? 1 : 0);
+        if(end <= prefix.length()) { return(-1); }
+        try { return(Integer.parseInt(name.substring(prefix.length(), end))); }
+        catch(final NumberFormatException e) { return(-1); }
+        }
+
+    /**Get the segment files with readings that may be in [fromMS, toMS), in name (and so day) order; never null.
+     * Superseded segments are omitted.
+     */
+    public List<File> getSegmentFiles(final long fromMS, final long toMS)
+        {
+        final List<File> result = new ArrayList<>();
+        if(fromMS >= toMS) { return(result); }
+        final String[] names = dir.list();
+        if(null == names) { return(result); }
+        Arrays.sort(names);
+        final String first = dayPrefix(dayOf(fromMS)), last = dayPrefix(dayOf(toMS - 1));
+        final List<String> inRange = new ArrayList<>();
+        final Map<String, Integer> compactedTo = new HashMap<>();
+        for(final String n : names)
+            {
+            if(!n.endsWith(SEGMENT_SUFFIX) || n.startsWith(Util.F_tmpPrefix) || (n.length() < first.length())) { continue; }
+            final String prefix = n.substring(0, first.length());
+            if((prefix.compareTo(first) < 0) || (prefix.compareTo(last) > 0)) { continue; }
+            inRange.add(n);
+            if(!isCompacted(n)) { continue; }
+            final Integer c = compactedTo.get(prefix);
+            final int seq = segmentSeq(n, prefix);
+            if((null == c) || (c < seq)) { compactedTo.put(prefix, seq); }
+            }
+        for(final String n : inRange)
+            {
+            final Integer c = compactedTo.get(n.substring(0, first.length()));
+            if(null != c)
+                {
+                final int seq = segmentSeq(n, n.substring(0, first.length()));
+                if((seq < c) || ((seq == c) && !isCompacted(n))) { continue; }
+                }
+            result.add(new File(dir, n));
+            }
+        return(result);
+        }
+
+    /**Get the index of a segment, from the cache if possible. */
+    public ColumnarSegment getSegment(final File f) throws IOException
+        {
+        synchronized(cache)
+            {
+            final ColumnarSegment s = cache.get(f);
+            if(null != s) { return(s); }
+            }
+        final ColumnarSegment s = ColumnarSegment.open(f);
+        synchronized(cache) { cache.put(f, s); }
+        return(s);
+        }
+
+    /**Get the leaf IDs with any readings stored in segments for days overlapping [fromMS, toMS); never null. */
+    public SortedSet<String> getLeafIDs(final long fromMS, final long toMS) throws IOException
+        {
+        final SortedSet<String> result = new TreeSet<>();
+        for(final File f : getSegmentFiles(fromMS, toMS)) { result.addAll(getSegment(f).getLeafIDs()); }
+        return(result);
+        }
+
+    /**Read the readings of one field of one leaf with timestamps in [fromMS, toMS), in timestamp order.
+     * @param leafID  leaf ID as from StatsMessageWithMetadata.getLeafIDAsString(); never null
+     * @param field  field name, eg "T|C16"; never null
+     * @return readings, empty if none; never null
+     */
+    public Series read(final String leafID, final String field, final long fromMS, final long toMS) throws IOException
+        { return(read(getSegmentFiles(fromMS, toMS), leafID, field, fromMS, toMS)); }
+
+    /**Read the readings of one field of one leaf in [fromMS, toMS) from the given segments, in timestamp order. */
+    private Series read(final List<File> files, final String leafID, final String field, final long fromMS, final long toMS)
+        throws IOException
+        {
+        long[] times = new long[64], values = new long[64];
+        int n = 0;
+        boolean sorted = true;
+        for(final File f : files)
+            {
+            final ColumnarSegment seg = getSegment(f);
+            final ColumnInfo ci = seg.getColumnInfo(leafID, field);
+            if((null == ci) || (ci.maxTime < fromMS) || (ci.minTime >= toMS)) { continue; }
+            final Series s = seg.read(leafID, field);
+            for(int i = 0; i < s.size(); ++i)
+                {
+                final long t = s.times[i];
+                if((t < fromMS) || (t >= toMS)) { continue; }
+                if(n == times.length) { times = Arrays.copyOf(times, 2 * n); values = Arrays.copyOf(values, 2 * n); }
+                if((n > 0) && (t < times[n - 1])) { sorted = false; }
+                times[n] = t;
+                values[n++] = s.values[i];
+                }
+            }
+        if(!sorted)
+            {
+            // Rare: late readings written in a later segment; stable sort by time.
+            final Integer[] order = new Integer[n];
+            for(int i = 0; i < n; ++i) { order[i] = i; }
+            final long[] t = times;
+            Arrays.sort(order, new Comparator<Integer>()
+                { @Override public int compare(final Integer a, final Integer b) { return(Long.compare(t[a], t[b])); } });
+            final long[] st = new long[n], sv = new long[n];
+            for(int i = 0; i < n; ++i) { st[i] = times[order[i]]; sv[i] = values[order[i]]; }
+            return(new Series(st, sv));
+            }
+        return(new Series(Arrays.copyOf(times, n), Arrays.copyOf(values, n)));
+        }
+    
+    /**Merge the segments of one complete UTC day into a single compacted segment, if it has several.
+     * The compacted segment supersedes the others once renamed into place, and they are then deleted.
+     * For the single writer of the store only, and not while it may write segments for the day.
+     * @return true if segments were compacted
+     */
+    public boolean compactDay(final long day) throws IOException
+        {
+        final long start = day * DAY_MS, end = start + DAY_MS;
+        final List<File> files = getSegmentFiles(start, end);
+        if(files.size() < 2) { return(false); }
+        final String prefix = dayPrefix(day);
+        int maxSeq = -1;
+        final SortedMap<String, SortedSet<String>> fieldsByLeaf = new TreeMap<>();
+        for(final File f : files)
+            {
+            maxSeq = Math.max(maxSeq, segmentSeq(f.getName(), prefix));
+            final ColumnarSegment seg = getSegment(f);
+            for(final String id : seg.getLeafIDs())
+                {
+                SortedSet<String> fields = fieldsByLeaf.get(id);
+                if(null == fields) { fields = new TreeSet<>(); fieldsByLeaf.put(id, fields); }
+                fields.addAll(seg.getFields(id));
+                }
+            }
+        final SortedMap<String, SortedMap<String, Column>> merged = new TreeMap<>();
+        for(final Map.Entry<String, SortedSet<String>> e : fieldsByLeaf.entrySet())
+            {
+            final SortedMap<String, Column> columns = new TreeMap<>();
+            for(final String field : e.getValue())
+                {
+                final Series s = read(files, e.getKey(), field, start, end);
+                final Column c = new Column();
+                for(int i = 0; i < s.size(); ++i) { c.append(s.times[i], s.values[i]); }
+                columns.put(field, c);
+                }
+            merged.put(e.getKey(), columns);
+            }
+        final String compactedName = compactedSegmentName(day, maxSeq);
+        ColumnarSegment.write(new File(dir, compactedName), merged);
+
+        // Delete all superseded segments, including any left by an interrupted compaction.
+        final String[] names = dir.list();
+        if(null == names) { throw new IOException("cannot list " + dir); }
+        for(final String n : names)
+            {
+            final int seq = segmentSeq(n, prefix);
+            if((seq < 0) || (seq > maxSeq) || n.equals(compactedName)) { continue; }
+            final File f = new File(dir, n);
+            synchronized(cache) { cache.remove(f); }
+            if(!f.delete() && f.exists()) { throw new IOException("cannot delete superseded segment " + f); }
+            }
+        return(true);
+        }
+
+    /**Compact each day before the given UTC day that has several segments; see compactDay().
+     * @return count of days compacted
+     */
+    public int compactDaysBefore(final long day) throws IOException
+        {
+        final String[] names = dir.list();
+        if(null == names) { return(0); }
+        final String before = dayPrefix(day);
+        final SortedSet<String> prefixes = new TreeSet<>();
+        for(final String n : names)
+            {
+            if(!n.endsWith(SEGMENT_SUFFIX) || n.startsWith(Util.F_tmpPrefix) || (n.length() < before.length())) { continue; }
+            final String prefix = n.substring(0, before.length());
+            if(prefix.compareTo(before) < 0) { prefixes.add(prefix); }
+            }
+        int compacted = 0;
+        for(final String prefix : prefixes)
+            {
+            final long d;
+            try { d = LocalDate.parse(prefix.substring(0, prefix.length() - 1), DateTimeFormatter.BASIC_ISO_DATE).toEpochDay(); }
+            catch(final DateTimeParseException e) { continue; } // Not ours.
+            if(compactDay(d)) { ++compacted; }
+            }
+        return(compacted);
+        }
+    }
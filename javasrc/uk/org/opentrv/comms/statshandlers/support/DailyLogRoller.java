@@ -0,0 +1,247 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.comms.statshandlers.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import uk.org.opentrv.comms.util.BlockGZIP;
+
+/**Compresses completed daily log files, as written via DailyLogWriterCache.
+ * Each statsDir/subdir/YYYYMMDD.log or .json file whose UTC day ended at least compressAfterMS ago
+ * is compressed to YYYYMMDD.log.gz or .json.gz in BlockGZIP format,
+ * ie in independent blocks so that it remains seekable and can be decompressed in parallel,
+ * and the original and any index of it are removed.
+ * Any index of the log is kept as YYYYMMDD.extension.gz.idx,
+ * with the same entries but offsets in the uncompressed content of the compressed file,
+ * so that IndexedDailyLogReader need only decompress the blocks in range.
+ * <p>
+ * A log and its index are first renamed (to YYYYMMDD.extension.rolling and .rolling.idx) while not open for writing,
+ * so that any late line for that day starts a new file and index rather than being lost;
+ * such a file is compressed later in its turn and appended to the existing compressed file.
+ * A .rolling file left by an interrupted run is completed by the next one;
+ * if interrupted just after the compressed file was replaced some lines may then be duplicated.
+ * <p>
+ * Files are checked every checkIntervalMS if that is positive, and on roll().
+ * <p>
+ * Thread-safe.
+ */
+public final class DailyLogRoller implements AutoCloseable
+    {
+    /**Suffix appended to a compressed log file name. */
+    public static final String COMPRESSED_SUFFIX = ".gz";
+
+    /**Suffix appended to the name of a log file taken for compression. */
+    public static final String ROLLING_SUFFIX = ".rolling";
+
+    /**Milliseconds per UTC day. */
+    private static final long DAY_MS = 24 * 3600_000L;
+
+    /**Daily log file names, possibly already taken for compression. */
+    private static final Pattern DAY_LOG = Pattern.compile("([0-9]{8})(\\.log|\\.json)(" + Pattern.quote(ROLLING_SUFFIX) + ")?");
+
+    /**Top directory for all logs; never null. */
+    private final File statsDir;
+    /**Sub-directories of statsDir to check; never null. */
+    private final List<String> subdirs;
+    /**Delay after the end of a log's UTC day before compressing it; non-negative. */
+    private final long compressAfterMS;
+    /**Maximum uncompressed bytes per compressed block; strictly positive. */
+    private final int blockBytes;
+    /**Writer of the logs, to avoid compressing any still open, or null if none. */
+    private final DailyLogWriterCache logs;
+    /**Periodic background roller; null if none. */
+    private final ScheduledExecutorService roller;
+
+    /**Create an instance.
+     * @param statsDir  top directory for logs; never null
+     * @param subdirs  sub-directories of statsDir to check; never null
+     * @param compressAfterMS  delay after the end of a log's UTC day before compressing it; non-negative
+     * @param logs  writer of the logs, or null if none in this process
+     * @param checkIntervalMS  if positive, interval between background checks; non-negative
+     */
+    public DailyLogRoller(final File statsDir, final List<String> subdirs, final long compressAfterMS,
+                          final DailyLogWriterCache logs, final long checkIntervalMS)
+        { this(statsDir, subdirs, compressAfterMS, BlockGZIP.DEFAULT_BLOCK_BYTES, logs, checkIntervalMS); }
+
+    /**Create an instance.
+     * @param statsDir  top directory for logs; never null
+     * @param subdirs  sub-directories of statsDir to check; never null
+     * @param compressAfterMS  delay after the end of a log's UTC day before compressing it; non-negative
+     * @param blockBytes  maximum uncompressed bytes per compressed block; in range [1, BlockGZIP.MAX_BLOCK_BYTES]
+     * @param logs  writer of the logs, or null if none in this process
+     * @param checkIntervalMS  if positive, interval between background checks; non-negative
+     */
+    public DailyLogRoller(final File statsDir, final List<String> subdirs, final long compressAfterMS, final int blockBytes,
+                          final DailyLogWriterCache logs, final long checkIntervalMS)
+        {
+        if((null == statsDir) || (null == subdirs)) { throw new IllegalArgumentException(); }
+        if(compressAfterMS < 0) { throw new IllegalArgumentException(); }
+        if((blockBytes < 1) || (blockBytes > BlockGZIP.MAX_BLOCK_BYTES)) { throw new IllegalArgumentException(); }
+        if(checkIntervalMS < 0) { throw new IllegalArgumentException(); }
+        this.statsDir = statsDir;
+        this.subdirs = new ArrayList<>(subdirs);
+        this.compressAfterMS = compressAfterMS;
+        this.blockBytes = blockBytes;
+        this.logs = logs;
+        if(checkIntervalMS > 0)
+            {
+            roller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+                {
+                @Override public Thread newThread(final Runnable r)
+                    { final Thread t = new Thread(r, "log roller " + statsDir); t.setDaemon(true); return(t); }
+                });
+            roller.scheduleWithFixedDelay(new Runnable()
+                {
+                @Override public void run()
+                    { try { roll(System.currentTimeMillis()); } catch(final IOException e) { e.printStackTrace(); } }
+                }, 0, checkIntervalMS, TimeUnit.MILLISECONDS);
+            }
+        else { roller = null; }
+        }
+
+    /**Compress all logs due to be compressed at the given time.
+     * @return number of log files compressed
+     * @throws IOException  if any log could not be compressed, after attempting all
+     */
+    public synchronized int roll(final long nowMS) throws IOException
+        {
+        int count = 0;
+        IOException failure = null;
+        for(final String subdir : subdirs)
+            {
+            final File dir = new File(statsDir, subdir);
+            final String[] names = dir.list();
+            if(null == names) { continue; }
+            Arrays.sort(names);
+            for(final String n : names)
+                {
+                final Matcher m = DAY_LOG.matcher(n);
+                if(!m.matches()) { continue; }
+                final long day;
+                try { day = LocalDate.parse(m.group(1), DateTimeFormatter.BASIC_ISO_DATE).toEpochDay(); }
+                catch(final DateTimeParseException e) { continue; }
+                if(((day + 1) * DAY_MS) + compressAfterMS > nowMS) { continue; }
+                try { count += compress(dir, m.group(1) + m.group(2)); }
+                catch(final IOException e) { failure = e; }
+                }
+            }
+        if(null != failure) { throw failure; }
+        return(count);
+        }
+
+    /**Compress one log and any earlier one taken but not completed, appending to any existing compressed log for the day.
+     * @param name  log file name without any ROLLING_SUFFIX
+     * @return number of files compressed; zero if none, eg as the log is open for writing
+     */
+    private int compress(final File dir, final String name) throws IOException
+        {
+        int count = 0;
+        final File log = new File(dir, name);
+        final File rolling = new File(dir, name + ROLLING_SUFFIX);
+        // Complete any interrupted run first so as not to overwrite its file.
+        if(rolling.exists()) { compressTaken(dir, name, rolling); ++count; }
+        if(log.exists() && ((null != logs) ? logs.renameIfNotOpen(log, rolling) : DailyLogWriterCache.renameWithIndex(log, rolling)))
+            { compressTaken(dir, name, rolling); ++count; }
+        return(count);
+        }
+
+    /**Compress a log already renamed for compression, with its index, then remove it and its index.
+     * The index of the compressed log is updated after the compressed log itself;
+     * if that fails or is interrupted the new part is simply not indexed, so is scanned in full.
+     */
+    private void compressTaken(final File dir, final String name, final File rolling) throws IOException
+        {
+        final File gz = new File(dir, name + COMPRESSED_SUFFIX);
+        final File gzIdx = new File(dir, gz.getName() + IndexedDailyLogReader.INDEX_SUFFIX);
+        final File rollingIdx = new File(dir, rolling.getName() + IndexedDailyLogReader.INDEX_SUFFIX);
+        // Offset of the appended content in the uncompressed whole, or -1 if the existing file cannot be indexed.
+        long base = 0;
+        if(gz.exists())
+            {
+            final BlockGZIP.Blocks blocks = BlockGZIP.openBlocks(gz);
+            base = (null != blocks) ? blocks.getLength() : -1;
+            }
+        final File tmp = new File(dir, Util.F_tmpPrefix + gz.getName());
+        try(final FileOutputStream fos = new FileOutputStream(tmp))
+            {
+            final OutputStream out = new BufferedOutputStream(fos, 1 << 16);
+            if(gz.exists()) { Files.copy(gz.toPath(), out); }
+            try(final InputStream in = new BufferedInputStream(new FileInputStream(rolling), 1 << 16))
+                { BlockGZIP.compress(in, out, blockBytes); }
+            out.flush();
+            fos.getChannel().force(true);
+            }
+        catch(final IOException e) { tmp.delete(); throw e; }
+        Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if(!rolling.delete()) { throw new IOException("cannot delete " + rolling); }
+        try { if((base >= 0) && rollingIdx.exists()) { appendIndex(gzIdx, rollingIdx, base); } }
+        finally { rollingIdx.delete(); }
+        }
+
+    /**Append the entries of a log's index to the index of a compressed log, offset to follow its existing content. */
+    private static void appendIndex(final File gzIdx, final File logIdx, final long base) throws IOException
+        {
+        final ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(logIdx.toPath()));
+        // Ignore any partial trailing entry.
+        entries.limit(entries.limit() - (entries.limit() % IndexedDailyLogReader.ENTRY_BYTES));
+        for(int pos = 0; pos < entries.limit(); pos += IndexedDailyLogReader.ENTRY_BYTES)
+            {
+            entries.putLong(pos, entries.getLong(pos) + base);
+            entries.putLong(pos + 8, entries.getLong(pos + 8) + base);
+            }
+        final File tmp = new File(gzIdx.getParentFile(), Util.F_tmpPrefix + gzIdx.getName());
+        try(final FileOutputStream fos = new FileOutputStream(tmp))
+            {
+            if(gzIdx.exists()) { Files.copy(gzIdx.toPath(), fos); }
+            fos.write(entries.array(), 0, entries.limit());
+            fos.getChannel().force(true);
+            }
+        catch(final IOException e) { tmp.delete(); throw e; }
+        Files.move(tmp.toPath(), gzIdx.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+    /**Stop any background checks. */
+    @Override
+    public void close()
+        {
+        if(null != roller) { roller.shutdown(); }
+        }
+    }
@@ -0,0 +1,436 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+package uk.org.opentrv.comms.statshandlers.support;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**Keeps daily append-only log files open, buffering lines to them.
+ * Log files are of the form statsDir/subdir/YYYYMMDD.extension where the date is UTC,
+ * with up to two open files per (subdir, extension) pair, for the latest day and one earlier day,
+ * so that lines interleaved around UTC midnight do not close and reopen files.
+ * The earlier day's file is closed once a line arrives more than LATE_GRACE_MS into the latest day,
+ * or when a line for yet another day needs its place.
+ * <p>
+ * Each line is written exactly as PrintWriter.println() to a FileWriter would,
+ * ie in the platform default encoding and with the platform line separator.
+ * <p>
+ * Buffered lines for a file are written out once flushLines of them are waiting,
+ * and all buffered lines at least every flushIntervalMS if that is positive,
+ * and on flush() and close().
+ * Each time lines are written to a file its flag file, if any, is touched,
+ * ie at most once per flush rather than once per line.
+ * <p>
+ * Writes are forced to disc according to the durability policy of the supplied GroupCommitter.
+ * <p>
+ * Optionally a sparse index is kept alongside each log (as YYYYMMDD.extension.idx),
+ * with one entry per block of indexEveryLines lines giving the block's byte range,
+ * time range and leaf-ID bloom bits, for IndexedDailyLogReader.
+ * An entry is written after the block's lines, when the block is full or its log is closed,
+ * so the last part of a log that is still open, or was not closed cleanly, is unindexed.
+ * <p>
+ * Thread-safe.
+ */
+public final class DailyLogWriterCache implements Flushable, AutoCloseable
+    {
+    /**UTC date-only format for filenames. */
+    private static final DateTimeFormatter dateForFilename =
+        DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    /**Milliseconds per UTC day. */
+    private static final long DAY_MS = 24 * 3600_000L;
+
+    /**Time into a new UTC day after which the previous day's log is closed. */
+    public static final long LATE_GRACE_MS = 3600_000L;
+
+    /**Line separator as used by println(). */
+    private static final String EOL = System.lineSeparator();
+
+    /**Top directory for all logs; never null. */
+    private final File statsDir;
+    /**Maximum lines buffered per file before writing; strictly positive. */
+    private final int flushLines;
+    /**Lines per index block, or 0 for no index; non-negative. */
+    private final int indexEveryLines;
+    /**Durability policy for writes; never null. */
+    private final GroupCommitter committer;
+    /**Periodic background flusher; null if none. */
+    private final ScheduledExecutorService flusher;
+
+    /**One open daily log file. */
+    private static final class OpenLog
+        {
+        /**UTC day number (ms since epoch / DAY_MS). */
+        final long day;
+        final File file;
+        final FileChannel channel;
+        /**Flag file to touch after each write, or null if none. */
+        final File flag;
+        /**Lines not yet written. */
+        final StringBuilder pending = new StringBuilder();
+        int pendingLines;
+        /**Encoded lines left over from an incomplete write, to be written before any pending lines; null if none. */
+        ByteBuffer unwritten;
+        /**Timestamp of latest line appended, or 0 if none. */
+        long lastAppend;
+        /**Index file channel, or null if not indexing. */
+        final FileChannel index;
+        /**Log size in bytes including pending lines; maintained only if indexing. */
+        long size;
+        /**Lines, start offset, time range and bloom bits of the current index block. */
+        int blockLines;
+        long blockStart, blockMinTime, blockMaxTime, blockBloom;
+        /**Index entries not yet written. */
+        ByteBuffer pendingIndex;
+        OpenLog(final long day, final File file, final FileChannel channel, final File flag, final FileChannel index) throws IOException
+            {
+            this.day = day; this.file = file; this.channel = channel; this.flag = flag; this.index = index;
+            this.size = (null == index) ? 0 : channel.size();
+            this.pendingIndex = (null == index) ? null : ByteBuffer.allocate(IndexedDailyLogReader.ENTRY_BYTES * 16);
+            }
+        }
+
+    /**Open logs for the latest day by subdir + "/" + extension; guarded by this. */
+    private final Map<String, OpenLog> logs = new HashMap<>();
+    /**Open logs for an earlier day by subdir + "/" + extension; guarded by this. */
+    private final Map<String, OpenLog> earlier = new HashMap<>();
+
+    /**True once closed; guarded by this. */
+    private boolean closed;
+
+    /**Create an instance that writes each line as it is appended. */
+    public DailyLogWriterCache(final File statsDir)
+        { this(statsDir, 1, 0, 0, GroupCommitter.NONE); }
+
+    /**Create an instance.
+     * @param statsDir  top directory for logs; never null
+     * @param flushLines  maximum lines buffered per file; strictly positive
+     * @param flushIntervalMS  if positive, maximum interval that lines stay buffered; non-negative
+     * @param committer  durability policy for writes; never null
+     */
+    public DailyLogWriterCache(final File statsDir, final int flushLines, final int flushIntervalMS,
+                               final GroupCommitter committer)
+        { this(statsDir, flushLines, flushIntervalMS, 0, committer); }
+
+    /**Create an instance.
+     * @param statsDir  top directory for logs; never null
+     * @param flushLines  maximum lines buffered per file; strictly positive
+     * @param flushIntervalMS  if positive, maximum interval that lines stay buffered; non-negative
+     * @param indexEveryLines  if positive, lines per sparse index entry, else no index is kept; non-negative
+     * @param committer  durability policy for writes; never null
+     */
+    public DailyLogWriterCache(final File statsDir, final int flushLines, final int flushIntervalMS,
+                               final int indexEveryLines, final GroupCommitter committer)
+        {
+        if(null == statsDir) { throw new IllegalArgumentException(); }
+        if(flushLines < 1) { throw new IllegalArgumentException(); }
+        if(flushIntervalMS < 0) { throw new IllegalArgumentException(); }
+        if(indexEveryLines < 0) { throw new IllegalArgumentException(); }
+        if(null == committer) { throw new IllegalArgumentException(); }
+        this.statsDir = statsDir;
+        this.flushLines = flushLines;
+        this.indexEveryLines = indexEveryLines;
+        this.committer = committer;
+        if(flushIntervalMS > 0)
+            {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+                {
+                @Override public Thread newThread(final Runnable r)
+                    { final Thread t = new Thread(r, "log flusher " + statsDir); t.setDaemon(true); return(t); }
+                });
+            flusher.scheduleWithFixedDelay(new Runnable()
+                {
+                @Override public void run()
+                    { try { flush(); } catch(final IOException e) { e.printStackTrace(); } }
+                }, flushIntervalMS, flushIntervalMS, TimeUnit.MILLISECONDS);
+            }
+        else { flusher = null; }
+        }
+
+    /**Get the log file for the given subdir, time and extension (eg ".log"); never null. */
+    public File getLogFile(final String subdir, final long timestamp, final String extension)
+        { return(new File(new File(statsDir, subdir), dateForFilename.format(Instant.ofEpochMilli(timestamp)) + extension)); }
+
+    /**Append a line to the log file for the given subdir, time and extension.
+     * @param flagFilename  name of flag file in subdir to touch when this log is written, or null if none
+     */
+    public void append(final String subdir, final long timestamp, final String extension,
+                       final CharSequence line, final String flagFilename)
+        throws IOException
+        { append(subdir, timestamp, extension, line, flagFilename, null); }
+
+    /**Append a line to the log file for the given subdir, time and extension.
+     * @param flagFilename  name of flag file in subdir to touch when this log is written, or null if none
+     * @param leafID  normalised leaf ID (as from Util.extractNormalisedID()) for the index, or null if none
+     */
+    public synchronized void append(final String subdir, final long timestamp, final String extension,
+                                    final CharSequence line, final String flagFilename, final String leafID)
+        throws IOException
+        {
+        if(closed) { throw new IOException("closed"); }
+        final OpenLog log = open(subdir, timestamp, extension, flagFilename);
+        if(null != log.index) { addToIndex(log, timestamp, line, leafID); }
+        log.pending.append(line).append(EOL);
+        log.lastAppend = timestamp;
+        if(++log.pendingLines >= flushLines) { write(log); }
+        }
+
+    /**Add a line about to be appended to the current index block, ending the block if full; lock must be held. */
+    private void addToIndex(final OpenLog log, final long timestamp, final CharSequence line, final String leafID)
+        {
+        // Times are indexed at the one-second resolution of the log lines.
+        final long t = Math.floorDiv(timestamp, 1000) * 1000;
+        if(0 == log.blockLines)
+            {
+            log.blockStart = log.size;
+            log.blockMinTime = t;
+            log.blockMaxTime = t;
+            log.blockBloom = 0;
+            }
+        else
+            {
+            log.blockMinTime = Math.min(log.blockMinTime, t);
+            log.blockMaxTime = Math.max(log.blockMaxTime, t);
+            }
+        if(null != leafID) { log.blockBloom |= IndexedDailyLogReader.bloomBits(leafID); }
+        log.size += encodedLength(line) + EOL.length();
+        if(++log.blockLines >= indexEveryLines) { endIndexBlock(log); }
+        }
+
+    /**Queue the index entry for the current block, if any, and start a new one; lock must be held. */
+    private static void endIndexBlock(final OpenLog log)
+        {
+        if(0 == log.blockLines) { return; }
+        if(log.pendingIndex.remaining() < IndexedDailyLogReader.ENTRY_BYTES)
+            {
+            log.pendingIndex.flip();
+            log.pendingIndex = ByteBuffer.allocate(2 * log.pendingIndex.capacity()).put(log.pendingIndex);
+            }
+        log.pendingIndex.putLong(log.blockStart).putLong(log.size)
+            .putLong(log.blockMinTime).putLong(log.blockMaxTime).putLong(log.blockBloom);
+        log.blockLines = 0;
+        }
+
+    /**Length in bytes of text in the platform default encoding; fast for the usual pure ASCII. */
+    private static int encodedLength(final CharSequence cs)
+        {
+        final int len = cs.length();
+        for(int i = 0; i < len; ++i)
+            { if(cs.charAt(i) > 127) { return(Charset.defaultCharset().encode(CharBuffer.wrap(cs)).remaining()); } }
+        return(len);
+        }
+
+    /**Get the timestamp of the latest line appended to the given log while open, else 0. */
+    public synchronized long getLastAppendTime(final String subdir, final long timestamp, final String extension)
+        {
+        final String key = subdir + '/' + extension;
+        final long day = Math.floorDiv(timestamp, DAY_MS);
+        for(final OpenLog log : new OpenLog[]{ logs.get(key), earlier.get(key) })
+            { if((null != log) && (log.day == day)) { return(log.lastAppend); } }
+        return(0);
+        }
+
+    /**Rename a log file and any index of it if it is not currently open here, eg to take a completed day's log for compression.
+     * Any later append for that day starts a new file and index.
+     * @return true if renamed, false if the log is open or the rename failed
+     */
+    public synchronized boolean renameIfNotOpen(final File log, final File to)
+        {
+        for(final OpenLog l : logs.values()) { if(l.file.equals(log)) { return(false); } }
+        for(final OpenLog l : earlier.values()) { if(l.file.equals(log)) { return(false); } }
+        return(renameWithIndex(log, to));
+        }
+
+    /**Rename a log file not open for writing, and any index of it to match.
+     * The index is moved first, so that it never remains to be appended to by a new log of the same name.
+     * @return true if renamed, false if the log (or its index) could not be renamed
+     */
+    static boolean renameWithIndex(final File log, final File to)
+        {
+        final File idx = new File(log.getParentFile(), log.getName() + IndexedDailyLogReader.INDEX_SUFFIX);
+        final File toIdx = new File(to.getParentFile(), to.getName() + IndexedDailyLogReader.INDEX_SUFFIX);
+        final boolean hadIndex = idx.exists();
+        if(hadIndex && !idx.renameTo(toIdx)) { return(false); }
+        if(log.renameTo(to)) { return(true); }
+        if(hadIndex) { toIdx.renameTo(idx); }
+        return(false);
+        }
+
+    /**Get the open log for the given day, opening it and closing any displaced log as needed; lock must be held.
+     * A line for a new latest day moves the current log to the earlier slot;
+     * a line for any other day takes the earlier slot.
+     */
+    private OpenLog open(final String subdir, final long timestamp, final String extension, final String flagFilename)
+        throws IOException
+        {
+        final String key = subdir + '/' + extension;
+        final long day = Math.floorDiv(timestamp, DAY_MS);
+        final OpenLog current = logs.get(key);
+        final OpenLog previous = earlier.get(key);
+        if((null != current) && (current.day == day))
+            {
+            // Late lines for the earlier day have stopped well into this one.
+            if((null != previous) && (timestamp - (day * DAY_MS) > LATE_GRACE_MS))
+                { earlier.remove(key); closeLog(previous); }
+            return(current);
+            }
+        if((null != previous) && (previous.day == day)) { return(previous); }
+        final OpenLog log = newLog(subdir, timestamp, extension, flagFilename, day);
+        if(null != previous) { earlier.remove(key); }
+        if((null == current) || (day > current.day))
+            {
+            logs.put(key, log);
+            if(null != current) { earlier.put(key, current); }
+            }
+        else { earlier.put(key, log); }
+        if(null != previous) { closeLog(previous); }
+        return(log);
+        }
+
+    /**Open a new log for the given day; lock must be held. */
+    private OpenLog newLog(final String subdir, final long timestamp, final String extension, final String flagFilename, final long day)
+        throws IOException
+        {
+        final File dir = new File(statsDir, subdir);
+        if(!dir.isDirectory()) { dir.mkdirs(); }
+        final File file = getLogFile(subdir, timestamp, extension);
+        final FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        FileChannel index = null;
+        if(indexEveryLines > 0)
+            {
+            try
+                {
+                index = FileChannel.open(new File(dir, file.getName() + IndexedDailyLogReader.INDEX_SUFFIX).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+            catch(final IOException e) { channel.close(); throw e; }
+            }
+        return(new OpenLog(day, file, channel, (null == flagFilename) ? null : new File(dir, flagFilename), index));
+        }
+
+    /**Write out any pending lines for one log and touch its flag; lock must be held.
+     * If the write fails, the bytes not yet written are kept to be written first next time,
+     * so that the log stays in step with the offsets in its index.
+     */
+    private void write(final OpenLog log) throws IOException
+        {
+        if(0 != log.pendingLines)
+            {
+            final ByteBuffer bb = Charset.defaultCharset().encode(log.pending.toString());
+            if(null == log.unwritten) { log.unwritten = bb; }
+            else
+                {
+                final ByteBuffer all = ByteBuffer.allocate(log.unwritten.remaining() + bb.remaining());
+                all.put(log.unwritten).put(bb).flip();
+                log.unwritten = all;
+                }
+            log.pending.setLength(0);
+            log.pendingLines = 0;
+            }
+        if(null == log.unwritten) { writeIndex(log); return; }
+        while(log.unwritten.hasRemaining()) { log.channel.write(log.unwritten); }
+        log.unwritten = null;
+        committer.written(log.channel);
+        writeIndex(log);
+        if(null != log.flag) { Util.touch(log.flag); }
+        }
+
+    /**Write out any pending index entries, after the lines that they cover; lock must be held.
+     * If the write fails, the entries not yet written are kept to be written next time.
+     */
+    private void writeIndex(final OpenLog log) throws IOException
+        {
+        if((null == log.index) || (0 == log.pendingIndex.position())) { return; }
+        log.pendingIndex.flip();
+        try { while(log.pendingIndex.hasRemaining()) { log.index.write(log.pendingIndex); } }
+        finally { log.pendingIndex.compact(); }
+        committer.written(log.index);
+        }
+
+    /**Write out pending lines for and close one log; lock must be held. */
+    private void closeLog(final OpenLog log) throws IOException
+        {
+        try
+            {
+            write(log);
+            committer.closing(log.channel);
+            if(null != log.index) { endIndexBlock(log); writeIndex(log); committer.closing(log.index); }
+            }
+        finally
+            {
+            log.channel.close();
+            if(null != log.index) { log.index.close(); }
+            }
+        }
+
+    /**Write out all pending lines. */
+    @Override
+    public synchronized void flush() throws IOException
+        {
+        IOException failure = null;
+        for(final Map<String, OpenLog> m : Arrays.asList(logs, earlier))
+            {
+            for(final OpenLog log : m.values())
+                {
+                try { write(log); }
+                catch(final IOException e) { failure = e; }
+                }
+            }
+        if(null != failure) { throw failure; }
+        }
+
+    /**Write out all pending lines and close all files; further appends are rejected. */
+    @Override
+    public void close() throws IOException
+        {
+        if(null != flusher) { flusher.shutdown(); }
+        synchronized(this)
+            {
+            if(closed) { return; }
+            closed = true;
+            IOException failure = null;
+            for(final Map<String, OpenLog> m : Arrays.asList(logs, earlier))
+                {
+                for(final OpenLog log : m.values())
+                    {
+                    try { closeLog(log); }
+                    catch(final IOException e) { failure = e; }
+                    }
+                m.clear();
+                }
+            if(null != failure) { throw failure; }
+            }
+        }
+    }
@@ -0,0 +1,188 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+package uk.org.opentrv.comms.statshandlers.support;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Coalescing flag-file toucher.
+ * Touching a flag creates it if need be and sets its last-modified time.
+ * <p>
+ * With a positive granularity each flag is touched at most once per granularity:
+ * the first request is applied at once,
+ * and later requests within the granularity are merged and applied by a background thread
+ * (with the time of the latest request) once the granularity has elapsed,
+ * and on flush() and close().
+ * With zero granularity every request is applied at once.
+ * <p>
+ * Requests are serialised per flag on one of a fixed set of lock stripes
+ * (by flag, eg per leaf ID) rather than on one process-wide lock,
+ * so that bursts across many flags do not contend.
+ * <p>
+ * Each filesystem touch is reported to the supplied GroupCommitter.
+ * <p>
+ * Thread-safe.
+ */
+public final class FlagToucher implements Flushable, AutoCloseable
+    {
+    /**Number of lock stripes; a power of two. */
+    private static final int STRIPES = 32;
+
+    /**Lock stripes; never null. */
+    private final Object[] stripes = new Object[STRIPES];
+    { for(int i = 0; i < STRIPES; ++i) { stripes[i] = new Object(); } }
+
+    /**State for one flag. */
+    private static final class Slot
+        {
+        final File flag;
+        final Object lock;
+        /**System time of last filesystem touch, or 0 if none; guarded by lock. */
+        long lastTouched;
+        /**Time of latest request not yet applied, or 0 if none; guarded by lock. */
+        long pending;
+        Slot(final File flag, final Object lock) { this.flag = flag; this.lock = lock; }
+        }
+
+    /**Minimum interval between filesystem touches of each flag in milliseconds; non-negative. */
+    private final int granularityMS;
+    /**Durability policy for touches; never null. */
+    private final GroupCommitter committer;
+
+    /**Slots by flag; never null. */
+    private final ConcurrentMap<File, Slot> slots = new ConcurrentHashMap<>();
+    /**Slots with a pending request; never null. */
+    private final Set<Slot> pendingSlots = ConcurrentHashMap.<Slot>newKeySet();
+
+    /**Background applier of pending requests; null if none. */
+    private final ScheduledExecutorService flusher;
+
+    /**Count of filesystem touches. */
+    private final AtomicLong touchCount = new AtomicLong();
+
+    /**Create an instance.
+     * @param granularityMS  minimum interval between touches of each flag; non-negative
+     * @param committer  durability policy for touches; never null
+     */
+    public FlagToucher(final int granularityMS, final GroupCommitter committer)
+        {
+        if(granularityMS < 0) { throw new IllegalArgumentException(); }
+        if(null == committer) { throw new IllegalArgumentException(); }
+        this.granularityMS = granularityMS;
+        this.committer = committer;
+        if(granularityMS > 0)
+            {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+                {
+                @Override public Thread newThread(final Runnable r)
+                    { final Thread t = new Thread(r, "flag toucher " + granularityMS + "ms"); t.setDaemon(true); return(t); }
+                });
+            flusher.scheduleWithFixedDelay(new Runnable()
+                {
+                @Override public void run()
+                    { try { flush(false); } catch(final IOException e) { e.printStackTrace(); } }
+                }, granularityMS, granularityMS, TimeUnit.MILLISECONDS);
+            }
+        else { flusher = null; }
+        }
+
+    /**Get the number of filesystem touches done so far. */
+    public long getTouchCount() { return(touchCount.get()); }
+
+    /**Request that the flag be touched, now or within the granularity. */
+    public void touch(final File flag) throws IOException
+        {
+        Slot slot = slots.get(flag);
+        if(null == slot)
+            {
+            final Slot ns = new Slot(flag, stripes[(flag.hashCode() ^ (flag.hashCode() >>> 16)) & (STRIPES - 1)]);
+            slot = slots.putIfAbsent(flag, ns);
+            if(null == slot) { slot = ns; }
+            }
+        final long now = System.currentTimeMillis();
+        synchronized(slot.lock)
+            {
+            if((0 != slot.lastTouched) && (now - slot.lastTouched < granularityMS))
+                {
+                if(0 == slot.pending) { pendingSlots.add(slot); }
+                slot.pending = now;
+                return;
+                }
+            apply(slot, now, now);
+            }
+        committer.written(flag);
+        }
+
+    /**Touch a flag's file; slot lock must be held. */
+    private void apply(final Slot slot, final long time, final long now) throws IOException
+        {
+        if(!slot.flag.exists()) { new FileOutputStream(slot.flag, true).close(); }
+        else { slot.flag.setLastModified(time); }
+        slot.lastTouched = now;
+        slot.pending = 0;
+        touchCount.incrementAndGet();
+        }
+
+    /**Apply pending requests.
+     * @param all  if true apply all, else only those whose granularity has elapsed
+     */
+    private void flush(final boolean all) throws IOException
+        {
+        if(pendingSlots.isEmpty()) { return; }
+        final long now = System.currentTimeMillis();
+        final List<Slot> batch = new ArrayList<>(pendingSlots);
+        IOException failure = null;
+        for(final Slot slot : batch)
+            {
+            synchronized(slot.lock)
+                {
+                if(0 == slot.pending) { pendingSlots.remove(slot); continue; }
+                if(!all && (now - slot.lastTouched < granularityMS)) { continue; }
+                try { apply(slot, slot.pending, now); }
+                catch(final IOException e) { failure = e; continue; }
+                pendingSlots.remove(slot);
+                }
+            committer.written(slot.flag);
+            }
+        if(null != failure) { throw failure; }
+        }
+
+    /**Apply all pending requests now. */
+    @Override
+    public void flush() throws IOException { flush(true); }
+
+    /**Stop the background thread and apply all pending requests. */
+    @Override
+    public void close() throws IOException
+        {
+        if(null != flusher) { flusher.shutdown(); }
+        flush(true);
+        }
+    }
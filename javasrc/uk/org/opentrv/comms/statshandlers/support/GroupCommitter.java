@@ -0,0 +1,320 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+package uk.org.opentrv.comms.statshandlers.support;
+
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsNumber;
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.org.opentrv.comms.cfg.ConfigException;
+
+/**Applies a durability policy to on-disc stats files, forcing writes to the underlying storage.
+ * Policies are:
+ * <ul>
+ * <li>none: never force (fsync) writes, leaving it to the OS.</li>
+ * <li>periodic: group commit; files written are forced together by a background thread
+ *     once per sync interval, however many times each was written,
+ *     so at most about one interval's data is at risk in a crash.</li>
+ * <li>perLine: force each write as it is made.</li>
+ * </ul>
+ * <p>
+ * Periodic instances are shared by all users with the same interval, eg across handlers,
+ * so that there is one background thread and one batch of forces per interval.
+ * <p>
+ * Writers report open channels with written(FileChannel), and must call closing() before closing them;
+ * files written and closed (or replaced, or touched) are reported with written(File).
+ * Writes through a memory mapping are reported with written(MappedByteBuffer), and closing(MappedByteBuffer)
+ * called before the channel is closed, since forcing the channel need not write back mapped pages.
+ * <p>
+ * Thread-safe.
+ */
+public final class GroupCommitter
+    {
+    /**Durability policy. */
+    public enum Policy
+        {
+        NONE("none"), PERIODIC("periodic"), PER_LINE("perLine");
+        /**Name used in configuration. */
+        public final String configName;
+        private Policy(final String configName) { this.configName = configName; }
+        /**Get policy from its configuration name; never null.
+         * @throws IllegalArgumentException  if the name is not recognised
+         */
+        public static Policy fromConfigName(final String name)
+            {
+            for(final Policy p : values()) { if(p.configName.equals(name)) { return(p); } }
+            throw new IllegalArgumentException("unknown durability policy: " + name);
+            }
+        }
+
+    /**Default interval between group commits in milliseconds; strictly positive. */
+    public static final int DEFAULT_SYNC_INTERVAL_MS = 1000;
+
+    /**Instance that never forces writes. */
+    public static final GroupCommitter NONE = new GroupCommitter(Policy.NONE, 0);
+    /**Instance that forces each write immediately. */
+    public static final GroupCommitter PER_LINE = new GroupCommitter(Policy.PER_LINE, 0);
+
+    /**Shared periodic instances by sync interval; guarded by itself. */
+    private static final Map<Integer, GroupCommitter> periodic = new HashMap<>();
+
+    /**Get a (possibly shared) instance for the given policy; never null.
+     * @param syncIntervalMS  interval between group commits for the periodic policy; strictly positive
+     */
+    public static GroupCommitter getInstance(final Policy policy, final int syncIntervalMS)
+        {
+        switch(policy)
+            {
+            case NONE: return(NONE);
+            case PER_LINE: return(PER_LINE);
+            default: break;
+            }
+        if(syncIntervalMS < 1) { throw new IllegalArgumentException(); }
+        synchronized(periodic)
+            {
+            GroupCommitter gc = periodic.get(syncIntervalMS);
+            if(null == gc) { gc = new GroupCommitter(Policy.PERIODIC, syncIntervalMS); periodic.put(syncIntervalMS, gc); }
+            return(gc);
+            }
+        }
+
+    /**Get an instance from handler configuration "durability" and optional "syncIntervalMS" values; never null.
+     * @param def  policy to use if none is configured
+     */
+    public static GroupCommitter fromConfig(final Map config, final Policy def) throws ConfigException
+        {
+        final String name = getAsString(config, "durability");
+        final Policy policy;
+        try { policy = (null == name) ? def : Policy.fromConfigName(name); }
+        catch(final IllegalArgumentException e) { throw new ConfigException(e.getMessage()); }
+        return(getInstance(policy, getAsNumber(config, "syncIntervalMS", DEFAULT_SYNC_INTERVAL_MS).intValue()));
+        }
+
+    /**Policy; never null. */
+    private final Policy policy;
+
+    /**Force state of one open channel or mapping; guarded by the GroupCommitter. */
+    private static final class ChannelState
+        {
+        /**True if written since the latest force was started. */
+        boolean dirty;
+        /**Number of forces by sync() in progress. */
+        int syncing;
+        /**True once closing() has forced or found nothing to force, so the channel may be closed. */
+        boolean closed;
+        }
+
+    /**Open channels and mappings written since last forced or with a force in progress; guarded by this. */
+    private final Map<Object, ChannelState> channels = new IdentityHashMap<>();
+    /**Closed files written since last forced; guarded by this. */
+    private final Set<File> dirtyFiles = new LinkedHashSet<>();
+
+    /**Count of forces performed. */
+    private final AtomicLong forceCount = new AtomicLong();
+
+    private GroupCommitter(final Policy policy, final int syncIntervalMS)
+        {
+        this.policy = policy;
+        if(Policy.PERIODIC != policy) { return; }
+        final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+            @Override public Thread newThread(final Runnable r)
+                { final Thread t = new Thread(r, "group commit " + syncIntervalMS + "ms"); t.setDaemon(true); return(t); }
+            });
+        ses.scheduleWithFixedDelay(new Runnable()
+            {
+            @Override public void run()
+                { try { sync(); } catch(final IOException e) { e.printStackTrace(); } }
+            }, syncIntervalMS, syncIntervalMS, TimeUnit.MILLISECONDS);
+        }
+
+    /**Get the policy; never null. */
+    public Policy getPolicy() { return(policy); }
+
+    /**Get the number of forces (fsyncs) done so far. */
+    public long getForceCount() { return(forceCount.get()); }
+
+    /**Report that an open channel has just been written. */
+    public void written(final FileChannel channel) throws IOException { writtenOpen(channel); }
+
+    /**Report that a mapping of an open channel has just been written. */
+    public void written(final MappedByteBuffer buf) throws IOException { writtenOpen(buf); }
+
+    /**Report a write to an open channel or mapping. */
+    private void writtenOpen(final Object target) throws IOException
+        {
+        switch(policy)
+            {
+            case NONE: return;
+            case PER_LINE: force(target); return;
+            default:
+                synchronized(this)
+                    {
+                    ChannelState st = channels.get(target);
+                    if(null == st) { st = new ChannelState(); channels.put(target, st); }
+                    st.dirty = true;
+                    }
+            }
+        }
+
+    /**Report that a file not held open has just been written, replaced or touched. */
+    public void written(final File file) throws IOException
+        {
+        switch(policy)
+            {
+            case NONE: return;
+            case PER_LINE: force(file); return;
+            default: synchronized(this) { dirtyFiles.add(file); }
+            }
+        }
+
+    /**Call before closing a channel reported with written(); forces it if need be.
+     * Waits for any force of the channel by sync() in progress,
+     * then forces again if that failed or the channel has been written since it started.
+     */
+    public void closing(final FileChannel channel) throws IOException { closingOpen(channel); }
+
+    /**Call before closing the channel of a mapping reported with written(); forces it if need be, as for a channel. */
+    public void closing(final MappedByteBuffer buf) throws IOException { closingOpen(buf); }
+
+    /**Wait for and finish forcing an open channel or mapping about to be closed. */
+    private void closingOpen(final Object target) throws IOException
+        {
+        if(Policy.PERIODIC != policy) { return; }
+        final ChannelState st;
+        boolean dirty;
+        synchronized(this)
+            {
+            st = channels.remove(target);
+            if(null == st) { return; }
+            boolean interrupted = false;
+            while(st.syncing > 0)
+                {
+                try { wait(); }
+                catch(final InterruptedException e) { interrupted = true; break; }
+                }
+            // If interrupted the outcome of the force in progress is unknown, so force anyway.
+            dirty = st.dirty || interrupted;
+            if(interrupted) { Thread.currentThread().interrupt(); }
+            }
+        if(dirty) { force(target); }
+        synchronized(this) { st.closed = true; }
+        }
+
+    /**Force all writes reported so far, now. */
+    public void sync() throws IOException
+        {
+        final List<Object> toForce = new ArrayList<>();
+        final List<ChannelState> states = new ArrayList<>();
+        final List<File> files;
+        synchronized(this)
+            {
+            for(final Map.Entry<Object, ChannelState> e : channels.entrySet())
+                {
+                final ChannelState st = e.getValue();
+                if(!st.dirty) { continue; }
+                st.dirty = false;
+                ++st.syncing;
+                toForce.add(e.getKey());
+                states.add(st);
+                }
+            if(toForce.isEmpty() && dirtyFiles.isEmpty()) { return; }
+            files = new ArrayList<>(dirtyFiles);
+            dirtyFiles.clear();
+            }
+        IOException failure = null;
+        for(int i = 0; i < toForce.size(); ++i)
+            {
+            final Object c = toForce.get(i);
+            final ChannelState st = states.get(i);
+            boolean retry = true;
+            try { force(c); retry = false; }
+            catch(final ClosedChannelException e)
+                {
+                // Only harmless if closing() was interrupted and forced the channel itself;
+                // else the channel was closed without closing() and cannot be retried.
+                retry = false;
+                synchronized(this) { if(!st.closed) { failure = e; } }
+                }
+            catch(final IOException e) { failure = e; }
+            finally
+                {
+                synchronized(this)
+                    {
+                    --st.syncing;
+                    if(retry) { st.dirty = true; }
+                    if((!st.dirty || !isOpen(c)) && (0 == st.syncing) && (st == channels.get(c))) { channels.remove(c); }
+                    notifyAll();
+                    }
+                }
+            }
+        for(final File f : files)
+            {
+            try { force(f); }
+            catch(final IOException e)
+                {
+                // Keep it to retry at the next sync.
+                failure = e;
+                synchronized(this) { dirtyFiles.add(f); }
+                }
+            }
+        if(null != failure) { throw failure; }
+        }
+
+    /**Force an open channel or mapping. */
+    private void force(final Object target) throws IOException
+        {
+        if(target instanceof MappedByteBuffer) { ((MappedByteBuffer)target).force(); }
+        else { ((FileChannel)target).force(false); }
+        forceCount.incrementAndGet();
+        }
+
+    /**True unless a channel that has been closed; a mapping stays valid after its channel is closed. */
+    private static boolean isOpen(final Object target)
+        { return(!(target instanceof FileChannel) || ((FileChannel)target).isOpen()); }
+
+    /**Force a file's data and metadata (eg modification time) by name; ignores a vanished file. */
+    private void force(final File file) throws IOException
+        {
+        try(final FileChannel c = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+            {
+            c.force(true);
+            forceCount.incrementAndGet();
+            }
+        catch(final NoSuchFileException e) { /* Removed meanwhile. */ }
+        }
+    }
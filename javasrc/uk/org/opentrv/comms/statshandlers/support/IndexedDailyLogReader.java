@@ -0,0 +1,431 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.comms.statshandlers.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import uk.org.opentrv.comms.json.FlatLeafJSONTokenizer;
+import uk.org.opentrv.comms.util.BlockGZIP;
+
+/**Time-range and leaf-ID reader for the daily logs written by SimpleFileLoggingStatsHandler.
+ * Reads statsDir/subdir/YYYYMMDD.extension files (eg remote/20170101.json),
+ * for each day in the query range memory-mapping the log
+ * and binary-searching the sparse index (YYYYMMDD.extension.idx) kept by DailyLogWriterCache
+ * so as to parse only the lines of blocks that may match.
+ * <p>
+ * Each index entry is ENTRY_BYTES of five big-endian longs:
+ * block start and end byte offsets in the log,
+ * minimum and maximum line timestamps (ms, at the logs' one-second resolution),
+ * and bloom bits of the normalised leaf IDs in the block.
+ * Lines are not necessarily in time order, so the search uses running maxima and minima of the block times.
+ * Any part of a log not covered by the index,
+ * eg the tail of a log still being written, or all of a log with no index,
+ * is scanned in full.
+ * <p>
+ * A log compressed by DailyLogRoller (YYYYMMDD.extension.gz) is read before any (late lines) log for the same day.
+ * Its index (YYYYMMDD.extension.gz.idx) has offsets in the uncompressed content,
+ * so only the compressed blocks holding candidate index blocks (or unindexed regions) are decompressed;
+ * the most recently used decompressed blocks are cached, up to MAX_CACHED_BLOCK_BYTES.
+ * A compressed log not in BlockGZIP format is decompressed and scanned in full on each read.
+ * <p>
+ * Lines are matched on their own timestamps and IDs;
+ * both the JSON array ("[ "2014-12-19T15:39:50Z", ...") and the
+ * decoded binary ("2014/04/17 19:04:46Z 819c ...") line forms are handled.
+ * Leaf IDs are as from Util.extractNormalisedID(), eg "0a45".
+ * <p>
+ * Mapped logs and their indexes are cached, and reloaded if the log (or compressed log) grows.
+ * <p>
+ * Thread-safe.
+ */
+public final class IndexedDailyLogReader
+    {
+    /**Suffix appended to the log file name for its index. */
+    public static final String INDEX_SUFFIX = ".idx";
+
+    /**Bytes per index entry. */
+    public static final int ENTRY_BYTES = 5 * 8;
+
+    /**Maximum bytes of decompressed blocks of compressed logs cached; strictly positive. */
+    public static final long MAX_CACHED_BLOCK_BYTES = 64L << 20;
+
+    /**Milliseconds per UTC day. */
+    private static final long DAY_MS = 24 * 3600_000L;
+
+    /**UTC date-only format for filenames. */
+    private static final DateTimeFormatter dateForFilename =
+        DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    /**Get the bloom bits (two of 64) for a normalised leaf ID; never zero. */
+    public static long bloomBits(final String leafID)
+        {
+        final int h = leafID.hashCode() * 0x9e3779b9;
+        return((1L << (h >>> 26)) | (1L << ((h >>> 20) & 63)));
+        }
+
+    /**Log directory; never null. */
+    private final File dir;
+    /**Log file extension, eg ".json"; never null. */
+    private final String extension;
+
+    /**A mapped or compressed log and its index. */
+    private static final class DayLog
+        {
+        /**Log or compressed log file; never null. */
+        final File file;
+        /**Length of the file when loaded. */
+        final long fileLength;
+        /**Mapped (or wholly decompressed) log, read with absolute gets only; null if blocks are used instead. */
+        final ByteBuffer log;
+        /**Blocks of a block-compressed log; null if log is used instead. */
+        final BlockGZIP.Blocks blocks;
+        /**Indexed blocks in file order. */
+        final long[] start, end, minTime, maxTime, bloom;
+        /**Running maximum of maxTime from the first block, and minimum of minTime to the last. */
+        final long[] prefixMaxTime, suffixMinTime;
+        /**Unindexed regions to scan in full, as start/end pairs in file order. */
+        final long[] gaps;
+        DayLog(final File file, final long fileLength, final ByteBuffer log, final BlockGZIP.Blocks blocks,
+               final long[] start, final long[] end, final long[] minTime, final long[] maxTime, final long[] bloom, final long[] gaps)
+            {
+            this.file = file; this.fileLength = fileLength; this.log = log; this.blocks = blocks; this.start = start; this.end = end; this.minTime = minTime; this.maxTime = maxTime;
+            this.bloom = bloom; this.gaps = gaps;
+            final int n = start.length;
+            prefixMaxTime = new long[n];
+            suffixMinTime = new long[n];
+            for(int i = 0; i < n; ++i) { prefixMaxTime[i] = Math.max(maxTime[i], (0 == i) ? Long.MIN_VALUE : prefixMaxTime[i-1]); }
+            for(int i = n; --i >= 0; ) { suffixMinTime[i] = Math.min(minTime[i], (n-1 == i) ? Long.MAX_VALUE : suffixMinTime[i+1]); }
+            }
+        }
+
+    /**Cached logs by file; guarded by itself. */
+    private final Map<File, DayLog> cache = new HashMap<>();
+
+    /**Count of lines examined, for monitoring; guarded by cache. */
+    private long linesScanned;
+
+    /**Decompressed blocks by compressed log and block file offset, least recently used first; guarded by itself. */
+    private final Map<String, byte[]> blockCache = new LinkedHashMap<>(16, 0.75f, true);
+    /**Total bytes in blockCache; guarded by blockCache. */
+    private long cachedBlockBytes;
+    /**Count of blocks decompressed, for monitoring; guarded by blockCache. */
+    private long blocksInflated;
+
+    /**Create a reader for logs of the form statsDir/subdir/YYYYMMDD.extension.
+     * @param extension  eg ".json" or ".log"; never null
+     */
+    public IndexedDailyLogReader(final File statsDir, final String subdir, final String extension)
+        {
+        if((null == statsDir) || (null == subdir) || (null == extension)) { throw new IllegalArgumentException(); }
+        this.dir = new File(statsDir, subdir);
+        this.extension = extension;
+        }
+
+    /**Get the count of log lines examined so far in all reads. */
+    public long getLinesScanned() { synchronized(cache) { return(linesScanned); } }
+
+    /**Get the count of compressed blocks decompressed so far (not found in the cache) in all reads. */
+    public long getBlocksInflated() { synchronized(blockCache) { return(blocksInflated); } }
+
+    /**Read the log lines with timestamps in [fromMS, toMS) and, if specified, the given leaf ID.
+     * Lines are returned in day order and in file order within each day,
+     * without line terminators.
+     * @param leafID  normalised leaf ID, or null for all lines
+     * @return matching lines; never null
+     */
+    public List<String> read(final long fromMS, final long toMS, final String leafID) throws IOException
+        {
+        final List<String> result = new ArrayList<>();
+        if(fromMS >= toMS) { return(result); }
+        final long bloom = (null == leafID) ? 0 : bloomBits(leafID);
+        final FlatLeafJSONTokenizer tokenizer = FlatLeafJSONTokenizer.perThread();
+        long scanned = 0;
+        for(long day = Math.floorDiv(fromMS, DAY_MS); day <= Math.floorDiv(toMS - 1, DAY_MS); ++day)
+            {
+            final File plain = new File(dir, dateForFilename.format(Instant.ofEpochMilli(day * DAY_MS)) + extension);
+            // Any compressed log for the day precedes any log of late lines after compression.
+            for(final File f : new File[]{ new File(dir, plain.getName() + DailyLogRoller.COMPRESSED_SUFFIX), plain })
+                {
+                final DayLog dl = getDayLog(f);
+                if(null != dl) { scanned += read(dl, fromMS, toMS, leafID, bloom, tokenizer, result); }
+                }
+            }
+        synchronized(cache) { linesScanned += scanned; }
+        return(result);
+        }
+
+    /**Read the matching lines from one log, adding them to the result; returns lines examined. */
+    private long read(final DayLog dl, final long fromMS, final long toMS, final String leafID, final long bloom,
+            final FlatLeafJSONTokenizer tokenizer, final List<String> result)
+        throws IOException
+        {
+        long scanned = 0;
+        // Candidate blocks: from the first that may have reached fromMS
+        // up to before the first from which all are at or after toMS.
+        final int first = firstAtLeast(dl.prefixMaxTime, fromMS);
+        final int last = firstAtLeast(dl.suffixMinTime, toMS);
+        int g = 0;
+        for(int i = first; i < last; ++i)
+            {
+            if((dl.maxTime[i] < fromMS) || (dl.minTime[i] >= toMS)) { continue; }
+            if((0 != bloom) && ((dl.bloom[i] & bloom) != bloom)) { continue; }
+            // Keep file order with any unindexed regions before this block.
+            for( ; (g < dl.gaps.length) && (dl.gaps[g] < dl.start[i]); g += 2)
+                { scanned += scan(dl, dl.gaps[g], dl.gaps[g+1], fromMS, toMS, leafID, tokenizer, result); }
+            scanned += scan(dl, dl.start[i], dl.end[i], fromMS, toMS, leafID, tokenizer, result);
+            }
+        for( ; g < dl.gaps.length; g += 2)
+            { scanned += scan(dl, dl.gaps[g], dl.gaps[g+1], fromMS, toMS, leafID, tokenizer, result); }
+        return(scanned);
+        }
+
+    /**Scan lines in [start, end) of a log, decompressing the blocks covering them if compressed; returns lines examined. */
+    private int scan(final DayLog dl, final long start, final long end,
+            final long fromMS, final long toMS, final String leafID,
+            final FlatLeafJSONTokenizer tokenizer, final List<String> result)
+        throws IOException
+        {
+        if(null == dl.blocks) { return(scan(dl.log, start, end, fromMS, toMS, leafID, tokenizer, result)); }
+        final int first = dl.blocks.blockAt(start), last = dl.blocks.blockAt(end - 1);
+        final long base = dl.blocks.getStart(first);
+        final ByteBuffer region;
+        if(first == last) { region = ByteBuffer.wrap(getBlock(dl, first)); }
+        else
+            {
+            final long len = dl.blocks.getStart(last) + getBlock(dl, last).length - base;
+            if(len > Integer.MAX_VALUE) { throw new IOException("indexed region too large in " + dl.file); }
+            region = ByteBuffer.allocate((int)len);
+            for(int b = first; b <= last; ++b) { region.put(getBlock(dl, b)); }
+            }
+        return(scan(region, start - base, end - base, fromMS, toMS, leafID, tokenizer, result));
+        }
+
+    /**Get a decompressed block of a compressed log, from the cache if possible. */
+    private byte[] getBlock(final DayLog dl, final int i) throws IOException
+        {
+        final String key = dl.file.getPath() + '@' + dl.blocks.getFileOffset(i);
+        synchronized(blockCache)
+            {
+            final byte[] b = blockCache.get(key);
+            if(null != b) { return(b); }
+            }
+        final byte[] b = dl.blocks.inflate(i);
+        synchronized(blockCache)
+            {
+            ++blocksInflated;
+            if(null == blockCache.put(key, b)) { cachedBlockBytes += b.length; }
+            for(final Iterator<byte[]> it = blockCache.values().iterator(); it.hasNext() && (cachedBlockBytes > MAX_CACHED_BLOCK_BYTES); )
+                { cachedBlockBytes -= it.next().length; it.remove(); }
+            }
+        return(b);
+        }
+
+    /**Index of the first element of a non-decreasing array at least the given value, else the array length. */
+    private static int firstAtLeast(final long[] a, final long value)
+        {
+        int lo = 0, hi = a.length;
+        while(lo < hi)
+            {
+            final int mid = (lo + hi) >>> 1;
+            if(a[mid] < value) { lo = mid + 1; } else { hi = mid; }
+            }
+        return(lo);
+        }
+
+    /**Get the mapped log and index for a log or compressed log file, from the cache if unchanged; null if none. */
+    private DayLog getDayLog(final File f) throws IOException
+        {
+        final long fileLength = f.length();
+        if(0 == fileLength) { return(null); }
+        synchronized(cache)
+            {
+            final DayLog dl = cache.get(f);
+            if((null != dl) && (dl.fileLength == fileLength)) { return(dl); }
+            }
+        if(f.getName().endsWith(DailyLogRoller.COMPRESSED_SUFFIX))
+            {
+            final BlockGZIP.Blocks blocks = BlockGZIP.openBlocks(f);
+            // Not cached when wholly decompressed onto the heap.
+            if(null == blocks)
+                {
+                final ByteBuffer log = BlockGZIP.readAll(f);
+                final long[] none = new long[0];
+                return(new DayLog(f, fileLength, log, null, none, none, none, none, none, new long[]{ 0, log.limit() }));
+                }
+            final DayLog dl = load(f, fileLength, null, blocks, blocks.getLength());
+            synchronized(cache) { cache.put(f, dl); }
+            return(dl);
+            }
+        if(fileLength > Integer.MAX_VALUE) { throw new IOException("log too large to map: " + f); }
+        final MappedByteBuffer log;
+        try(final FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ))
+            { log = fc.map(FileChannel.MapMode.READ_ONLY, 0, fileLength); }
+        final DayLog dl = load(f, fileLength, log, null, fileLength);
+        synchronized(cache) { cache.put(f, dl); }
+        return(dl);
+        }
+
+    /**Load the index, if any, of a mapped or compressed log of the given (uncompressed) length. */
+    private static DayLog load(final File f, final long fileLength, final ByteBuffer log, final BlockGZIP.Blocks blocks,
+            final long length)
+        throws IOException
+        {
+        ByteBuffer index = ByteBuffer.allocate(0);
+        final File idx = new File(f.getParentFile(), f.getName() + INDEX_SUFFIX);
+        if(idx.exists())
+            {
+            try(final FileChannel fc = FileChannel.open(idx.toPath(), StandardOpenOption.READ))
+                {
+                // Ignore any partial trailing entry.
+                index = ByteBuffer.allocate((int)Math.min(Integer.MAX_VALUE - ENTRY_BYTES, fc.size() / ENTRY_BYTES * ENTRY_BYTES));
+                while(index.hasRemaining() && (fc.read(index) >= 0)) { }
+                index.flip();
+                }
+            }
+
+        final int n = index.remaining() / ENTRY_BYTES;
+        final long[] start = new long[n], end = new long[n], minTime = new long[n], maxTime = new long[n], bloom = new long[n];
+        final List<Long> gaps = new ArrayList<>();
+        int k = 0;
+        long covered = 0;
+        for(int i = 0; i < n; ++i)
+            {
+            final long s = index.getLong(), e = Math.min(length, index.getLong()), tMin = index.getLong(), tMax = index.getLong(), b = index.getLong();
+            // Ignore bogus entries, eg overlapping or beyond the end of a truncated log.
+            if((s < covered) || (s >= e)) { continue; }
+            if(s > covered) { gaps.add(covered); gaps.add(s); }
+            start[k] = s; end[k] = e; minTime[k] = tMin; maxTime[k] = tMax; bloom[k] = b;
+            ++k;
+            covered = e;
+            }
+        if(covered < length) { gaps.add(covered); gaps.add(length); }
+        final long[] g = new long[gaps.size()];
+        for(int i = 0; i < g.length; ++i) { g[i] = gaps.get(i); }
+        return(new DayLog(f, fileLength, log, blocks, copy(start, k), copy(end, k), copy(minTime, k), copy(maxTime, k), copy(bloom, k), g));
+        }
+
+    /**Copy of the first n elements. */
+    private static long[] copy(final long[] a, final int n) { return(Arrays.copyOf(a, n)); }
+
+    /**Scan lines in [start, end) of a log, adding those matching to the result; returns lines examined. */
+    private static int scan(final ByteBuffer log, final long start, final long end,
+            final long fromMS, final long toMS, final String leafID,
+            final FlatLeafJSONTokenizer tokenizer, final List<String> result)
+        {
+        int lines = 0;
+        final int e = (int)end;
+        for(int pos = (int)start; pos < e; )
+            {
+            int eol = pos;
+            while((eol < e) && ('\n' != log.get(eol))) { ++eol; }
+            int lineEnd = eol;
+            if((lineEnd > pos) && ('\r' == log.get(lineEnd - 1))) { --lineEnd; }
+            ++lines;
+            final long t = parseLineTime(log, pos, lineEnd);
+            if((t >= fromMS) && (t < toMS))
+                {
+                final byte[] b = new byte[lineEnd - pos];
+                for(int i = 0; i < b.length; ++i) { b[i] = log.get(pos + i); }
+                final String line = new String(b, Charset.defaultCharset());
+                if((null == leafID) || leafID.equals(getLineLeafID(line, tokenizer))) { result.add(line); }
+                }
+            pos = eol + 1;
+            }
+        return(lines);
+        }
+
+    /**Two-digit decimal value at pos, or -1 if not digits. */
+    private static int digits2(final ByteBuffer b, final int pos)
+        {
+        final int h = b.get(pos) - '0', l = b.get(pos + 1) - '0';
+        if((h < 0) || (h > 9) || (l < 0) || (l > 9)) { return(-1); }
+        return((10 * h) + l);
+        }
+
+    /**Parse the timestamp at the start of a log line (after any leading '[', space and '"'), without allocation if valid.
+     * Accepts yyyy?MM?dd?HH?mm?ss with any single separator characters,
+     * which covers both "2014-12-19T15:39:50Z" and "2014/04/17 19:04:46Z" forms.
+     * @return ms since the epoch, or Long.MIN_VALUE if none
+     */
+    static long parseLineTime(final ByteBuffer b, final int start, final int end)
+        {
+        int p = start;
+        while((p < end) && (p < start + 3) && (('[' == b.get(p)) || (' ' == b.get(p)) || ('"' == b.get(p)))) { ++p; }
+        if(end - p < 19) { return(Long.MIN_VALUE); }
+        final int yh = digits2(b, p), yl = digits2(b, p + 2), mo = digits2(b, p + 5), d = digits2(b, p + 8);
+        final int h = digits2(b, p + 11), mi = digits2(b, p + 14), s = digits2(b, p + 17);
+        if((yh < 0) || (yl < 0) || (mo < 0) || (d < 0) || (h < 0) || (h > 23) || (mi < 0) || (mi > 59) || (s < 0) || (s > 60))
+            { return(Long.MIN_VALUE); }
+        final long epochDay;
+        try { epochDay = LocalDate.of((100 * yh) + yl, mo, d).toEpochDay(); }
+        catch(final DateTimeException e) { return(Long.MIN_VALUE); }
+        return((epochDay * DAY_MS) + (((h * 3600L) + (mi * 60L) + s) * 1000L));
+        }
+
+    /**Get the normalised leaf ID of a log line, or null if none or the line is malformed.
+     * Decoded binary lines have the ID as the third space-separated field;
+     * JSON array lines have it as the "@" field of the leaf object.
+     */
+    static String getLineLeafID(final String line, final FlatLeafJSONTokenizer tokenizer)
+        {
+        if(!line.startsWith("["))
+            {
+            final int s1 = line.indexOf(' ');
+            final int s2 = (-1 == s1) ? -1 : line.indexOf(' ', s1 + 1);
+            final int s3 = (-1 == s2) ? -1 : line.indexOf(' ', s2 + 1);
+            if(-1 == s3) { return(null); }
+            // Normalise as Util.extractNormalisedID() does for '@' records.
+            final String id = line.substring(s2 + 1, s3).toLowerCase();
+            return((0 != (id.length() & 1)) ? ("0" + id) : id);
+            }
+        if(FlatLeafJSONTokenizer.enabled && tokenizer.parseLogLine(line))
+            {
+            final int idi = tokenizer.indexOf("@");
+            if((-1 == idi) || (FlatLeafJSONTokenizer.KIND_STRING != tokenizer.getKind(idi))) { return(null); }
+            return(tokenizer.getString(idi));
+            }
+        final Object o = JSONValue.parse(line);
+        if(!(o instanceof JSONArray) || (3 != ((JSONArray)o).size())) { return(null); }
+        final Object leaf = ((JSONArray)o).get(2);
+        if(!(leaf instanceof JSONObject)) { return(null); }
+        final Object id = ((JSONObject)leaf).get("@");
+        return((id instanceof String) ? (String)id : null);
+        }
+    }
@@ -0,0 +1,137 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+package uk.org.opentrv.comms.statshandlers.support;
+
+/**Normalised leaf IDs of up to 8 hex digits packed into a long.
+ * The low 32 bits hold the value of the hex digits and the next 4 bits hold the digit count (1--8),
+ * so that eg "0a45" and "a45" remain distinct,
+ * and two packed IDs are equal exactly when the normalised ID Strings
+ * (as from Util.extractNormalisedID()) are equal.
+ * <p>
+ * As '{' format IDs are case-sensitive, only lower-case hex IDs are packable;
+ * anything else (including empty and longer IDs) packs as NONE,
+ * and must be handled as a String.
+ * <p>
+ * All methods are static and do not allocate.
+ */
+public final class LeafID
+    {
+    /**Prevent instance creation. */
+    private LeafID() { }
+
+    /**Value for no/unpackable ID; never a valid packed ID. */
+    public static final long NONE = -1L;
+
+    /**Maximum number of hex digits that can be packed. */
+    public static final int MAX_DIGITS = 8;
+
+    /**Value of lower-case hex digit, else -1. */
+    private static int lowerHexValue(final char c)
+        {
+        if((c >= '0') && (c <= '9')) { return(c - '0'); }
+        if((c >= 'a') && (c <= 'f')) { return(c - 'a' + 10); }
+        return(-1);
+        }
+
+    /**Value of upper- or lower-case hex digit, else -1. */
+    private static int anyHexValue(final char c)
+        {
+        if((c >= 'A') && (c <= 'F')) { return(c - 'A' + 10); }
+        return(lowerHexValue(c));
+        }
+
+    /**Pack value and digit count. */
+    private static long pack(final long value, final int digits)
+        { return((((long)digits) << 32) | value); }
+
+    /**Pack a normalised ID; NONE if null or not 1--8 lower-case hex digits. */
+    public static long fromString(final String id)
+        {
+        if(null == id) { return(NONE); }
+        final int len = id.length();
+        if((len < 1) || (len > MAX_DIGITS)) { return(NONE); }
+        long value = 0;
+        for(int i = 0; i < len; ++i)
+            {
+            final int d = lowerHexValue(id.charAt(i));
+            if(d < 0) { return(NONE); }
+            value = (value << 4) | d;
+            }
+        return(pack(value, len));
+        }
+
+    /**Get the normalised ID String for a packed ID; null if NONE. */
+    public static String toString(final long id)
+        {
+        if(!isValid(id)) { return(null); }
+        final int digits = (int)(id >>> 32);
+        final char[] c = new char[digits];
+        long value = id & 0xffffffffL;
+        for(int i = digits; --i >= 0; value >>>= 4) { c[i] = Character.forDigit((int)(value & 0xf), 16); }
+        return(new String(c));
+        }
+
+    /**True if the argument is a valid packed ID, ie not NONE. */
+    public static boolean isValid(final long id)
+        {
+        final long digits = id >>> 32;
+        return((digits >= 1) && (digits <= MAX_DIGITS) && (0 == ((id & 0xffffffffL) >>> (4 * digits))));
+        }
+
+    /**Extract the packed normalised ID directly from a raw stats line without allocation; NONE if not possible this way.
+     * This handles only '@' lines, with upper- or lower-case hex IDs padded to an even number of digits.
+     * A '{' line's ID is only valid if the whole line parses as JSON,
+     * which cannot be checked here, so '{' lines always give NONE.
+     * <p>
+     * NONE does not imply that the line has no ID,
+     * so callers needing certainty should fall back to fromString(Util.extractNormalisedID(line)),
+     * which always agrees with this method when this method gives an ID.
+     */
+    public static long extract(final CharSequence line)
+        {
+        if(null == line) { return(NONE); }
+        final int len = line.length();
+        if(len < 2) { return(NONE); }
+        switch(line.charAt(0))
+            {
+            case '@':
+                {
+                long value = 0;
+                for(int i = 1; i < len; ++i)
+                    {
+                    final char c = line.charAt(i);
+                    if(';' == c)
+                        {
+                        final int digits = i - 1;
+                        if(0 == digits) { return(NONE); }
+                        // Pad odd-length ID on left with "0" to even number of digits.
+                        final int padded = digits + (digits & 1);
+                        if(padded > MAX_DIGITS) { return(NONE); }
+                        return(pack(value, padded));
+                        }
+                    final int d = anyHexValue(c);
+                    if((d < 0) || (i > MAX_DIGITS)) { return(NONE); }
+                    value = (value << 4) | d;
+                    }
+                return(NONE); // No terminating ';'.
+                }
+            default:
+                return(NONE);
+            }
+        }
+    }
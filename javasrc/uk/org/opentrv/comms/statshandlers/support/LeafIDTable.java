@@ -0,0 +1,114 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+package uk.org.opentrv.comms.statshandlers.support;
+
+import java.util.Arrays;
+
+/**Immutable open-addressing hash table from packed leaf IDs (see LeafID) to small int values.
+ * Keys and values are held in primitive arrays, so lookups do not box or allocate.
+ * <p>
+ * The table is at most half full and a multiplicative hash spreads the (typically sequential) IDs,
+ * so lookups take O(1) probes; the multiplier is chosen at construction
+ * from a few candidates to minimise the longest probe sequence,
+ * which for small sets is usually a perfect (collision-free) placement.
+ * <p>
+ * Thread-safe.
+ */
+public final class LeafIDTable
+    {
+    /**Empty slot marker; never a valid packed ID. */
+    private static final long EMPTY = LeafID.NONE;
+
+    /**Candidate odd multipliers for hashing. */
+    private static final long[] MULTIPLIERS =
+        { 0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0xd6e8feb86659fd93L };
+
+    /**Keys, EMPTY where unused; length a power of two. */
+    private final long[] keys;
+    /**Values by slot. */
+    private final int[] values;
+    /**Shift to take top bits of hash as slot index. */
+    private final int shift;
+    /**Hash multiplier. */
+    private final long multiplier;
+    /**Number of keys. */
+    private final int size;
+
+    /**Create a table mapping each valid packed ID to its (first) index in the array.
+     * Invalid (eg NONE) IDs are ignored.
+     * @param ids  packed IDs; never null
+     */
+    public LeafIDTable(final long[] ids)
+        {
+        if(null == ids) { throw new IllegalArgumentException(); }
+        int capacity = 4;
+        while(capacity < 2 * ids.length) { capacity <<= 1; }
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        long[] bestKeys = null;
+        int[] bestValues = null;
+        long bestMultiplier = 0;
+        int bestMaxProbe = Integer.MAX_VALUE;
+        int n = 0;
+        for(final long m : MULTIPLIERS)
+            {
+            final long[] k = new long[capacity];
+            Arrays.fill(k, EMPTY);
+            final int[] v = new int[capacity];
+            int maxProbe = 0;
+            n = 0;
+            for(int i = 0; i < ids.length; ++i)
+                {
+                final long id = ids[i];
+                if(!LeafID.isValid(id)) { continue; }
+                int slot = (int)((id * m) >>> shift);
+                int probe = 0;
+                while((EMPTY != k[slot]) && (id != k[slot])) { slot = (slot + 1) & (capacity - 1); ++probe; }
+                if(id == k[slot]) { continue; } // Duplicate: keep first.
+                k[slot] = id;
+                v[slot] = i;
+                ++n;
+                if(probe > maxProbe) { maxProbe = probe; }
+                }
+            if(maxProbe < bestMaxProbe) { bestKeys = k; bestValues = v; bestMultiplier = m; bestMaxProbe = maxProbe; }
+            if(0 == maxProbe) { break; } // Perfect.
+            }
+        keys = bestKeys;
+        values = bestValues;
+        multiplier = bestMultiplier;
+        size = n;
+        }
+
+    /**Get the number of distinct IDs in the table. */
+    public int size() { return(size); }
+
+    /**Get the value for the given packed ID, else -1 if absent. */
+    public int get(final long id)
+        {
+        if(EMPTY == id) { return(-1); }
+        final int mask = keys.length - 1;
+        for(int slot = (int)((id * multiplier) >>> shift); ; slot = (slot + 1) & mask)
+            {
+            final long k = keys[slot];
+            if(id == k) { return(values[slot]); }
+            if(EMPTY == k) { return(-1); }
+            }
+        }
+
+    /**True if the table contains the given packed ID. */
+    public boolean contains(final long id) { return(get(id) >= 0); }
+    }
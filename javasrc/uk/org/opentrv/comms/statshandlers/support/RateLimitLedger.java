@@ -0,0 +1,162 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+package uk.org.opentrv.comms.statshandlers.support;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**In-memory ledger of last operation times for persistent rate limiting.
+ * Last-operation times are held in memory per operation ID,
+ * loaded from a flag file per operation on first use,
+ * and persisted as the flag file's modification time.
+ * <p>
+ * A veto (too soon since the last operation) is decided from memory alone,
+ * as operation times only ever move forward.
+ * Before allowing an operation the flag file is re-read,
+ * to pick up operations done by other processes sharing the directory,
+ * and the new time is persisted before returning,
+ * so the on-disc record is never behind an allowed operation.
+ * <p>
+ * There is no global lock: different operation IDs never contend,
+ * and concurrent callers for the same ID hold only that ID's lock, and only to allow an operation.
+ * <p>
+ * Thread-safe.
+ */
+public final class RateLimitLedger
+    {
+    /**Name of flags directory in the user's home directory. */
+    public static final String FLAGS_DIR_NAME = ".V0p2HubOpsRateLimitFlags";
+
+    /**Default ledgers by user home directory; never null. */
+    private static final ConcurrentMap<String, RateLimitLedger> defaults = new ConcurrentHashMap<>();
+
+    /**Get the shared ledger for the flags directory in the current user.home, creating it if need be; never null.
+     * @throws IOException  if the home or flags directory is not usable
+     */
+    public static RateLimitLedger getDefault() throws IOException
+        {
+        final String userHomeS = System.getProperty("user.home");
+        if((null == userHomeS) || ("".equals(userHomeS))) { throw new IOException("bad user.home property"); }
+        final RateLimitLedger extant = defaults.get(userHomeS);
+        if(null != extant) { return(extant); }
+        final File userHome = new File(userHomeS);
+        if(!userHome.exists() && !userHome.isDirectory()) { throw new IOException("bad user.home dir: " + userHome); }
+        final RateLimitLedger ledger = new RateLimitLedger(new File(userHome, FLAGS_DIR_NAME));
+        final RateLimitLedger winner = defaults.putIfAbsent(userHomeS, ledger);
+        return((null == winner) ? ledger : winner);
+        }
+
+    /**State for one operation ID. */
+    private static final class Entry
+        {
+        final File flag;
+        /**Time of last operation, or 0 if none; written with the lock held. */
+        volatile long last;
+        /**True once purged and removed from the ledger; guarded by lock on this. */
+        boolean purged;
+        Entry(final File flag)
+            {
+            this.flag = flag;
+            last = flag.lastModified(); // 0 if absent.
+            }
+        }
+
+    /**Flags directory; never null. */
+    private final File flagsDir;
+
+    /**Entries by operation ID; never null. */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**Create a ledger persisting to the given directory, creating it if need be.
+     * @param flagsDir  directory for flag files; never null
+     * @throws IOException  if the directory cannot be created
+     */
+    public RateLimitLedger(final File flagsDir) throws IOException
+        {
+        if(null == flagsDir) { throw new IllegalArgumentException(); }
+        if(!flagsDir.exists())
+            {
+            flagsDir.mkdir();
+            if(!flagsDir.exists())  { throw new IOException("unable to create rate-limit flags dir: " + flagsDir); }
+            }
+        this.flagsDir = flagsDir;
+        }
+
+    /**Get the entry for an operation, loading it from its flag file if new; never null. */
+    private Entry getEntry(final String uniqueOperationID)
+        {
+        final Entry e = entries.get(uniqueOperationID);
+        if(null != e) { return(e); }
+        final Entry ne = new Entry(new File(flagsDir, uniqueOperationID + ".flag"));
+        final Entry winner = entries.putIfAbsent(uniqueOperationID, ne);
+        return((null == winner) ? ne : winner);
+        }
+
+    /**Returns false if it is too soon to do the specified operation, else records it as done now.
+     * Purging (minMinutesSpacing -1) removes the operation's record, including its flag file,
+     * and always returns false.
+     *
+     * @param uniqueOperationID  unique operation name; must be safe to use as part of a filename; non-null, non-empty
+     * @param minMinutesSpacing  minimum minutes between operations; strictly positive, else -1 to purge flag
+     * @throws IOException  if the operation time cannot be persisted, in which case it is not allowed
+     */
+    public boolean canDoRateLimitedOperation(final String uniqueOperationID, final int minMinutesSpacing)
+        throws IOException
+        {
+        final boolean purgeFlag = (-1 == minMinutesSpacing);
+        if(!purgeFlag && (minMinutesSpacing <= 0)) { throw new IllegalArgumentException(); }
+        if((null == uniqueOperationID) || uniqueOperationID.isEmpty()) { throw new IllegalArgumentException(); }
+        final long now = System.currentTimeMillis();
+        if(purgeFlag)
+            {
+            final Entry e = getEntry(uniqueOperationID);
+            synchronized(e)
+                {
+                e.purged = true;
+                entries.remove(uniqueOperationID, e);
+                e.flag.delete();
+                }
+            return(false); // Do NOT perform the operation.
+            }
+        final long minFlagAge = now - (minMinutesSpacing * 60_000L);
+        for( ; ; )
+            {
+            final Entry e = getEntry(uniqueOperationID);
+            // Fast veto without locking.
+            if(e.last >= minFlagAge) { return(false); }
+            synchronized(e)
+                {
+                if(e.purged) { continue; } // Purged meanwhile; start again with a fresh entry.
+                if(e.last >= minFlagAge) { return(false); }
+                // Pick up any operation done by another process.
+                final long onDisc = e.flag.lastModified();
+                if(onDisc > e.last) { e.last = onDisc; }
+                if(e.last >= minFlagAge) { return(false); }
+                // Persist before allowing; an unrecorded operation could be repeated after a restart.
+                if(!e.flag.exists()) { new FileOutputStream(e.flag, true).close(); }
+                if(!e.flag.setLastModified(now)) { throw new IOException("cannot set time of " + e.flag); }
+                e.last = now;
+                }
+            // Caller should perform the operation.
+            return(true);
+            }
+        }
+    }
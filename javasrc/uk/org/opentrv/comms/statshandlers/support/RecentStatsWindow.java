@@ -18,13 +18,20 @@ Author(s) / Copyright (s): Damon Hart-Davis 2015
 package uk.org.opentrv.comms.statshandlers.support;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.json.simple.JSONArray;
+import org.json.simple.JSONValue;
 
 import uk.org.opentrv.comms.statshandlers.StatsHandler;
 import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
@@ -33,6 +40,18 @@ import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
  * Maintains stats messages with a given maximum age compared to the newest item added,
  * which can also be regarded as auto-expiring stale data.
  * <p>
+ * Messages are indexed in arrival (and thus timestamp) order overall and per leaf ID,
+ * with timestamps held in primitive arrays so that time-range queries
+ * are O(log n) binary searches plus the cost of copying out the result,
+ * rather than a copy or scan of the whole window.
+ * The latest value of each field for each leaf is maintained as messages arrive.
+ * <p>
+ * By default messages must arrive in timestamp order.
+ * Optionally messages up to a maximum lateness older than the newest
+ * (eg from merged streams from several concentrators)
+ * are sorted into place, and only messages older than that are rejected as stale;
+ * late and dropped messages are counted.
+ * <p>
  * Expected use is embedded in another handler that does something with the collated state
  * as events come in.
  * <p>
@@ -50,6 +69,9 @@ public final class RecentStatsWindow implements StatsHandler
      */
     public static final long DEFAULT_WINDOW_MS = 3700_000;
 
+    /**Suggested maximum lateness in milliseconds for merged streams from multiple sources. */
+    public static final long SUGGESTED_LATENESS_MS = 30_000;
+
     /**Actual (maximum) window size in milliseconds; strictly positive.
      * The maximum age of the oldest item retained wrt the newest.
      */
@@ -58,24 +80,223 @@ public final class RecentStatsWindow implements StatsHandler
     /**Get the actual (maximum) window size in milliseconds; strictly positive. */
     public long getWindowMs() { return(window_ms); }
 
+    /**Maximum lateness wrt the newest message of messages to be sorted into place in milliseconds; non-negative. */
+    private final long lateness_ms;
+
+    /**Get the maximum lateness in milliseconds; zero if messages must arrive in order. */
+    public long getLatenessMs() { return(lateness_ms); }
+
     /**All-defaults instance. */
     public RecentStatsWindow() { this(DEFAULT_WINDOW_MS); }
 
-    /**Create instance specifying a non-default window.
+    /**Create instance specifying a non-default window, requiring messages in order.
      * @param window_ms  maximum window size in milliseconds; strictly positive
      */
-    public RecentStatsWindow(final long window_ms)
+    public RecentStatsWindow(final long window_ms) { this(window_ms, 0); }
+
+    /**Create instance specifying a non-default window and tolerance of late messages.
+     * @param window_ms  maximum window size in milliseconds; strictly positive
+     * @param lateness_ms  maximum lateness of messages that are sorted into place
+     *     rather than rejected; non-negative and no more than window_ms
+     */
+    public RecentStatsWindow(final long window_ms, final long lateness_ms)
         {
         if(window_ms <= 0) { throw new IllegalArgumentException(); }
+        if((lateness_ms < 0) || (lateness_ms > window_ms)) { throw new IllegalArgumentException(); }
         this.window_ms = window_ms;
+        this.lateness_ms = lateness_ms;
+        }
+
+    /**Count of late messages sorted into place. */
+    private long lateCount;
+    /**Count of stale messages rejected. */
+    private long droppedCount;
+
+    /**Get the count of late messages accepted and sorted into place. */
+    public long getLateCount() { return(lateCount); }
+
+    /**Get the count of stale (too late) messages rejected. */
+    public long getDroppedCount() { return(droppedCount); }
+
+    /**One retained message, with its JSON log form once computed. */
+    private static final class Entry
+        {
+        final StatsMessageWithMetadata swmd;
+        /**Serialised JSON log entry; null until first needed. */
+        String json;
+        Entry(final StatsMessageWithMetadata swmd) { this.swmd = swmd; }
+        /**Get the JSON log entry, computing it at most once; never null. */
+        String getJSON()
+            {
+            if(null == json)
+                {
+                final JSONArray smja = new JSONArray();
+                final StringBuffer sb = new StringBuffer(32);
+                Util.appendISODateTime(sb, new Date(swmd.timestamp));
+                smja.add(sb.toString());
+                smja.add(swmd.message);
+                smja.add(swmd.authenticated);
+                json = smja.toJSONString();
+                }
+            return(json);
+            }
+        }
+
+    /**Growable FIFO ring of entries in non-decreasing timestamp order.
+     * Timestamps are held in a parallel primitive array for unboxed binary search.
+     * Capacity doubles when full and halves when no more than a quarter full,
+     * never below the initial capacity,
+     * so that space used in a burst is given back once the burst leaves the window.
+     */
+    private static final class Ring
+        {
+        private final int minCapacity;
+        private long[] timestamps;
+        private Entry[] entries;
+        /**Index of oldest entry. */
+        private int head;
+        private int size;
+
+        Ring(final int initialCapacity)
+            {
+            minCapacity = initialCapacity;
+            timestamps = new long[initialCapacity];
+            entries = new Entry[initialCapacity];
+            }
+
+        int size() { return(size); }
+        int capacity() { return(entries.length); }
+
+        /**Get i-th oldest entry; i in [0,size). */
+        Entry get(final int i) { return(entries[(head + i) % entries.length]); }
+
+        Entry first() { return((0 == size) ? null : get(0)); }
+        Entry last() { return((0 == size) ? null : get(size - 1)); }
+        long firstTimestamp() { return(timestamps[head]); }
+
+        /**Move the entries, oldest first, into new arrays of the given capacity; at least size. */
+        private void resize(final int newCapacity)
+            {
+            final long[] nt = new long[newCapacity];
+            final Entry[] ne = new Entry[newCapacity];
+            for(int i = 0; i < size; ++i)
+                {
+                final int j = (head + i) % entries.length;
+                nt[i] = timestamps[j];
+                ne[i] = entries[j];
+                }
+            timestamps = nt;
+            entries = ne;
+            head = 0;
+            }
+
+        void addLast(final Entry e)
+            {
+            if(size == entries.length) { resize(2 * entries.length); }
+            final int tail = (head + size) % entries.length;
+            timestamps[tail] = e.swmd.timestamp;
+            entries[tail] = e;
+            ++size;
+            }
+
+        /**Insert in timestamp order after any entries with the same timestamp.
+         * Costs O(log n) to find the place plus a move of the (typically few) newer entries.
+         */
+        void insert(final Entry e)
+            {
+            final long t = e.swmd.timestamp;
+            final int pos = upperBound(t);
+            addLast(e);
+            for(int i = size - 1; i > pos; --i)
+                {
+                final int to = (head + i) % entries.length;
+                final int from = (head + i - 1) % entries.length;
+                timestamps[to] = timestamps[from];
+                entries[to] = entries[from];
+                }
+            final int at = (head + pos) % entries.length;
+            timestamps[at] = t;
+            entries[at] = e;
+            }
+
+        Entry removeFirst()
+            {
+            final Entry e = entries[head];
+            entries[head] = null; // Help GC.
+            head = (head + 1) % entries.length;
+            --size;
+            // Shrink only well below full so that alternate adds and removes cannot thrash.
+            if((entries.length > minCapacity) && (size <= (entries.length / 4)))
+                { resize(Math.max(minCapacity, entries.length / 2)); }
+            return(e);
+            }
+
+        /**Index of the first entry with timestamp at least t, or size if none. */
+        int lowerBound(final long t)
+            {
+            int lo = 0, hi = size;
+            while(lo < hi)
+                {
+                final int mid = (lo + hi) >>> 1;
+                if(timestamps[(head + mid) % timestamps.length] < t) { lo = mid + 1; } else { hi = mid; }
+                }
+            return(lo);
+            }
+
+        /**Index of the first entry with timestamp greater than t, or size if none. */
+        int upperBound(final long t)
+            {
+            int lo = 0, hi = size;
+            while(lo < hi)
+                {
+                final int mid = (lo + hi) >>> 1;
+                if(timestamps[(head + mid) % timestamps.length] <= t) { lo = mid + 1; } else { hi = mid; }
+                }
+            return(lo);
+            }
+
+        /**Copy out messages with timestamps in [from, to); never null. */
+        List<StatsMessageWithMetadata> slice(final long from, final long to)
+            {
+            final int start = lowerBound(from);
+            final int end = (to == Long.MAX_VALUE) ? size : lowerBound(to);
+            if(start >= end) { return(Collections.emptyList()); }
+            final StatsMessageWithMetadata[] result = new StatsMessageWithMetadata[end - start];
+            for(int i = start; i < end; ++i) { result[i - start] = get(i).swmd; }
+            return(Arrays.asList(result));
+            }
+        }
+
+    /**Latest value of one field for one leaf. */
+    private static final class FieldValue
+        {
+        Object value;
+        long timestamp;
+        }
+
+    /**Retained state for one leaf ID. */
+    private static final class LeafIndex
+        {
+        /**Retained messages for this leaf, oldest first; never empty while indexed. */
+        final Ring messages = new Ring(4);
+        /**Latest value by field name; entries older than the window start are stale. */
+        final Map<String, FieldValue> fields = new HashMap<>();
         }
 
-    /**Ordered list of last messages inserted; never null but may be empty. */
-    private final Deque<StatsMessageWithMetadata> lastMessages = new ArrayDeque<>();
+    /**All retained messages, oldest first. */
+    private final Ring lastMessages = new Ring(64);
+
+    /**Retained state by leaf ID; never null but may be empty.
+     * Messages with no extractable leaf ID are not indexed.
+     */
+    private final Map<String, LeafIndex> byLeafID = new HashMap<>();
+
+    /**Earliest timestamp retained by the window; field values older than this have expired. */
+    private long windowStart = Long.MIN_VALUE;
 
     /**Accept a new stats message.
      * @param swmd  the stats message to add; never null
-     * @throws IOException  out-of-order message (bad timestamp) or other issue
+     * @throws IOException  out-of-order message (bad timestamp) older than the maximum lateness, or other issue
      */
     @Override
     public void processStatsMessage(final StatsMessageWithMetadata swmd)
@@ -84,26 +305,171 @@ public final class RecentStatsWindow implements StatsHandler
         if(null == swmd) { throw new IllegalArgumentException(); }
 
         final StatsMessageWithMetadata mostRecent = getMostRecentMessage();
-        if((mostRecent != null) && (mostRecent.timestamp > swmd.timestamp)) { throw new IOException("misordered timestamps"); }
+        final boolean late = (mostRecent != null) && (mostRecent.timestamp > swmd.timestamp);
+        if(late)
+            {
+            if((mostRecent.timestamp - swmd.timestamp > lateness_ms) || (swmd.timestamp < windowStart))
+                { ++droppedCount; throw new IOException("misordered timestamps"); }
+            ++lateCount;
+            }
 
-        // Add this new stats message to the end of the queue.
-        lastMessages.add(swmd);
+        // Add this new stats message to the end of the queue, or in place if late.
+        final Entry e = new Entry(swmd);
+        if(late) { lastMessages.insert(e); } else { lastMessages.addLast(e); }
+        final String id = swmd.getLeafIDAsString();
+        if(null != id)
+            {
+            LeafIndex leaf = byLeafID.get(id);
+            if(null == leaf) { leaf = new LeafIndex(); byLeafID.put(id, leaf); }
+            if(late) { leaf.messages.insert(e); } else { leaf.messages.addLast(e); }
+            updateFields(leaf, swmd);
+            }
+        // Nothing more can expire if this message is not the newest.
+        if(late) { return; }
 
-        // Remove all messages now too old from the front of the queue.
+        // Remove all messages now too old from the front of the queue,
+        // and from their leaf's index, dropping leaves with nothing retained.
         final long limit = swmd.timestamp - window_ms;
-        for( ; ; )
+        windowStart = limit;
+        while(lastMessages.firstTimestamp() < limit)
+            {
+            final Entry oldest = lastMessages.removeFirst();
+            final String oldID = oldest.swmd.getLeafIDAsString();
+            if(null == oldID) { continue; }
+            final LeafIndex leaf = byLeafID.get(oldID);
+            leaf.messages.removeFirst();
+            if(0 == leaf.messages.size()) { byLeafID.remove(oldID); }
+            }
+        }
+
+    /**Update the latest field values for a leaf from a new (possibly late) message. */
+    private static void updateFields(final LeafIndex leaf, final StatsMessageWithMetadata swmd)
+        {
+        // Do not cache the parsed Map in the retained message, as that would multiply its footprint.
+        final Map<String, Object> m;
+        try { m = swmd.parseStatsAsMap(false); }
+        catch(final IllegalArgumentException e) { return; } // Malformed binary stats.
+        if(null == m) { return; }
+        for(final Map.Entry<String, Object> f : m.entrySet())
             {
-            final StatsMessageWithMetadata oldest = lastMessages.peekFirst();
-            if(oldest.timestamp >= limit) { break; }
-            lastMessages.pop();
+            final String key = f.getKey();
+            if("@".equals(key)) { continue; }
+            FieldValue fv = leaf.fields.get(key);
+            if(null == fv) { fv = new FieldValue(); leaf.fields.put(key, fv); }
+            else if(fv.timestamp > swmd.timestamp) { continue; } // Already have a newer value.
+            fv.value = f.getValue();
+            fv.timestamp = swmd.timestamp;
             }
+        }
 
-        // TODO: clear up other cached state...
+    /**Get the number of messages retained. */
+    public int size() { return(lastMessages.size()); }
+
+    /**Get the number of message slots allocated, in the window and its per-leaf indexes; at least size(). */
+    public int getCapacity()
+        {
+        int capacity = lastMessages.capacity();
+        for(final LeafIndex li : byLeafID.values()) { capacity += li.messages.capacity(); }
+        return(capacity);
         }
 
     /**Returns snapshot ordered list/log of last messages inserted, idempotent; never null but may be empty. */
     public List<StatsMessageWithMetadata> getRecentStatsMessagesInOrder()
-        { return(new ArrayList<>(lastMessages)); }
+        { return(lastMessages.slice(Long.MIN_VALUE, Long.MAX_VALUE)); }
+
+    /**Returns snapshot ordered list of retained messages with timestamps in [from, to); never null but may be empty.
+     * Costs O(log n) plus the size of the result.
+     */
+    public List<StatsMessageWithMetadata> getRecentStatsMessagesInOrder(final long from, final long to)
+        { return(lastMessages.slice(from, to)); }
+
+    /**Returns snapshot of leaf IDs with retained messages, in ID order; never null but may be empty. */
+    public SortedSet<String> getLeafIDs()
+        { return(new TreeSet<>(byLeafID.keySet())); }
+
+    /**Returns snapshot ordered list of retained messages for one leaf; never null but may be empty. */
+    public List<StatsMessageWithMetadata> getRecentStatsMessagesForLeafID(final String leafID)
+        { return(getRecentStatsMessagesForLeafID(leafID, Long.MIN_VALUE, Long.MAX_VALUE)); }
+
+    /**Returns snapshot ordered list of retained messages for one leaf with timestamps in [from, to); never null but may be empty.
+     * Costs O(log n) in the leaf's retained messages plus the size of the result,
+     * eg for "the last hour for leaf 0a45".
+     */
+    public List<StatsMessageWithMetadata> getRecentStatsMessagesForLeafID(final String leafID, final long from, final long to)
+        {
+        final LeafIndex leaf = byLeafID.get(leafID);
+        if(null == leaf) { return(Collections.emptyList()); }
+        return(leaf.messages.slice(from, to));
+        }
+
+    /**Get the latest retained value of a field for a leaf; null if none.
+     * @param field  field name as in the parsed stats map, eg "T|C16"
+     */
+    public Object getLatestValue(final String leafID, final String field)
+        {
+        final LeafIndex leaf = byLeafID.get(leafID);
+        if(null == leaf) { return(null); }
+        final FieldValue fv = leaf.fields.get(field);
+        if((null == fv) || (fv.timestamp < windowStart)) { return(null); }
+        return(fv.value);
+        }
+
+    /**Returns snapshot of the latest retained value of each field for a leaf, in field order; never null but may be empty. */
+    public SortedMap<String, Object> getLatestValues(final String leafID)
+        {
+        final SortedMap<String, Object> result = new TreeMap<>();
+        final LeafIndex leaf = byLeafID.get(leafID);
+        if(null == leaf) { return(result); }
+        for(final Map.Entry<String, FieldValue> f : leaf.fields.entrySet())
+            { if(f.getValue().timestamp >= windowStart) { result.put(f.getKey(), f.getValue().value); } }
+        return(result);
+        }
+
+    /**Returns snapshot of most recent retained message by leaf ID, in ID order, idempotent; never null but may be empty. */
+    public SortedMap<String, StatsMessageWithMetadata> getLatestMessageByLeafID()
+        {
+        final SortedMap<String, StatsMessageWithMetadata> result = new TreeMap<>();
+        for(final Map.Entry<String, LeafIndex> e : byLeafID.entrySet()) { result.put(e.getKey(), e.getValue().messages.last().swmd); }
+        return(result);
+        }
+
+    /**Returns ordered list/log of last messages inserted as JSON array text, idempotent; never null.
+     * Identical to the text form of getRecentStatsMessagesInOrderAsJSONArray(),
+     * but each entry is serialised only once while it is in the window.
+     */
+    public String getRecentStatsMessagesInOrderAsJSONString()
+        {
+        final int n = lastMessages.size();
+        final StringBuilder sb = new StringBuilder(2 + (64 * n));
+        sb.append('[');
+        for(int i = 0; i < n; ++i)
+            {
+            if(0 != i) { sb.append(','); }
+            sb.append(lastMessages.get(i).getJSON());
+            }
+        sb.append(']');
+        return(sb.toString());
+        }
+
+    /**Returns most recent retained message by leaf ID as JSON object text in ID order, idempotent; never null.
+     * Each value is the same JSON array entry as in the log,
+     * and is serialised only once while it is in the window.
+     */
+    public String getLatestMessageByLeafIDAsJSONString()
+        {
+        final SortedMap<String, LeafIndex> byID = new TreeMap<>(byLeafID);
+        final StringBuilder sb = new StringBuilder(2 + (80 * byID.size()));
+        sb.append('{');
+        boolean first = true;
+        for(final Map.Entry<String, LeafIndex> e : byID.entrySet())
+            {
+            if(first) { first = false; } else { sb.append(','); }
+            sb.append('"').append(JSONValue.escape(e.getKey())).append("\":");
+            sb.append(e.getValue().messages.last().getJSON());
+            }
+        sb.append('}');
+        return(sb.toString());
+        }
 
     /**Returns snapshot ordered list/log of last messages inserted as JSON array, idempotent; never null but may be an empty array.
      * May partially cache content or use internal state for efficiency.
@@ -127,9 +493,15 @@ public final class RecentStatsWindow implements StatsHandler
 
     /**Get most oldest message in log window; null if none. */
     public StatsMessageWithMetadata getOldestMessage()
-        { return(lastMessages.peekFirst()); }
+        {
+        final Entry e = lastMessages.first();
+        return((null == e) ? null : e.swmd);
+        }
 
     /**Get most recent message in log window; null if none. */
     public StatsMessageWithMetadata getMostRecentMessage()
-        { return(lastMessages.peekLast()); }
+        {
+        final Entry e = lastMessages.last();
+        return((null == e) ? null : e.swmd);
+        }
     }
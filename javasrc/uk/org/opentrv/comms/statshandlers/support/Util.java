@@ -36,6 +36,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.json.simple.parser.JSONParser;
 
+import uk.org.opentrv.comms.json.FlatLeafJSONTokenizer;
+
 public final class Util
     {
     /**8-bit ISO-8859-1 file encoding. */
@@ -51,10 +53,9 @@ public final class Util
     public static final String F_tmpPrefix = ".tmp.";
 
 
-    /**Lock object for touch and rate-limit to serialise operations per process (or class loader).
+    /**Lock object for touch to serialise operations per process (or class loader).
      * This aims to reduce the chance of a race within the file system.
-     * <p>
-     * This may also make an in-process cache plausible.
+     * (Rate-limit flags are handled per operation by RateLimitLedger instead.)
      */
     private static final Object touchLock = new Object();
 
@@ -115,6 +116,16 @@ public final class Util
     public static boolean replacePublishedFile(final String name, final byte data[],
                                                final boolean quiet)
         throws IOException
+        { return(replacePublishedFile(name, data, quiet, true)); }
+
+    /**Replaces an existing published file with a new one (see 3-arg version).
+     * @param quiet     if true then only error messages will be output
+     * @param sync      if true then force the new content to disc before replacing;
+     *     if false the caller is responsible for durability, eg via a GroupCommitter
+     */
+    public static boolean replacePublishedFile(final String name, final byte data[],
+                                               final boolean quiet, final boolean sync)
+        throws IOException
         {
         if((name == null) || (name.length() == 0))
             { throw new IOException("inappropriate file name"); }
@@ -176,7 +187,7 @@ public final class Util
                     os.write(data);
                     // Force to underlying media (eg fsync()).
                     os.flush();
-                    os.getFD().sync();
+                    if(sync) { os.getFD().sync(); }
                     }
                 finally { os.close(); }
                 os = null; // Help GC.
@@ -406,6 +417,16 @@ public final class Util
         // Full parse for compact JSON ('{') format.
         if(statsMessage.startsWith("{"))
             {
+            // Try the cheap flat-object tokenizer first.
+            if(FlatLeafJSONTokenizer.enabled)
+                {
+                final FlatLeafJSONTokenizer t = FlatLeafJSONTokenizer.perThread();
+                if(t.parse(statsMessage))
+                    {
+                    final int i = t.indexOf("@");
+                    return((-1 == i) ? null : t.getString(i));
+                    }
+                }
             final JSONParser parser = new JSONParser();
             try
                 {
@@ -430,6 +451,9 @@ public final class Util
      * This persists a flag for the operation in the filesystem,
      * touching it when the operation is performed,
      * and refusing it if the last operation happened too recently.
+     * Operation times are also held in memory by the default RateLimitLedger,
+     * so that vetoes need no filesystem access;
+     * the flag is always re-read and touched before an operation is allowed.
      * <p>
      * Flag purging should be done with care, not in the normal course of events.
      * The result of a purge call to remove the flag is always false,
@@ -442,34 +466,7 @@ public final class Util
         {
         final boolean purgeFlag = (-1 == minMinutesSpacing);
         if(!purgeFlag && (minMinutesSpacing <= 0)) { throw new IllegalArgumentException(); }
-        final String userHomeS = System.getProperty("user.home");
-        if((null == userHomeS) || ("".equals(userHomeS))) { throw new IOException("bad user.home property"); }
-        final File userHome = new File(userHomeS);
-        final File flagsDir = new File(userHome, ".V0p2HubOpsRateLimitFlags");
-        if(!flagsDir.exists())
-            {
-            if(!userHome.exists() && !userHome.isDirectory()) { throw new IOException("bad user.home dir: " + userHome); }
-            flagsDir.mkdir();
-            if(!flagsDir.exists())  { throw new IOException("unable to create rate-limit flags dir: " + flagsDir); }
-            }
-
-        final File flag = new File(flagsDir, uniqueOperationID + ".flag");
-        final long minFlagAge = System.currentTimeMillis() - (minMinutesSpacing * 60_000L);
-        synchronized(touchLock)
-            {
-            if(purgeFlag)
-                {
-                flag.delete();
-                return(false); // Do NOT perform the operation.
-                }
-            // TODO: note that touch timestamps (to VETO an op) are locally cacheable for at least 60s...
-            final long ts = flag.lastModified();
-            // Return false if too soon since last op.
-            if(ts >= minFlagAge) { return(false); }
-            touch(flag);
-            // Flag updated; caller should perform the operation.
-            return(true);
-            }
+        return(RateLimitLedger.getDefault().canDoRateLimitedOperation(uniqueOperationID, minMinutesSpacing));
         }
 
 
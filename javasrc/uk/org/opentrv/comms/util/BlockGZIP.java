@@ -0,0 +1,435 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.comms.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**Block-compressed GZIP files: seekable, and decompressible in parallel.
+ * A block GZIP file is a sequence of independent GZIP members,
+ * each compressing a block of up to blockBytes of the original, split after a newline where possible,
+ * so the file remains a valid GZIP file readable by zcat, GZIPInputStream, etc.
+ * <p>
+ * Each member header carries an extra field (RFC 1952 FEXTRA) with subfield ID "OT"
+ * holding the total length of the member in bytes as a 4-byte little-endian value,
+ * so that member boundaries can be found without decompressing (as in BGZF but allowing larger blocks).
+ * <p>
+ * Members can be appended to an existing block GZIP file, eg for late lines for a day already compressed.
+ * <p>
+ * Blocks can be located by uncompressed offset and decompressed individually via openBlocks().
+ * <p>
+ * All methods are static and thread-safe.
+ */
+public final class BlockGZIP
+    {
+    /**Prevent instance creation. */
+    private BlockGZIP() { }
+
+    /**Default maximum uncompressed bytes per block. */
+    public static final int DEFAULT_BLOCK_BYTES = 1 << 20;
+
+    /**Maximum uncompressed bytes per block. */
+    public static final int MAX_BLOCK_BYTES = 1 << 28;
+
+    /**Bytes of fixed member header including the "OT" extra field. */
+    private static final int HEADER_BYTES = 10 + 2 + 8;
+
+    /**Bytes of member trailer (CRC32, ISIZE). */
+    private static final int TRAILER_BYTES = 8;
+
+    /**Extra subfield ID bytes. */
+    private static final byte SI1 = 'O', SI2 = 'T';
+
+    /**Maximum blocks decompressed ahead of the reader in a stream, per available processor. */
+    private static final int READ_AHEAD_PER_CPU = 2;
+
+    /**Write one block as a GZIP member.
+     * @param deflater  reset and reused; never null
+     */
+    private static void writeMember(final OutputStream out, final byte[] buf, final int off, final int len, final Deflater deflater)
+        throws IOException
+        {
+        deflater.reset();
+        deflater.setInput(buf, off, len);
+        deflater.finish();
+        byte[] data = new byte[Math.max(64, len + (len >>> 3) + 64)];
+        int n = 0;
+        while(!deflater.finished())
+            {
+            if(n == data.length) { data = Arrays.copyOf(data, 2 * n); }
+            n += deflater.deflate(data, n, data.length - n);
+            }
+        final CRC32 crc = new CRC32();
+        crc.update(buf, off, len);
+        final int memberBytes = HEADER_BYTES + n + TRAILER_BYTES;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte)0x1f).put((byte)0x8b).put((byte)8).put((byte)4); // Magic, deflate, FEXTRA.
+        header.putInt(0).put((byte)0).put((byte)255); // No MTIME, XFL, OS unknown.
+        header.putShort((short)8).put(SI1).put(SI2).putShort((short)4).putInt(memberBytes);
+        out.write(header.array());
+        out.write(data, 0, n);
+        final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int)crc.getValue()).putInt(len);
+        out.write(trailer.array());
+        }
+
+    /**Compress a stream as block GZIP members, ending blocks after a newline where possible.
+     * @param blockBytes  maximum uncompressed bytes per block; in range [1, MAX_BLOCK_BYTES]
+     * @return number of uncompressed bytes
+     */
+    public static long compress(final InputStream in, final OutputStream out, final int blockBytes) throws IOException
+        {
+        if((blockBytes < 1) || (blockBytes > MAX_BLOCK_BYTES)) { throw new IllegalArgumentException(); }
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try
+            {
+            final byte[] buf = new byte[blockBytes];
+            long total = 0;
+            int filled = 0;
+            boolean eof = false, wroteEmpty = false;
+            while(true)
+                {
+                while(!eof && (filled < buf.length))
+                    {
+                    final int n = in.read(buf, filled, buf.length - filled);
+                    if(n < 0) { eof = true; } else { filled += n; }
+                    }
+                // An empty input still gets one (empty) member so that the result is valid GZIP.
+                if((0 == filled) && ((total > 0) || wroteEmpty)) { break; }
+                wroteEmpty = (0 == filled);
+                int cut = filled;
+                if(!eof) { for(int i = filled; --i >= 0; ) { if('\n' == buf[i]) { cut = i + 1; break; } } }
+                writeMember(out, buf, 0, cut, deflater);
+                total += cut;
+                System.arraycopy(buf, cut, buf, 0, filled - cut);
+                filled -= cut;
+                }
+            return(total);
+            }
+        finally { deflater.end(); }
+        }
+
+    /**Find the members of a block GZIP file; null if it is not (entirely) in that format.
+     * @return offset and length pairs of each member, in file order
+     */
+    private static long[] findMembers(final ByteBuffer file)
+        {
+        final List<Long> members = new ArrayList<>();
+        final int size = file.limit();
+        int pos = 0;
+        while(pos < size)
+            {
+            if(size - pos < HEADER_BYTES + TRAILER_BYTES) { return(null); }
+            if((0x1f != (file.get(pos) & 0xff)) || (0x8b != (file.get(pos + 1) & 0xff)) || (8 != file.get(pos + 2))) { return(null); }
+            if(0 == (file.get(pos + 3) & 4)) { return(null); } // No FEXTRA.
+            // Look for the "OT" subfield in the extra field.
+            final int xlen = (file.get(pos + 10) & 0xff) | ((file.get(pos + 11) & 0xff) << 8);
+            long memberBytes = -1;
+            for(int s = pos + 12; s + 4 <= pos + 12 + xlen; )
+                {
+                final int slen = (file.get(s + 2) & 0xff) | ((file.get(s + 3) & 0xff) << 8);
+                if((SI1 == file.get(s)) && (SI2 == file.get(s + 1)) && (4 == slen) && (s + 8 <= size))
+                    { memberBytes = file.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(s + 4) & 0xffffffffL; break; }
+                s += 4 + slen;
+                }
+            if((memberBytes < HEADER_BYTES + TRAILER_BYTES) || (pos + memberBytes > size)) { return(null); }
+            members.add((long)pos);
+            members.add(memberBytes);
+            pos += memberBytes;
+            }
+        final long[] result = new long[members.size()];
+        for(int i = 0; i < result.length; ++i) { result[i] = members.get(i); }
+        return(result);
+        }
+
+    /**Decompress one member, checking its CRC and length. */
+    private static byte[] inflateMember(final ByteBuffer file, final int offset, final int length) throws IOException
+        {
+        final byte[] member = new byte[length];
+        final ByteBuffer src = file.duplicate();
+        src.position(offset);
+        src.get(member);
+        final ByteBuffer trailer = ByteBuffer.wrap(member, length - TRAILER_BYTES, TRAILER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        final int crcExpected = trailer.getInt(), isize = trailer.getInt();
+        if((isize < 0) || (isize > MAX_BLOCK_BYTES)) { throw new ZipException("bad block size"); }
+        final int xlen = (member[10] & 0xff) | ((member[11] & 0xff) << 8);
+        // Skip any optional header fields after the extra field (FNAME, FCOMMENT, FHCRC).
+        int dataStart = 12 + xlen;
+        final int flg = member[3];
+        if(0 != (flg & 8)) { while((dataStart < length) && (0 != member[dataStart++])) { } }
+        if(0 != (flg & 16)) { while((dataStart < length) && (0 != member[dataStart++])) { } }
+        if(0 != (flg & 2)) { dataStart += 2; }
+        final byte[] out = new byte[isize];
+        final Inflater inflater = new Inflater(true);
+        try
+            {
+            inflater.setInput(member, dataStart, length - TRAILER_BYTES - dataStart);
+            int n = 0;
+            // Inflate beyond the expected length if need be to reach the end of the data.
+            final byte[] spare = new byte[1];
+            while(!inflater.finished())
+                {
+                final int r = (n < isize) ? inflater.inflate(out, n, isize - n) : inflater.inflate(spare);
+                if((n >= isize) && (r > 0)) { throw new ZipException("bad block length"); }
+                if((0 == r) && (inflater.needsInput() || inflater.needsDictionary())) { break; }
+                n += r;
+                }
+            if((n != isize) || !inflater.finished()) { throw new ZipException("bad block length"); }
+            }
+        catch(final DataFormatException e) { throw new ZipException(e.getMessage()); }
+        finally { inflater.end(); }
+        final CRC32 crc = new CRC32();
+        crc.update(out);
+        if((int)crc.getValue() != crcExpected) { throw new ZipException("bad block CRC"); }
+        return(out);
+        }
+
+    /**Map a whole file read-only. */
+    private static ByteBuffer map(final File f) throws IOException
+        {
+        try(final FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ))
+            {
+            if(fc.size() > Integer.MAX_VALUE) { throw new IOException("file too large to map: " + f); }
+            return(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+            }
+        }
+
+    /**True if the file is a non-empty block GZIP file. */
+    public static boolean isBlockGZIP(final File f) throws IOException
+        {
+        if(f.length() < HEADER_BYTES + TRAILER_BYTES) { return(false); }
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        try(final FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ))
+            { while(header.hasRemaining() && (fc.read(header) >= 0)) { } }
+        header.flip();
+        return((0x1f == (header.get(0) & 0xff)) && (0x8b == (header.get(1) & 0xff)) && (4 == (header.get(3) & 4)) &&
+            (SI1 == header.get(12)) && (SI2 == header.get(13)));
+        }
+
+    /**The blocks of a block GZIP file, for decompressing only those covering a range of the original.
+     * Thread-safe.
+     */
+    public static final class Blocks
+        {
+        /**Mapped file; read with absolute gets and duplicates only. */
+        private final ByteBuffer file;
+        /**Offset and length pairs of each member, in file order. */
+        private final long[] members;
+        /**Uncompressed start offset of each block, followed by the total uncompressed length. */
+        private final long[] starts;
+
+        private Blocks(final ByteBuffer file, final long[] members)
+            {
+            this.file = file;
+            this.members = members;
+            final int n = members.length / 2;
+            starts = new long[n + 1];
+            final ByteBuffer le = file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            for(int i = 0; i < n; ++i)
+                { starts[i+1] = starts[i] + (le.getInt((int)(members[2*i] + members[2*i+1]) - 4) & 0xffffffffL); }
+            }
+
+        /**Get the number of blocks. */
+        public int size() { return(starts.length - 1); }
+
+        /**Get the total uncompressed length, as recorded in the members. */
+        public long getLength() { return(starts[starts.length - 1]); }
+
+        /**Get the uncompressed offset of the start of block i. */
+        public long getStart(final int i) { return(starts[i]); }
+
+        /**Get the offset of block i in the compressed file, eg to identify it while the file is appended to. */
+        public long getFileOffset(final int i) { return(members[2*i]); }
+
+        /**Get the index of the block containing the given uncompressed offset, which must be in [0, getLength()). */
+        public int blockAt(final long offset)
+            {
+            if((offset < 0) || (offset >= getLength())) { throw new IllegalArgumentException(); }
+            // Last block starting at or before the offset, so skipping any empty blocks.
+            int lo = 0, hi = size();
+            while(hi - lo > 1)
+                {
+                final int mid = (lo + hi) >>> 1;
+                if(starts[mid] <= offset) { lo = mid; } else { hi = mid; }
+                }
+            return(lo);
+            }
+
+        /**Decompress block i, checking its CRC and length. */
+        public byte[] inflate(final int i) throws IOException
+            { return(inflateMember(file, (int)members[2*i], (int)members[2*i+1])); }
+        }
+
+    /**Get the blocks of a block GZIP file; null if not a (non-empty) block GZIP file. */
+    public static Blocks openBlocks(final File f) throws IOException
+        {
+        if(!isBlockGZIP(f)) { return(null); }
+        final ByteBuffer file = map(f);
+        final long[] members = findMembers(file);
+        return((null == members) ? null : new Blocks(file, members));
+        }
+
+    /**Get a stream of the decompressed content of a GZIP file.
+     * A block GZIP file is decompressed a few blocks ahead of the reader in parallel;
+     * any other GZIP file is decompressed sequentially.
+     */
+    public static InputStream newInputStream(final File f) throws IOException
+        {
+        if(isBlockGZIP(f))
+            {
+            final ByteBuffer file = map(f);
+            final long[] members = findMembers(file);
+            if(null != members) { return(new ParallelInputStream(file, members)); }
+            }
+        return(new GZIPInputStream(new BufferedInputStream(new FileInputStream(f))));
+        }
+
+    /**Decompress a whole GZIP file into memory, in parallel for a block GZIP file.
+     * @return buffer with the whole decompressed content; never null
+     */
+    public static ByteBuffer readAll(final File f) throws IOException
+        {
+        final Blocks blocks = openBlocks(f);
+        if(null != blocks)
+            {
+            if(blocks.getLength() > Integer.MAX_VALUE) { throw new IOException("decompressed file too large: " + f); }
+            final byte[] out = new byte[(int)blocks.getLength()];
+            final List<Future<byte[]>> inflated = new ArrayList<>(blocks.size());
+            for(int i = 0; i < blocks.size(); ++i) { inflated.add(submit(blocks.file, blocks.members, i)); }
+            for(int i = 0; i < blocks.size(); ++i)
+                {
+                final byte[] b = get(inflated.get(i));
+                System.arraycopy(b, 0, out, (int)blocks.getStart(i), b.length);
+                }
+            return(ByteBuffer.wrap(out));
+            }
+        try(final InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(f))))
+            {
+            byte[] out = new byte[8192];
+            int n = 0;
+            for(int r; (r = in.read(out, n, out.length - n)) >= 0; )
+                { n += r; if(n == out.length) { out = Arrays.copyOf(out, 2 * n); } }
+            return(ByteBuffer.wrap(out, 0, n).slice());
+            }
+        }
+
+    /**Start decompressing member i in the background. */
+    private static Future<byte[]> submit(final ByteBuffer file, final long[] members, final int i)
+        {
+        return(ForkJoinPool.commonPool().submit(new Callable<byte[]>()
+            {
+            @Override public byte[] call() throws IOException
+                { return(inflateMember(file, (int)members[2*i], (int)members[2*i+1])); }
+            }));
+        }
+
+    /**Wait for a decompressed block, unwrapping any failure. */
+    private static byte[] get(final Future<byte[]> f) throws IOException
+        {
+        try { return(f.get()); }
+        catch(final InterruptedException e) { Thread.currentThread().interrupt(); throw new InterruptedIOException(); }
+        catch(final ExecutionException e)
+            {
+            if(e.getCause() instanceof IOException) { throw (IOException)e.getCause(); }
+            throw new IOException(e.getCause());
+            }
+        }
+
+    /**Stream of a block GZIP file, decompressing a bounded number of blocks ahead in parallel. */
+    private static final class ParallelInputStream extends InputStream
+        {
+        private final ByteBuffer file;
+        private final long[] members;
+        /**Blocks being decompressed, in order. */
+        private final ArrayDeque<Future<byte[]>> ahead = new ArrayDeque<>();
+        /**Index of next member to submit. */
+        private int next;
+        /**Current block and read position in it; null when exhausted or closed. */
+        private byte[] block = new byte[0];
+        private int pos;
+
+        ParallelInputStream(final ByteBuffer file, final long[] members)
+            {
+            this.file = file;
+            this.members = members;
+            final int window = READ_AHEAD_PER_CPU * Runtime.getRuntime().availableProcessors();
+            while((next < members.length / 2) && (ahead.size() < window)) { ahead.add(submit(file, members, next++)); }
+            }
+
+        /**Ensure there is data in the current block; false at end of stream. */
+        private boolean fill() throws IOException
+            {
+            if(null == block) { return(false); }
+            while(pos == block.length)
+                {
+                final Future<byte[]> f = ahead.poll();
+                if(null == f) { block = null; return(false); }
+                if(next < members.length / 2) { ahead.add(submit(file, members, next++)); }
+                block = get(f);
+                pos = 0;
+                }
+            return(true);
+            }
+
+        @Override public int read() throws IOException
+            { return(fill() ? (block[pos++] & 0xff) : -1); }
+
+        @Override public int read(final byte[] b, final int off, final int len) throws IOException
+            {
+            if(0 == len) { return(0); }
+            if(!fill()) { return(-1); }
+            final int n = Math.min(len, block.length - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+            return(n);
+            }
+
+        @Override public int available() { return((null == block) ? 0 : (block.length - pos)); }
+
+        @Override public void close()
+            {
+            for(final Future<byte[]> f : ahead) { f.cancel(false); }
+            ahead.clear();
+            block = null;
+            }
+        }
+    }
@@ -18,6 +18,7 @@ Author(s) / Copyright (s): Damon Hart-Davis 2014
 
 package uk.org.opentrv.comms.util;
 
+import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsMap;
 import static uk.org.opentrv.comms.cfg.ConfigUtil.getAsString;
 import static uk.org.opentrv.comms.cfg.ConfigUtil.loadConfigFile;
 import gnu.io.SerialPort;
@@ -28,6 +29,8 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -35,6 +38,7 @@ import uk.org.opentrv.comms.cfg.ConfigException;
 import uk.org.opentrv.comms.statshandlers.StatsHandler;
 import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
 import uk.org.opentrv.comms.statshandlers.filter.AsyncStatsHandlerWrapper;
+import uk.org.opentrv.comms.statshandlers.filter.DispatchingStatsHandler;
 
 /**Follows and prints CLI and logs output given the device filename for serial connection to CLI as args[0] and dir name as args[1].
  * Attempts to use events rather than polling for efficiency (eg long sleeps)
@@ -97,6 +101,17 @@ public final class EventDrivenV0p2CLIFollower
             }
         }*/
 
+    /**Close all handlers that are AutoCloseable, in order, reporting but otherwise ignoring failures. */
+    private static void closeAll(final List<StatsHandler> handlers)
+        {
+        for(final StatsHandler sh : handlers)
+            {
+            if(!(sh instanceof AutoCloseable)) { continue; }
+            try { ((AutoCloseable)sh).close(); }
+            catch(final Exception e) { e.printStackTrace(); }
+            }
+        }
+
     /**Start copying output from OpenTRV unit to System.out using events.
      * @param args  [0] is optional config file name
      */
@@ -109,7 +124,11 @@ public final class EventDrivenV0p2CLIFollower
         if(null == portName) { throw new ConfigException("Port name not found in config"); }
         //if(args.length < 1) { throw new IllegalArgumentException("first arg must be serial port path"); }
         //final String portName = args[0];
-        final List<StatsHandler> handlers = StatsHandlerFactory.getInstance().newHandlerList(config);
+        // With a "dispatch" section, all handlers share one dispatcher,
+        // else each handler gets its own queue and thread.
+        final Map<?,?> dispatchConfig = getAsMap(config, "dispatch");
+        final List<StatsHandler> handlers = (null != dispatchConfig) ? null :
+            StatsHandlerFactory.getInstance().newHandlerList(config);
         /*final List<StatsHandler> handlers = new ArrayList<StatsHandler>();
         if((args.length >= 2) && ("-dhd".equals(args[1])))
             {
@@ -132,8 +151,33 @@ public final class EventDrivenV0p2CLIFollower
             }*/
         final IOHandlingV0p2 ioh = new IOHandlingV0p2();
 
-        final List<StatsHandler> wrappedHandlers = new ArrayList<>(handlers.size());
-        for(final StatsHandler sh : handlers) { wrappedHandlers.add(new AsyncStatsHandlerWrapper(sh)); }
+        final List<StatsHandler> wrappedHandlers;
+        final List<StatsHandler> innerHandlers;
+        if(null != dispatchConfig)
+            {
+            final Map<Object,Object> dc = new HashMap<>(dispatchConfig);
+            dc.put("handlers", config.get("handlers"));
+            final DispatchingStatsHandler dsh = new DispatchingStatsHandler(dc);
+            wrappedHandlers = Collections.<StatsHandler>singletonList(dsh);
+            innerHandlers = dsh.getHandlers();
+            }
+        else
+            {
+            wrappedHandlers = new ArrayList<>(handlers.size());
+            for(final StatsHandler sh : handlers) { wrappedHandlers.add(new AsyncStatsHandlerWrapper(sh)); }
+            innerHandlers = handlers;
+            }
+
+        // On exit (eg SIGTERM) let queued messages drain, then close the handlers,
+        // so that buffered logs, pending flag touches, batches and the like are not lost.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+            {
+            @Override public void run()
+                {
+                closeAll(wrappedHandlers);
+                closeAll(innerHandlers);
+                }
+            }, "handler shutdown"));
 
 //        if(!useRXTX)
 //            {
@@ -193,8 +237,7 @@ public final class EventDrivenV0p2CLIFollower
                             while(is.available() > 0)
                                 {
                                 final int n = is.read(buf);
-                                for(int i = 0; i < n; ++i)
-                                    { ioh.processInputChar(wrappedHandlers, os, (char)(buf[i] & 0xff)); }
+                                if(n > 0) { ioh.processInputBytes(wrappedHandlers, os, buf, 0, n); }
                                 }
                             }
                         catch (final Exception e)
@@ -33,12 +33,18 @@ import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
  */
 public final class IOHandlingV0p2
     {
-    /**Accumulated characters for current input line. */
-    private final StringBuilder inputBuf = new StringBuilder();
+    /**Accumulated (printable ASCII7) bytes for current input line; never null.
+     * Fixed-size and reused for every line to avoid per-char/per-line allocation
+     * other than for the final message String.
+     */
+    private final byte[] inputBuf = new byte[SerialSupportV0p2.MAX_STATS_LINE_CHARS];
+
+    /**Count of valid bytes in inputBuf for the current line; in range [0,inputBuf.length]. */
+    private int inputLen;
 
     /**Process a single new input char from the OpenTRV serial connection.
+     * Equivalent to processInputBytes() with a single byte.
      * @param handlers list of stats handlers that will do the actual processing
-     * @param inputBuf  buffer in which input for a single line is gathered
      * @param os output stream back to the OpenTRV unit, else null if not available
      * @param c  new character from the OpenTRV unit
      * @throws IOException  in case of I/O problems
@@ -48,10 +54,50 @@ public final class IOHandlingV0p2
                                  final char c)
         throws IOException
         {
+        processInputByte(handlers, os, c);
+        }
+
+    /**Process a block of new input bytes from the OpenTRV serial connection.
+     * Behaves exactly as calling processInputChar() for each byte in turn,
+     * but frames lines directly in a reusable buffer
+     * so is more efficient for the bulk reads typical of serial event listeners.
+     * @param handlers list of stats handlers that will do the actual processing
+     * @param os output stream back to the OpenTRV unit, else null if not available
+     * @param buf  buffer of new bytes from the OpenTRV unit; never null
+     * @param off  offset of first byte to process in buf
+     * @param len  count of bytes to process from buf; non-negative
+     * @throws IOException  in case of I/O problems
+     */
+    public void processInputBytes(final List<StatsHandler> handlers,
+                                  final OutputStream os,
+                                  final byte[] buf, final int off, final int len)
+        throws IOException
+        {
+        if((off < 0) || (len < 0) || (off + len > buf.length)) { throw new IndexOutOfBoundsException(); }
+        final int end = off + len;
+        for(int i = off; i < end; ++i)
+            {
+            final int b = buf[i] & 0xff;
+            // Fast path: append printable char to line if not too long already.
+            if((b >= 32) && (b <= 126) && ((b != '>') || (0 != inputLen)))
+                {
+                if(inputLen < inputBuf.length) { inputBuf[inputLen++] = (byte) b; }
+                continue;
+                }
+            processInputByte(handlers, os, b);
+            }
+        }
+
+    /**Process a single new input byte (as an unsigned value) from the OpenTRV serial connection. */
+    private void processInputByte(final List<StatsHandler> handlers,
+                                  final OutputStream os,
+                                  final int c)
+        throws IOException
+        {
 //        System.out.print(c); // TODO: make optional, as rather CPU-heavy!
 
         // Deal with CLI prompt immediately...
-        if((c == '>') && (0 == inputBuf.length()))
+        if((c == '>') && (0 == inputLen))
             {
             if(null != os)
                 {
@@ -68,37 +114,38 @@ public final class IOHandlingV0p2
             // End of line; process entire line.
 
             // Discard empty lines.
-            if(0 == inputBuf.length()) { return; }
+            if(0 == inputLen) { return; }
 
             try
                 {
-                switch(inputBuf.charAt(0))
+                switch(inputBuf[0])
                     {
                     case '=': // Local stats line.
                         {
                         // Treat local stats as always authenticated
                         // as generally passed over local wired connection.
-                        processStats(inputBuf.toString(), handlers, true);
-                        System.out.println(inputBuf); // Echo to stdout for logging.
+                        final String line = getInputLine();
+                        processStats(line, handlers, true);
+                        System.out.println(line); // Echo to stdout for logging.
                         break;
                         }
 
                     case '@': case '{': // Remote (binary/JSON) stats line.
                         {
-                        processStats(inputBuf.toString(), handlers, false);
+                        processStats(getInputLine(), handlers, false);
 //                        System.out.println(inputBuf); // Echo to stdout for logging.
                         break;
                         }
 
                     case '?': // Error/warning report from OpenTRV.
                         {
-                        System.err.println("WARNING: " + inputBuf);
+                        System.err.println("WARNING: " + getInputLine());
                         break;
                         }
 
                     case '!': // Error/warning report from OpenTRV.
                         {
-                        System.err.println("ERROR: " + inputBuf);
+                        System.err.println("ERROR: " + getInputLine());
                         break;
                         }
 
@@ -108,7 +155,7 @@ public final class IOHandlingV0p2
                 }
             finally
                 {
-                inputBuf.setLength(0); // Clear buffer regardless of success or failure.
+                inputLen = 0; // Clear buffer regardless of success or failure.
                 }
 
             return;
@@ -117,14 +164,22 @@ public final class IOHandlingV0p2
         else if((c < 32) || (c > 126))
             {
             // Bad character (non-printable ASCII); reject entire line.
-            System.err.println("Bad character on line: " + ((int)c) +
-                    " after " + inputBuf.length() + " chars: " + inputBuf.toString());
-            inputBuf.setLength(0); // Clear buffer.
+            System.err.println("Bad character on line: " + c +
+                    " after " + inputLen + " chars: " + getInputLine());
+            inputLen = 0; // Clear buffer.
             }
 
         // Append char if line not too long already.
-        else if(inputBuf.length() < SerialSupportV0p2.MAX_STATS_LINE_CHARS)
-            { inputBuf.append(c); }
+        else if(inputLen < inputBuf.length)
+            { inputBuf[inputLen++] = (byte) c; }
+        }
+
+    /**Get current accumulated input line as a String; never null. */
+    @SuppressWarnings("deprecation")
+    private String getInputLine()
+        {
+        // All bytes are printable ASCII7 so the (fast) high-byte-zero constructor is exact.
+        return(new String(inputBuf, 0, 0, inputLen));
         }
 
     /**Process stats messages from connected OpenTRV V0p2 unit with supplied handlers.
@@ -146,10 +201,26 @@ public final class IOHandlingV0p2
         // and the same across all handlers.
         final long timestamp = System.currentTimeMillis();
 
+        // The message is immutable so one instance can be shared by all handlers.
+        processStats(new StatsMessageWithMetadata(message, timestamp, authenticated), handlers);
+        }
+
+    /**Process a stats message with supplied handlers.
+     * Delegates the actual processing to each handler in the list in order, synchronously,
+     * passing the same (immutable) message instance to each.
+     *
+     * @param swmd  the stats message to process; never null
+     * @param handlers  the list of handlers to delegate processing to; not null not containing nulls
+     */
+    public static void processStats(final StatsMessageWithMetadata swmd, final List<StatsHandler> handlers)
+        {
+        if(null == swmd) { throw new IllegalArgumentException(); }
+        if((null == handlers) || (handlers.size() == 0)) { return; } // Not recording stats.
+
         for(final StatsHandler handler : handlers)
             {
             // Don't allow failure of one handler to prevent others being reached for given line.
-            try { handler.processStatsMessage(new StatsMessageWithMetadata(message, timestamp, authenticated)); }
+            try { handler.processStatsMessage(swmd); }
             catch(final IOException e) { e.printStackTrace(); }
             }
         }
@@ -58,7 +58,7 @@ public final class ParsedRemoteBinaryStatsRecord
         for(final Character key : sectionsByKey.keySet())
             { result.put(Character.toString(key), sectionsByKey.get(key)); }
         getMapByString_cache = Collections.unmodifiableMap(result);
-        return(result);
+        return(getMapByString_cache);
         }
 
     /**Extracted ID; never null. */
@@ -0,0 +1,237 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.comms.util;
+
+import java.util.Arrays;
+
+/**Reusable zero-copy view over an '@' remote binary stats record such as <tt>@2D1A;T18CC;L47;O1</tt>.
+ * This is a lightweight alternative to ParsedRemoteBinaryStatsRecord
+ * that scans the record once and retains only the offset and length of each section value
+ * indexed by (printable ASCII7) section label,
+ * with typed accessors parsing numeric values in place.
+ * <p>
+ * No Strings or boxed values are created unless explicitly requested (eg by getID()),
+ * so a single instance can be wrap()ped around each new record in turn
+ * on a busy path without generating garbage.
+ * <p>
+ * Applies the same validity rules as ParsedRemoteBinaryStatsRecord:
+ * the leading section must be the '@' ID, sections are ';' separated,
+ * whitespace around sections is ignored, and empty or duplicate sections are rejected.
+ * <p>
+ * Not thread-safe; intended to be owned by a single thread or used under a lock.
+ */
+public final class RemoteBinaryStatsView
+    {
+    /**Value returned by the int accessors when the section is absent or unparseable. */
+    public static final int ABSENT = Integer.MIN_VALUE;
+
+    /**Size of per-label index arrays; covers all ASCII7. */
+    private static final int LABELS = 128;
+
+    /**Offset into raw of the value (after the label char) for each section label; -1 if absent. */
+    private final int[] valueOffset = new int[LABELS];
+    /**Length of the value (excluding the label char) for each section label; valid if valueOffset[] not -1. */
+    private final int[] valueLength = new int[LABELS];
+    /**Section labels in order of appearance; first sectionCount entries valid. */
+    private final char[] sectionOrder = new char[LABELS];
+    /**Count of valid sections; zero if no valid record wrapped. */
+    private int sectionCount;
+
+    /**Currently wrapped raw record; null if none or if the last wrap() failed. */
+    private CharSequence raw;
+
+    /**Create an empty view; use wrap() to point it at a record. */
+    public RemoteBinaryStatsView()
+        { Arrays.fill(valueOffset, -1); }
+
+    /**Clear any previously-wrapped record, touching only the entries used. */
+    private void clear()
+        {
+        for(int i = sectionCount; --i >= 0; ) { valueOffset[sectionOrder[i]] = -1; }
+        sectionCount = 0;
+        raw = null;
+        }
+
+    /**Point this view at a new '@' binary stats record, scanning it once; returns false if not a valid record.
+     * On failure the view is left empty.
+     * The record content must not change while wrapped.
+     *
+     * @param record  putative binary stats record; null returns false
+     */
+    public boolean wrap(final CharSequence record)
+        {
+        clear();
+        if((null == record) || (record.length() < 2) || (CommonSensorLabels.ID.getLabel() != record.charAt(0))) { return(false); }
+        final int len = record.length();
+        int start = 0;
+        while(start <= len)
+            {
+            int end = start;
+            while((end < len) && (';' != record.charAt(end))) { ++end; }
+            // Trim whitespace as String.trim() would.
+            int s = start, e = end;
+            while((s < e) && (record.charAt(s) <= ' ')) { ++s; }
+            while((e > s) && (record.charAt(e-1) <= ' ')) { --e; }
+            if(s == e)
+                {
+                // Trailing truly-empty sections are ignored, as with String.split().
+                if(start == end)
+                    {
+                    int i = end;
+                    while((i < len) && (';' == record.charAt(i))) { ++i; }
+                    if(i == len) { break; }
+                    }
+                clear(); return(false);
+                }
+            final char k = record.charAt(s);
+            if((k >= LABELS) || (-1 != valueOffset[k])) { clear(); return(false); }
+            valueOffset[k] = s + 1;
+            valueLength[k] = e - s - 1;
+            sectionOrder[sectionCount++] = k;
+            start = end + 1;
+            }
+        if(0 == sectionCount) { return(false); }
+        raw = record;
+        return(true);
+        }
+
+    /**True iff a valid record is currently wrapped. */
+    public boolean isValid() { return(null != raw); }
+
+    /**Get currently-wrapped record; null if none. */
+    public CharSequence getRaw() { return(raw); }
+
+    /**Number of sections in the current record, including the ID; zero if none. */
+    public int getSectionCount() { return(sectionCount); }
+
+    /**Get label of i'th section in order of appearance, the first being the '@' ID. */
+    public char getSectionLabel(final int i)
+        {
+        if((i < 0) || (i >= sectionCount)) { throw new IndexOutOfBoundsException(); }
+        return(sectionOrder[i]);
+        }
+
+    /**True iff the current record contains the given section. */
+    public boolean hasSection(final char label)
+        { return((label < LABELS) && (-1 != valueOffset[label])); }
+
+    /**Offset within getRaw() of the value of the given section; -1 if absent. */
+    public int getValueOffset(final char label)
+        { return((label < LABELS) ? valueOffset[label] : -1); }
+
+    /**Length of the value of the given section; -1 if absent. */
+    public int getValueLength(final char label)
+        { return(hasSection(label) ? valueLength[label] : -1); }
+
+    /**Append value of the given section to the supplied buffer; returns false (and appends nothing) if absent. */
+    public boolean appendValue(final char label, final StringBuilder sb)
+        {
+        if(!hasSection(label)) { return(false); }
+        final int off = valueOffset[label];
+        sb.append(raw, off, off + valueLength[label]);
+        return(true);
+        }
+
+    /**Get value of the given section as a new String; null if absent.
+     * Allocates, so for use where a String is actually needed.
+     */
+    public String getValueAsString(final char label)
+        {
+        if(!hasSection(label)) { return(null); }
+        final int off = valueOffset[label];
+        return(raw.subSequence(off, off + valueLength[label]).toString());
+        }
+
+    /**Get raw (un-normalised, eg upper-case hex) leaf ID as a new String; null if none wrapped. */
+    public String getID() { return(getValueAsString(CommonSensorLabels.ID.getLabel())); }
+
+    /**Parse in place a signed decimal int from raw[start,end); ABSENT if empty, malformed or out of range. */
+    private static int parseDecimal(final CharSequence cs, int start, final int end)
+        {
+        if(start >= end) { return(ABSENT); }
+        boolean neg = false;
+        final char c0 = cs.charAt(start);
+        if(('-' == c0) || ('+' == c0)) { neg = ('-' == c0); if(++start >= end) { return(ABSENT); } }
+        long v = 0;
+        for(int i = start; i < end; ++i)
+            {
+            final int d = cs.charAt(i) - '0';
+            if((d < 0) || (d > 9)) { return(ABSENT); }
+            v = (v * 10) + d;
+            if(v > Integer.MAX_VALUE) { return(ABSENT); }
+            }
+        return((int) (neg ? -v : v));
+        }
+
+    /**Get value of given section parsed in place as a decimal integer; ABSENT if absent or not a decimal integer. */
+    public int getDecimal(final char label)
+        {
+        if(!hasSection(label)) { return(ABSENT); }
+        final int off = valueOffset[label];
+        return(parseDecimal(raw, off, off + valueLength[label]));
+        }
+
+    /**Get temperature in 1/16ths of a Celsius from the ddCh form (dd decimal, h hex), parsed in place; ABSENT if none or malformed.
+     * Gives the same value as ParsedRemoteBinaryStatsRecord.parseTemperatureFromDDCH() times 16.
+     */
+    public int getTemperatureC16()
+        {
+        final char label = CommonSensorLabels.TEMPERATURE.getLabel();
+        if(!hasSection(label)) { return(ABSENT); }
+        final int off = valueOffset[label];
+        final int len = valueLength[label];
+        if(len < 3) { return(ABSENT); }
+        final int whole = parseDecimal(raw, off, off + len - 2);
+        if(ABSENT == whole) { return(ABSENT); }
+        final int frac = Character.digit(raw.charAt(off + len - 1), 16);
+        if(frac < 0) { return(ABSENT); }
+        return((whole * 16) + frac);
+        }
+
+    /**Get ambient light level parsed in place; ABSENT if none or malformed. */
+    public int getLight() { return(getDecimal(CommonSensorLabels.LIGHT.getLabel())); }
+
+    /**Get relative humidity (%) parsed in place; ABSENT if none or malformed. */
+    public int getHumidity() { return(getDecimal(CommonSensorLabels.HUMIDITY.getLabel())); }
+
+    /**Get battery voltage in mV (as decimal integer) parsed in place; ABSENT if none or malformed. */
+    public int getBatteryMillivolts() { return(getDecimal(CommonSensorLabels.BATTERY.getLabel())); }
+
+    /**Get value of given section as a Number, as used for JSON payloads; null if absent or not numeric.
+     * Temperature is converted to Float Celsius;
+     * other values are Integer if decimal integers, else Double if parseable as such.
+     */
+    public Number getValueAsNumber(final char label)
+        {
+        if(!hasSection(label)) { return(null); }
+        if(CommonSensorLabels.TEMPERATURE.getLabel() == label)
+            {
+            final int c16 = getTemperatureC16();
+            return((ABSENT == c16) ? null : Float.valueOf(c16 / 16f));
+            }
+        final int i = getDecimal(label);
+        if(ABSENT != i) { return(Integer.valueOf(i)); }
+        // Rare slow path for non-integer values.
+        try { return(Double.valueOf(getValueAsString(label))); }
+        catch(final NumberFormatException e) { return(null); }
+        }
+
+    /**Returns current record as a String; empty if none. */
+    @Override public String toString() { return((null == raw) ? "" : raw.toString()); }
+    }
@@ -35,6 +35,8 @@ import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.zip.GZIPInputStream;
 
+import uk.org.opentrv.comms.util.BlockGZIP;
+
 
 /**Utility HDD methods. */
 public final class HDDUtil
@@ -440,7 +442,7 @@ public final class HDDUtil
     // File Readers of various flavours.
     private static Reader getGZIPpedASCIIFileReaderRE(final File file)
         {
-        try { return(new InputStreamReader(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))), "ASCII7")); }
+        try { return(new InputStreamReader(BlockGZIP.newInputStream(file), "ASCII7")); }
         catch(final IOException e) { throw new RuntimeException(e); }
         }
     private static Reader getASCIIFileReaderRE(final File file)
@@ -449,8 +451,18 @@ public final class HDDUtil
         catch(final IOException e) { throw new RuntimeException(e); }
         }
     /**Return Function to create Reader for plaintext or GZIPped ASCII7 text file within given directory and given class, wrapping IOException as RuntimeException.
-     * If resource name ends in .gz then GZIP decompression will automatically be applied.
+     * If resource name ends in .gz then GZIP decompression will automatically be applied,
+     * in parallel for block-compressed files (see BlockGZIP) such as rolled daily logs.
+     * If a plaintext file is absent but a .gz version of it is present, eg a rolled daily log, that is read instead.
      */
     public static Function<String, Reader> getDirSmartFileReader(final File dir)
-        { return(f -> f.endsWith(".gz") ? getGZIPpedASCIIFileReaderRE(new File(dir, f)) : getASCIIFileReaderRE(new File(dir, f))); }
+        {
+        return(f -> {
+            if(f.endsWith(".gz")) { return(getGZIPpedASCIIFileReaderRE(new File(dir, f))); }
+            final File plain = new File(dir, f);
+            final File gz = new File(dir, f + ".gz");
+            if(!plain.exists() && gz.exists()) { return(getGZIPpedASCIIFileReaderRE(gz)); }
+            return(getASCIIFileReaderRE(plain));
+            });
+        }
     }
@@ -0,0 +1,190 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.opentrv.comms.util.BlockGZIP;
+
+/**Test block-compressed GZIP files. */
+public class BlockGZIPTest
+    {
+    /**Temp file for each test, deleted after; never null during tests. */
+    private File tempFile;
+
+    @Before
+    public void before() throws Exception
+        {
+        tempFile = File.createTempFile("BlockGZIPTest", ".gz");
+        }
+
+    @After
+    public void after() throws Exception
+        {
+        tempFile.delete();
+        tempFile = null;
+        }
+
+    /**Make some random log-like text. */
+    private static byte[] randomText(final int lines)
+        {
+        final Random rnd = new Random(42);
+        final StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < lines; ++i)
+            { sb.append(String.format("[ \"2017-01-01T00:%02d:%02dZ\", \"\", {\"@\":\"%04x\",\"T|C16\":%d} ]\n", (i / 60) % 60, i % 60, rnd.nextInt(20), rnd.nextInt(400))); }
+        return(sb.toString().getBytes());
+        }
+
+    /**Read a stream fully. */
+    private static byte[] readFully(final InputStream in) throws IOException
+        {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[1000];
+        for(int n; (n = in.read(buf)) >= 0; ) { out.write(buf, 0, n); }
+        in.close();
+        return(out.toByteArray());
+        }
+
+    /**Content of a buffer. */
+    private static byte[] toArray(final ByteBuffer bb)
+        {
+        final byte[] b = new byte[bb.remaining()];
+        bb.duplicate().get(b);
+        return(b);
+        }
+
+    /**Compress to the temp file, optionally appending. */
+    private void compress(final byte[] data, final int blockBytes, final boolean append) throws IOException
+        {
+        try(final OutputStream out = new FileOutputStream(tempFile, append))
+            { assertEquals(data.length, BlockGZIP.compress(new ByteArrayInputStream(data), out, blockBytes)); }
+        }
+
+    /**Test round trip by all readers including plain GZIPInputStream, and appending. */
+    @Test
+    public void testRoundTrip() throws Exception
+        {
+        final byte[] data = randomText(5000);
+        compress(data, 4096, false);
+        assertTrue(BlockGZIP.isBlockGZIP(tempFile));
+        assertTrue(tempFile.length() < data.length / 3);
+        assertArrayEquals(data, readFully(BlockGZIP.newInputStream(tempFile)));
+        assertArrayEquals(data, toArray(BlockGZIP.readAll(tempFile)));
+        assertArrayEquals(data, readFully(new GZIPInputStream(Files.newInputStream(tempFile.toPath()))));
+
+        // Appended members, including a block that must split a long line.
+        final byte[] more = new byte[10000];
+        for(int i = 0; i < more.length; ++i) { more[i] = (byte)('a' + (i % 26)); }
+        compress(more, 4096, true);
+        final byte[] all = new byte[data.length + more.length];
+        System.arraycopy(data, 0, all, 0, data.length);
+        System.arraycopy(more, 0, all, data.length, more.length);
+        assertArrayEquals(all, readFully(BlockGZIP.newInputStream(tempFile)));
+        assertArrayEquals(all, toArray(BlockGZIP.readAll(tempFile)));
+        assertArrayEquals(all, readFully(new GZIPInputStream(Files.newInputStream(tempFile.toPath()))));
+
+        // Empty input is still valid GZIP.
+        compress(new byte[0], 4096, false);
+        assertEquals(0, readFully(BlockGZIP.newInputStream(tempFile)).length);
+        assertEquals(0, readFully(new GZIPInputStream(Files.newInputStream(tempFile.toPath()))).length);
+        }
+
+    /**Test random access to blocks by uncompressed offset, including after appending. */
+    @Test
+    public void testBlocks() throws Exception
+        {
+        final byte[] data = randomText(3000);
+        compress(data, 4096, false);
+        compress(data, 4096, true);
+        final BlockGZIP.Blocks blocks = BlockGZIP.openBlocks(tempFile);
+        assertEquals(2L * data.length, blocks.getLength());
+        assertTrue(blocks.size() > 10);
+        for(int i = 0; i < blocks.size(); ++i)
+            {
+            final byte[] b = blocks.inflate(i);
+            final long start = blocks.getStart(i);
+            assertTrue(b.length <= 4096);
+            assertEquals(i, blocks.blockAt(start));
+            assertEquals(i, blocks.blockAt(start + b.length - 1));
+            for(int j = 0; j < b.length; ++j) { assertEquals(data[(int)((start + j) % data.length)], b[j]); }
+            }
+        try { blocks.blockAt(blocks.getLength()); fail("beyond end"); }
+        catch(final IllegalArgumentException e) { /* Expected. */ }
+
+        // Not for ordinary GZIP.
+        try(final OutputStream out = new GZIPOutputStream(new FileOutputStream(tempFile))) { out.write(data); }
+        assertNull(BlockGZIP.openBlocks(tempFile));
+        }
+
+    /**Test that ordinary GZIP files are still read, sequentially. */
+    @Test
+    public void testPlainGZIP() throws Exception
+        {
+        final byte[] data = randomText(1000);
+        try(final OutputStream out = new GZIPOutputStream(new FileOutputStream(tempFile))) { out.write(data); }
+        assertFalse(BlockGZIP.isBlockGZIP(tempFile));
+        assertArrayEquals(data, readFully(BlockGZIP.newInputStream(tempFile)));
+        assertArrayEquals(data, toArray(BlockGZIP.readAll(tempFile)));
+        }
+
+    /**Test that corruption is detected. */
+    @Test
+    public void testCorrupt() throws Exception
+        {
+        final byte[] data = randomText(2000);
+        compress(data, 4096, false);
+        final byte[] gz = Files.readAllBytes(tempFile.toPath());
+        gz[gz.length / 2] ^= 0x55;
+        Files.write(tempFile.toPath(), gz);
+        try { readFully(BlockGZIP.newInputStream(tempFile)); fail("should have detected corruption"); }
+        catch(final IOException e) { /* Expected. */ }
+        }
+
+    /**Test that parallel decompression of many blocks gives the same bytes as a plain sequential GZIP reader. */
+    @Test
+    public void testParallelMatchesSequential() throws Exception
+        {
+        final byte[] data = randomText(200000);
+        compress(data, 1 << 18, false);
+        assertArrayEquals(data, readFully(new GZIPInputStream(Files.newInputStream(tempFile.toPath()), 1 << 16)));
+        assertArrayEquals(data, readFully(BlockGZIP.newInputStream(tempFile)));
+        }
+    }
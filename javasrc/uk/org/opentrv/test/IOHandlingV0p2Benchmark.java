@@ -0,0 +1,93 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.util.IOHandlingV0p2;
+
+/**Crude benchmark of bulk vs per-char framing of serial input by IOHandlingV0p2.
+ * Kept out of the unit tests, which check only that both paths frame the same lines;
+ * run by hand with the test classpath, optionally giving the number of repeats of the sample:
+<pre>
+java uk.org.opentrv.test.IOHandlingV0p2Benchmark [reps]
+</pre>
+ * The best of several runs is reported, to reduce JIT warm-up and GC noise.
+ */
+public final class IOHandlingV0p2Benchmark
+    {
+    private IOHandlingV0p2Benchmark() { }
+
+    /**Handler that only counts the lines it is passed. */
+    private static final class CountingStatsHandler implements StatsHandler
+        {
+        long count;
+        @Override public void processStatsMessage(final StatsMessageWithMetadata swmd) { ++count; }
+        }
+
+    public static void main(final String[] args) throws IOException
+        {
+        final int reps = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        // Use only the remote stats lines to avoid echoes and warnings to the console.
+        final StringBuilder sb = new StringBuilder();
+        for(final String line : new String(IOHandlingV0p2Test.loadSample(), "ASCII").split("\n"))
+            { if(line.startsWith("@") || line.startsWith("{")) { sb.append(line).append('\n'); } }
+        final byte[] sample = sb.toString().getBytes("ASCII");
+        final CountingStatsHandler h = new CountingStatsHandler();
+        final List<StatsHandler> handlers = Arrays.<StatsHandler>asList(h, new CountingStatsHandler());
+        final IOHandlingV0p2 ioh = new IOHandlingV0p2();
+        final byte[] buf = new byte[128];
+        long perCharNs = Long.MAX_VALUE, bulkNs = Long.MAX_VALUE;
+        long perCharLines = 0, bulkLines = 0;
+        for(int run = 0; run < 5; ++run)
+            {
+            h.count = 0;
+            final long t0 = System.nanoTime();
+            for(int r = reps; --r >= 0; )
+                { for(final byte b : sample) { ioh.processInputChar(handlers, null, (char)(b & 0xff)); } }
+            final long t1 = System.nanoTime();
+            perCharLines = h.count;
+            h.count = 0;
+            for(int r = reps; --r >= 0; )
+                {
+                // Simulate the serial listener's reads into a small buffer.
+                for(int off = 0; off < sample.length; off += buf.length)
+                    {
+                    final int n = Math.min(buf.length, sample.length - off);
+                    System.arraycopy(sample, off, buf, 0, n);
+                    ioh.processInputBytes(handlers, null, buf, 0, n);
+                    }
+                }
+            final long t2 = System.nanoTime();
+            bulkLines = h.count;
+            perCharNs = Math.min(perCharNs, t1 - t0);
+            bulkNs = Math.min(bulkNs, t2 - t1);
+            }
+        if(perCharLines != bulkLines) { throw new IllegalStateException("bulk and per-char framing differ"); }
+        final double bytes = (double)reps * sample.length;
+        System.out.println("lines framed per run: " + bulkLines);
+        System.out.println("per-char ns/byte: " + (perCharNs / bytes));
+        System.out.println("bulk ns/byte: " + (bulkNs / bytes));
+        System.out.println("speed-up: " + ((double)perCharNs / bulkNs));
+        }
+    }
@@ -0,0 +1,138 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.util.IOHandlingV0p2;
+
+/**Test framing of input from the V0p2 serial connection into stats lines. */
+public class IOHandlingV0p2Test
+    {
+    /**Sample hub serial output, including errors, prompts and blank lines. */
+    public static final String SAMPLE_NAME = "V0p2HubOutputSample.20150412.txt";
+
+    /**Load the sample hub output as raw bytes; never null. */
+    static byte[] loadSample() throws IOException
+        {
+        try(final InputStream is = IOHandlingV0p2Test.class.getResourceAsStream(SAMPLE_NAME))
+            {
+            assertNotNull(is);
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final byte[] buf = new byte[1024];
+            int n;
+            while(-1 != (n = is.read(buf))) { baos.write(buf, 0, n); }
+            return(baos.toByteArray());
+            }
+        }
+
+    /**Handler that records all messages passed to it, in order. */
+    private static final class RecordingStatsHandler implements StatsHandler
+        {
+        final List<StatsMessageWithMetadata> received = new ArrayList<>();
+        @Override public void processStatsMessage(final StatsMessageWithMetadata swmd) { received.add(swmd); }
+        List<String> getMessages()
+            {
+            final List<String> result = new ArrayList<>(received.size());
+            for(final StatsMessageWithMetadata swmd : received) { result.add(swmd.message); }
+            return(result);
+            }
+        }
+
+    /**Verify that bulk and per-char input framing give identical results, whatever the block size. */
+    @Test
+    public void testBulkMatchesPerChar() throws IOException
+        {
+        final byte[] sample = loadSample();
+
+        final RecordingStatsHandler perChar = new RecordingStatsHandler();
+        final ByteArrayOutputStream perCharOS = new ByteArrayOutputStream();
+        final IOHandlingV0p2 iohc = new IOHandlingV0p2();
+        for(final byte b : sample)
+            { iohc.processInputChar(Collections.<StatsHandler>singletonList(perChar), perCharOS, (char)(b & 0xff)); }
+        // All stats lines ('=', '@' and '{') should be extracted.
+        assertEquals(24, perChar.received.size());
+        assertEquals("{\"@\":\"414a\",\"+\":3,\"vac|h\":6,\"v|%\":0,\"tT|C\":7,\"vC|%\":0}", perChar.received.get(0).message);
+        // A single prompt should have been dismissed.
+        assertEquals("E\n", perCharOS.toString("ASCII"));
+
+        for(final int blockSize : new int[]{ 1, 2, 7, 128, sample.length })
+            {
+            final RecordingStatsHandler bulk = new RecordingStatsHandler();
+            final ByteArrayOutputStream bulkOS = new ByteArrayOutputStream();
+            final IOHandlingV0p2 iohb = new IOHandlingV0p2();
+            for(int off = 0; off < sample.length; off += blockSize)
+                {
+                iohb.processInputBytes(Collections.<StatsHandler>singletonList(bulk), bulkOS,
+                    sample, off, Math.min(blockSize, sample.length - off));
+                }
+            assertEquals("block size " + blockSize, perChar.getMessages(), bulk.getMessages());
+            assertEquals("E\n", bulkOS.toString("ASCII"));
+            }
+        }
+
+    /**Verify that lines with non-printable characters are rejected, and that over-long lines are truncated. */
+    @Test
+    public void testBadAndLongLines() throws IOException
+        {
+        final RecordingStatsHandler rsh = new RecordingStatsHandler();
+        final List<StatsHandler> handlers = Collections.<StatsHandler>singletonList(rsh);
+        final IOHandlingV0p2 ioh = new IOHandlingV0p2();
+        final byte[] bad = "@D49;T1\u00017C6;L61;O1\n@D49;T17C6\r\n".getBytes("ISO-8859-1");
+        ioh.processInputBytes(handlers, null, bad, 0, bad.length);
+        // The remainder of the damaged line is not recognised as stats and so is dropped.
+        assertEquals(Collections.singletonList("@D49;T17C6"), rsh.getMessages());
+
+        rsh.received.clear();
+        final byte[] longLine = new byte[1000];
+        Arrays.fill(longLine, (byte)'9');
+        longLine[0] = '@';
+        longLine[longLine.length-1] = '\n';
+        ioh.processInputBytes(handlers, null, longLine, 0, longLine.length);
+        assertEquals(1, rsh.received.size());
+        assertEquals(255, rsh.received.get(0).message.length());
+        }
+
+    /**Verify that a single message instance is shared across all handlers for each line. */
+    @Test
+    public void testSharedMessageInstance() throws IOException
+        {
+        final RecordingStatsHandler rsh1 = new RecordingStatsHandler();
+        final RecordingStatsHandler rsh2 = new RecordingStatsHandler();
+        final IOHandlingV0p2 ioh = new IOHandlingV0p2();
+        final byte[] line = "@D49;T17C6;L61;O1\n".getBytes("ASCII");
+        ioh.processInputBytes(Arrays.<StatsHandler>asList(rsh1, rsh2), null, line, 0, line.length);
+        assertEquals(1, rsh1.received.size());
+        assertSame(rsh1.received.get(0), rsh2.received.get(0));
+        }
+    }
@@ -0,0 +1,77 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test;
+
+import uk.org.opentrv.comms.util.ParsedRemoteBinaryStatsRecord;
+import uk.org.opentrv.comms.util.RemoteBinaryStatsView;
+
+/**Crude benchmark of reading '@' stats lines through a reused RemoteBinaryStatsView
+ * compared with building a ParsedRemoteBinaryStatsRecord for each.
+ * RemoteBinaryStatsViewTest checks that the two agree; this only times them.
+ * Run by hand with the test classpath, optionally giving the number of repeats:
+<pre>
+java uk.org.opentrv.test.RemoteBinaryStatsViewBenchmark [reps]
+</pre>
+ */
+public final class RemoteBinaryStatsViewBenchmark
+    {
+    private RemoteBinaryStatsViewBenchmark() { }
+
+    /**Typical remote binary stats lines. */
+    private static final String[] LINES = { "@2D1A;T19C3;L41;O1", "@819C;T16CA;L242;O1", "@D49;T17C6;L61;O1", "@3015;T17C8;L63;O1" };
+
+    public static void main(final String[] args)
+        {
+        final int reps = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        final RemoteBinaryStatsView v = new RemoteBinaryStatsView();
+        long parsedNs = Long.MAX_VALUE, viewNs = Long.MAX_VALUE;
+        // Forces both to extract the same values, and stops the JIT discarding either loop.
+        long check = 0;
+        // Best of several runs, to discount JIT warm-up and GC pauses.
+        for(int run = 0; run < 5; ++run)
+            {
+            final long t0 = System.nanoTime();
+            for(int r = reps; --r >= 0; )
+                {
+                for(final String l : LINES)
+                    {
+                    final ParsedRemoteBinaryStatsRecord p = new ParsedRemoteBinaryStatsRecord(l);
+                    check += (int)(p.getTemperature() * 16) + Integer.parseInt(p.sectionsByKey.get('L'));
+                    }
+                }
+            final long t1 = System.nanoTime();
+            for(int r = reps; --r >= 0; )
+                {
+                for(final String l : LINES)
+                    {
+                    v.wrap(l);
+                    check -= v.getTemperatureC16() + v.getLight();
+                    }
+                }
+            final long t2 = System.nanoTime();
+            parsedNs = Math.min(parsedNs, t1 - t0);
+            viewNs = Math.min(viewNs, t2 - t1);
+            }
+        if(0 != check) { throw new IllegalStateException("view and parsed record disagree"); }
+        final double lines = (double)reps * LINES.length;
+        System.out.println("ParsedRemoteBinaryStatsRecord ns/line: " + (parsedNs / lines));
+        System.out.println("RemoteBinaryStatsView ns/line: " + (viewNs / lines));
+        System.out.println("speed-up: " + ((double)parsedNs / viewNs));
+        }
+    }
@@ -0,0 +1,120 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import uk.org.opentrv.comms.http.RkdapPayload;
+import uk.org.opentrv.comms.statshandlers.mqtt.MqttPayload;
+import uk.org.opentrv.comms.util.ParsedRemoteBinaryStatsRecord;
+import uk.org.opentrv.comms.util.RemoteBinaryStatsView;
+
+/**Test the zero-copy binary stats view against the original parser. */
+public class RemoteBinaryStatsViewTest
+    {
+    /**Sample binary records, all valid. */
+    private static final String[] SAMPLES =
+        {
+        "@D49;T19C7",
+        "@2D1A;T20C7",
+        "@A45;P;T21CC",
+        "@3015;T25C8;L62;O1",
+        "@819C;T16CA;L242;O1",
+        "@ABCD;",
+        " @X ; T-2C8 ;L1",
+        };
+
+    /**Test that the view sees the same sections as ParsedRemoteBinaryStatsRecord. */
+    @Test
+    public void testMatchesParsedRecord()
+        {
+        final RemoteBinaryStatsView v = new RemoteBinaryStatsView();
+        for(final String s : SAMPLES)
+            {
+            if(!s.startsWith("@")) { assertFalse(v.wrap(s)); continue; }
+            final ParsedRemoteBinaryStatsRecord p = new ParsedRemoteBinaryStatsRecord(s);
+            assertTrue(s, v.wrap(s));
+            assertEquals(s, p.sectionsByKey.size(), v.getSectionCount());
+            assertEquals(s, p.ID, v.getID());
+            for(final Map.Entry<Character, String> e : p.sectionsByKey.entrySet())
+                { assertEquals(s, e.getValue(), v.getValueAsString(e.getKey())); }
+            final Float t = p.getTemperature();
+            if(null == t) { assertEquals(RemoteBinaryStatsView.ABSENT, v.getTemperatureC16()); }
+            else { assertEquals(s, t.floatValue(), v.getTemperatureC16() / 16f, 0f); }
+            }
+        }
+
+    /**Test typed accessors and rejection of bad records. */
+    @Test
+    public void testAccessorsAndRejection()
+        {
+        final RemoteBinaryStatsView v = new RemoteBinaryStatsView();
+        assertTrue(v.wrap("@3015;T25C8;L62;O1;H51;B3230"));
+        assertEquals(25*16 + 8, v.getTemperatureC16());
+        assertEquals(62, v.getLight());
+        assertEquals(51, v.getHumidity());
+        assertEquals(3230, v.getBatteryMillivolts());
+        assertEquals(1, v.getDecimal('O'));
+        assertEquals(RemoteBinaryStatsView.ABSENT, v.getDecimal('Z'));
+        assertEquals("3015", v.getID());
+        final StringBuilder sb = new StringBuilder();
+        assertTrue(v.appendValue('L', sb));
+        assertEquals("62", sb.toString());
+
+        // Re-wrapping must forget previous sections.
+        assertTrue(v.wrap("@A45;P"));
+        assertFalse(v.hasSection('T'));
+        assertTrue(v.hasSection('P'));
+        assertEquals(0, v.getValueLength('P'));
+        assertNull(v.getValueAsNumber('P'));
+        assertEquals(RemoteBinaryStatsView.ABSENT, v.getLight());
+
+        // Bad records are rejected as by ParsedRemoteBinaryStatsRecord, leaving the view empty.
+        for(final String bad : new String[]{ null, "", "@", "D49;T19C7", "@D49;;T19C7", "@D49;T19C7;T19C8", "@D49; ;L1" })
+            {
+            assertFalse(bad, v.wrap(bad));
+            assertFalse(v.isValid());
+            assertEquals(0, v.getSectionCount());
+            }
+        assertTrue(v.wrap("@D49;T19C7;;"));
+        assertEquals(2, v.getSectionCount());
+        }
+
+    /**Test that payloads built from the view match those from the original parser. */
+    @Test
+    public void testPayloadsMatch()
+        {
+        final RemoteBinaryStatsView v = new RemoteBinaryStatsView();
+        for(final String s : new String[]{ "@A45;T21CC;L35;O1", "@A45;P;T21CC", "@3015;T25C8;L62;O1" })
+            {
+            final ParsedRemoteBinaryStatsRecord p = new ParsedRemoteBinaryStatsRecord(s);
+            assertTrue(v.wrap(s));
+            assertEquals(new MqttPayload(p).toJSONString(), new MqttPayload(p.constructionTime, v).toJSONString());
+            assertEquals(new RkdapPayload("ED_25", p).toJSONObject().get(RkdapPayload.DATA_KEY).toString().length(),
+                new RkdapPayload("ED_25", p.constructionTime, v).toJSONObject().get(RkdapPayload.DATA_KEY).toString().length());
+            }
+        }
+    }
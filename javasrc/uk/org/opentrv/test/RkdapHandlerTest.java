@@ -27,7 +27,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.junit.Test;
 
 import uk.org.opentrv.comms.http.RkdapHandler;
@@ -40,6 +47,11 @@ import com.sun.net.httpserver.HttpServer;
 
 public class RkdapHandlerTest {
 
+    static {
+        // Stop the stand-in server's Nagle delays swamping request timings.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
     /**
      * Test the basic constructor.
      * @throws MalformedURLException
@@ -147,6 +159,143 @@ public class RkdapHandlerTest {
         }
     }
 
+    /**
+     * Test that batching combines data items from many lines into fewer uploads.
+     */
+    @Test public void testBatching() throws Exception {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        final CountingHandler handler = new CountingHandler();
+        server.createContext("/test", handler);
+        server.start();
+        try {
+            final String url = "http://localhost:" + server.getAddress().getPort() + "/test";
+            // Long interval so that only size and close() trigger sends.
+            try (final RkdapHandler rhandler = new RkdapHandler(url, "dadid", 60000, 10, 2, 5000, 100)) {
+                assertTrue(rhandler.isBatching());
+                for (int i = 0; i < 5; ++i) {
+                    // Three data items per line, so the fourth line fills the batch.
+                    rhandler.processStatsMessage(new StatsMessageWithMetadata("@A45;T21CC;L35;O1", 1, false));
+                }
+                assertEquals(1, handler.requests.get());
+            }
+            assertEquals(2, handler.requests.get());
+            final JSONObject last = (JSONObject) new JSONParser().parse(handler.lastBody);
+            assertEquals("dadid", last.get("dad_id"));
+            // Only full uploads are sent as the batch fills, so the rest are sent on close().
+            assertEquals(5, ((JSONArray) last.get("data")).size());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Test that a failed batch upload is kept and retried, within bounds.
+     */
+    @Test public void testBatchRetry() throws Exception {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        final CountingHandler handler = new CountingHandler();
+        server.createContext("/test", handler);
+        server.start();
+        try {
+            final String url = "http://localhost:" + server.getAddress().getPort() + "/test";
+            try (final RkdapHandler rhandler = new RkdapHandler(url, "dadid", 60000, 3, 2, 5000, 6)) {
+                handler.failing = true;
+                // A size-triggered failure does not reach the caller as the items are kept.
+                rhandler.processStatsMessage(new StatsMessageWithMetadata("@A45;T21CC;L35;O1", 1, false));
+                assertEquals(3, rhandler.getPendingCount());
+                try {
+                    rhandler.flush();
+                    fail("flush should have failed");
+                } catch (final IOException e) {
+                    // Expected.
+                }
+                assertEquals(3, rhandler.getPendingCount());
+                // Beyond the bound the oldest are discarded, and the next caller is told.
+                rhandler.processStatsMessage(new StatsMessageWithMetadata("@A45;T21CD;L36;O1", 2, false));
+                rhandler.processStatsMessage(new StatsMessageWithMetadata("@A45;T21CE;L37;O1", 3, false));
+                assertEquals(9, rhandler.getPendingCount());
+                try {
+                    rhandler.flush();
+                    fail("flush should have failed");
+                } catch (final IOException e) {
+                    // Expected.
+                }
+                assertEquals(6, rhandler.getPendingCount());
+                try {
+                    rhandler.processStatsMessage(new StatsMessageWithMetadata("@A45;T21CF;L38;O1", 4, false));
+                    fail("discard should have been reported");
+                } catch (final IOException e) {
+                    // Expected.
+                }
+                // Once the server recovers all kept items are sent, oldest first.
+                handler.failing = false;
+                rhandler.flush();
+                assertEquals(0, rhandler.getPendingCount());
+                assertEquals(2, handler.requests.get());
+                final JSONArray lastData = (JSONArray) ((JSONObject) new JSONParser().parse(handler.lastBody)).get("data");
+                assertEquals(37L, ((JSONObject) lastData.get(1)).get("value"));
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Test that uploads reuse connections.
+     */
+    @Test public void testKeepAlive() throws Exception {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        final CountingHandler handler = new CountingHandler();
+        server.createContext("/test", handler);
+        server.start();
+        try {
+            final String url = "http://localhost:" + server.getAddress().getPort() + "/test";
+            final RkdapHandler rhandler = new RkdapHandler(url, "dadid");
+            final int n = 200;
+            for (int i = 0; i < n; ++i) {
+                rhandler.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"cdfb\",\"T|C16\":296,\"L\":231}", i, false));
+            }
+            assertEquals(n, handler.requests.get());
+            // All requests from this single thread should share very few connections.
+            assertTrue("connections: " + handler.clientPorts.size(), handler.clientPorts.size() <= 2);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Handler that counts requests and the distinct client connections they arrive on.
+     */
+    public static class CountingHandler implements HttpHandler {
+        final AtomicInteger requests = new AtomicInteger();
+        final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+        volatile String lastBody;
+        /** If true, reject requests as if the service were unavailable; they are not counted. */
+        volatile boolean failing;
+
+        @Override
+        public void handle(final HttpExchange t) throws IOException {
+            clientPorts.add(t.getRemoteAddress().getPort());
+            final StringBuilder buf = new StringBuilder();
+            final InputStream is = t.getRequestBody();
+            for (int c; (c = is.read()) >= 0; buf.append((char)c)) {
+                ;
+                }
+            if (failing) {
+                t.sendResponseHeaders(503, -1);
+                t.close();
+                return;
+            }
+            lastBody = buf.toString();
+            requests.incrementAndGet();
+            final byte[] response = "OK".getBytes();
+            t.sendResponseHeaders(200, response.length);
+            final OutputStream os = t.getResponseBody();
+            os.write(response);
+            os.close();
+        }
+    }
+
     /**
      * A simple handler that remembers the last received request and headers
      * so that the results can be used in a test case. Note that this class
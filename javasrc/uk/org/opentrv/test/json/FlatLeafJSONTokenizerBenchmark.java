@@ -0,0 +1,66 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.json;
+
+import java.util.List;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import uk.org.opentrv.comms.json.FlatLeafJSONTokenizer;
+
+/**Crude single-core benchmark of FlatLeafJSONTokenizer against json-simple on JSON stats log lines,
+ * with json-simple as the fallback for lines the tokenizer declines, as in JSONStatsLineStreamReader.
+ * For running by hand with the test classpath; correctness is covered by FlatLeafJSONTokenizerTest.
+<pre>
+java uk.org.opentrv.test.json.FlatLeafJSONTokenizerBenchmark [reps]
+</pre>
+ */
+public final class FlatLeafJSONTokenizerBenchmark
+    {
+    private FlatLeafJSONTokenizerBenchmark() { }
+
+    public static void main(final String[] args) throws ParseException
+        {
+        final int reps = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        final String[] lines = FlatLeafJSONTokenizerTest.LOG.split("\n");
+        final FlatLeafJSONTokenizer t = new FlatLeafJSONTokenizer();
+        final JSONParser parser = new JSONParser();
+        long simpleNs = Long.MAX_VALUE, flatNs = Long.MAX_VALUE;
+        long check = 0;
+        // Take the best of several runs.
+        for(int run = 0; run < 5; ++run)
+            {
+            final long t0 = System.nanoTime();
+            for(int r = reps; --r >= 0; )
+                { for(final String l : lines) { check += ((List<?>)parser.parse(l)).size(); } }
+            final long t1 = System.nanoTime();
+            for(int r = reps; --r >= 0; )
+                { for(final String l : lines) { check -= t.parseLogLine(l) ? 3 : ((List<?>)parser.parse(l)).size(); } }
+            final long t2 = System.nanoTime();
+            simpleNs = Math.min(simpleNs, t1 - t0);
+            flatNs = Math.min(flatNs, t2 - t1);
+            }
+        if(0 != check) { throw new IllegalStateException("tokenizer and json-simple disagree"); }
+        final double n = (double)reps * lines.length;
+        System.out.println("json-simple ns/line: " + (simpleNs / n));
+        System.out.println("FlatLeafJSONTokenizer ns/line: " + (flatNs / n));
+        System.out.println("speed-up: " + ((double)simpleNs / flatNs));
+        }
+    }
@@ -0,0 +1,193 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import uk.org.opentrv.comms.json.FlatLeafJSONTokenizer;
+import uk.org.opentrv.comms.json.JSONStatsLineStreamReader;
+
+/**Test the flat leaf JSON tokenizer against json-simple. */
+public class FlatLeafJSONTokenizerTest
+    {
+    /**Flat leaf objects that the tokenizer should accept. */
+    private static final String[] ACCEPTED =
+        {
+        "{}",
+        " { } ",
+        "{\"@\":\"cdfb\",\"T|C16\":296,\"H|%\":87}",
+        "{\"@\":\"0a45\",\"+\":5,\"L\":163,\"B|mV\":3315,\"v|%\":0,\"tT|C\":7}",
+        "{ \"@\" : \"414a\" , \"O\" : 1 }",
+        "{\"a\":-12,\"b\":true,\"c\":false,\"d\":null,\"e\":\"\"}",
+        "{\"max\":9223372036854775807,\"min\":-9223372036854775808}",
+        "{\"dup\":1,\"dup\":2}",
+        };
+
+    /**Valid JSON that the tokenizer should leave to json-simple. */
+    private static final String[] FALLBACK =
+        {
+        "{\"@\":\"a\\\"b\"}",
+        "{\"T|C\":18.5}",
+        "{\"x\":1e3}",
+        "{\"n\":{\"a\":1}}",
+        "{\"n\":[1,2]}",
+        "[1,2]",
+        };
+
+    /**Invalid JSON, rejected by both. */
+    private static final String[] INVALID =
+        {
+        "",
+        "}",
+        "@abc",
+        "{\"id\":\"c2e0\",\"t|C16\":332,\"RH|%\":65,\"l\":254,\"o",
+        "{\"a\":1,}",
+        "{\"a\" 1}",
+        "{\"a\":-}",
+        "{\"a\":tru}",
+        "{\"a\":truex}",
+        "{\"a\":1} x",
+        "{\"big\":9223372036854775808}", // json-simple throws NumberFormatException.
+        };
+
+    /**Check that accepted objects give exactly the same map as json-simple. */
+    @Test
+    public void testMatchesJSONSimple() throws Exception
+        {
+        final FlatLeafJSONTokenizer t = new FlatLeafJSONTokenizer();
+        for(final String s : ACCEPTED)
+            {
+            assertTrue(s, t.parse(s));
+            final Map<?,?> expected = (Map<?,?>) new JSONParser().parse(s);
+            assertEquals(s, expected, t.toJSONObject());
+            assertEquals(s, expected, FlatLeafJSONTokenizer.parseAsJSONObject(s));
+            }
+        for(final String s : FALLBACK)
+            {
+            new JSONParser().parse(s); // Must be valid.
+            assertFalse(s, t.parse(s));
+            assertFalse(t.isValid());
+            assertNull(FlatLeafJSONTokenizer.parseAsJSONObject(s));
+            }
+        for(final String s : INVALID) { assertFalse(s, t.parse(s)); }
+        assertFalse(t.parse(null));
+        }
+
+    /**Check in-place accessors. */
+    @Test
+    public void testAccessors()
+        {
+        final FlatLeafJSONTokenizer t = new FlatLeafJSONTokenizer();
+        assertTrue(t.parse("{\"@\":\"cdfb\",\"T|C16\":296,\"H|%\":87,\"ok\":true,\"z\":null}"));
+        assertEquals(5, t.size());
+        final int id = t.indexOf("@");
+        assertEquals(0, id);
+        assertEquals(FlatLeafJSONTokenizer.KIND_STRING, t.getKind(id));
+        assertTrue(t.stringValueEquals(id, "cdfb"));
+        assertFalse(t.stringValueEquals(id, "cdf"));
+        assertEquals("cdfb", t.getString(id));
+        assertEquals(296, t.getLong(t.indexOf("T|C16")));
+        assertEquals(1, t.getLong(t.indexOf("ok")));
+        assertEquals(FlatLeafJSONTokenizer.KIND_NULL, t.getKind(t.indexOf("z")));
+        assertNull(t.getString(t.indexOf("H|%")));
+        assertEquals(-1, t.indexOf("T|C"));
+        final StringBuilder sb = new StringBuilder();
+        t.appendValue(t.indexOf("H|%"), sb);
+        t.appendValue(t.indexOf("ok"), sb);
+        t.appendValue(t.indexOf("z"), sb);
+        assertEquals("87truenull", sb.toString());
+        assertNull(t.getLogTimestamp());
+        // Large objects grow the internal arrays.
+        final StringBuilder big = new StringBuilder("{");
+        for(int i = 0; i < 100; ++i) { if(i > 0) { big.append(','); } big.append("\"k").append(i).append("\":").append(i); }
+        assertTrue(t.parse(big.append('}')));
+        assertEquals(100, t.size());
+        assertEquals(99, t.getLong(t.indexOf("k99")));
+        }
+
+    /**Check parsing of array-per-line log records. */
+    @Test
+    public void testLogLine()
+        {
+        final FlatLeafJSONTokenizer t = new FlatLeafJSONTokenizer();
+        assertTrue(t.parseLogLine("[ \"2014-12-19T15:39:50Z\", \"\", {\"@\":\"0a45\",\"+\":5,\"L\":163} ]"));
+        assertEquals("2014-12-19T15:39:50Z", t.getLogTimestamp());
+        assertEquals("", t.getLogConcentratorID());
+        assertEquals(3, t.size());
+        assertEquals(163, t.getLong(t.indexOf("L")));
+        assertTrue(t.parseLogLine("[\"2014-12-19T15:39:50Z\",\"c1\",{}]"));
+        assertEquals("c1", t.getLogConcentratorID());
+        assertFalse(t.parseLogLine("[ \"2014-12-19T15:39:50Z\", \"\", {\"@\":\"0a45\"} ] x"));
+        assertFalse(t.parseLogLine("[ \"2014-12-19T15:39:50Z\", \"\" ]"));
+        assertFalse(t.parseLogLine("[ \"2014-12-19T15:39:50Z\", \"\", {\"n\":[1]} ]"));
+        assertNull(t.getLogTimestamp());
+        }
+
+    /**Sample log lines, including one that needs the fallback parser. */
+    static final String LOG =
+        "[ \"2014-12-19T15:39:50Z\", \"\", {\"@\":\"0a45\",\"+\":5,\"L\":163,\"B|mV\":3315,\"v|%\":0,\"tT|C\":7} ]\n" +
+        "[ \"2014-12-19T15:40:18Z\", \"\", {\"@\":\"819c\",\"T|C16\":156,\"L\":206,\"B|cV\":256} ]\n" +
+        "[ \"2014-12-19T15:41:50Z\", \"\", {\"@\":\"0a45\",\"+\":6,\"L\":157,\"O\":1,\"vac|h\":18,\"T|C16\":284} ]\n" +
+        "[ \"2014-12-19T15:42:06Z\", \"\", {\"@\":\"414a\",\"+\":4,\"L\":53.5,\"O\":1} ]\n" +
+        "[ \"2014-12-19T15:43:10Z\", \"\", {\"@\":\"0d49\",\"+\":4,\"L\":228,\"vac|h\":7,\"T|C16\":288} ]\n";
+
+    /**Filter the sample log with the given options. */
+    private static String filterLog(final String field, final List<String> ids) throws IOException
+        {
+        final StringBuilder sb = new StringBuilder();
+        try(final BufferedReader br = new BufferedReader(new JSONStatsLineStreamReader(new StringReader(LOG), field, ids)))
+            {
+            String line;
+            while(null != (line = br.readLine())) { sb.append(line).append('\n'); }
+            }
+        return(sb.toString());
+        }
+
+    /**Check that the stream filter gives the same output with and without the tokenizer. */
+    @Test
+    public void testStreamReaderSwitch() throws IOException
+        {
+        final boolean wasEnabled = FlatLeafJSONTokenizer.enabled;
+        try
+            {
+            final List<String> ids = Arrays.asList("0a45", "414a");
+            FlatLeafJSONTokenizer.enabled = false;
+            final String slowL = filterLog("L", null);
+            final String slowM = filterLog("L", ids);
+            FlatLeafJSONTokenizer.enabled = true;
+            assertEquals(slowL, filterLog("L", null));
+            assertEquals(slowM, filterLog("L", ids));
+            assertEquals("2014-12-19T15:42:06Z - 53.5\n", filterLog("L", ids).split("\n")[2] + "\n");
+            }
+        finally { FlatLeafJSONTokenizer.enabled = wasEnabled; }
+        }
+    }
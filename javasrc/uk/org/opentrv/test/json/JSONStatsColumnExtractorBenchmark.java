@@ -0,0 +1,70 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.json;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import uk.org.opentrv.comms.json.JSONStatsColumnExtractor;
+import uk.org.opentrv.comms.json.JSONStatsColumnExtractor.Projection;
+
+/**Crude benchmark of one JSONStatsColumnExtractor pass over a log for several fields and leaves,
+ * compared with one JSONStatsLineStreamReader pass over the log per field.
+ * JSONStatsColumnExtractorTest checks that both get the same values.
+ * Run by hand with the test classpath, optionally giving the log length and number of leaves:
+<pre>
+java uk.org.opentrv.test.json.JSONStatsColumnExtractorBenchmark [lines [leaves]]
+</pre>
+ */
+public final class JSONStatsColumnExtractorBenchmark
+    {
+    private JSONStatsColumnExtractorBenchmark() { }
+
+    public static void main(final String[] args) throws IOException
+        {
+        final int lines = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        final int leaves = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+        final String log = JSONStatsColumnExtractorTest.randomLog(lines, leaves);
+        final List<String> fields = Arrays.asList("T|C16", "v|%", "B|cV", "L");
+        final List<String> ids = new ArrayList<>();
+        for(int i = 0; i < leaves; ++i) { ids.add(String.format("%04x", i)); }
+        final List<Projection> p = JSONStatsColumnExtractor.crossProduct(ids, fields);
+
+        long perFieldNs = Long.MAX_VALUE, singleNs = Long.MAX_VALUE;
+        // Take the best of several runs to reduce JIT warm-up and GC noise.
+        for(int run = 0; run < 5; ++run)
+            {
+            final long t0 = System.nanoTime();
+            int perField = 0;
+            for(final String f : fields) { perField += JSONStatsColumnExtractorTest.singlePass(log, f, ids); }
+            final long t1 = System.nanoTime();
+            final int single = JSONStatsColumnExtractorTest.countValues(JSONStatsColumnExtractorTest.extract(log, p));
+            final long t2 = System.nanoTime();
+            if(perField != single) { throw new IllegalStateException("single pass and pass per field disagree"); }
+            perFieldNs = Math.min(perFieldNs, t1 - t0);
+            singleNs = Math.min(singleNs, t2 - t1);
+            }
+        System.out.println(fields.size() + " fields x " + leaves + " leaves over " + lines + " lines");
+        System.out.println("pass per field ms: " + (perFieldNs / 1_000_000.0));
+        System.out.println("single pass ms: " + (singleNs / 1_000_000.0));
+        System.out.println("speed-up: " + ((double)perFieldNs / singleNs));
+        }
+    }
@@ -0,0 +1,121 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import uk.org.opentrv.comms.json.JSONStatsColumnExtractor;
+import uk.org.opentrv.comms.json.JSONStatsColumnExtractor.Projection;
+import uk.org.opentrv.comms.json.JSONStatsLineStreamReader;
+
+/**Test single-pass multi-field, multi-ID columnar extraction. */
+public class JSONStatsColumnExtractorTest
+    {
+    /**Extract to a String. */
+    static String extract(final String log, final List<Projection> p) throws IOException
+        {
+        final StringBuilder sb = new StringBuilder();
+        new JSONStatsColumnExtractor(p).extract(new StringReader(log), sb);
+        return(sb.toString());
+        }
+
+    /**Test extraction of a few columns from the sample. */
+    @Test
+    public void testSample() throws Exception
+        {
+        final String log = BasicJSONTest.StreamedJSONSample1 +
+            "[ \"2014-12-19T15:02:20Z\", \"\", {\"@\":\"414a\",\"T|C16\":280,\"x\":{\"s\":\"a,\\\"b\\\"\"}} ]\n";
+        final List<Projection> p = JSONStatsColumnExtractor.crossProduct(Arrays.asList("414a", "2d1a"), Arrays.asList("T|C16", "v|%"));
+        p.add(new Projection("414a", "x"));
+        assertEquals(
+            "time,414a/T|C16,414a/v|%,2d1a/T|C16,2d1a/v|%,414a/x\n" +
+            "2014-12-19T14:58:20Z,,,,0,\n" +
+            "2014-12-19T15:00:06Z,,0,,,\n" +
+            "2014-12-19T15:00:20Z,,,305,,\n" +
+            "2014-12-19T15:02:06Z,278,,,,\n" +
+            "2014-12-19T15:02:20Z,280,,,,\"{\"\"s\"\":\"\"a,\\\"\"b\\\"\"\"\"}\"\n",
+            extract(log, p));
+        }
+
+    /**Make a random log of many leaves and fields. */
+    static String randomLog(final int lines, final int leaves)
+        {
+        final Random rnd = new Random(42);
+        final StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < lines; ++i)
+            {
+            sb.append(String.format("[ \"2017-01-%02dT%02d:%02d:%02dZ\", \"\", {\"@\":\"%04x\",\"+\":%d",
+                1 + (i / 86400), (i / 3600) % 24, (i / 60) % 60, i % 60, rnd.nextInt(leaves), i & 0xf));
+            if(rnd.nextBoolean()) { sb.append(",\"T|C16\":").append(250 + rnd.nextInt(100)); }
+            if(rnd.nextBoolean()) { sb.append(",\"v|%\":").append(rnd.nextInt(101)); }
+            if(rnd.nextBoolean()) { sb.append(",\"B|cV\":").append(250 + rnd.nextInt(80)); }
+            if(rnd.nextBoolean()) { sb.append(",\"L\":").append(rnd.nextInt(256)); }
+            sb.append("} ]\n");
+            }
+        return(sb.toString());
+        }
+
+    /**Count the values from one single-field pass. */
+    static int singlePass(final String log, final String field, final List<String> ids) throws IOException
+        {
+        int count = 0;
+        try(final BufferedReader br = new BufferedReader(new JSONStatsLineStreamReader(new StringReader(log), field, ids)))
+            {
+            String line;
+            while(null != (line = br.readLine()))
+                { for(final String v : line.split(" ")) { if(!"-".equals(v)) { ++count; } } --count; }
+            }
+        return(count);
+        }
+
+    /**Count the non-empty values in the CSV. */
+    static int countValues(final String csv)
+        {
+        int count = 0;
+        for(final String line : csv.substring(csv.indexOf('\n') + 1).split("\n"))
+            { for(final String v : line.split(",", -1)) { if(!v.isEmpty()) { ++count; } } --count; }
+        return(count);
+        }
+
+    /**Test that the single pass gets the same values as a pass per field. */
+    @Test
+    public void testVsPassPerField() throws Exception
+        {
+        final int leaves = 50;
+        final String log = randomLog(2000, leaves);
+        final List<String> fields = Arrays.asList("T|C16", "v|%", "B|cV", "L");
+        final List<String> ids = new java.util.ArrayList<>();
+        for(int i = 0; i < leaves; ++i) { ids.add(String.format("%04x", i)); }
+        final List<Projection> p = JSONStatsColumnExtractor.crossProduct(ids, fields);
+        int perField = 0;
+        for(final String f : fields) { perField += singlePass(log, f, ids); }
+        assertTrue(perField > 0);
+        assertEquals(perField, countValues(extract(log, p)));
+        }
+    }
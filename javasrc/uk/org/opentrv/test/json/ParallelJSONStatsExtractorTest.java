@@ -0,0 +1,153 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.opentrv.comms.json.JSONStatsLineStreamReader;
+import uk.org.opentrv.comms.json.ParallelJSONStatsExtractor;
+
+/**Test that parallel extraction matches the sequential filter. */
+public class ParallelJSONStatsExtractorTest
+    {
+    /**Temporary files created by the test; deleted after. */
+    private final List<File> tempFiles = new ArrayList<>();
+
+    @Before
+    public void before() { tempFiles.clear(); }
+
+    @After
+    public void after() { for(final File f : tempFiles) { f.delete(); } }
+
+    /**Write text to a new temporary file. */
+    private File tempFile(final String text) throws IOException
+        {
+        final File f = File.createTempFile("PJSE", ".json");
+        tempFiles.add(f);
+        Files.write(f.toPath(), text.getBytes(StandardCharsets.ISO_8859_1));
+        return(f);
+        }
+
+    /**Get all output of the sequential filter. */
+    private static String sequential(final String in, final String field, final List<String> ids) throws IOException
+        {
+        final StringBuilder sb = new StringBuilder();
+        try(final Reader r = new JSONStatsLineStreamReader(new StringReader(in), field, ids))
+            { for(int c; -1 != (c = r.read()); ) { sb.append((char)c); } }
+        return(sb.toString());
+        }
+
+    /**Get all output of the parallel extractor. */
+    private static String parallel(final List<File> files, final String field, final List<String> ids, final int chunkBytes)
+        throws IOException
+        {
+        final StringBuilder sb = new StringBuilder();
+        ParallelJSONStatsExtractor.extract(files, field, ids, 4, chunkBytes, sb);
+        return(sb.toString());
+        }
+
+    /**Test the samples for a range of chunk sizes down to a line per chunk, and across files. */
+    @Test
+    public void testSamples() throws Exception
+        {
+        final File f1 = tempFile(BasicJSONTest.StreamedJSONSample1);
+        final File f2 = tempFile(BasicJSONTest.StreamedJSONSample2.replace("\n", "\r\n"));
+        final List<List<String>> idSets = Arrays.asList(null, Arrays.asList("414a"), Arrays.asList("2d1a", "3015", "414a"),
+            Arrays.asList("819C99B4B9BD84BB", "91ACF3CFF388D4E0", "96F0CED3B4E690E8", "E68EF783B0EFCBBB"));
+        for(final String field : new String[]{ "v|%", "T|C16", "H|%" })
+            {
+            for(final List<String> ids : idSets)
+                {
+                final String expected = sequential(BasicJSONTest.StreamedJSONSample1 + BasicJSONTest.StreamedJSONSample2, field, ids);
+                for(final int chunkBytes : new int[]{ 1, 50, 300, 1 << 20 })
+                    { assertEquals(expected, parallel(Arrays.asList(f1, f2), field, ids, chunkBytes)); }
+                // Files supplied out of order are merged back into timestamp order.
+                assertEquals(expected, parallel(Arrays.asList(f2, f1), field, ids, 100));
+                }
+            }
+        }
+
+    /**Test a larger random log, including lines needing the full parser. */
+    @Test
+    public void testRandom() throws Exception
+        {
+        final Random rnd = new Random(42);
+        final StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 5000; ++i)
+            {
+            sb.append(String.format("[ \"2017-01-%02dT%02d:%02d:%02dZ\", \"\", {\"@\":\"%04x\",\"+\":%d,\"T|C16\":%d",
+                1 + (i / 1440), (i / 60) % 24, i % 60, rnd.nextInt(60), rnd.nextInt(8), i & 0xf, 250 + rnd.nextInt(100)));
+            if(rnd.nextInt(10) == 0) { sb.append(",\"x\":{\"y\":1}"); } // Nested: not for the tokenizer.
+            sb.append("} ]\n");
+            }
+        final String log = sb.toString();
+        final File f = tempFile(log);
+        for(final List<String> ids : Arrays.asList(null, Arrays.asList("0003", "0005")))
+            {
+            final String expected = sequential(log, "T|C16", ids);
+            assertEquals(expected, parallel(Arrays.asList(f), "T|C16", ids, 4096));
+            }
+        }
+
+    /**Test that lines out of order within a chunk are sorted stably, eg for a log with a clock step back. */
+    @Test
+    public void testUnsortedChunk() throws Exception
+        {
+        final StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 200; ++i)
+            {
+            // Minutes run 0..49 twice, and each pair of lines shares a timestamp.
+            final int m = (i % 100) / 2;
+            sb.append(String.format("[ \"2017-01-01T00:%02d:00Z\", \"\", {\"@\":\"%04x\",\"T|C16\":%d} ]\n", m, i & 3, i));
+            }
+        final String log = sb.toString();
+        final File f = tempFile(log);
+        final List<String> lines = new ArrayList<>(Arrays.asList(sequential(log, "T|C16", null).split("\n")));
+        lines.sort((a, b) -> a.substring(0, a.indexOf(' ')).compareTo(b.substring(0, b.indexOf(' '))));
+        final StringBuilder expected = new StringBuilder();
+        for(final String l : lines) { expected.append(l).append('\n'); }
+        for(final int chunkBytes : new int[]{ 1, 1000, 5000, 1 << 20 })
+            { assertEquals(expected.toString(), parallel(Arrays.asList(f), "T|C16", null, chunkBytes)); }
+        }
+
+    /**Test that a malformed line is reported. */
+    @Test
+    public void testMalformed() throws Exception
+        {
+        final File f = tempFile(BasicJSONTest.StreamedJSONSample1 + "[ \"2014-12-19T15:03:00Z\", \"\" ]\n");
+        try { parallel(Arrays.asList(f), "v|%", null, 100); fail("should have been rejected"); }
+        catch(final IOException e) { /* Expected. */ }
+        }
+    }
@@ -0,0 +1,249 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.filter.AggregatingStatsHandlerWrapper;
+import uk.org.opentrv.comms.statshandlers.filter.AggregatingStatsHandlerWrapper.Statistic;
+
+/**Test windowed aggregation of stats. */
+public class AggregatingStatsHandlerWrapperTest
+    {
+    /**Handler that records all messages it is passed, and whether it has been closed. */
+    private static final class Recorder implements StatsHandler, AutoCloseable
+        {
+        final List<StatsMessageWithMetadata> got = new ArrayList<>();
+        volatile boolean closed;
+        @Override public void close() { closed = true; }
+        @Override public synchronized void processStatsMessage(final StatsMessageWithMetadata swmd) { got.add(swmd); }
+        synchronized int size() { return(got.size()); }
+        }
+
+    private static StatsMessageWithMetadata msg(final String m, final long t, final boolean auth)
+        { return(new StatsMessageWithMetadata(m, t, auth)); }
+
+    /**Test that close() passes on open windows before closing the wrapped handler. */
+    @Test
+    public void testCloseClosesWrapped() throws Exception
+        {
+        final Recorder r = new Recorder();
+        final AggregatingStatsHandlerWrapper a = new AggregatingStatsHandlerWrapper(r, 60_000, 0,
+            Arrays.asList(Statistic.MEAN), 0);
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":300}", 1000, true));
+        assertFalse(r.closed);
+        a.close();
+        assertEquals(1, r.size());
+        assertTrue(r.closed);
+        }
+
+    /**Test aggregation of JSON stats over tumbling windows. */
+    @Test
+    public void testJSONWindows() throws Exception
+        {
+        final Recorder r = new Recorder();
+        final AggregatingStatsHandlerWrapper a = new AggregatingStatsHandlerWrapper(r, 1000);
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":1,\"T|C16\":299,\"v|%\":0,\"tS|C\":\"x\"}", 100, true));
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":2,\"T|C16\":303,\"v|%\":10}", 500, true));
+        a.processStatsMessage(msg("{\"@\":\"0a45\",\"+\":1,\"T|C16\":280}", 600, false));
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":3,\"T|C16\":301}", 900, false));
+        assertEquals(0, r.size());
+        // A message in the next window closes all the earlier windows.
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":4,\"T|C16\":310}", 1100, true));
+        assertEquals(2, r.size());
+        final Map<String, Object> b = r.got.get(0).parseStatsAsMap();
+        assertEquals("b39a", b.get("@"));
+        assertEquals(Long.valueOf(301), b.get("T|C16"));
+        assertEquals(Long.valueOf(299), b.get("T|C16:min"));
+        assertEquals(Long.valueOf(303), b.get("T|C16:max"));
+        assertEquals(Long.valueOf(301), b.get("T|C16:last"));
+        assertEquals(Long.valueOf(3), b.get("T|C16:count"));
+        assertEquals(Long.valueOf(5), b.get("v|%"));
+        assertEquals(Long.valueOf(2), b.get("v|%:count"));
+        assertFalse(b.containsKey("+"));
+        assertFalse(b.containsKey("tS|C"));
+        assertEquals(900, r.got.get(0).timestamp);
+        assertFalse(r.got.get(0).authenticated);
+        assertEquals("0a45", r.got.get(1).getLeafIDAsString());
+        assertEquals(Long.valueOf(280), r.got.get(1).parseStatsAsMap().get("T|C16"));
+        // Late message for a closed window is dropped.
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":1}", 950, true));
+        assertEquals(1, a.getLateCount());
+        a.flush();
+        assertEquals(3, r.size());
+        assertTrue(r.got.get(2).authenticated);
+        assertEquals(Long.valueOf(310), r.got.get(2).parseStatsAsMap().get("T|C16"));
+        assertEquals(3, a.getEmittedCount());
+        }
+
+    /**Test binary messages, pass-through, chosen statistics and grace. */
+    @Test
+    public void testBinaryAndPassThrough() throws Exception
+        {
+        final Recorder r = new Recorder();
+        final AggregatingStatsHandlerWrapper a = new AggregatingStatsHandlerWrapper(r, 1000, 200,
+            Arrays.asList(Statistic.MAX, Statistic.MEAN), 0);
+        a.processStatsMessage(msg("@A45;T18C8;L40", 0, false));
+        a.processStatsMessage(msg("@A45;T19C0;L50", 10, false));
+        a.processStatsMessage(msg("=F0%@20C3;", 20, false)); // Passed straight through.
+        assertEquals(1, r.size());
+        assertEquals("=F0%@20C3;", r.got.get(0).message);
+        a.processStatsMessage(msg("@2D1A;T18CC", 1100, false)); // Within grace: window stays open.
+        assertEquals(1, r.size());
+        a.processStatsMessage(msg("@2D1A;T18CC", 1200, false));
+        assertEquals(2, r.size());
+        final Map<String, Object> m = r.got.get(1).parseStatsAsMap();
+        assertEquals("0a45", r.got.get(1).getLeafIDAsString());
+        // Under the JSON field names, so as to combine with '{' messages.
+        assertEquals(Long.valueOf(304), m.get("T|C16"));
+        assertEquals(Long.valueOf(300), m.get("T|C16:mean"));
+        assertEquals(Long.valueOf(50), m.get("L"));
+        assertEquals(Long.valueOf(45), m.get("L:mean"));
+        assertFalse(m.containsKey("L:count"));
+        assertFalse(m.containsKey("T"));
+        // A section with no JSON equivalent is not aggregated.
+        a.processStatsMessage(msg("@2D1A;T18CC;X7", 1300, false));
+        assertEquals(3, r.size());
+        assertEquals("@2D1A;T18CC;X7", r.got.get(2).message);
+        }
+
+    /**Test that grace applies to a leaf's own out-of-order messages, not just to other leaves'. */
+    @Test
+    public void testGraceForOwnLateMessages() throws Exception
+        {
+        final Recorder r = new Recorder();
+        final AggregatingStatsHandlerWrapper a = new AggregatingStatsHandlerWrapper(r, 1000, 200,
+            Arrays.asList(Statistic.MEAN, Statistic.COUNT), 0);
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":300}", 900, true));
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":320}", 1050, true)); // Next window.
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":310}", 980, true)); // Own reading out of order, within grace.
+        assertEquals(0, a.getLateCount());
+        assertEquals(0, r.size());
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":330}", 1200, true)); // Grace passed.
+        assertEquals(1, r.size());
+        final Map<String, Object> m = r.got.get(0).parseStatsAsMap();
+        assertEquals(Long.valueOf(305), m.get("T|C16"));
+        assertEquals(Long.valueOf(2), m.get("T|C16:count"));
+        assertEquals(980, r.got.get(0).timestamp);
+        // Now too late.
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":1}", 990, true));
+        assertEquals(1, a.getLateCount());
+        a.flush();
+        assertEquals(2, r.size());
+        assertEquals(Long.valueOf(2), r.got.get(1).parseStatsAsMap().get("T|C16:count"));
+        }
+
+    /**Test that synthetic messages rejected downstream are kept and retried in order, and that discards are reported. */
+    @Test
+    public void testDownstreamFailure() throws Exception
+        {
+        final Recorder r = new Recorder();
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        final AggregatingStatsHandlerWrapper a = new AggregatingStatsHandlerWrapper(new StatsHandler()
+            {
+            @Override public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+                {
+                if(failing.get()) { throw new IOException("down"); }
+                r.processStatsMessage(swmd);
+                }
+            }, 1000);
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":300}", 100, false));
+        // Closes the first window, which cannot be passed on, but this message is still accepted.
+        a.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":310}", 1100, false));
+        assertEquals(1, a.getPendingCount());
+        assertEquals(0, a.getEmittedCount());
+        // A message to pass on unchanged must wait for the pending one, so is not accepted.
+        try { a.processStatsMessage(msg("=F0%@20C3;", 1200, false)); fail("should have failed"); }
+        catch(final IOException e) { /* Expected. */ }
+        failing.set(false);
+        a.processStatsMessage(msg("=F0%@20C3;", 1300, false));
+        a.flush();
+        assertEquals(3, r.size());
+        assertEquals(Long.valueOf(300), r.got.get(0).parseStatsAsMap().get("T|C16"));
+        assertEquals("=F0%@20C3;", r.got.get(1).message);
+        assertEquals(Long.valueOf(310), r.got.get(2).parseStatsAsMap().get("T|C16"));
+        assertEquals(0, a.getPendingCount());
+
+        // Beyond the bound the oldest are discarded, and the next caller is told.
+        failing.set(true);
+        for(int w = 0; w <= AggregatingStatsHandlerWrapper.MAX_PENDING_MESSAGES + 1; ++w)
+            { a.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":300}", 2000 + (w * 1000L), false)); }
+        assertEquals(AggregatingStatsHandlerWrapper.MAX_PENDING_MESSAGES, a.getPendingCount());
+        try { a.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":300}", 1_000_000_000L, false)); fail("should report discards"); }
+        catch(final IOException e) { assertTrue(e.getMessage().contains("discarded 1 ")); }
+        }
+
+    /**Test that volume scales with leaves times windows rather than messages. */
+    @Test
+    public void testVolume() throws Exception
+        {
+        final Recorder r = new Recorder();
+        final int leaves = 20, windows = 10, perWindow = 30;
+        try(final AggregatingStatsHandlerWrapper a = new AggregatingStatsHandlerWrapper(r, 300_000))
+            {
+            for(int w = 0; w < windows; ++w)
+                {
+                for(int i = 0; i < perWindow; ++i)
+                    {
+                    for(int l = 0; l < leaves; ++l)
+                        {
+                        a.processStatsMessage(msg(String.format("{\"@\":\"%04x\",\"T|C16\":%d}", l, 300 + i),
+                            (w * 300_000L) + (i * 10_000L) + l, false));
+                        }
+                    }
+                }
+            }
+        assertEquals(leaves * windows, r.size());
+        }
+
+    /**Test idle flushing and construction from factory JSON config. */
+    @Test
+    public void testConfig() throws Exception
+        {
+        final String config =
+            "{\"type\":\"uk.org.opentrv.comms.statshandlers.filter.AggregatingStatsHandlerWrapper\"," +
+            " \"options\":{\"handler\":{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.DummyStatsHandler\"}," +
+            "  \"windowMS\":50,\"statistics\":[\"last\",\"count\"],\"idleFlushMS\":10}}";
+        final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+        assertTrue(sh instanceof AggregatingStatsHandlerWrapper);
+        try(final AggregatingStatsHandlerWrapper a = (AggregatingStatsHandlerWrapper)sh)
+            {
+            a.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":300}", System.currentTimeMillis(), false));
+            for(int i = 0; (i < 500) && (0 == a.getEmittedCount()); ++i) { Thread.sleep(10); }
+            assertEquals(1, a.getEmittedCount());
+            }
+        }
+    }
@@ -0,0 +1,279 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.builtin.ColumnarStatsHandler;
+import uk.org.opentrv.comms.statshandlers.support.ColumnarSegment;
+import uk.org.opentrv.comms.statshandlers.support.ColumnarSegment.Column;
+import uk.org.opentrv.comms.statshandlers.support.ColumnarSegment.Series;
+import uk.org.opentrv.comms.statshandlers.support.ColumnarStore;
+
+/**Test the columnar stats store, its handler and reader. */
+public class ColumnarStoreTest
+    {
+    /**Private temp directory created for each test and cleared down after; never null during tests. */
+    private Path tempDir;
+
+    @Before
+    public void before() throws Exception
+        {
+        tempDir = Files.createTempDirectory(null);
+        }
+
+    @After
+    public void after() throws Exception
+        {
+        Files.walkFileTree(tempDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return(FileVisitResult.CONTINUE);
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+                Files.delete(dir);
+                return(FileVisitResult.CONTINUE);
+            }
+        });
+        tempDir = null;
+        }
+
+    /**Milliseconds per day. */
+    private static final long DAY_MS = 24 * 3600_000L;
+
+    /**Test that a segment round-trips extreme and random values exactly. */
+    @Test
+    public void testSegmentRoundTrip() throws Exception
+        {
+        final Random rnd = new Random(42);
+        final long[] t = new long[1000], v = new long[1000];
+        for(int i = 0; i < t.length; ++i)
+            {
+            t[i] = (0 == i) ? -5 : (t[i-1] + ((i % 7 == 0) ? -rnd.nextInt(1000) : rnd.nextInt(300_000)));
+            v[i] = (i < 4) ? new long[]{ Long.MIN_VALUE, Long.MAX_VALUE, 0, -1 }[i] : rnd.nextLong() >> rnd.nextInt(64);
+            }
+        final Column c = new Column();
+        for(int i = 0; i < t.length; ++i) { c.append(t[i], v[i]); }
+        final SortedMap<String, SortedMap<String, Column>> cols = new TreeMap<>();
+        cols.put("b39a", new TreeMap<String, Column>());
+        cols.get("b39a").put("T|C16", c);
+        final File f = new File(tempDir.toFile(), "x.col");
+        ColumnarSegment.write(f, cols);
+        final ColumnarSegment s = ColumnarSegment.open(f);
+        assertEquals(1, s.getLeafIDs().size());
+        assertEquals(1000, s.getColumnInfo("b39a", "T|C16").count);
+        assertNull(s.read("b39a", "L"));
+        final Series r = s.read("b39a", "T|C16");
+        assertArrayEquals(t, r.times);
+        assertArrayEquals(v, r.values);
+        }
+
+    /**Test storing JSON and binary messages over several days and reading ranges back. */
+    @Test
+    public void testHandlerAndRangeQuery() throws Exception
+        {
+        final long base = 1483228800000L; // 2017-01-01T00:00:00Z.
+        final ColumnarStatsHandler h = new ColumnarStatsHandler(tempDir.toFile(), null, 1000, 0);
+        final int perDay = 24 * 15;
+        int expectedT = 0;
+        for(int d = 0; d < 3; ++d)
+            {
+            for(int i = 0; i < perDay; ++i)
+                {
+                final long t = base + (d * DAY_MS) + (i * 240_000L) + (i % 3);
+                h.processStatsMessage(new StatsMessageWithMetadata(
+                    "{\"@\":\"b39a\",\"+\":" + (i & 0xf) + ",\"T|C16\":" + (300 + (i % 20)) + ",\"H|%\":" + (60 + (i % 5)) + ",\"tS|C\":\"x\"}", t, false));
+                ++expectedT;
+                if(0 == (i % 10)) { h.processStatsMessage(new StatsMessageWithMetadata("@A45;T18C8;L40", t + 1, false)); }
+                }
+            }
+        h.processStatsMessage(new StatsMessageWithMetadata("=F0%@20C3;", base, false)); // No leaf: ignored.
+        h.close();
+
+        final ColumnarStore store = new ColumnarStore(tempDir.toFile());
+        assertTrue(store.getSegmentFiles(base, base + (3 * DAY_MS)).size() >= 3);
+        assertEquals(Arrays.asList("0a45", "b39a"), Arrays.asList(store.getLeafIDs(base, base + DAY_MS).toArray()));
+
+        final Series all = store.read("b39a", "T|C16", base, base + (3 * DAY_MS));
+        assertEquals(expectedT, all.size());
+        for(int i = 1; i < all.size(); ++i) { assertTrue(all.times[i] > all.times[i-1]); }
+        assertEquals(300, all.values[0]);
+        assertEquals(319, all.values[19]);
+        assertEquals(0, store.read("b39a", "+", base, base + (3 * DAY_MS)).size());
+        assertEquals(0, store.read("b39a", "tS|C", base, base + (3 * DAY_MS)).size());
+
+        // One hour on the second day.
+        final long from = base + DAY_MS + (14 * 3600_000L);
+        final Series hour = store.read("b39a", "H|%", from, from + 3600_000L);
+        assertEquals(15, hour.size());
+        for(final long t : hour.times) { assertTrue((t >= from) && (t < from + 3600_000L)); }
+
+        final Series binT = store.read("0a45", "T|C16", base, base + DAY_MS);
+        assertEquals(perDay / 10, binT.size());
+        assertEquals((18 * 16) + 8, binT.values[0]);
+        assertEquals(40, store.read("0a45", "L", base, base + DAY_MS).values[0]);
+
+        // Compact compared to the text of the same messages.
+        long bytes = 0;
+        for(final File f : store.getSegmentFiles(base, base + (3 * DAY_MS))) { bytes += f.length(); }
+        assertTrue("bytes " + bytes, bytes < (expectedT * 10));
+        }
+
+    /**Test that a restarted handler appends new segments and that late readings are sorted into place. */
+    @Test
+    public void testRestartAndLate() throws Exception
+        {
+        final long base = 1483228800000L;
+        try(final ColumnarStatsHandler h = new ColumnarStatsHandler(tempDir.toFile()))
+            {
+            h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":300}", base + 2000, false));
+            }
+        try(final ColumnarStatsHandler h = new ColumnarStatsHandler(tempDir.toFile()))
+            {
+            h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":299}", base + 1000, false));
+            h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":301}", base + 3000, false));
+            }
+        final ColumnarStore store = new ColumnarStore(tempDir.toFile());
+        assertEquals(2, store.getSegmentFiles(base, base + DAY_MS).size());
+        final Series s = store.read("b39a", "T|C16", base, base + DAY_MS);
+        assertArrayEquals(new long[]{ base + 1000, base + 2000, base + 3000 }, s.times);
+        assertArrayEquals(new long[]{ 299, 300, 301 }, s.values);
+        }
+
+    /**Test that a complete day's segments are compacted into one, including after late readings. */
+    @Test
+    public void testCompaction() throws Exception
+        {
+        final long base = 1483228800000L;
+        final ColumnarStore store = new ColumnarStore(tempDir.toFile());
+        try(final ColumnarStatsHandler h = new ColumnarStatsHandler(tempDir.toFile(), null, 1000, 0))
+            {
+            for(int i = 0; i < 3; ++i)
+                {
+                h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":" + (300 + i) + "}", base + (i * 1000L), false));
+                h.flush();
+                }
+            assertEquals(3, store.getSegmentFiles(base, base + DAY_MS).size());
+            // A new day completes the first.
+            h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":310}", base + DAY_MS, false));
+            assertEquals(Arrays.asList(new File(store.getDir(), "20170101-0002c.col")), store.getSegmentFiles(base, base + DAY_MS));
+            // A late reading is written and compacted in once readings for the later day continue.
+            h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":299,\"L\":7}", base + 500, false));
+            h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":311}", base + DAY_MS + 1000, false));
+            assertEquals(Arrays.asList(new File(store.getDir(), "20170101-0003c.col")), store.getSegmentFiles(base, base + DAY_MS));
+            }
+        int day0Files = 0;
+        for(final String n : store.getDir().list()) { if(n.startsWith("20170101-")) { ++day0Files; } }
+        assertEquals(1, day0Files);
+        final Series s = store.read("b39a", "T|C16", base, base + (2 * DAY_MS));
+        assertArrayEquals(new long[]{ base, base + 500, base + 1000, base + 2000, base + DAY_MS, base + DAY_MS + 1000 }, s.times);
+        assertArrayEquals(new long[]{ 300, 299, 301, 302, 310, 311 }, s.values);
+        assertEquals(7, store.read("b39a", "L", base, base + DAY_MS).values[0]);
+
+        // A superseded segment left by an interrupted compaction is ignored, and removed by the next.
+        final File stale = new File(store.getDir(), "20170101-0001.col");
+        Files.copy(new File(store.getDir(), "20170101-0003c.col").toPath(), stale.toPath());
+        assertEquals(1, store.getSegmentFiles(base, base + DAY_MS).size());
+        try(final ColumnarStatsHandler h = new ColumnarStatsHandler(tempDir.toFile(), null, 1000, 0))
+            {
+            h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":298}", base + 100, false));
+            h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":312}", base + DAY_MS + 2000, false));
+            }
+        assertEquals(Arrays.asList(new File(store.getDir(), "20170101-0004c.col")), store.getSegmentFiles(base, base + DAY_MS));
+        assertTrue(!stale.exists());
+        assertEquals(5, store.read("b39a", "T|C16", base, base + DAY_MS).size());
+        }
+
+    /**Test that readings are kept and retried while writes fail, within a bound, and discards reported. */
+    @Test
+    public void testWriteFailure() throws Exception
+        {
+        final long base = 1483228800000L;
+        final ColumnarStore store = new ColumnarStore(tempDir.toFile());
+        // A plain file in place of the store directory makes writes fail.
+        assertTrue(store.getDir().createNewFile());
+        final ColumnarStatsHandler h = new ColumnarStatsHandler(tempDir.toFile(), null, 2, 0);
+        for(int i = 0; i < 3; ++i)
+            { h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":" + i + "}", base + i, false)); }
+        assertEquals(3, h.getBufferedReadings());
+        for(int i = 0; i < 6; ++i)
+            { h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":" + i + "}", base + DAY_MS + i, false)); }
+        // Beyond the bound the oldest day was discarded.
+        assertEquals(6, h.getBufferedReadings());
+        final StatsMessageWithMetadata m = new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":6}", base + DAY_MS + 6, false);
+        try { h.processStatsMessage(m); fail("discards should be reported"); }
+        catch(final IOException e) { assertTrue(e.getMessage().contains("discarded 3")); }
+        assertEquals(6, h.getBufferedReadings());
+        // Once writable again the retained readings and the retried message are written.
+        assertTrue(store.getDir().delete());
+        h.processStatsMessage(m);
+        assertEquals(0, h.getBufferedReadings());
+        h.close();
+        assertEquals(0, store.read("b39a", "T|C16", base, base + DAY_MS).size());
+        assertEquals(7, store.read("b39a", "T|C16", base + DAY_MS, base + (2 * DAY_MS)).size());
+        }
+
+    /**Test construction from factory JSON config. */
+    @Test
+    public void testConfig() throws Exception
+        {
+        final String config =
+            "{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.ColumnarStatsHandler\"," +
+            " \"options\":{\"statsDirName\":\"" + tempDir.toString().replace("\\", "\\\\") + "\"," +
+            "  \"fields\":[\"T|C16\"],\"maxBufferedReadings\":2,\"flushIntervalMS\":0}}";
+        final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+        assertTrue(sh instanceof ColumnarStatsHandler);
+        final ColumnarStatsHandler h = (ColumnarStatsHandler)sh;
+        h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":300,\"L\":5}", 1000, false));
+        assertEquals(1, h.getBufferedReadings());
+        h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":301,\"L\":5}", 2000, false));
+        assertEquals(0, h.getBufferedReadings());
+        h.close();
+        final ColumnarStore store = new ColumnarStore(tempDir.toFile());
+        assertEquals(2, store.read("b39a", "T|C16", 0, DAY_MS).size());
+        assertEquals(0, store.read("b39a", "L", 0, DAY_MS).size());
+        }
+    }
@@ -0,0 +1,197 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.filter.ConcurrentStatsHandlerWrapper;
+
+/**Test concurrent per-leaf-ordered delivery. */
+public class ConcurrentStatsHandlerWrapperTest
+    {
+    /**Slow handler that checks per-leaf ordering and exclusion, and records peak concurrency. */
+    public static final class SlowCheckingHandler implements StatsHandler
+        {
+        final int delayMS;
+        final AtomicInteger inProgress = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicInteger count = new AtomicInteger();
+        /**Leaves currently being delivered; guarded by itself. */
+        final Set<String> busy = new HashSet<>();
+        /**Last sequence number seen per leaf; guarded by busy. */
+        final Map<String, Integer> lastSeq = new HashMap<>();
+        volatile String failure;
+        public SlowCheckingHandler(final int delayMS) { this.delayMS = delayMS; }
+        public SlowCheckingHandler(final Map config) { this(1); }
+        @Override public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+            {
+            final String id = swmd.getLeafIDAsString();
+            final int seq = (int) swmd.timestamp;
+            synchronized(busy)
+                {
+                if(!busy.add(id)) { failure = "concurrent delivery for " + id; }
+                final Integer last = lastSeq.put(id, seq);
+                if((null != last) && (last >= seq)) { failure = "misordered delivery for " + id; }
+                }
+            final int n = inProgress.incrementAndGet();
+            for(int p; n > (p = peak.get()); ) { if(peak.compareAndSet(p, n)) { break; } }
+            try { Thread.sleep(delayMS); } catch(final InterruptedException e) { throw new IOException(e); }
+            inProgress.decrementAndGet();
+            synchronized(busy) { busy.remove(id); }
+            count.incrementAndGet();
+            }
+        }
+
+    private static StatsMessageWithMetadata msg(final int leaf, final int seq)
+        { return(new StatsMessageWithMetadata("{\"@\":\"" + String.format("%04x", leaf) + "\",\"+\":" + seq + "}", seq, false)); }
+
+    private static void awaitCount(final AtomicInteger count, final int n) throws InterruptedException
+        {
+        for(int i = 0; (i < 1000) && (count.get() < n); ++i) { Thread.sleep(10); }
+        assertEquals(n, count.get());
+        }
+
+    /**Test that slow deliveries for different leaves overlap, up to the limit, with per-leaf order preserved. */
+    @Test
+    public void testConcurrencyAndOrdering() throws Exception
+        {
+        final SlowCheckingHandler h = new SlowCheckingHandler(20);
+        final int leaves = 12, perLeaf = 5, limit = 4;
+        final long start = System.nanoTime();
+        try(final ConcurrentStatsHandlerWrapper w = new ConcurrentStatsHandlerWrapper(h, ConcurrentStatsHandlerWrapper.EXECUTION_POOLED, limit))
+            {
+            for(int s = 0; s < perLeaf; ++s) { for(int l = 0; l < leaves; ++l) { w.processStatsMessage(msg(l, 1 + s)); } }
+            awaitCount(h.count, leaves * perLeaf);
+            }
+        final long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(null, h.failure);
+        assertTrue("peak " + h.peak.get(), h.peak.get() <= limit);
+        assertTrue("peak " + h.peak.get(), h.peak.get() > 1);
+        // Fully serial delivery would take at least 60 * 20ms.
+        assertTrue("took " + ms + "ms", ms < (leaves * perLeaf * 20));
+        }
+
+    /**Test that a stalled leaf does not hold up others. */
+    @Test
+    public void testStalledLeaf() throws Exception
+        {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        final StatsHandler h = new StatsHandler()
+            {
+            @Override public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+                {
+                if("0000".equals(swmd.getLeafIDAsString())) { try { gate.await(); } catch(final InterruptedException e) { throw new IOException(e); } }
+                done.add(swmd.getLeafIDAsString());
+                }
+            };
+        try(final ConcurrentStatsHandlerWrapper w = new ConcurrentStatsHandlerWrapper(h, ConcurrentStatsHandlerWrapper.EXECUTION_VIRTUAL, 2))
+            {
+            w.processStatsMessage(msg(0, 1));
+            w.processStatsMessage(msg(0, 2));
+            for(int l = 1; l < 10; ++l) { w.processStatsMessage(msg(l, 1)); }
+            for(int i = 0; (i < 500) && (done.size() < 9); ++i) { Thread.sleep(10); }
+            assertEquals(9, done.size());
+            assertFalse(done.contains("0000"));
+            gate.countDown();
+            for(int i = 0; (i < 500) && (done.size() < 11); ++i) { Thread.sleep(10); }
+            assertEquals(11, done.size());
+            }
+        }
+
+    /**Test that the bounded queue rejects excess messages. */
+    @Test
+    public void testQueueFull() throws Exception
+        {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final StatsHandler h = new StatsHandler()
+            {
+            @Override public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+                { try { gate.await(); } catch(final InterruptedException e) { throw new IOException(e); } }
+            };
+        try(final ConcurrentStatsHandlerWrapper w = new ConcurrentStatsHandlerWrapper(h, ConcurrentStatsHandlerWrapper.EXECUTION_POOLED, 2, 4, 100))
+            {
+            for(int i = 0; i < 4; ++i) { w.processStatsMessage(msg(i, 1)); }
+            try { w.processStatsMessage(msg(9, 1)); fail("should have been rejected"); } catch(final IOException e) { /* expected */ }
+            gate.countDown();
+            }
+        }
+
+    /**Test that close() closes the wrapped handler and that later messages are rejected. */
+    @Test
+    public void testClose() throws Exception
+        {
+        final AtomicInteger delivered = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final class ClosingHandler implements StatsHandler, AutoCloseable
+            {
+            @Override public void processStatsMessage(final StatsMessageWithMetadata swmd) { delivered.incrementAndGet(); }
+            @Override public void close() { closed.incrementAndGet(); }
+            }
+        final ConcurrentStatsHandlerWrapper w = new ConcurrentStatsHandlerWrapper(new ClosingHandler(), ConcurrentStatsHandlerWrapper.EXECUTION_POOLED, 2);
+        w.processStatsMessage(msg(1, 1));
+        w.close();
+        assertEquals(1, delivered.get());
+        assertEquals(1, closed.get());
+        try { w.processStatsMessage(msg(1, 2)); fail("should have been rejected after close"); } catch(final IOException e) { /* expected */ }
+        assertEquals(1, delivered.get());
+        }
+
+    /**Test selection of execution mode from handler config. */
+    @Test
+    public void testConfig() throws Exception
+        {
+        final String config =
+            "{\"type\":\"uk.org.opentrv.test.statsHandling.ConcurrentStatsHandlerWrapperTest$SlowCheckingHandler\"," +
+            " \"execution\":\"virtual\",\"maxConcurrency\":3}";
+        final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+        assertTrue(sh instanceof ConcurrentStatsHandlerWrapper);
+        try(final ConcurrentStatsHandlerWrapper w = (ConcurrentStatsHandlerWrapper)sh)
+            {
+            assertEquals(3, w.getMaxConcurrency());
+            w.processStatsMessage(msg(1, 1));
+            }
+        // No execution mode means no wrapper.
+        assertTrue(StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(
+            "{\"type\":\"uk.org.opentrv.test.statsHandling.ConcurrentStatsHandlerWrapperTest$SlowCheckingHandler\"}")))
+            instanceof SlowCheckingHandler);
+        }
+    }
@@ -0,0 +1,220 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.builtin.SimpleFileLoggingStatsHandler;
+import uk.org.opentrv.comms.statshandlers.support.DailyLogRoller;
+import uk.org.opentrv.comms.statshandlers.support.DailyLogWriterCache;
+import uk.org.opentrv.comms.statshandlers.support.GroupCommitter;
+import uk.org.opentrv.comms.statshandlers.support.IndexedDailyLogReader;
+import uk.org.opentrv.comms.util.BlockGZIP;
+import uk.org.opentrv.hdd.HDDUtil;
+
+/**Test compression of completed daily logs and reading them back. */
+public class DailyLogRollerTest
+    {
+    /**Private temp directory created for each test and cleared down after; never null during tests. */
+    private Path tempDir;
+
+    @Before
+    public void before() throws Exception
+        {
+        tempDir = Files.createTempDirectory(null);
+        }
+
+    @After
+    public void after() throws Exception
+        {
+        Files.walkFileTree(tempDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return(FileVisitResult.CONTINUE);
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+                Files.delete(dir);
+                return(FileVisitResult.CONTINUE);
+            }
+        });
+        tempDir = null;
+        }
+
+    /**2017-01-01T00:00:00Z. */
+    private static final long BASE = 1483228800000L;
+
+    /**Milliseconds per day. */
+    private static final long DAY_MS = 24 * 3600_000L;
+
+    /**Line separator as written to logs. */
+    private static final String EOL = System.lineSeparator();
+
+    /**Read all of a Reader. */
+    private static String readAll(final Reader r) throws IOException
+        {
+        final StringBuilder sb = new StringBuilder();
+        final char[] buf = new char[1000];
+        try { for(int n; (n = r.read(buf)) >= 0; ) { sb.append(buf, 0, n); } }
+        finally { r.close(); }
+        return(sb.toString());
+        }
+
+    /**Make a JSON log line for the given time and index. */
+    private static String line(final long t, final int i)
+        { return(SimpleFileLoggingStatsHandler.wrapLeafJSONAsArrayLogLine(t, "", "{\"@\":\"" + String.format("%04x", i % 7) + "\",\"L\":" + i + "}")); }
+
+    /**Test that only completed logs not open for writing are compressed, that late lines are appended,
+     * and that the compressed logs read back transparently.
+     */
+    @Test
+    public void testRollAndRead() throws Exception
+        {
+        final File statsDir = tempDir.toFile();
+        final File remote = new File(statsDir, "remote");
+        final StringBuilder day0 = new StringBuilder(), day1 = new StringBuilder();
+        final String late = line(BASE + 5000, 7 * 1000);
+        final DailyLogWriterCache logs = new DailyLogWriterCache(statsDir, 1, 0, 16, GroupCommitter.NONE);
+        try(final DailyLogRoller roller = new DailyLogRoller(statsDir, Arrays.asList("remote"), 3600_000L, 1024, logs, 0))
+            {
+            for(int i = 0; i < 2000; ++i)
+                {
+                final long t = BASE + (i * 60_000L);
+                final String l = line(t, i);
+                logs.append("remote", t, ".json", l, null, String.format("%04x", i % 7));
+                ((t < BASE + DAY_MS) ? day0 : day1).append(l).append(EOL);
+                }
+            assertTrue(new File(remote, "20170101.json" + IndexedDailyLogReader.INDEX_SUFFIX).exists());
+
+            // Not yet due, then only the completed day which is no longer open.
+            assertEquals(0, roller.roll(BASE + DAY_MS + 1000));
+            assertEquals(1, roller.roll(BASE + (3 * DAY_MS)));
+            assertFalse(new File(remote, "20170101.json").exists());
+            assertFalse(new File(remote, "20170101.json" + IndexedDailyLogReader.INDEX_SUFFIX).exists());
+            assertTrue(BlockGZIP.isBlockGZIP(new File(remote, "20170101.json.gz")));
+            assertTrue(new File(remote, "20170102.json").exists());
+
+            assertTrue(new File(remote, "20170101.json.gz" + IndexedDailyLogReader.INDEX_SUFFIX).length() > 0);
+
+            // A late line for the compressed day starts a new log, kept open alongside the other day's.
+            logs.append("remote", BASE + 5000, ".json", late, null, "0000");
+            day0.append(late).append(EOL);
+            assertEquals(0, roller.roll(BASE + (3 * DAY_MS)));
+            // Completing a run interrupted meanwhile leaves the new log's index alone.
+            final File liveIdx = new File(remote, "20170101.json" + IndexedDailyLogReader.INDEX_SUFFIX);
+            logs.flush();
+            assertTrue(liveIdx.exists());
+            Files.write(new File(remote, "20170101.json" + DailyLogRoller.ROLLING_SUFFIX).toPath(), new byte[0]);
+            assertEquals(1, roller.roll(BASE + (3 * DAY_MS)));
+            assertTrue(liveIdx.exists());
+            // Once closed both are compressed, the late log appended.
+            logs.close();
+            assertEquals(2, roller.roll(BASE + (3 * DAY_MS)));
+            assertEquals(0, roller.roll(BASE + (3 * DAY_MS)));
+            }
+        finally { logs.close(); }
+        assertEquals(0, remote.list((d, n) -> !n.endsWith(".json.gz") && !n.endsWith(".json.gz" + IndexedDailyLogReader.INDEX_SUFFIX)).length);
+
+        // Transparent smart reading of plaintext names and of .gz names.
+        assertEquals(day0.toString(), readAll(HDDUtil.getDirSmartFileReader(remote).apply("20170101.json")));
+        assertEquals(day1.toString(), readAll(HDDUtil.getDirSmartFileReader(remote).apply("20170102.json.gz")));
+
+        // Time-range reads of compressed logs, using the index to decompress only blocks in range.
+        final IndexedDailyLogReader reader = new IndexedDailyLogReader(statsDir, "remote", ".json");
+        final List<String> r = reader.read(BASE, BASE + 120_000L, "0000");
+        assertEquals(Arrays.asList(line(BASE, 0), late), r);
+        assertTrue("scanned " + reader.getLinesScanned(), reader.getLinesScanned() < 100);
+        final long inflated = reader.getBlocksInflated();
+        assertTrue("inflated " + inflated, (inflated > 0) && (inflated < 10));
+        // Decompressed blocks are cached.
+        assertEquals(r, reader.read(BASE, BASE + 120_000L, "0000"));
+        assertEquals(inflated, reader.getBlocksInflated());
+        assertEquals(2000 - 1440, reader.read(BASE + DAY_MS, BASE + (2 * DAY_MS), null).size());
+        // Whole days match the originals.
+        final List<String> all = reader.read(BASE, BASE + (2 * DAY_MS), null);
+        assertEquals(2001, all.size());
+        assertEquals(day0.toString() + day1, String.join(EOL, all) + EOL);
+        }
+
+    /**Test that a log taken for compression by an interrupted run is completed first. */
+    @Test
+    public void testInterrupted() throws Exception
+        {
+        final File remote = new File(tempDir.toFile(), "remote");
+        remote.mkdirs();
+        final String earlier = line(BASE, 1) + EOL, later = line(BASE + 1000, 2) + EOL;
+        Files.write(new File(remote, "20170101.log" + DailyLogRoller.ROLLING_SUFFIX).toPath(), earlier.getBytes());
+        Files.write(new File(remote, "20170101.log").toPath(), later.getBytes());
+        Files.write(new File(remote, "notalog.log").toPath(), later.getBytes());
+        try(final DailyLogRoller roller = new DailyLogRoller(tempDir.toFile(), Arrays.asList("remote", "localtemp"), 0, null, 0))
+            { assertEquals(2, roller.roll(BASE + DAY_MS)); }
+        assertEquals(earlier + later, readAll(HDDUtil.getDirSmartFileReader(remote).apply("20170101.log")));
+        assertEquals(Arrays.asList("20170101.log.gz", "notalog.log"), Arrays.asList(sorted(remote.list())));
+        }
+
+    /**Sort in place and return. */
+    private static String[] sorted(final String[] a) { Arrays.sort(a); return(a); }
+
+    /**Test that the handler compresses completed logs in the background when configured to. */
+    @Test
+    public void testConfig() throws Exception
+        {
+        try(final SimpleFileLoggingStatsHandler h = new SimpleFileLoggingStatsHandler(tempDir.toString()))
+            {
+            h.processStatsMessage(new StatsMessageWithMetadata("@A45;T21CC", BASE, false));
+            h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"cdfb\",\"L\":1}", BASE, false));
+            }
+        final String config =
+            "{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.SimpleFileLoggingStatsHandler\"," +
+            " \"options\":{\"statsDirName\":\"" + tempDir.toString().replace("\\", "\\\\") + "\",\"compressAfterMS\":0}}";
+        final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+        try
+            {
+            final File gz = new File(tempDir.toFile(), "remote/20170101.json.gz");
+            for(int i = 0; (i < 100) && !(gz.exists() && new File(tempDir.toFile(), "remote/20170101.log.gz").exists()); ++i)
+                { Thread.sleep(50); }
+            assertTrue(gz.exists());
+            assertTrue(readAll(HDDUtil.getDirSmartFileReader(gz.getParentFile()).apply("20170101.log")).contains("@A45;T21CC"));
+            }
+        finally { ((SimpleFileLoggingStatsHandler)sh).close(); }
+        }
+    }
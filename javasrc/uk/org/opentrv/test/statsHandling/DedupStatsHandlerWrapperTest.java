@@ -0,0 +1,179 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.filter.DedupStatsHandlerWrapper;
+
+/**Test duplicate and change suppression. */
+public class DedupStatsHandlerWrapperTest
+    {
+    /**Handler that records the text of all messages it is passed, and whether it has been closed. */
+    private static final class Recorder implements StatsHandler, AutoCloseable
+        {
+        final List<String> got = new ArrayList<>();
+        volatile boolean closed;
+        @Override public void close() { closed = true; }
+        @Override public synchronized void processStatsMessage(final StatsMessageWithMetadata swmd) { got.add(swmd.message); }
+        }
+
+    private static StatsMessageWithMetadata msg(final String m, final long t)
+        { return(new StatsMessageWithMetadata(m, t, false)); }
+
+    /**Test that close() closes the wrapped handler. */
+    @Test
+    public void testCloseClosesWrapped() throws Exception
+        {
+        final Recorder r = new Recorder();
+        try(final DedupStatsHandlerWrapper d = new DedupStatsHandlerWrapper(r)) { d.processStatsMessage(msg("@b39a;T20C0", 1000)); }
+        assertEquals(1, r.got.size());
+        assertTrue(r.closed);
+        }
+
+    /**Test raw duplicate suppression with re-emit after the interval. */
+    @Test
+    public void testRaw() throws Exception
+        {
+        final Recorder r = new Recorder();
+        final DedupStatsHandlerWrapper d = new DedupStatsHandlerWrapper(r, 1000, null, null, 10);
+        d.processStatsMessage(msg("@2D1A;T18CC;L47;O1", 0));
+        d.processStatsMessage(msg("@2D1A;T18CC;L47;O1", 500)); // Duplicate.
+        d.processStatsMessage(msg("@A45;T18CC;L47;O1", 600)); // Other leaf.
+        d.processStatsMessage(msg("@2D1A;T18CD;L47;O1", 700)); // Changed.
+        d.processStatsMessage(msg("@2D1A;T18CD;L47;O1", 1200)); // Duplicate.
+        d.processStatsMessage(msg("@2D1A;T18CD;L47;O1", 1700)); // Interval elapsed.
+        d.processStatsMessage(msg("=F0%@20C3;", 1800)); // No leaf ID.
+        d.processStatsMessage(msg("=F0%@20C3;", 1900));
+        assertEquals(Arrays.asList("@2D1A;T18CC;L47;O1", "@A45;T18CC;L47;O1", "@2D1A;T18CD;L47;O1", "@2D1A;T18CD;L47;O1",
+            "=F0%@20C3;", "=F0%@20C3;"), r.got);
+        assertEquals(2, d.getSuppressedCount());
+        }
+
+    /**Test that raw comparison ignores the JSON sequence number. */
+    @Test
+    public void testRawIgnoresSequence() throws Exception
+        {
+        final Recorder r = new Recorder();
+        final DedupStatsHandlerWrapper d = new DedupStatsHandlerWrapper(r, 1000, null, null, 10);
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":9,\"T|C16\":300}", 0));
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":10,\"T|C16\":300}", 1)); // Duplicate but for sequence.
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":11,\"T|C16\":301}", 2)); // Changed.
+        assertEquals(2, r.got.size());
+        assertEquals(1, d.getSuppressedCount());
+        }
+
+    /**Test that a message that fails downstream is not suppressed when retried. */
+    @Test
+    public void testDownstreamFailure() throws Exception
+        {
+        final Recorder r = new Recorder();
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        final DedupStatsHandlerWrapper d = new DedupStatsHandlerWrapper(new StatsHandler()
+            {
+            @Override public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+                {
+                if(failing.get()) { throw new IOException("down"); }
+                r.processStatsMessage(swmd);
+                }
+            }, 1000, null, null, 10);
+        try { d.processStatsMessage(msg("@2D1A;T18CC;L47;O1", 0)); fail("should have failed"); }
+        catch(final IOException e) { /* Expected. */ }
+        failing.set(false);
+        d.processStatsMessage(msg("@2D1A;T18CC;L47;O1", 10)); // Retry.
+        d.processStatsMessage(msg("@2D1A;T18CC;L47;O1", 20)); // Now a duplicate.
+        assertEquals(Arrays.asList("@2D1A;T18CC;L47;O1"), r.got);
+        assertEquals(1, d.getSuppressedCount());
+        }
+
+    /**Test selected fields and numeric deadbands. */
+    @Test
+    public void testFieldsAndDeadbands() throws Exception
+        {
+        final Recorder r = new Recorder();
+        final DedupStatsHandlerWrapper d = new DedupStatsHandlerWrapper(r, 3600_000,
+            Arrays.asList("v|%", "T|C16"), Collections.<String, Number>singletonMap("T|C16", 2), 10);
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":1,\"T|C16\":300,\"v|%\":0}", 0));
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":2,\"T|C16\":302,\"v|%\":0,\"L\":5}", 1)); // Within deadband, L ignored.
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":3,\"T|C16\":303,\"v|%\":0}", 2)); // Drifted out of deadband.
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":4,\"T|C16\":303,\"v|%\":10}", 3)); // Valve changed.
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":5,\"v|%\":10}", 4)); // Temperature gone.
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":6,\"v|%\":10}", 5)); // Duplicate.
+        assertEquals(4, r.got.size());
+        assertTrue(r.got.get(1).contains("\"+\":3"));
+        assertEquals(2, d.getSuppressedCount());
+        }
+
+    /**Test that deadbands alone compare all other fields but the sequence number. */
+    @Test
+    public void testAllFields() throws Exception
+        {
+        final Recorder r = new Recorder();
+        final DedupStatsHandlerWrapper d = new DedupStatsHandlerWrapper(r, 3600_000,
+            null, Collections.<String, Number>singletonMap("T|C16", 2), 10);
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":1,\"T|C16\":300,\"H|%\":80}", 0));
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":2,\"H|%\":80,\"T|C16\":301}", 1));
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"+\":3,\"T|C16\":301,\"H|%\":81}", 2));
+        assertEquals(2, r.got.size());
+        }
+
+    /**Test that state is bounded, with evicted leaves re-emitting. */
+    @Test
+    public void testLRU() throws Exception
+        {
+        final Recorder r = new Recorder();
+        final DedupStatsHandlerWrapper d = new DedupStatsHandlerWrapper(r, 3600_000, null, null, 2);
+        for(final String id : new String[]{ "A1", "A2", "A1", "A3", "A1", "A2" })
+            { d.processStatsMessage(msg("@" + id + ";T18CC", 0)); }
+        // A1 stays recent; A2 is evicted by A3 and so re-emitted.
+        assertEquals(Arrays.asList("@A1;T18CC", "@A2;T18CC", "@A3;T18CC", "@A2;T18CC"), r.got);
+        }
+
+    /**Test construction from factory JSON config. */
+    @Test
+    public void testConfig() throws Exception
+        {
+        final String config =
+            "{\"type\":\"uk.org.opentrv.comms.statshandlers.filter.DedupStatsHandlerWrapper\"," +
+            " \"options\":{\"handler\":{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.DummyStatsHandler\"}," +
+            "  \"minIntervalMS\":60000,\"fields\":[\"T|C16\"],\"deadbands\":{\"T|C16\":1},\"maxLeaves\":100}}";
+        final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+        assertTrue(sh instanceof DedupStatsHandlerWrapper);
+        final DedupStatsHandlerWrapper d = (DedupStatsHandlerWrapper)sh;
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":300}", 0));
+        d.processStatsMessage(msg("{\"@\":\"b39a\",\"T|C16\":301}", 1));
+        assertEquals(1, d.getSuppressedCount());
+        }
+    }
@@ -0,0 +1,298 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.filter.DispatchingStatsHandler;
+import uk.org.opentrv.comms.statshandlers.filter.DispatchingStatsHandler.BackpressurePolicy;
+import uk.org.opentrv.comms.statshandlers.filter.DispatchingStatsHandler.HandlerMetrics;
+import uk.org.opentrv.comms.statshandlers.filter.DispatchingStatsHandler.Subscription;
+
+/**Test the shared stats dispatcher. */
+public class DispatchingStatsHandlerTest
+    {
+    /**Handler that records messages, optionally waiting for a gate to open before processing each. */
+    public static final class GatedRecordingHandler implements StatsHandler
+        {
+        public final List<StatsMessageWithMetadata> received = Collections.synchronizedList(new ArrayList<StatsMessageWithMetadata>());
+        private final CountDownLatch gate;
+        public GatedRecordingHandler(final CountDownLatch gate) { this.gate = gate; }
+        public GatedRecordingHandler(final Map<?,?> config) { this((CountDownLatch)null); }
+        @Override public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+            {
+            if(null != gate) { try { gate.await(); } catch(final InterruptedException e) { throw new IOException(e); } }
+            received.add(swmd);
+            }
+        /**Get the message bodies received, in order. */
+        public List<String> getMessages()
+            {
+            final List<String> result = new ArrayList<>();
+            synchronized(received) { for(final StatsMessageWithMetadata swmd : received) { result.add(swmd.message); } }
+            return(result);
+            }
+        }
+
+    private static StatsMessageWithMetadata msg(final int i)
+        { return(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"+\":" + i + "}", 1000L + i, 0 == (i & 1))); }
+
+    private static List<String> msgs(final int from, final int to)
+        {
+        final List<String> result = new ArrayList<>();
+        for(int i = from; i < to; ++i) { result.add(msg(i).message); }
+        return(result);
+        }
+
+    /**Wait (briefly) for a handler to have received the expected number of messages. */
+    private static void awaitCount(final GatedRecordingHandler h, final int n) throws InterruptedException
+        {
+        for(int i = 0; (i < 500) && (h.received.size() < n); ++i) { Thread.sleep(10); }
+        assertEquals(n, h.received.size());
+        }
+
+    /**Test in-order delivery of the same message instance to all handlers. */
+    @Test
+    public void testBasicDelivery() throws Exception
+        {
+        final GatedRecordingHandler h1 = new GatedRecordingHandler((CountDownLatch)null);
+        final GatedRecordingHandler h2 = new GatedRecordingHandler((CountDownLatch)null);
+        // Use fewer threads than handlers, and a small ring that the publisher must wait on.
+        try(final DispatchingStatsHandler d = new DispatchingStatsHandler(
+                Arrays.asList(new Subscription("h1", h1, BackpressurePolicy.BLOCK, 5000, null),
+                              new Subscription("h2", h2, BackpressurePolicy.BLOCK, 5000, null)), 8, 1, 1000))
+            {
+            assertEquals(8, d.getCapacity());
+            assertEquals(Arrays.asList(h1, h2), d.getHandlers());
+            for(int i = 0; i < 100; ++i) { d.processStatsMessage(msg(i)); }
+            awaitCount(h1, 100);
+            awaitCount(h2, 100);
+            assertEquals(msgs(0, 100), h1.getMessages());
+            assertEquals(msgs(0, 100), h2.getMessages());
+            for(int i = 0; i < 100; ++i) { assertSame(h1.received.get(i), h2.received.get(i)); }
+            for(int i = 0; (i < 500) && (d.getMetrics().get(1).delivered < 100); ++i) { Thread.sleep(10); }
+            final HandlerMetrics m = d.getMetrics().get(1);
+            assertEquals("h2", m.name);
+            assertEquals(0, m.lag);
+            assertEquals(100, m.delivered);
+            assertEquals(0, m.dropped);
+            }
+        }
+
+    /**Test that a stalled handler drops its oldest messages without holding up another handler. */
+    @Test
+    public void testDropOldest() throws Exception
+        {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final GatedRecordingHandler slow = new GatedRecordingHandler(gate);
+        final GatedRecordingHandler fast = new GatedRecordingHandler((CountDownLatch)null);
+        try(final DispatchingStatsHandler d = new DispatchingStatsHandler(
+                Arrays.asList(new Subscription("slow", slow),
+                              new Subscription("fast", fast, BackpressurePolicy.BLOCK, 5000, null)), 4, 0, 1000))
+            {
+            d.processStatsMessage(msg(0));
+            // Give the slow handler time to take the first message and stall on it.
+            for(int i = 0; (i < 500) && (d.getMetrics().get(0).lag > 0); ++i) { Thread.sleep(10); }
+            for(int i = 1; i < 20; ++i) { d.processStatsMessage(msg(i)); }
+            awaitCount(fast, 20);
+            assertEquals(4, d.getMetrics().get(0).lag);
+            assertEquals(15, d.getMetrics().get(0).dropped);
+            gate.countDown();
+            awaitCount(slow, 5);
+            final List<String> expected = new ArrayList<>(msgs(0, 1));
+            expected.addAll(msgs(16, 20));
+            assertEquals(expected, slow.getMessages());
+            assertEquals(4, d.getMetrics().get(0).maxLag);
+            }
+        }
+
+    /**Test that the block policy stalls the publisher up to its timeout, then drops. */
+    @Test
+    public void testBlock() throws Exception
+        {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final GatedRecordingHandler slow = new GatedRecordingHandler(gate);
+        try(final DispatchingStatsHandler d = new DispatchingStatsHandler(
+                Collections.singletonList(new Subscription("slow", slow, BackpressurePolicy.BLOCK, 50, null)), 1, 0, 1000))
+            {
+            d.processStatsMessage(msg(0));
+            for(int i = 0; (i < 500) && (d.getMetrics().get(0).lag > 0); ++i) { Thread.sleep(10); }
+            d.processStatsMessage(msg(1)); // Fills the ring.
+            final long start = System.nanoTime();
+            d.processStatsMessage(msg(2)); // Must block then drop msg(1).
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 40);
+            assertEquals(1, d.getMetrics().get(0).dropped);
+            gate.countDown();
+            awaitCount(slow, 2);
+            assertEquals(Arrays.asList(msg(0).message, msg(2).message), slow.getMessages());
+            }
+        }
+
+    /**Test that the spill policy loses nothing and preserves order. */
+    @Test
+    public void testSpill() throws Exception
+        {
+        final File dir = Files.createTempDirectory("spill").toFile();
+        final File spillFile = new File(dir, "slow.spill");
+        final CountDownLatch gate = new CountDownLatch(1);
+        final GatedRecordingHandler slow = new GatedRecordingHandler(gate);
+        try(final DispatchingStatsHandler d = new DispatchingStatsHandler(
+                Collections.singletonList(new Subscription("slow", slow, BackpressurePolicy.SPILL, 1, spillFile)), 2, 0, 1000))
+            {
+            for(int i = 0; i < 50; ++i) { d.processStatsMessage(msg(i)); }
+            assertTrue(spillFile.exists());
+            assertTrue(d.getMetrics().get(0).spilled > 0);
+            assertEquals(0, d.getMetrics().get(0).dropped);
+            gate.countDown();
+            awaitCount(slow, 50);
+            assertEquals(msgs(0, 50), slow.getMessages());
+            // Authentication and timestamp survive the round trip.
+            assertEquals(msg(49), slow.received.get(49));
+            for(int i = 0; (i < 500) && spillFile.exists(); ++i) { Thread.sleep(10); }
+            assertFalse(spillFile.exists());
+            // After catching up, messages go through the ring again.
+            d.processStatsMessage(msg(50));
+            awaitCount(slow, 51);
+            }
+        finally { spillFile.delete(); dir.delete(); }
+        }
+
+    /**Test that a spill file left over from a previous run is replayed first. */
+    @Test
+    public void testSpillReplayOnStart() throws Exception
+        {
+        final File dir = Files.createTempDirectory("spill").toFile();
+        final File spillFile = new File(dir, "h.spill");
+        try
+            {
+            Files.write(spillFile.toPath(), ("1000 1 " + msg(0).message + "\n1001 0 " + msg(1).message + "\n").getBytes("ASCII"));
+            final GatedRecordingHandler h = new GatedRecordingHandler((CountDownLatch)null);
+            try(final DispatchingStatsHandler d = new DispatchingStatsHandler(
+                    Collections.singletonList(new Subscription("h", h, BackpressurePolicy.SPILL, 1, spillFile)), 4, 0, 1000))
+                {
+                d.processStatsMessage(msg(2));
+                awaitCount(h, 3);
+                assertEquals(msgs(0, 3), h.getMessages());
+                }
+            }
+        finally { spillFile.delete(); dir.delete(); }
+        }
+
+    /**Test that a partial last line from a crash is removed before appending to a left-over spill file. */
+    @Test
+    public void testSpillTornLine() throws Exception
+        {
+        final File dir = Files.createTempDirectory("spill").toFile();
+        final File spillFile = new File(dir, "h.spill");
+        try
+            {
+            Files.write(spillFile.toPath(), ("1000 1 " + msg(0).message + "\n1001 0 {\"@\":\"b3").getBytes("ASCII"));
+            final CountDownLatch gate = new CountDownLatch(1);
+            final GatedRecordingHandler h = new GatedRecordingHandler(gate);
+            try(final DispatchingStatsHandler d = new DispatchingStatsHandler(
+                    Collections.singletonList(new Subscription("h", h, BackpressurePolicy.SPILL, 1, spillFile)), 4, 0, 1000))
+                {
+                // Still spilling, so these are appended to the file.
+                d.processStatsMessage(msg(2));
+                d.processStatsMessage(msg(3));
+                gate.countDown();
+                awaitCount(h, 3);
+                assertEquals(Arrays.asList(msg(0).message, msg(2).message, msg(3).message), h.getMessages());
+                }
+            }
+        finally { spillFile.delete(); dir.delete(); }
+        }
+
+    /**Test that messages still in the ring on close() are spilled for the next run. */
+    @Test
+    public void testSpillOnClose() throws Exception
+        {
+        final File dir = Files.createTempDirectory("spill").toFile();
+        final File spillFile = new File(dir, "h.spill");
+        try
+            {
+            final CountDownLatch gate = new CountDownLatch(1);
+            final GatedRecordingHandler slow = new GatedRecordingHandler(gate);
+            final DispatchingStatsHandler d = new DispatchingStatsHandler(
+                    Collections.singletonList(new Subscription("h", slow, BackpressurePolicy.SPILL, 1, spillFile)), 8, 0, 50);
+            d.processStatsMessage(msg(0));
+            for(int i = 0; (i < 500) && (d.getMetrics().get(0).lag > 0); ++i) { Thread.sleep(10); }
+            for(int i = 1; i < 4; ++i) { d.processStatsMessage(msg(i)); }
+            assertFalse(spillFile.exists());
+            d.close();
+            gate.countDown();
+            final GatedRecordingHandler h = new GatedRecordingHandler((CountDownLatch)null);
+            try(final DispatchingStatsHandler d2 = new DispatchingStatsHandler(
+                    Collections.singletonList(new Subscription("h", h, BackpressurePolicy.SPILL, 1, spillFile)), 8, 0, 1000))
+                {
+                // The interrupted delivery of the first is repeated unless it had already finished (with an error).
+                for(int i = 0; (i < 500) && (h.received.size() < 3); ++i) { Thread.sleep(10); }
+                Thread.sleep(50);
+                final List<String> got = h.getMessages();
+                assertEquals(msgs(4 - got.size(), 4), got);
+                assertEquals(0, d2.getMetrics().get(0).dropped);
+                }
+            }
+        finally { spillFile.delete(); dir.delete(); }
+        }
+
+    /**Test construction from factory JSON config. */
+    @Test
+    public void testConfig() throws Exception
+        {
+        final String config =
+            "{\"type\":\"uk.org.opentrv.comms.statshandlers.filter.DispatchingStatsHandler\"," +
+            " \"options\":{\"capacity\":100,\"threads\":1,\"policy\":\"block\",\"blockTimeoutMS\":5," +
+            "  \"handlers\":[" +
+            "   {\"name\":\"a\",\"type\":\"uk.org.opentrv.test.statsHandling.DispatchingStatsHandlerTest$GatedRecordingHandler\"}," +
+            "   {\"type\":\"uk.org.opentrv.test.statsHandling.DispatchingStatsHandlerTest$GatedRecordingHandler\",\"policy\":\"dropOldest\"}" +
+            "  ]}}";
+        final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+        assertTrue(sh instanceof DispatchingStatsHandler);
+        try(final DispatchingStatsHandler d = (DispatchingStatsHandler)sh)
+            {
+            assertEquals(128, d.getCapacity());
+            assertEquals("a", d.getMetrics().get(0).name);
+            assertEquals("handler1", d.getMetrics().get(1).name);
+            d.processStatsMessage(msg(0));
+            for(int i = 0; (i < 500) && (d.getMetrics().get(1).delivered < 1); ++i) { Thread.sleep(10); }
+            assertEquals(1, d.getMetrics().get(1).delivered);
+            }
+        }
+    }
@@ -0,0 +1,251 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.filter.DurableQueueStatsHandlerWrapper;
+import uk.org.opentrv.comms.statshandlers.support.GroupCommitter;
+
+/**Test the durable spill-to-disc queue. */
+public class DurableQueueStatsHandlerWrapperTest
+    {
+    /**Private temp directory created for each test and cleared down after; never null during tests. */
+    private Path tempDir;
+
+    @Before
+    public void before() throws Exception
+        {
+        tempDir = Files.createTempDirectory(null);
+        }
+
+    @After
+    public void after() throws Exception
+        {
+        Files.walkFileTree(tempDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return(FileVisitResult.CONTINUE);
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+                Files.delete(dir);
+                return(FileVisitResult.CONTINUE);
+            }
+        });
+        tempDir = null;
+        }
+
+    /**Handler that records messages, failing while told to, and whether it has been closed. */
+    private static final class Recorder implements StatsHandler, AutoCloseable
+        {
+        final List<StatsMessageWithMetadata> got = new ArrayList<>();
+        volatile boolean failing;
+        volatile boolean closed;
+        @Override public void close() { closed = true; }
+        @Override public synchronized void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException
+            {
+            if(failing) { throw new IOException("down"); }
+            got.add(swmd);
+            }
+        synchronized int size() { return(got.size()); }
+        synchronized String message(final int i) { return(got.get(i).message); }
+        }
+
+    /**Wait up to a few seconds for the handler to have received n messages. */
+    private static void waitFor(final Recorder r, final int n) throws InterruptedException
+        {
+        for(int i = 0; (i < 500) && (r.size() < n); ++i) { Thread.sleep(10); }
+        assertEquals(n, r.size());
+        }
+
+    private static StatsMessageWithMetadata msg(final int i)
+        { return(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"+\":" + i + ",\"T|C16\":300}", 1000L + i, 0 == (i & 1))); }
+
+    /**Test in-order delivery with retry while the downstream handler is failing. */
+    @Test
+    public void testRetry() throws Exception
+        {
+        final Recorder r = new Recorder();
+        r.failing = true;
+        try(final DurableQueueStatsHandlerWrapper q = new DurableQueueStatsHandlerWrapper(r, tempDir.toFile(),
+                4096, 1 << 20, 5, 20, 1000, GroupCommitter.NONE))
+            {
+            for(int i = 0; i < 10; ++i) { q.processStatsMessage(msg(i)); }
+            for(int i = 0; (i < 500) && (q.getRetryCount() < 3); ++i) { Thread.sleep(10); }
+            assertTrue(q.getRetryCount() >= 3);
+            assertEquals(0, r.size());
+            assertEquals(10, q.getPendingCount());
+            r.failing = false;
+            waitFor(r, 10);
+            for(int i = 0; i < 10; ++i)
+                {
+                assertEquals(msg(i).message, r.message(i));
+                assertEquals(1000L + i, r.got.get(i).timestamp);
+                assertEquals(0 == (i & 1), r.got.get(i).authenticated);
+                }
+            for(int i = 0; (i < 500) && (q.getPendingCount() > 0); ++i) { Thread.sleep(10); }
+            assertEquals(0, q.getPendingCount());
+            assertEquals(10, q.getDeliveredCount());
+            }
+        }
+
+    /**Test that close() closes the wrapped handler once delivery has stopped. */
+    @Test
+    public void testCloseClosesWrapped() throws Exception
+        {
+        final Recorder r = new Recorder();
+        try(final DurableQueueStatsHandlerWrapper q = new DurableQueueStatsHandlerWrapper(r, tempDir.toFile(),
+                4096, 1 << 20, 5, 20, 1000, GroupCommitter.NONE))
+            {
+            q.processStatsMessage(msg(0));
+            waitFor(r, 1);
+            assertFalse(r.closed);
+            }
+        assertTrue(r.closed);
+        }
+
+    /**Test that undelivered messages survive a restart and are then delivered. */
+    @Test
+    public void testRestart() throws Exception
+        {
+        final Recorder r0 = new Recorder();
+        final DurableQueueStatsHandlerWrapper q0 = new DurableQueueStatsHandlerWrapper(r0, tempDir.toFile(),
+            4096, 1 << 20, 5, 20, 1000, GroupCommitter.NONE);
+        for(int i = 0; i < 3; ++i) { q0.processStatsMessage(msg(i)); }
+        waitFor(r0, 3);
+        r0.failing = true;
+        for(int i = 3; i < 100; ++i) { q0.processStatsMessage(msg(i)); }
+        q0.close();
+        try { q0.processStatsMessage(msg(100)); fail("closed"); }
+        catch(final IOException e) { /* Expected. */ }
+
+        final Recorder r1 = new Recorder();
+        r1.failing = true; // Hold delivery until the queue has been checked.
+        try(final DurableQueueStatsHandlerWrapper q1 = new DurableQueueStatsHandlerWrapper(r1, tempDir.toFile(),
+                4096, 1 << 20, 5, 20, 1000, GroupCommitter.NONE))
+            {
+            assertEquals(97, q1.getPendingCount());
+            q1.processStatsMessage(msg(100));
+            r1.failing = false;
+            waitFor(r1, 98);
+            for(int i = 0; i < 98; ++i) { assertEquals(msg(i + 3).message, r1.message(i)); }
+            // Segments wholly delivered have been removed.
+            for(int i = 0; (i < 500) && (q1.getPendingCount() > 0); ++i) { Thread.sleep(10); }
+            assertEquals(1, q1.getSegmentCount());
+            }
+        }
+
+    /**Test that a delivered segment that cannot be deleted does not stop delivery, and is deleted later. */
+    @Test
+    public void testDeleteFailure() throws Exception
+        {
+        final Recorder r = new Recorder();
+        r.failing = true;
+        try(final DurableQueueStatsHandlerWrapper q = new DurableQueueStatsHandlerWrapper(r, tempDir.toFile(),
+                1024, 1 << 20, 5, 20, 1000, GroupCommitter.NONE))
+            {
+            // Fill the first segment and start the second while delivery is held.
+            for(int i = 0; i < 30; ++i) { q.processStatsMessage(msg(i)); }
+            assertEquals(2, q.getSegmentCount());
+            for(int i = 0; (i < 500) && (q.getRetryCount() < 1); ++i) { Thread.sleep(10); }
+            // Replace the first segment (still mapped for delivery) with a non-empty directory, which cannot be deleted.
+            final File seg0 = new File(tempDir.toFile(), String.format("%016x", 0) + ".seg");
+            assertTrue(seg0.delete());
+            assertTrue(seg0.mkdir());
+            final File blocker = new File(seg0, "blocker");
+            assertTrue(blocker.createNewFile());
+            r.failing = false;
+            waitFor(r, 30);
+            for(int i = 0; i < 30; ++i) { assertEquals(msg(i).message, r.message(i)); }
+            assertTrue(seg0.isDirectory());
+            assertEquals(2, q.getSegmentCount());
+
+            // Delivery continues, and the deletion is retried once the next segment is finished with.
+            assertTrue(blocker.delete());
+            for(int i = 30; i < 60; ++i) { q.processStatsMessage(msg(i)); }
+            waitFor(r, 60);
+            for(int i = 30; i < 60; ++i) { assertEquals(msg(i).message, r.message(i)); }
+            for(int i = 0; (i < 500) && (q.getPendingCount() > 0); ++i) { Thread.sleep(10); }
+            assertEquals(0, q.getPendingCount());
+            assertFalse(seg0.exists());
+            assertEquals(1, q.getSegmentCount());
+            }
+        }
+
+    /**Test that a full queue rejects messages rather than blocking. */
+    @Test
+    public void testFull() throws Exception
+        {
+        final Recorder r = new Recorder();
+        r.failing = true;
+        try(final DurableQueueStatsHandlerWrapper q = new DurableQueueStatsHandlerWrapper(r, tempDir.toFile(),
+                1024, 2048, 1000, 1000, 1000, GroupCommitter.NONE))
+            {
+            int accepted = 0;
+            try { for( ; accepted < 1000; ++accepted) { q.processStatsMessage(msg(accepted)); } fail("full"); }
+            catch(final IOException e) { /* Expected. */ }
+            assertTrue(accepted > 20);
+            assertEquals(accepted, q.getPendingCount());
+            }
+        }
+
+    /**Test construction from factory JSON config. */
+    @Test
+    public void testConfig() throws Exception
+        {
+        final File dir = new File(tempDir.toFile(), "q");
+        final String config =
+            "{\"type\":\"uk.org.opentrv.comms.statshandlers.filter.DurableQueueStatsHandlerWrapper\"," +
+            " \"options\":{\"handler\":{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.DummyStatsHandler\"}," +
+            "  \"queueDir\":\"" + dir.getPath().replace("\\", "\\\\") + "\",\"segmentBytes\":65536,\"initialBackoffMS\":10}}";
+        final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+        assertTrue(sh instanceof DurableQueueStatsHandlerWrapper);
+        try(final DurableQueueStatsHandlerWrapper q = (DurableQueueStatsHandlerWrapper)sh)
+            {
+            q.processStatsMessage(msg(1));
+            for(int i = 0; (i < 500) && (0 == q.getDeliveredCount()); ++i) { Thread.sleep(10); }
+            assertEquals(1, q.getDeliveredCount());
+            }
+        assertTrue(dir.isDirectory());
+        }
+    }
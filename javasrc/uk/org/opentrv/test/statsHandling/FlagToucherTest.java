@@ -0,0 +1,136 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.builtin.FileFlagStatsHandler;
+import uk.org.opentrv.comms.statshandlers.support.FlagToucher;
+import uk.org.opentrv.comms.statshandlers.support.GroupCommitter;
+
+/**Test coalescing flag touching. */
+public class FlagToucherTest
+    {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException
+        { dir = Files.createTempDirectory("flags").toFile(); }
+
+    @After
+    public void tearDown()
+        {
+        final File[] files = dir.listFiles();
+        if(null != files) { for(final File f : files) { f.delete(); } }
+        dir.delete();
+        }
+
+    /**Test that with zero granularity every request touches the flag. */
+    @Test
+    public void testNoCoalescing() throws Exception
+        {
+        try(final FlagToucher ft = new FlagToucher(0, GroupCommitter.NONE))
+            {
+            final File f = new File(dir, "a.flg");
+            for(int i = 0; i < 10; ++i) { ft.touch(f); }
+            assertTrue(f.exists());
+            assertEquals(10, ft.getTouchCount());
+            }
+        }
+
+    /**Test that a burst across many leaves from many threads is coalesced to one touch per leaf, plus one pending. */
+    @Test
+    public void testBurstCoalescing() throws Exception
+        {
+        final int leaves = 200;
+        final int threads = 8;
+        try(final FlagToucher ft = new FlagToucher(3600_000, GroupCommitter.NONE))
+            {
+            final IOException[] failure = new IOException[1];
+            final Thread[] t = new Thread[threads];
+            for(int i = 0; i < threads; ++i)
+                {
+                t[i] = new Thread(new Runnable()
+                    {
+                    @Override public void run()
+                        {
+                        try { for(int n = 0; n < 50 * leaves; ++n) { ft.touch(new File(dir, (n % leaves) + ".flg")); } }
+                        catch(final IOException e) { failure[0] = e; }
+                        }
+                    });
+                t[i].start();
+                }
+            for(final Thread th : t) { th.join(); }
+            if(null != failure[0]) { throw failure[0]; }
+            assertEquals(leaves, dir.list().length);
+            assertEquals(leaves, ft.getTouchCount());
+            // Pending (merged) requests are applied on flush.
+            ft.flush();
+            assertEquals(2 * leaves, ft.getTouchCount());
+            ft.flush();
+            assertEquals(2 * leaves, ft.getTouchCount());
+            }
+        }
+
+    /**Test that pending touches are applied in the background once the granularity has elapsed. */
+    @Test
+    public void testBackground() throws Exception
+        {
+        final File f = new File(dir, "b.flg");
+        try(final FlagToucher ft = new FlagToucher(20, GroupCommitter.NONE))
+            {
+            ft.touch(f);
+            f.setLastModified(1000_000L);
+            ft.touch(f);
+            assertEquals(1, ft.getTouchCount());
+            for(int i = 0; (i < 500) && (ft.getTouchCount() < 2); ++i) { Thread.sleep(10); }
+            assertEquals(2, ft.getTouchCount());
+            assertTrue(f.lastModified() > 1000_000L);
+            }
+        }
+
+    /**Test the flag handler with coalescing configured. */
+    @Test
+    public void testFileFlagStatsHandler() throws Exception
+        {
+        final String config =
+            "{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.FileFlagStatsHandler\"," +
+            " \"options\":{\"statsDirName\":\"" + dir.getPath().replace("\\", "\\\\") + "\",\"touchGranularityMS\":10000}}";
+        try(final FileFlagStatsHandler h = (FileFlagStatsHandler)
+                StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config))))
+            {
+            for(int i = 0; i < 100; ++i) { h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"cdfb\",\"+\":" + (i & 15) + "}", 1000 + i, true)); }
+            assertTrue(new File(dir, "cdfb.flg").exists());
+            assertTrue(new File(dir, "cdfb.afl").exists());
+            }
+        }
+    }
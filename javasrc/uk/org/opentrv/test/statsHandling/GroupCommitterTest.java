@@ -0,0 +1,291 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigException;
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.support.DailyLogWriterCache;
+import uk.org.opentrv.comms.statshandlers.support.GroupCommitter;
+import uk.org.opentrv.comms.statshandlers.support.GroupCommitter.Policy;
+
+/**Test the group-commit durability policies. */
+public class GroupCommitterTest
+    {
+    private static void deleteAll(final File f)
+        {
+        final File[] files = f.listFiles();
+        if(null != files) { for(final File c : files) { deleteAll(c); } }
+        f.delete();
+        }
+
+    /**Test policy selection from configuration. */
+    @Test
+    public void testConfig() throws Exception
+        {
+        final Map<String, Object> config = new HashMap<>();
+        assertSame(GroupCommitter.NONE, GroupCommitter.fromConfig(config, Policy.NONE));
+        assertSame(GroupCommitter.PER_LINE, GroupCommitter.fromConfig(config, Policy.PER_LINE));
+        config.put("durability", "periodic");
+        config.put("syncIntervalMS", 1234L);
+        final GroupCommitter gc = GroupCommitter.fromConfig(config, Policy.NONE);
+        assertEquals(Policy.PERIODIC, gc.getPolicy());
+        // Shared by all users with the same interval.
+        assertSame(gc, GroupCommitter.getInstance(Policy.PERIODIC, 1234));
+        config.put("durability", "sometimes");
+        try { GroupCommitter.fromConfig(config, Policy.NONE); fail("should reject unknown policy"); }
+        catch(final ConfigException e) { /* Expected. */ }
+        }
+
+    /**Write many lines through a log cache with the given committer and return the forces done. */
+    private static long forcesForLines(final GroupCommitter gc, final int lines) throws IOException
+        {
+        final File dir = Files.createTempDirectory("gc").toFile();
+        try
+            {
+            final long before = gc.getForceCount();
+            try(final DailyLogWriterCache logs = new DailyLogWriterCache(dir, 1, 0, gc))
+                {
+                for(int i = 0; i < lines; ++i)
+                    { logs.append("remote", 1419033590000L + i, ".log", "line " + i, null); }
+                }
+            assertEquals(lines, Files.readAllLines(new File(dir, "remote/20141219.log").toPath()).size());
+            return(gc.getForceCount() - before);
+            }
+        finally { deleteAll(dir); }
+        }
+
+    /**Test that group commit batches forces, compared to per-line and none. */
+    @Test
+    public void testBatching() throws Exception
+        {
+        final int lines = 200;
+        assertEquals(0, forcesForLines(GroupCommitter.NONE, lines));
+        assertEquals(lines, forcesForLines(GroupCommitter.PER_LINE, lines));
+        // With a long interval only the final close() forces the file.
+        final long periodic = forcesForLines(GroupCommitter.getInstance(Policy.PERIODIC, 3600_000), lines);
+        assertEquals(1, periodic);
+        }
+
+    /**Test that a log's sparse index is forced along with the log itself. */
+    @Test
+    public void testIndexForced() throws Exception
+        {
+        final File dir = Files.createTempDirectory("gcidx").toFile();
+        try
+            {
+            final GroupCommitter gc = GroupCommitter.getInstance(Policy.PERIODIC, 3600_000);
+            final long before = GroupCommitter.PER_LINE.getForceCount();
+            final long beforePeriodic = gc.getForceCount();
+            try(final DailyLogWriterCache logs = new DailyLogWriterCache(dir, 1, 0, 10, GroupCommitter.PER_LINE);
+                final DailyLogWriterCache logs2 = new DailyLogWriterCache(dir, 1, 0, 10, gc))
+                {
+                for(int i = 0; i < 100; ++i)
+                    {
+                    logs.append("remote", 1419033590000L + i, ".log", "line " + i, null);
+                    logs2.append("remote2", 1419033590000L + i, ".log", "line " + i, null);
+                    }
+                }
+            // One force per line plus one per full index block.
+            assertEquals(100 + 10, GroupCommitter.PER_LINE.getForceCount() - before);
+            // The log and its index, once each at close.
+            assertEquals(2, gc.getForceCount() - beforePeriodic);
+            }
+        finally { deleteAll(dir); }
+        }
+
+    /**Channel wrapper whose first force blocks until released, and which counts completed forces. */
+    private static final class BlockingChannel extends FileChannel
+        {
+        final FileChannel c;
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger forces = new AtomicInteger();
+        BlockingChannel(final FileChannel c) { this.c = c; }
+        @Override public void force(final boolean metaData) throws IOException
+            {
+            if(0 == entered.getCount()) { c.force(metaData); forces.incrementAndGet(); return; }
+            entered.countDown();
+            try { release.await(); } catch(final InterruptedException e) { throw new IOException(e); }
+            if(!isOpen()) { throw new ClosedChannelException(); }
+            c.force(metaData);
+            forces.incrementAndGet();
+            }
+        @Override public int read(final ByteBuffer dst) throws IOException { return(c.read(dst)); }
+        @Override public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException { return(c.read(dsts, offset, length)); }
+        @Override public int write(final ByteBuffer src) throws IOException { return(c.write(src)); }
+        @Override public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException { return(c.write(srcs, offset, length)); }
+        @Override public long position() throws IOException { return(c.position()); }
+        @Override public FileChannel position(final long newPosition) throws IOException { c.position(newPosition); return(this); }
+        @Override public long size() throws IOException { return(c.size()); }
+        @Override public FileChannel truncate(final long size) throws IOException { c.truncate(size); return(this); }
+        @Override public long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException { return(c.transferTo(position, count, target)); }
+        @Override public long transferFrom(final ReadableByteChannel src, final long position, final long count) throws IOException { return(c.transferFrom(src, position, count)); }
+        @Override public int read(final ByteBuffer dst, final long position) throws IOException { return(c.read(dst, position)); }
+        @Override public int write(final ByteBuffer src, final long position) throws IOException { return(c.write(src, position)); }
+        @Override public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException { return(c.map(mode, position, size)); }
+        @Override public FileLock lock(final long position, final long size, final boolean shared) throws IOException { return(c.lock(position, size, shared)); }
+        @Override public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException { return(c.tryLock(position, size, shared)); }
+        @Override protected void implCloseChannel() throws IOException { c.close(); }
+        }
+
+    /**Test that closing() during a sync() of the same channel waits for it,
+     * and forces again for a write made after that force started, so no force is lost.
+     */
+    @Test
+    public void testSyncDuringClosing() throws Exception
+        {
+        final File f = File.createTempFile("gcsync", ".log");
+        try
+            {
+            // Long interval so that only the explicit sync() runs.
+            final GroupCommitter gc = GroupCommitter.getInstance(Policy.PERIODIC, 7200_000);
+            final BlockingChannel bc = new BlockingChannel(FileChannel.open(f.toPath(), StandardOpenOption.WRITE));
+            bc.write(ByteBuffer.wrap("a\n".getBytes()));
+            gc.written(bc);
+            final AtomicReference<Throwable> syncFailure = new AtomicReference<>();
+            final Thread syncer = new Thread(() -> { try { gc.sync(); } catch(final Throwable t) { syncFailure.set(t); } });
+            syncer.start();
+            assertTrue(bc.entered.await(10, TimeUnit.SECONDS));
+
+            // Written again after the force started.
+            bc.write(ByteBuffer.wrap("b\n".getBytes()));
+            gc.written(bc);
+            final AtomicReference<Throwable> closeFailure = new AtomicReference<>();
+            final Thread closer = new Thread(() -> { try { gc.closing(bc); bc.close(); } catch(final Throwable t) { closeFailure.set(t); } });
+            closer.start();
+            closer.join(200);
+            assertTrue("closing() must wait for the force in progress", closer.isAlive());
+            assertTrue(bc.isOpen());
+
+            bc.release.countDown();
+            syncer.join(10_000);
+            closer.join(10_000);
+            assertNull(syncFailure.get());
+            assertNull(closeFailure.get());
+            assertFalse(bc.isOpen());
+            assertEquals(2, bc.forces.get());
+            // Nothing left to force.
+            final long before = gc.getForceCount();
+            gc.sync();
+            assertEquals(before, gc.getForceCount());
+            }
+        finally { f.delete(); }
+        }
+
+    /**Test that writes through a mapping are forced through the mapping, and once however often written. */
+    @Test
+    public void testMappedBuffer() throws Exception
+        {
+        final File f = File.createTempFile("gcmap", ".seg");
+        try(final FileChannel c = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+            final MappedByteBuffer buf = c.map(FileChannel.MapMode.READ_WRITE, 0, 4096);
+            long before = GroupCommitter.PER_LINE.getForceCount();
+            buf.putLong(0, 42);
+            GroupCommitter.PER_LINE.written(buf);
+            assertEquals(before + 1, GroupCommitter.PER_LINE.getForceCount());
+
+            final GroupCommitter gc = GroupCommitter.getInstance(Policy.PERIODIC, 7200_000);
+            gc.sync();
+            before = gc.getForceCount();
+            for(int i = 0; i < 10; ++i) { buf.putLong(8 * i, i); gc.written(buf); }
+            gc.sync();
+            assertEquals(before + 1, gc.getForceCount());
+            buf.putLong(0, 43);
+            gc.written(buf);
+            gc.closing(buf);
+            assertEquals(before + 2, gc.getForceCount());
+            gc.sync();
+            assertEquals(before + 2, gc.getForceCount());
+            }
+        finally { f.delete(); }
+        }
+
+    /**Test that periodic commits of closed files happen in the background. */
+    @Test
+    public void testBackgroundSync() throws Exception
+        {
+        final File dir = Files.createTempDirectory("gc").toFile();
+        try
+            {
+            final GroupCommitter gc = GroupCommitter.getInstance(Policy.PERIODIC, 10);
+            final String config =
+                "{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.FileFlagStatsHandler\"," +
+                " \"options\":{\"statsDirName\":\"" + dir.getPath().replace("\\", "\\\\") + "\",\"durability\":\"periodic\",\"syncIntervalMS\":10}}";
+            final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+            final long before = gc.getForceCount();
+            sh.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"cdfb\",\"+\":1}", System.currentTimeMillis(), true));
+            assertTrue(new File(dir, "cdfb.flg").exists());
+            assertTrue(new File(dir, "cdfb.afl").exists());
+            for(int i = 0; (i < 500) && (gc.getForceCount() - before < 2); ++i) { Thread.sleep(10); }
+            assertTrue(gc.getForceCount() - before >= 2);
+            }
+        finally { deleteAll(dir); }
+        }
+
+    /**Test that the recent stats snapshot is still written correctly without per-line syncs. */
+    @Test
+    public void testRecentStatsWindowFileWriter() throws Exception
+        {
+        final File dir = Files.createTempDirectory("gc").toFile();
+        try
+            {
+            final File target = new File(dir, "edx.json");
+            final String config =
+                "{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.RecentStatsWindowFileWriter\"," +
+                " \"options\":{\"targetFile\":\"" + target.getPath().replace("\\", "\\\\") + "\",\"durability\":\"none\"}}";
+            final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+            sh.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"cdfb\",\"+\":1}", 1000, false));
+            final String content = new String(Files.readAllBytes(target.toPath()), "ASCII");
+            assertTrue(content, content.contains("cdfb"));
+            }
+        finally { deleteAll(dir); }
+        }
+    }
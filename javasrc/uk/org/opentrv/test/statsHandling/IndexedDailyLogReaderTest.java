@@ -0,0 +1,203 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.builtin.SimpleFileLoggingStatsHandler;
+import uk.org.opentrv.comms.statshandlers.support.IndexedDailyLogReader;
+
+/**Test the sparse daily log index and its memory-mapped reader. */
+public class IndexedDailyLogReaderTest
+    {
+    /**Private temp directory created for each test and cleared down after; never null during tests. */
+    private Path tempDir;
+
+    @Before
+    public void before() throws Exception
+        {
+        tempDir = Files.createTempDirectory(null);
+        }
+
+    @After
+    public void after() throws Exception
+        {
+        Files.walkFileTree(tempDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return(FileVisitResult.CONTINUE);
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+                Files.delete(dir);
+                return(FileVisitResult.CONTINUE);
+            }
+        });
+        tempDir = null;
+        }
+
+    /**2017-01-01T00:00:00Z. */
+    private static final long BASE = 1483228800000L;
+
+    /**Milliseconds per day. */
+    private static final long DAY_MS = 24 * 3600_000L;
+
+    /**Create an indexing handler via factory config. */
+    private SimpleFileLoggingStatsHandler newHandler(final int flushLines, final int indexEveryLines) throws Exception
+        {
+        final String config =
+            "{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.SimpleFileLoggingStatsHandler\"," +
+            " \"options\":{\"statsDirName\":\"" + tempDir.toString().replace("\\", "\\\\") + "\"," +
+            "  \"flushLines\":" + flushLines + ",\"indexEveryLines\":" + indexEveryLines + "}}";
+        final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+        assertTrue(sh instanceof SimpleFileLoggingStatsHandler);
+        return((SimpleFileLoggingStatsHandler)sh);
+        }
+
+    /**Log JSON from many leaves and binary from one, every 10s for the given days, with some lines late. */
+    private static void logSample(final StatsHandler h, final long start, final int days) throws IOException
+        {
+        final Random rnd = new Random(42);
+        for(long t = start; t < start + (days * DAY_MS); t += 10_000)
+            {
+            // Occasional late (out of order) lines, within the same day.
+            final long lt = ((0 == rnd.nextInt(50)) && ((t % DAY_MS) > 600_000)) ? (t - rnd.nextInt(600_000)) : (t + rnd.nextInt(1000));
+            h.processStatsMessage(new StatsMessageWithMetadata(
+                String.format("{\"@\":\"%04x\",\"T|C16\":%d,\"L\":%d}", rnd.nextInt(20), 250 + rnd.nextInt(100), rnd.nextInt(256)), lt, false));
+            if(0 == (t % 60_000)) { h.processStatsMessage(new StatsMessageWithMetadata("@A45;T18C" + Integer.toHexString((int)((t / 60_000) & 0xf)) + ";L" + ((t / 60_000) & 0xff), lt, false)); }
+            }
+        }
+
+    /**Brute-force read of whole logs, as the reader should match. */
+    private List<String> bruteForce(final String extension, final long from, final long to, final String id) throws IOException
+        {
+        final SimpleDateFormat logTime = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        logTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final List<String> result = new ArrayList<>();
+        for(long day = Math.floorDiv(from, DAY_MS); day <= Math.floorDiv(to - 1, DAY_MS); ++day)
+            {
+            final SimpleDateFormat name = new SimpleDateFormat("yyyyMMdd");
+            name.setTimeZone(TimeZone.getTimeZone("UTC"));
+            final File f = new File(new File(tempDir.toFile(), "remote"), name.format(day * DAY_MS) + extension);
+            if(!f.exists()) { continue; }
+            for(final String line : Files.readAllLines(f.toPath(), Charset.defaultCharset()))
+                {
+                final long t;
+                final String lineID;
+                if(line.startsWith("["))
+                    {
+                    t = Instant.parse(line.substring(3, 23)).toEpochMilli();
+                    lineID = line.substring(line.indexOf("{\"@\":\"") + 6, line.indexOf("\",\"T"));
+                    }
+                else
+                    {
+                    try { t = logTime.parse(line.substring(0, 19)).getTime(); }
+                    catch(final java.text.ParseException e) { throw new IOException(e); }
+                    final String raw = line.split(" ")[2].toLowerCase();
+                    lineID = (0 != (raw.length() & 1)) ? ("0" + raw) : raw;
+                    }
+                if((t >= from) && (t < to) && ((null == id) || id.equals(lineID))) { result.add(line); }
+                }
+            }
+        return(result);
+        }
+
+    /**Test time-range and leaf queries against brute force, and that the index avoids most lines. */
+    @Test
+    public void testRangeAndLeafQuery() throws Exception
+        {
+        // Many index entries per flush exercises buffering of index entries.
+        try(final SimpleFileLoggingStatsHandler h = newHandler(1000, 16)) { logSample(h, BASE, 2); }
+        assertTrue(new File(tempDir.toFile(), "remote/20170101.json" + IndexedDailyLogReader.INDEX_SUFFIX).length() > 0);
+
+        final IndexedDailyLogReader json = new IndexedDailyLogReader(tempDir.toFile(), "remote", ".json");
+        final long from = BASE + DAY_MS + (14 * 3600_000L), to = from + 3600_000L;
+        final List<String> hour = json.read(from, to, "0007");
+        assertFalse(hour.isEmpty());
+        assertEquals(bruteForce(".json", from, to, "0007"), hour);
+        // Well under a tenth of the 17280 JSON lines should be examined.
+        assertTrue("scanned " + json.getLinesScanned(), json.getLinesScanned() < 1000);
+
+        // Late lines and ranges across midnight, all IDs, and an absent ID.
+        assertEquals(bruteForce(".json", BASE + DAY_MS - 700_000, BASE + DAY_MS + 700_000, null),
+            json.read(BASE + DAY_MS - 700_000, BASE + DAY_MS + 700_000, null));
+        assertEquals(bruteForce(".json", BASE, BASE + (2 * DAY_MS), "000a"), json.read(BASE, BASE + (2 * DAY_MS), "000a"));
+        assertTrue(json.read(BASE, BASE + (3 * DAY_MS), "ffff").isEmpty());
+        assertTrue(json.read(BASE - DAY_MS, BASE, null).isEmpty());
+
+        // Decoded binary log with its odd-length ID normalised.
+        final IndexedDailyLogReader bin = new IndexedDailyLogReader(tempDir.toFile(), "remote", ".log");
+        final List<String> binHour = bin.read(from, to, "0a45");
+        assertEquals(bruteForce(".log", from, to, "0a45"), binHour);
+        assertTrue(binHour.size() > 50); // One a minute, less any late.
+        assertTrue(binHour.get(0).startsWith("2017/01/02 14:00:00Z A45 18."));
+        }
+
+    /**Test that unindexed parts of logs (open tail, restart, no index at all) are still read correctly. */
+    @Test
+    public void testUnindexedRegions() throws Exception
+        {
+        // Log with no index.
+        try(final SimpleFileLoggingStatsHandler h = new SimpleFileLoggingStatsHandler(tempDir.toString())) { logSample(h, BASE, 1); }
+        final IndexedDailyLogReader json = new IndexedDailyLogReader(tempDir.toFile(), "remote", ".json");
+        final long from = BASE + (3 * 3600_000L), to = from + 1800_000L;
+        assertEquals(bruteForce(".json", from, to, "0003"), json.read(from, to, "0003"));
+
+        // Indexed restart appending to the same day, then an open log with an unindexed tail.
+        try(final SimpleFileLoggingStatsHandler h = newHandler(1, 64)) { logSample(h, BASE + 3600_000L, 1); }
+        final SimpleFileLoggingStatsHandler h = newHandler(1, 64);
+        try
+            {
+            for(int i = 0; i < 10; ++i)
+                { h.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"0003\",\"T|C16\":" + i + "}", from + (i * 1000), false)); }
+            final List<String> r = json.read(from, to, "0003");
+            assertEquals(bruteForce(".json", from, to, "0003"), r);
+            assertTrue(r.get(r.size() - 1).contains("\"T|C16\":9}"));
+            }
+        finally { h.close(); }
+        assertEquals(bruteForce(".json", BASE, BASE + (2 * DAY_MS), "0003"), json.read(BASE, BASE + (2 * DAY_MS), "0003"));
+        }
+    }
@@ -0,0 +1,173 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.builtin.DummyStatsHandler;
+import uk.org.opentrv.comms.statshandlers.filter.RoutingStatsHandler;
+import uk.org.opentrv.comms.statshandlers.filter.RoutingStatsHandler.Route;
+import uk.org.opentrv.comms.statshandlers.support.LeafID;
+import uk.org.opentrv.comms.statshandlers.support.LeafIDTable;
+import uk.org.opentrv.comms.statshandlers.support.Util;
+
+/**Test packed leaf IDs, ID tables and routing by ID. */
+public class LeafIDTest
+    {
+    /**Test packing and unpacking of ID Strings. */
+    @Test
+    public void testPacking()
+        {
+        assertEquals(LeafID.NONE, LeafID.fromString(null));
+        assertEquals(LeafID.NONE, LeafID.fromString(""));
+        assertEquals(LeafID.NONE, LeafID.fromString("B39A")); // Case-sensitive.
+        assertEquals(LeafID.NONE, LeafID.fromString("b39g"));
+        assertEquals(LeafID.NONE, LeafID.fromString("123456789"));
+        assertFalse(LeafID.isValid(LeafID.NONE));
+        for(final String id : new String[]{ "0", "b39a", "0a45", "a45", "00000000", "ffffffff" })
+            {
+            final long p = LeafID.fromString(id);
+            assertTrue(LeafID.isValid(p));
+            assertEquals(id, LeafID.toString(p));
+            }
+        assertTrue(LeafID.fromString("0a45") != LeafID.fromString("a45"));
+        assertNull(LeafID.toString(LeafID.NONE));
+        }
+
+    /**Test that fast extraction agrees with the String extractor wherever it gives an answer. */
+    @Test
+    public void testExtract()
+        {
+        final String[] lines =
+            {
+            "@414A;T15C8;L36;O1", "@A45;T15CD;L56;O1", "@a45;T15CD", "@;T15CD", "@414A", "@12345678;T1", "@123456789;T1", "@G1;T1",
+            "{\"@\":\"b39a\"}", "{\"@\":\"b39a\",\"B|mV\":3247,\"T|C16\":274}", "{\"@\":\"B39A\"}", "{\"@\":\"\"}",
+            "{\"+\":1,\"@\":\"b39a\"}", "{\"@\":\"b3\\u0039a\"}", "{\"@\":\"b39a", "{\"@\":\"b39a\",garbage",
+            "=F0%@20C3;", "bogus", "{", "@",
+            };
+        for(final String line : lines)
+            {
+            final long fast = LeafID.extract(line);
+            final long slow = LeafID.fromString(Util.extractNormalisedID(line));
+            if(LeafID.NONE != fast) { assertEquals(line, slow, fast); }
+            if(line.length() > 1) { assertEquals(line, slow, new StatsMessageWithMetadata(line, 0, false).getLeafIDAsLong()); }
+            }
+        assertEquals(LeafID.fromString("414a"), LeafID.extract("@414A;T15C8;L36;O1"));
+        assertEquals(LeafID.fromString("0a45"), LeafID.extract("@A45;T15CD;L56;O1"));
+        // JSON IDs are found only by the full parse, so a malformed line has no ID however it starts.
+        assertEquals(LeafID.NONE, LeafID.extract("{\"@\":\"b39a\",\"B|mV\":3247}"));
+        assertEquals(LeafID.fromString("b39a"), new StatsMessageWithMetadata("{\"@\":\"b39a\",\"B|mV\":3247}", 0, false).getLeafIDAsLong());
+        assertEquals(LeafID.fromString("b39a"), new StatsMessageWithMetadata("{\"+\":1,\"@\":\"b39a\"}", 0, false).getLeafIDAsLong());
+        final StatsMessageWithMetadata bad = new StatsMessageWithMetadata("{\"@\":\"b39a\",garbage", 0, false);
+        assertNull(bad.getLeafIDAsString());
+        assertEquals(LeafID.NONE, bad.getLeafIDAsLong());
+        }
+
+    /**Test table lookups for many random IDs. */
+    @Test
+    public void testTable()
+        {
+        assertEquals(-1, new LeafIDTable(new long[0]).get(LeafID.fromString("b39a")));
+        final Random rnd = new Random(42);
+        final int n = 1000;
+        final long[] ids = new long[n];
+        final Set<Long> present = new HashSet<>();
+        for(int i = 0; i < n; ++i)
+            {
+            ids[i] = LeafID.fromString(String.format("%04x", rnd.nextInt(0x10000)));
+            present.add(ids[i]);
+            }
+        final LeafIDTable t = new LeafIDTable(ids);
+        assertEquals(present.size(), t.size());
+        for(int i = 0; i < n; ++i) { assertEquals(ids[i], ids[t.get(ids[i])]); }
+        for(int i = 0; i < 0x10000; ++i)
+            {
+            final long id = LeafID.fromString(String.format("%04x", i));
+            assertEquals(present.contains(id), t.contains(id));
+            }
+        assertFalse(t.contains(LeafID.NONE));
+        }
+
+    /**Test routing to many handlers by ID, directly and from factory config. */
+    @Test
+    public void testRouting() throws Exception
+        {
+        final DummyStatsHandler a = new DummyStatsHandler();
+        final DummyStatsHandler b = new DummyStatsHandler();
+        final DummyStatsHandler d = new DummyStatsHandler();
+        // Handler a is used by two routes, which must stay distinct.
+        final List<Route> routes = Arrays.asList(
+            new Route("a", a, new HashSet<>(Arrays.asList("b39a", "0a45", "Mixed")), null, null, null),
+            new Route("b", b, Collections.singleton("0a45"), null, null, null),
+            new Route("a2", a, Collections.singleton("819c"), null, null, null));
+        try(final RoutingStatsHandler r = new RoutingStatsHandler(routes, d))
+            {
+            final StatsMessageWithMetadata m1 = new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":308}", 1, false);
+            r.processStatsMessage(m1);
+            assertSame(m1, a.getLastStatsMessageWithMetadata());
+            assertNull(b.getLastStatsMessageWithMetadata());
+            assertNull(d.getLastStatsMessageWithMetadata());
+            final StatsMessageWithMetadata m2 = new StatsMessageWithMetadata("@A45;T15CD;L56;O1", 2, false);
+            r.processStatsMessage(m2);
+            assertSame(m2, a.getLastStatsMessageWithMetadata());
+            assertSame(m2, b.getLastStatsMessageWithMetadata());
+            final StatsMessageWithMetadata m3 = new StatsMessageWithMetadata("{\"@\":\"Mixed\"}", 3, false);
+            r.processStatsMessage(m3);
+            assertSame(m3, a.getLastStatsMessageWithMetadata());
+            final StatsMessageWithMetadata m4 = new StatsMessageWithMetadata("{\"@\":\"cdfb\"}", 4, false);
+            r.processStatsMessage(m4);
+            assertSame(m3, a.getLastStatsMessageWithMetadata());
+            assertSame(m2, b.getLastStatsMessageWithMetadata());
+            assertSame(m4, d.getLastStatsMessageWithMetadata());
+            final StatsMessageWithMetadata m5 = new StatsMessageWithMetadata("{\"@\":\"819c\"}", 5, false);
+            r.processStatsMessage(m5);
+            assertSame(m5, a.getLastStatsMessageWithMetadata());
+            assertSame(m4, d.getLastStatsMessageWithMetadata());
+            assertEquals(Long.valueOf(1), r.getHitCounts().get("a2"));
+            }
+
+        final String config =
+            "{\"type\":\"uk.org.opentrv.comms.statshandlers.filter.RoutingStatsHandler\"," +
+            " \"options\":{\"routes\":[" +
+            "  {\"allowedIDs\":[\"b39a\"],\"handler\":{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.DummyStatsHandler\"}}]}}";
+        final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+        assertNotNull(sh);
+        assertTrue(sh instanceof RoutingStatsHandler);
+        sh.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"cdfb\"}", 4, false));
+        }
+    }
@@ -0,0 +1,368 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.mqtt.MqttPublishingHandler;
+
+/**Test MQTT publishing against a minimal local broker stand-in. */
+public class MqttPublishingHandlerTest
+    {
+    /**Minimal MQTT 3.1 broker that accepts connections and publishes, and records what it receives. */
+    static final class StandInBroker implements AutoCloseable
+        {
+        final ServerSocket ss;
+        final AtomicInteger connects = new AtomicInteger();
+        /**Received topic and payload pairs, as "topic payload". */
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        /**Current client connections; guarded by itself. */
+        final List<Socket> clients = new ArrayList<>();
+
+        StandInBroker() throws IOException { this(0); }
+
+        /**Listen on the given port, or any free port if zero. */
+        StandInBroker(final int port) throws IOException
+            {
+            ss = new ServerSocket();
+            ss.setReuseAddress(true);
+            ss.bind(new InetSocketAddress(port));
+            final Thread t = new Thread(new Runnable() { @Override public void run() { acceptLoop(); } });
+            t.setDaemon(true);
+            t.start();
+            }
+
+        String getURL() { return("tcp://localhost:" + ss.getLocalPort()); }
+
+        private void acceptLoop()
+            {
+            try
+                {
+                for( ; ; )
+                    {
+                    final Socket s = ss.accept();
+                    synchronized(clients) { clients.add(s); }
+                    final Thread t = new Thread(new Runnable() { @Override public void run() { serve(s); } });
+                    t.setDaemon(true);
+                    t.start();
+                    }
+                }
+            catch(final IOException e) { /* Closed. */ }
+            }
+
+        private void serve(final Socket s)
+            {
+            try(final Socket sock = s)
+                {
+                final DataInputStream is = new DataInputStream(sock.getInputStream());
+                final OutputStream os = sock.getOutputStream();
+                for( ; ; )
+                    {
+                    final int header = is.read();
+                    if(header < 0) { return; }
+                    int len = 0;
+                    for(int shift = 0, b; ; shift += 7)
+                        {
+                        b = is.readUnsignedByte();
+                        len |= (b & 0x7f) << shift;
+                        if(0 == (b & 0x80)) { break; }
+                        }
+                    final byte[] body = new byte[len];
+                    is.readFully(body);
+                    switch(header >>> 4)
+                        {
+                        case 1: // CONNECT
+                            connects.incrementAndGet();
+                            os.write(new byte[]{ 0x20, 2, 0, 0 });
+                            break;
+                        case 3: // PUBLISH
+                            {
+                            final int qos = (header >>> 1) & 3;
+                            final int topicLen = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+                            final String topic = new String(body, 2, topicLen, "UTF-8");
+                            final int payloadStart = 2 + topicLen + ((qos > 0) ? 2 : 0);
+                            received.add(topic + " " + new String(body, payloadStart, len - payloadStart, "UTF-8"));
+                            if(1 == qos) { os.write(new byte[]{ 0x40, 2, body[2 + topicLen], body[3 + topicLen] }); }
+                            break;
+                            }
+                        case 12: // PINGREQ
+                            os.write(new byte[]{ (byte)0xd0, 0 });
+                            break;
+                        case 14: // DISCONNECT
+                            return;
+                        default:
+                            break;
+                        }
+                    os.flush();
+                    }
+                }
+            catch(final IOException e) { /* Dropped. */ }
+            finally { synchronized(clients) { clients.remove(s); } }
+            }
+
+        /**Forcibly drop all current client connections. */
+        void dropClients() throws IOException
+            { synchronized(clients) { for(final Socket s : clients) { s.close(); } } }
+
+        @Override public void close() throws IOException { ss.close(); dropClients(); }
+        }
+
+    /**Unique client ID per test, so that no client persistence state is shared. */
+    private String clientId;
+    /**Working directory files present before each test. */
+    private List<String> cwdBefore;
+
+    @Before
+    public void setUp()
+        {
+        clientId = "OTtest" + Long.toHexString(System.nanoTime());
+        cwdBefore = listCwd();
+        }
+
+    private static List<String> listCwd()
+        {
+        final String[] names = new File(".").list();
+        return((null == names) ? new ArrayList<String>() : new ArrayList<>(Arrays.asList(names)));
+        }
+
+    /**Remove any client persistence directories left in the working directory. */
+    @After
+    public void tearDown() throws IOException
+        {
+        for(final String name : listCwd())
+            {
+            if(cwdBefore.contains(name) || !name.startsWith(clientId)) { continue; }
+            final File dir = new File(name);
+            final File[] files = dir.listFiles();
+            if(null != files) { for(final File f : files) { Files.deleteIfExists(f.toPath()); } }
+            Files.deleteIfExists(dir.toPath());
+            }
+        }
+
+    private static StatsMessageWithMetadata msg(final String leaf, final int seq)
+        { return(new StatsMessageWithMetadata("{\"@\":\"" + leaf + "\",\"+\":" + seq + "}", 1000L + seq, false)); }
+
+    private static void awaitCount(final List<String> received, final int n) throws InterruptedException
+        {
+        for(int i = 0; (i < 500) && (received.size() < n); ++i) { Thread.sleep(10); }
+        assertEquals(n, received.size());
+        }
+
+    /**Test the default connection-per-message behaviour. */
+    @Test
+    public void testPerMessageConnection() throws Exception
+        {
+        try(final StandInBroker b = new StandInBroker();
+            final MqttPublishingHandler h = new MqttPublishingHandler(b.getURL(), clientId, "OpenTRV/Local", 0))
+            {
+            assertTrue(!h.isPersistent());
+            for(int i = 0; i < 3; ++i) { h.processStatsMessage(msg("cdfb", i)); }
+            awaitCount(b.received, 3);
+            assertEquals(3, h.getConnectCount());
+            assertTrue(b.received.get(0).startsWith("OpenTRV/Local/CDFB {"));
+            }
+        }
+
+    /**Test that persistent mode sends many messages over a single connection, in order. */
+    @Test
+    public void testPersistentConnection() throws Exception
+        {
+        final int n = 200;
+        try(final StandInBroker b = new StandInBroker())
+            {
+            try(final MqttPublishingHandler h = new MqttPublishingHandler(b.getURL(), clientId, "OpenTRV/Local", 1,
+                    true, 4, 0, 5000, 0, 1, 0))
+                {
+                for(int i = 0; i < n; ++i) { h.processStatsMessage(msg("cdfb", i)); }
+                }
+            awaitCount(b.received, n);
+            assertEquals(1, b.connects.get());
+            final JSONParser parser = new JSONParser();
+            for(int i = 0; i < n; ++i)
+                {
+                final String r = b.received.get(i);
+                final Object seq = ((Map<?,?>)((Map<?,?>)parser.parse(r.substring(r.indexOf(' ') + 1))).get("body")).get("+");
+                assertEquals(Long.valueOf(i), seq);
+                }
+            }
+        }
+
+    /**Test that a persistent connection is re-established after the broker drops it. */
+    @Test
+    public void testReconnect() throws Exception
+        {
+        try(final StandInBroker b = new StandInBroker();
+            final MqttPublishingHandler h = new MqttPublishingHandler(b.getURL(), clientId, "OpenTRV/Local", 0,
+                true, 4, 0, 200, 0, 1, 0))
+            {
+            h.processStatsMessage(msg("cdfb", 0));
+            awaitCount(b.received, 1);
+            b.dropClients();
+            // Keep publishing until the client notices the loss and reconnects.
+            final long deadline = System.currentTimeMillis() + 10000;
+            while((b.connects.get() < 2) && (System.currentTimeMillis() < deadline))
+                {
+                try { h.processStatsMessage(msg("cdfb", 1)); } catch(final IOException e) { /* Not yet reconnected. */ }
+                Thread.sleep(10);
+                }
+            assertEquals(2, b.connects.get());
+            assertEquals(2, h.getConnectCount());
+            h.processStatsMessage(msg("cdfb", 2));
+            for(int i = 0; (i < 500) && !b.received.get(b.received.size() - 1).contains("\"+\":2"); ++i) { Thread.sleep(10); }
+            assertTrue(b.received.get(b.received.size() - 1).contains("\"+\":2"));
+            }
+        }
+
+    /**Test that batching groups messages per leaf topic into JSON arrays. */
+    @Test
+    public void testBatching() throws Exception
+        {
+        try(final StandInBroker b = new StandInBroker())
+            {
+            try(final MqttPublishingHandler h = new MqttPublishingHandler(b.getURL(), clientId, "OpenTRV/Local", 0,
+                    true, 4, 0, 5000, 60000, 3, 0))
+                {
+                for(int i = 0; i < 4; ++i) { h.processStatsMessage(msg("0a45", i)); }
+                h.processStatsMessage(msg("819c", 0));
+                // Only the full batch has been sent so far.
+                awaitCount(b.received, 1);
+                }
+            // Close flushes the remaining partial batches.
+            awaitCount(b.received, 3);
+            assertEquals(1, b.connects.get());
+            final JSONParser parser = new JSONParser();
+            final List<String> topics = new ArrayList<>();
+            int total = 0;
+            for(final String r : b.received)
+                {
+                topics.add(r.substring(0, r.indexOf(' ')));
+                total += ((JSONArray)parser.parse(r.substring(r.indexOf(' ') + 1))).size();
+                }
+            assertEquals(Arrays.asList("OpenTRV/Local/0A45", "OpenTRV/Local/0A45", "OpenTRV/Local/819C"), topics);
+            assertEquals(5, total);
+            }
+        }
+
+    /**Get the "+" sequence numbers from received batches, in order. */
+    private static List<Long> batchSeqs(final List<String> received) throws Exception
+        {
+        final JSONParser parser = new JSONParser();
+        final List<Long> result = new ArrayList<>();
+        synchronized(received)
+            {
+            for(final String r : received)
+                {
+                for(final Object o : (JSONArray)parser.parse(r.substring(r.indexOf(' ') + 1)))
+                    { result.add((Long)((Map<?,?>)((Map<?,?>)o).get("body")).get("+")); }
+                }
+            }
+        return(result);
+        }
+
+    /**Test that batches that fail to publish are kept, within bounds, and retried in order. */
+    @Test
+    public void testBatchRetry() throws Exception
+        {
+        // Find a free port with (as yet) no broker listening.
+        final int port;
+        try(final ServerSocket ss = new ServerSocket(0)) { port = ss.getLocalPort(); }
+        try(final MqttPublishingHandler h = new MqttPublishingHandler("tcp://localhost:" + port, clientId, "OpenTRV/Local", 0,
+                true, 4, 0, 5000, 60000, 1, 3))
+            {
+            // Broker unavailable: batches are kept, not lost.
+            for(int i = 0; i < 3; ++i) { h.processStatsMessage(msg("0a45", i)); }
+            assertEquals(3, h.getUnsentCount());
+            // Beyond the bound the oldest is discarded, and the next caller is told.
+            h.processStatsMessage(msg("0a45", 3));
+            assertEquals(3, h.getUnsentCount());
+            try { h.processStatsMessage(msg("0a45", 4)); fail("discard should have been reported"); }
+            catch(final IOException e) { /* Expected. */ }
+            // Once the broker is available, kept batches go first, in order.
+            try(final StandInBroker b = new StandInBroker(port))
+                {
+                h.processStatsMessage(msg("0a45", 5));
+                awaitCount(b.received, 4);
+                assertEquals(0, h.getUnsentCount());
+                assertEquals(Arrays.asList(1L, 2L, 3L, 5L), batchSeqs(b.received));
+                }
+            }
+        }
+
+    /**Test that close() reports batches that it could not publish, after shutting down. */
+    @Test
+    public void testCloseReportsUnsent() throws Exception
+        {
+        final int port;
+        try(final ServerSocket ss = new ServerSocket(0)) { port = ss.getLocalPort(); }
+        final MqttPublishingHandler h = new MqttPublishingHandler("tcp://localhost:" + port, clientId, "OpenTRV/Local", 0,
+                true, 4, 0, 5000, 60000, 2, 10);
+        h.processStatsMessage(msg("0a45", 0));
+        h.processStatsMessage(msg("0a45", 1));
+        h.processStatsMessage(msg("819c", 2));
+        assertEquals(3, h.getUnsentCount());
+        try { h.close(); fail("unsent payloads should have been reported"); }
+        catch(final IOException e) { assertTrue(e.getMessage().contains("Discarded 3 ")); }
+        assertEquals(0, h.getUnsentCount());
+        }
+
+    /**Test construction from factory JSON config. */
+    @Test
+    public void testConfig() throws Exception
+        {
+        final String config =
+            "{\"type\":\"uk.org.opentrv.comms.statshandlers.mqtt.MqttPublishingHandler\"," +
+            " \"options\":{\"brokerUrl\":\"tcp://localhost:1\",\"clientId\":\"" + clientId + "\",\"qos\":1," +
+            "  \"persistent\":true,\"maxInFlight\":8,\"batchIntervalMS\":100}}";
+        final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+        assertTrue(sh instanceof MqttPublishingHandler);
+        try(final MqttPublishingHandler h = (MqttPublishingHandler)sh)
+            {
+            assertTrue(h.isPersistent());
+            assertEquals(1, h.getQOS());
+            }
+        }
+    }
@@ -0,0 +1,132 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.opentrv.comms.statshandlers.support.RateLimitLedger;
+
+/**Test the rate-limit ledger and its persistence. */
+public class RateLimitLedgerTest
+    {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException
+        { dir = new File(Files.createTempDirectory("rl").toFile(), "flags"); }
+
+    @After
+    public void tearDown()
+        {
+        final File[] files = dir.listFiles();
+        if(null != files) { for(final File f : files) { f.delete(); } }
+        dir.delete();
+        dir.getParentFile().delete();
+        }
+
+    /**Test basic allow/veto/purge behaviour and immediate persistence. */
+    @Test
+    public void testBasics() throws Exception
+        {
+        final File flag = new File(dir, "op1.flag");
+        final RateLimitLedger l = new RateLimitLedger(dir);
+        assertTrue(dir.isDirectory());
+        assertTrue(l.canDoRateLimitedOperation("op1", 1));
+        // Persisted before being allowed.
+        assertTrue(flag.exists());
+        assertTrue(System.currentTimeMillis() - flag.lastModified() < 60_000);
+        assertFalse(l.canDoRateLimitedOperation("op1", 1));
+        // Unrelated operation is independent.
+        assertTrue(l.canDoRateLimitedOperation("op2", 1));
+        // Purge removes the flag and always vetoes.
+        assertFalse(l.canDoRateLimitedOperation("op1", -1));
+        assertFalse(flag.exists());
+        assertTrue(l.canDoRateLimitedOperation("op1", 1));
+        assertTrue(flag.exists());
+        }
+
+    /**Test that a new ledger (eg after restart) sees operations persisted by an old one. */
+    @Test
+    public void testRestart() throws Exception
+        {
+        assertTrue(new RateLimitLedger(dir).canDoRateLimitedOperation("op", 1));
+        assertFalse(new RateLimitLedger(dir).canDoRateLimitedOperation("op", 1));
+        // Old flag allows the operation.
+        new File(dir, "op.flag").setLastModified(System.currentTimeMillis() - 120_000);
+        assertTrue(new RateLimitLedger(dir).canDoRateLimitedOperation("op", 1));
+        }
+
+    /**Test that an operation done by another process (ledger) is seen before allowing one here. */
+    @Test
+    public void testOtherProcess() throws Exception
+        {
+        final File flag = new File(dir, "op.flag");
+        final RateLimitLedger b = new RateLimitLedger(dir);
+        assertTrue(new RateLimitLedger(dir).canDoRateLimitedOperation("op", 1));
+        assertTrue(flag.setLastModified(System.currentTimeMillis() - 120_000));
+        // b now holds the old time in memory...
+        assertFalse(b.canDoRateLimitedOperation("op", 10));
+        // ...another process allows the operation again...
+        assertTrue(new RateLimitLedger(dir).canDoRateLimitedOperation("op", 1));
+        // ...and b picks that up from disc rather than allowing it from memory.
+        assertFalse(b.canDoRateLimitedOperation("op", 1));
+        }
+
+    /**Test that concurrent callers allow exactly one operation per ID. */
+    @Test
+    public void testConcurrent() throws Exception
+        {
+        final int ids = 20;
+        final int threads = 8;
+        final AtomicInteger allowed = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final RateLimitLedger l = new RateLimitLedger(dir);
+        final Thread[] t = new Thread[threads];
+        for(int i = 0; i < threads; ++i)
+            {
+            t[i] = new Thread(new Runnable()
+                {
+                @Override public void run()
+                    {
+                    for(int n = 0; n < 10_000; ++n)
+                        {
+                        try { if(l.canDoRateLimitedOperation("c" + (n % ids), 10)) { allowed.incrementAndGet(); } }
+                        catch(final IOException e) { failures.incrementAndGet(); }
+                        }
+                    }
+                });
+            t[i].start();
+            }
+        for(final Thread th : t) { th.join(); }
+        assertEquals(0, failures.get());
+        assertEquals(ids, allowed.get());
+        assertEquals(ids, dir.list().length);
+        }
+    }
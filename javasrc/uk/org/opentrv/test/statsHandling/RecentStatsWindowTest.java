@@ -19,19 +19,26 @@ package uk.org.opentrv.test.statsHandling;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.TreeSet;
 
 import org.json.simple.parser.JSONParser;
 import org.junit.Test;
 
 import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
 import uk.org.opentrv.comms.statshandlers.builtin.RecentStatsWindowFileWriter;
+import uk.org.opentrv.comms.statshandlers.support.GroupCommitter;
 import uk.org.opentrv.comms.statshandlers.support.RecentStatsWindow;
 import uk.org.opentrv.comms.statshandlers.support.Util;
 
@@ -116,6 +123,222 @@ public class RecentStatsWindowTest
         assertEquals(3, log.size());
         }
 
+    /**Test the latest-by-leaf index, including expiry. */
+    @Test
+    public void testLatestByLeafID() throws IOException
+        {
+        final RecentStatsWindow rsw0 = new RecentStatsWindow(1000);
+        final long t = 1430933201000L;
+        final StatsMessageWithMetadata a0 = new StatsMessageWithMetadata("{\"@\":\"b39a\",\"+\":0}", t, false);
+        final StatsMessageWithMetadata b0 = new StatsMessageWithMetadata("@ABCD;", t + 10, false);
+        final StatsMessageWithMetadata a1 = new StatsMessageWithMetadata("{\"@\":\"b39a\",\"+\":1}", t + 20, false);
+        rsw0.processStatsMessage(a0);
+        rsw0.processStatsMessage(b0);
+        rsw0.processStatsMessage(a1);
+        assertEquals(2, rsw0.getLatestMessageByLeafID().size());
+        assertEquals(a1, rsw0.getLatestMessageByLeafID().get("b39a"));
+        assertEquals(b0, rsw0.getLatestMessageByLeafID().get("abcd"));
+        // Expire a0 and b0 but not a1.
+        rsw0.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"1234\"}", t + 1015, false));
+        assertEquals(2, rsw0.getLatestMessageByLeafID().size());
+        assertEquals(a1, rsw0.getLatestMessageByLeafID().get("b39a"));
+        assertNull(rsw0.getLatestMessageByLeafID().get("abcd"));
+        // JSON text forms match the JSON objects.
+        assertEquals(rsw0.getRecentStatsMessagesInOrderAsJSONArray().toString(), rsw0.getRecentStatsMessagesInOrderAsJSONString());
+        assertEquals("{\"1234\":[\"2015-05-06T17:26:42Z\",\"{\\\"@\\\":\\\"1234\\\"}\",false]," +
+                "\"b39a\":[\"2015-05-06T17:26:41Z\",\"{\\\"@\\\":\\\"b39a\\\",\\\"+\\\":1}\",false]}",
+            rsw0.getLatestMessageByLeafIDAsJSONString());
+        }
+
+    /**Test time-range and per-leaf queries and latest field values. */
+    @Test
+    public void testIndexedQueries() throws IOException
+        {
+        final long window = 3600_000L;
+        final RecentStatsWindow rsw0 = new RecentStatsWindow(window);
+        final long t = 1430933201000L;
+        // Two leaves, one each minute alternately, for two hours.
+        for(int i = 0; i < 120; ++i)
+            {
+            final String id = (0 == (i & 1)) ? "0a45" : "b39a";
+            rsw0.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"" + id + "\",\"+\":" + i + ",\"T|C16\":" + (300 + i) + "}", t + (i * 60_000L), false));
+            }
+        // Only the last hour (plus boundary item) is retained.
+        assertEquals(61, rsw0.size());
+        assertEquals(t + (59 * 60_000L), rsw0.getOldestMessage().timestamp);
+        assertEquals(new TreeSet<>(Arrays.asList("0a45", "b39a")), rsw0.getLeafIDs());
+        // Global slice is half-open.
+        final List<StatsMessageWithMetadata> slice = rsw0.getRecentStatsMessagesInOrder(t + (100 * 60_000L), t + (110 * 60_000L));
+        assertEquals(10, slice.size());
+        assertEquals(t + (100 * 60_000L), slice.get(0).timestamp);
+        assertEquals(0, rsw0.getRecentStatsMessagesInOrder(t, t + (59 * 60_000L)).size());
+        // Last 20 minutes for one leaf.
+        final long newest = rsw0.getMostRecentMessage().timestamp;
+        final List<StatsMessageWithMetadata> leafSlice = rsw0.getRecentStatsMessagesForLeafID("0a45", newest - (20 * 60_000L), Long.MAX_VALUE);
+        assertEquals(10, leafSlice.size());
+        for(final StatsMessageWithMetadata m : leafSlice) { assertEquals("0a45", m.getLeafIDAsString()); }
+        assertEquals(31, rsw0.getRecentStatsMessagesForLeafID("b39a").size());
+        assertTrue(rsw0.getRecentStatsMessagesForLeafID("1234").isEmpty());
+        // Latest values per (leaf, field).
+        assertEquals(Long.valueOf(418), rsw0.getLatestValue("0a45", "T|C16"));
+        assertEquals(Long.valueOf(419), rsw0.getLatestValue("b39a", "T|C16"));
+        assertNull(rsw0.getLatestValue("b39a", "H|%"));
+        assertEquals(Long.valueOf(119), rsw0.getLatestValues("b39a").get("+"));
+        // A field not seen within the window has expired.
+        rsw0.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"H|%\":50}", newest + 1, false));
+        assertEquals(Long.valueOf(50), rsw0.getLatestValue("b39a", "H|%"));
+        rsw0.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\",\"+\":1}", newest + window + 2, false));
+        assertNull(rsw0.getLatestValue("b39a", "H|%"));
+        assertNull(rsw0.getLatestValue("0a45", "T|C16"));
+        assertEquals(1, rsw0.getLeafIDs().size());
+        }
+
+    /**Test that slightly-late messages, eg from merged streams, are sorted into place and stale ones rejected. */
+    @Test
+    public void testLateMessages() throws IOException
+        {
+        final RecentStatsWindow rsw0 = new RecentStatsWindow(RecentStatsWindow.DEFAULT_WINDOW_MS, RecentStatsWindow.SUGGESTED_LATENESS_MS);
+        final long t = 1430933201000L;
+        // Three hubs each in order, merged with up to 20s extra delay (and so lateness) between them.
+        final int n = 3000;
+        final List<long[]> arrivals = new ArrayList<>(); // Each is { arrival time, timestamp, hub, seq }.
+        for(int hub = 0; hub < 3; ++hub)
+            {
+            for(int i = 0; i < n / 3; ++i)
+                {
+                final long ts = t + (i * 1000L) + (hub * 7L);
+                arrivals.add(new long[]{ ts + (hub * 10_000L), ts, hub, i });
+                }
+            }
+        Collections.sort(arrivals, new Comparator<long[]>()
+            { @Override public int compare(final long[] a, final long[] b) { return(Long.compare(a[0], b[0])); } });
+        for(final long[] a : arrivals)
+            { rsw0.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"" + a[2] + "00" + (a[3] & 1) + "\",\"+\":" + (a[3] & 15) + "}", a[1], false)); }
+        assertEquals(n, rsw0.size());
+        assertTrue(rsw0.getLateCount() > 0);
+        assertEquals(0, rsw0.getDroppedCount());
+        // All sorted into timestamp order, overall and per leaf.
+        long prev = Long.MIN_VALUE;
+        for(final StatsMessageWithMetadata m : rsw0.getRecentStatsMessagesInOrder()) { assertTrue(m.timestamp >= prev); prev = m.timestamp; }
+        for(final String id : rsw0.getLeafIDs())
+            {
+            prev = Long.MIN_VALUE;
+            for(final StatsMessageWithMetadata m : rsw0.getRecentStatsMessagesForLeafID(id)) { assertTrue(m.timestamp >= prev); prev = m.timestamp; }
+            }
+        assertEquals(rsw0.getRecentStatsMessagesInOrderAsJSONArray().toString(), rsw0.getRecentStatsMessagesInOrderAsJSONString());
+        // A late message does not override a newer field value.
+        final long newest = rsw0.getMostRecentMessage().timestamp;
+        rsw0.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"abcd\",\"T|C16\":300}", newest, false));
+        rsw0.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"abcd\",\"T|C16\":299}", newest - 1000, false));
+        assertEquals(Long.valueOf(300), rsw0.getLatestValue("abcd", "T|C16"));
+        assertEquals(newest, rsw0.getLatestMessageByLeafID().get("abcd").timestamp);
+        // Genuinely stale message is rejected and counted.
+        try
+            {
+            rsw0.processStatsMessage(new StatsMessageWithMetadata("@ABCD;", newest - RecentStatsWindow.SUGGESTED_LATENESS_MS - 1, false));
+            fail("should have rejected stale message");
+            }
+        catch(final IOException e) { /* expected */ }
+        assertEquals(1, rsw0.getDroppedCount());
+        }
+
+    /**Check the footprint for many leaves over the default window (about 1h) by what is retained.
+     * Each of 1000 leaves reports every 4 minutes, for 1000 * 15 messages in the window,
+     * each held once in the window and once in its leaf's index.
+     */
+    @Test
+    public void testFootprint() throws IOException
+        {
+        final int leaves = 1000;
+        final int perLeaf = (int)(RecentStatsWindow.DEFAULT_WINDOW_MS / 240_000L);
+        final long t = 1430933201000L;
+        final RecentStatsWindow rsw0 = new RecentStatsWindow();
+        for(int r = 0; r < perLeaf; ++r)
+            {
+            for(int l = 0; l < leaves; ++l)
+                {
+                final String id = String.format("%04x", l);
+                final String msg = "{\"@\":\"" + id + "\",\"+\":" + (r & 15) + ",\"T|C16\":" + (290 + (l % 20)) + ",\"H|%\":" + (50 + (l % 40)) + ",\"B|cV\":256}";
+                rsw0.processStatsMessage(new StatsMessageWithMetadata(msg, t + (r * 240_000L) + (l * 240L), false));
+                }
+            }
+        assertEquals(leaves * perLeaf, rsw0.size());
+        assertEquals(leaves, rsw0.getLeafIDs().size());
+        assertEquals(perLeaf, rsw0.getRecentStatsMessagesForLeafID("0000").size());
+        // Rings grow by doubling, so each holds fewer than twice its entries.
+        assertTrue("capacity " + rsw0.getCapacity(), rsw0.getCapacity() < 2 * (2 * rsw0.size()));
+        }
+
+    /**Test that capacity grown for a burst is given back once the burst leaves the window. */
+    @Test
+    public void testCapacityShrinksAfterBurst() throws IOException
+        {
+        final long t = 1430933201000L;
+        final RecentStatsWindow rsw0 = new RecentStatsWindow(60_000);
+        final int baseline = rsw0.getCapacity();
+        for(int i = 0; i < 10_000; ++i)
+            { rsw0.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"0a45\",\"T|C16\":" + (280 + (i % 20)) + "}", t + i, false)); }
+        final int burstCapacity = rsw0.getCapacity();
+        assertTrue("capacity " + burstCapacity, burstCapacity >= 2 * 10_000);
+        // A few messages after the burst has expired.
+        for(int i = 1; i <= 3; ++i)
+            { rsw0.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"0a45\",\"T|C16\":300}", t + 10_000 + (i * 61_000L), false)); }
+        assertEquals(1, rsw0.size());
+        assertTrue("capacity " + rsw0.getCapacity(), rsw0.getCapacity() < 2 * 64);
+        assertTrue(rsw0.getCapacity() < burstCapacity / 100);
+        assertTrue(rsw0.getCapacity() >= baseline);
+        }
+
+    /**Test incremental file writer, with current values populated. */
+    @Test
+    public void testIncrementalFileWrite() throws Exception
+        {
+        final File tf0 = File.createTempFile("RSWFW1", "json");
+        final long t = 1430933201000L;
+        try(final RecentStatsWindowFileWriter rswfw0 = new RecentStatsWindowFileWriter(tf0, RecentStatsWindow.DEFAULT_WINDOW_MS,
+                GroupCommitter.NONE, true, 0))
+            {
+            rswfw0.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\"}", t, true));
+            rswfw0.processStatsMessage(new StatsMessageWithMetadata("{\"@\":\"b39a\"}", t+1, true));
+            rswfw0.processStatsMessage(new StatsMessageWithMetadata("@ABCD;", t+2, true));
+            }
+        final String e0 = "[\"2015-05-06T17:26:41Z\",\"{\\\"@\\\":\\\"b39a\\\"}\",true]";
+        final String e1 = "[\"2015-05-06T17:26:41Z\",\"@ABCD;\",true]";
+        assertEquals("[{\"abcd\":" + e1 + ",\"b39a\":" + e0 + "},[" + e0 + "," + e0 + "," + e1 + "]]", Util.readTextFile(tf0).trim());
+        tf0.delete();
+        }
+
+    /**Test that the incremental file writer coalesces rewrites. */
+    @Test
+    public void testCoalescedFileWrite() throws Exception
+        {
+        final File tf0 = File.createTempFile("RSWFW2", "json");
+        final long t = 1430933201000L;
+        final JSONParser parser = new JSONParser();
+        try(final RecentStatsWindowFileWriter rswfw0 = new RecentStatsWindowFileWriter(tf0, RecentStatsWindow.DEFAULT_WINDOW_MS,
+                GroupCommitter.NONE, true, 60000))
+            {
+            // First message is written at once, then further ones are held back.
+            for(int i = 0; i < 10; ++i) { rswfw0.processStatsMessage(new StatsMessageWithMetadata("@ABCD;", t+i, false)); }
+            assertEquals(1, ((List<?>)((List<?>)parser.parse(Util.readTextFile(tf0))).get(1)).size());
+            rswfw0.flush();
+            assertEquals(10, ((List<?>)((List<?>)parser.parse(Util.readTextFile(tf0))).get(1)).size());
+            rswfw0.processStatsMessage(new StatsMessageWithMetadata("@ABCD;", t+10, false));
+            }
+        // Close writes anything pending.
+        assertEquals(11, ((List<?>)((List<?>)parser.parse(Util.readTextFile(tf0))).get(1)).size());
+        // Background rewrite happens once the interval is up.
+        try(final RecentStatsWindowFileWriter rswfw1 = new RecentStatsWindowFileWriter(tf0, RecentStatsWindow.DEFAULT_WINDOW_MS,
+                GroupCommitter.NONE, true, 50))
+            {
+            rswfw1.processStatsMessage(new StatsMessageWithMetadata("@ABCD;", t, false));
+            rswfw1.processStatsMessage(new StatsMessageWithMetadata("@ABCD;", t+1, false));
+            for(int i = 0; (i < 500) && (2 != ((List<?>)((List<?>)parser.parse(Util.readTextFile(tf0))).get(1)).size()); ++i) { Thread.sleep(10); }
+            assertEquals(2, ((List<?>)((List<?>)parser.parse(Util.readTextFile(tf0))).get(1)).size());
+            }
+        tf0.delete();
+        }
+
     /**OK PRNG. */
     private static final Random rnd = new Random();
     }
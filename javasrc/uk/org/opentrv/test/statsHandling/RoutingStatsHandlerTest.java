@@ -0,0 +1,175 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandler;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.filter.RoutingStatsHandler;
+import uk.org.opentrv.comms.statshandlers.filter.RoutingStatsHandler.Route;
+
+/**Test content-based routing. */
+public class RoutingStatsHandlerTest
+    {
+    /**Handler that records all messages it is passed. */
+    private static final class Recorder implements StatsHandler
+        {
+        final List<StatsMessageWithMetadata> got = Collections.synchronizedList(new ArrayList<StatsMessageWithMetadata>());
+        @Override public void processStatsMessage(final StatsMessageWithMetadata swmd) { got.add(swmd); }
+        }
+
+    private static final String[] MESSAGES =
+        {
+        "{\"@\":\"b39a\",\"T|C16\":308,\"v|%\":0}",
+        "{\"@\":\"b39a\",\"T|C16\":309}",
+        "{\"@\":\"0a45\",\"v|%\":50}",
+        "{\"+\":2,\"@\":\"Mixed\",\"v|%\":10}",
+        "@A45;T15CD;L56;O1",
+        "@2D1A;T18CC;L47;O1",
+        "=F0%@20C3;",
+        "{\"@\":\"cdfb\",\"H|%\":87}",
+        };
+
+    /**Reference: does the route match the message, evaluated directly. */
+    private static boolean matches(final Route r, final StatsMessageWithMetadata swmd)
+        {
+        if((null != r.allowedIDs) && !r.allowedIDs.contains(swmd.getLeafIDAsString())) { return(false); }
+        if((null != r.statsTypes) && (-1 == r.statsTypes.indexOf(swmd.getStatsTypeAsChar()))) { return(false); }
+        if((null != r.authenticated) && (r.authenticated.booleanValue() != swmd.authenticated)) { return(false); }
+        if(r.requiredFields.isEmpty()) { return(true); }
+        final Map<String, Object> m = swmd.parseStatsAsMap();
+        return((null != m) && m.keySet().containsAll(r.requiredFields));
+        }
+
+    /**Test that the compiled router agrees with direct evaluation of every route for many random tables. */
+    @Test
+    public void testAgainstReference() throws Exception
+        {
+        final Random rnd = new Random(1234);
+        final List<String> ids = Arrays.asList("b39a", "0a45", "Mixed", "2d1a", "cdfb", "ffff");
+        final List<String> types = Arrays.asList("{", "@", "=", "{@", "@=");
+        final List<String> fields = Arrays.asList("v|%", "T|C16", "H|%", "L");
+        for(int trial = 0; trial < 200; ++trial)
+            {
+            final int nRoutes = 1 + rnd.nextInt(6);
+            final List<Route> routes = new ArrayList<>();
+            final List<Recorder> recorders = new ArrayList<>();
+            for(int i = 0; i < nRoutes; ++i)
+                {
+                Set<String> idSet = null;
+                if(rnd.nextBoolean())
+                    {
+                    idSet = new HashSet<>();
+                    for(final String id : ids) { if(rnd.nextInt(3) == 0) { idSet.add(id); } }
+                    if(idSet.isEmpty()) { idSet.add(ids.get(rnd.nextInt(ids.size()))); }
+                    }
+                final String st = rnd.nextBoolean() ? null : types.get(rnd.nextInt(types.size()));
+                final Boolean auth = rnd.nextBoolean() ? null : Boolean.valueOf(rnd.nextBoolean());
+                final List<String> rf = rnd.nextBoolean() ? null : Collections.singletonList(fields.get(rnd.nextInt(fields.size())));
+                final Recorder rec = new Recorder();
+                recorders.add(rec);
+                routes.add(new Route("r" + i, rec, idSet, st, auth, rf));
+                }
+            final Recorder dflt = new Recorder();
+            final RoutingStatsHandler router = new RoutingStatsHandler(routes, dflt);
+            final List<StatsMessageWithMetadata> sent = new ArrayList<>();
+            for(final String m : MESSAGES)
+                {
+                for(final boolean auth : new boolean[]{ false, true })
+                    {
+                    final StatsMessageWithMetadata swmd = new StatsMessageWithMetadata(m, 0, auth);
+                    sent.add(swmd);
+                    router.processStatsMessage(swmd);
+                    }
+                }
+            final Map<String, Long> hits = router.getHitCounts();
+            long unmatched = 0;
+            final List<StatsMessageWithMetadata> expectedDefault = new ArrayList<>();
+            for(final StatsMessageWithMetadata swmd : sent)
+                {
+                boolean any = false;
+                for(final Route r : routes) { if(matches(r, swmd)) { any = true; } }
+                if(!any) { ++unmatched; expectedDefault.add(swmd); }
+                }
+            for(int i = 0; i < nRoutes; ++i)
+                {
+                final List<StatsMessageWithMetadata> expected = new ArrayList<>();
+                for(final StatsMessageWithMetadata swmd : sent) { if(matches(routes.get(i), swmd)) { expected.add(swmd); } }
+                assertEquals(expected, recorders.get(i).got);
+                assertEquals(Long.valueOf(expected.size()), hits.get("r" + i));
+                }
+            assertEquals(expectedDefault, dflt.got);
+            assertEquals(Long.valueOf(unmatched), hits.get(null));
+            }
+        }
+
+    /**Test that one failing handler does not stop delivery to others. */
+    @Test
+    public void testFailingHandler() throws Exception
+        {
+        final Recorder rec = new Recorder();
+        final StatsHandler bad = new StatsHandler()
+            { @Override public void processStatsMessage(final StatsMessageWithMetadata swmd) throws IOException { throw new IOException("bad"); } };
+        final RoutingStatsHandler router = new RoutingStatsHandler(Arrays.asList(new Route("bad", bad), new Route("good", rec)), null);
+        try { router.processStatsMessage(new StatsMessageWithMetadata(MESSAGES[0], 0, false)); fail(); }
+        catch(final IOException e) { /* Expected. */ }
+        assertEquals(1, rec.got.size());
+        }
+
+    /**Test construction from factory JSON config. */
+    @Test
+    public void testConfig() throws Exception
+        {
+        final String dummy = "{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.DummyStatsHandler\"}";
+        final String config =
+            "{\"type\":\"uk.org.opentrv.comms.statshandlers.filter.RoutingStatsHandler\"," +
+            " \"options\":{\"routes\":[" +
+            "  {\"name\":\"valves\",\"statsTypes\":\"{\",\"requiredFields\":[\"v|%\"],\"handler\":" + dummy + "}," +
+            "  {\"name\":\"authB39A\",\"allowedIDs\":[\"b39a\"],\"authenticated\":true,\"handler\":" + dummy + "}]," +
+            "  \"defaultHandler\":" + dummy + "}}";
+        final StatsHandler sh = StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config)));
+        assertTrue(sh instanceof RoutingStatsHandler);
+        final RoutingStatsHandler router = (RoutingStatsHandler)sh;
+        router.processStatsMessage(new StatsMessageWithMetadata(MESSAGES[0], 0, true));
+        router.processStatsMessage(new StatsMessageWithMetadata(MESSAGES[1], 0, false));
+        router.processStatsMessage(new StatsMessageWithMetadata(MESSAGES[2], 0, false));
+        final Map<String, Long> hits = router.getHitCounts();
+        assertEquals(Long.valueOf(2), hits.get("valves"));
+        assertEquals(Long.valueOf(1), hits.get("authB39A"));
+        assertEquals(Long.valueOf(1), hits.get(null));
+        }
+    }
@@ -0,0 +1,171 @@
+/*
+The OpenTRV project licenses this file to you
+under the Apache Licence, Version 2.0 (the "Licence");
+you may not use this file except in compliance
+with the Licence. You may obtain a copy of the Licence at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the Licence is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied. See the Licence for the
+specific language governing permissions and limitations
+under the Licence.
+
+Author(s) / Copyright (s): Damon Hart-Davis 2017
+*/
+
+package uk.org.opentrv.test.statsHandling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import uk.org.opentrv.comms.cfg.ConfigUtil;
+import uk.org.opentrv.comms.statshandlers.StatsHandlerFactory;
+import uk.org.opentrv.comms.statshandlers.StatsMessageWithMetadata;
+import uk.org.opentrv.comms.statshandlers.builtin.SimpleFileLoggingStatsHandler;
+import uk.org.opentrv.comms.statshandlers.support.DailyLogWriterCache;
+
+/**Test simple file logging, in particular with open and buffered log files. */
+public class SimpleFileLoggingStatsHandlerTest
+    {
+    /**2014-12-19T23:59:50Z. */
+    private static final long T0 = 1419033590000L;
+
+    /**Sample messages, crossing UTC midnight. */
+    private static final StatsMessageWithMetadata[] SAMPLES =
+        {
+        new StatsMessageWithMetadata("@A45;T21CC;L35;O1", T0, false),
+        new StatsMessageWithMetadata("{\"@\":\"cdfb\",\"T|C16\":296,\"H|%\":87}", T0 + 1000, false),
+        new StatsMessageWithMetadata("=F0%@20C3;T14 32 W255 0 F255 0 W255 0 F255 0;S10 10 20 cffO", T0 + 2000, false),
+        new StatsMessageWithMetadata("@D49;T19C7", T0 + 20000, false),
+        new StatsMessageWithMetadata("{\"@\":\"cdfb\",\"T|C16\":297,\"H|%\":88}", T0 + 21000, false),
+        };
+
+    private static File tempDir() throws IOException
+        { return(Files.createTempDirectory("stats").toFile()); }
+
+    private static void deleteAll(final File f)
+        {
+        final File[] files = f.listFiles();
+        if(null != files) { for(final File c : files) { deleteAll(c); } }
+        f.delete();
+        }
+
+    private static String read(final File dir, final String path) throws IOException
+        { return(new String(Files.readAllBytes(new File(dir, path).toPath()), "ASCII")); }
+
+    /**Check exact on-disk format and rollover at UTC midnight. */
+    @Test
+    public void testFormatAndRollover() throws Exception
+        {
+        final File dir = tempDir();
+        try
+            {
+            try(final SimpleFileLoggingStatsHandler h = new SimpleFileLoggingStatsHandler(dir.getPath()))
+                { for(final StatsMessageWithMetadata m : SAMPLES) { h.processStatsMessage(m); } }
+            final String EOL = System.lineSeparator();
+            assertEquals("2014/12/19 23:59:50Z A45 21.75 @A45;T21CC;L35;O1" + EOL, read(dir, "remote/20141219.log"));
+            assertEquals("2014/12/20 00:00:10Z D49 19.4375 @D49;T19C7" + EOL, read(dir, "remote/20141220.log"));
+            assertEquals("[ \"2014-12-19T23:59:51Z\", \"\", {\"@\":\"cdfb\",\"T|C16\":296,\"H|%\":87} ]" + EOL, read(dir, "remote/20141219.json"));
+            assertEquals("[ \"2014-12-20T00:00:11Z\", \"\", {\"@\":\"cdfb\",\"T|C16\":297,\"H|%\":88} ]" + EOL, read(dir, "remote/20141220.json"));
+            assertEquals("2014/12/19 23:59:52Z 20.1875 =F0%@20C3;T14 32 W255 0 F255 0 W255 0 F255 0;S10 10 20 cffO" + EOL, read(dir, "localtemp/20141219.log"));
+            assertTrue(new File(dir, "remote/" + SimpleFileLoggingStatsHandler.UPDATED_FLAG_FILENAME).exists());
+            assertTrue(new File(dir, "remote/" + SimpleFileLoggingStatsHandler.UPDATED_JSON_FLAG_FILENAME).exists());
+            assertTrue(new File(dir, "localtemp/" + SimpleFileLoggingStatsHandler.UPDATED_FLAG_FILENAME).exists());
+            }
+        finally { deleteAll(dir); }
+        }
+
+    /**Check that buffered output is held back until flushed, then is byte-identical. */
+    @Test
+    public void testBuffered() throws Exception
+        {
+        final File plain = tempDir();
+        final File buffered = tempDir();
+        try
+            {
+            try(final SimpleFileLoggingStatsHandler h = new SimpleFileLoggingStatsHandler(plain.getPath()))
+                { for(final StatsMessageWithMetadata m : SAMPLES) { h.processStatsMessage(m); } }
+            final String config =
+                "{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.SimpleFileLoggingStatsHandler\"," +
+                " \"options\":{\"statsDirName\":\"" + buffered.getPath().replace("\\", "\\\\") + "\",\"flushLines\":100,\"flushIntervalMS\":60000}}";
+            try(final SimpleFileLoggingStatsHandler h = (SimpleFileLoggingStatsHandler)
+                    StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config))))
+                {
+                h.processStatsMessage(SAMPLES[0]);
+                assertEquals(0, new File(buffered, "remote/20141219.log").length());
+                assertFalse(new File(buffered, "remote/" + SimpleFileLoggingStatsHandler.UPDATED_FLAG_FILENAME).exists());
+                h.flush();
+                assertTrue(new File(buffered, "remote/20141219.log").length() > 0);
+                assertTrue(new File(buffered, "remote/" + SimpleFileLoggingStatsHandler.UPDATED_FLAG_FILENAME).exists());
+                for(int i = 1; i < SAMPLES.length; ++i) { h.processStatsMessage(SAMPLES[i]); }
+                }
+            for(final String path : Arrays.asList("remote/20141219.log", "remote/20141220.log",
+                    "remote/20141219.json", "remote/20141220.json", "localtemp/20141219.log"))
+                { assertArrayEquals(path, Files.readAllBytes(new File(plain, path).toPath()), Files.readAllBytes(new File(buffered, path).toPath())); }
+            }
+        finally { deleteAll(plain); deleteAll(buffered); }
+        }
+
+    /**Check that lines interleaved around UTC midnight keep both days' files open. */
+    @Test
+    public void testInterleavedAroundMidnight() throws Exception
+        {
+        final File dir = tempDir();
+        try
+            {
+            final File yesterday = new File(dir, "remote/20141219.log");
+            final File today = new File(dir, "remote/20141220.log");
+            final String config =
+                "{\"type\":\"uk.org.opentrv.comms.statshandlers.builtin.SimpleFileLoggingStatsHandler\"," +
+                " \"options\":{\"statsDirName\":\"" + dir.getPath().replace("\\", "\\\\") + "\",\"flushLines\":100}}";
+            try(final SimpleFileLoggingStatsHandler h = (SimpleFileLoggingStatsHandler)
+                    StatsHandlerFactory.getInstance().newHandler(ConfigUtil.loadConfigFile(new StringReader(config))))
+                {
+                for(int i = 0; i < 4; ++i)
+                    {
+                    h.processStatsMessage(new StatsMessageWithMetadata("@A45;T21C" + i, T0 + 5000 + (i * 1000), false));
+                    h.processStatsMessage(new StatsMessageWithMetadata("@D49;T19C" + i, T0 + 15000 + (i * 1000), false));
+                    }
+                // Still buffered, so neither file has been closed by the interleaving.
+                assertEquals(0, yesterday.length());
+                assertEquals(0, today.length());
+                // A line well into the new day closes the previous day's file.
+                h.processStatsMessage(new StatsMessageWithMetadata("@D49;T19C4", T0 + 10000 + DailyLogWriterCache.LATE_GRACE_MS + 1000, false));
+                assertTrue(yesterday.length() > 0);
+                assertEquals(0, today.length());
+                }
+            assertEquals(4, read(dir, "remote/20141219.log").split(System.lineSeparator()).length);
+            assertEquals(5, read(dir, "remote/20141220.log").split(System.lineSeparator()).length);
+            }
+        finally { deleteAll(dir); }
+        }
+
+    /**Check that logging appends to existing files across handler instances. */
+    @Test
+    public void testAppendAcrossRestart() throws Exception
+        {
+        final File dir = tempDir();
+        try
+            {
+            try(final SimpleFileLoggingStatsHandler h = new SimpleFileLoggingStatsHandler(dir.getPath()))
+                { h.processStatsMessage(SAMPLES[0]); }
+            try(final SimpleFileLoggingStatsHandler h = new SimpleFileLoggingStatsHandler(dir.getPath()))
+                { h.processStatsMessage(new StatsMessageWithMetadata("@A45;T21CD", T0 + 1, false)); }
+            assertEquals(2, read(dir, "remote/20141219.log").split(System.lineSeparator()).length);
+            }
+        finally { deleteAll(dir); }
+        }
+    }
@@ -18,8 +18,13 @@ Author(s) / Copyright (s): Damon Hart-Davis 2015
 package uk.org.opentrv.test.statsHandling;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 import java.util.List;
+import java.util.Map;
 
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -55,4 +60,39 @@ public class StatsMessageWithMetadataTest
         final String sm2s = sm2.asJSONArrayString();
         assertEquals("[\"2015-05-06T17:26:41Z\",\"@ABCD;\\\"2\",true]", sm2s);
         }
+    
+    /**Test that parsed forms are memoised, so sharing one instance across handlers parses each line at most once. */
+    @Test
+    public void testParseCaching()
+        {
+        final long t = 1430933201034L;
+        final StatsMessageWithMetadata smj = new StatsMessageWithMetadata("{\"@\":\"b39a\",\"T|C16\":550,\"B|mV\":3230}", t, false);
+        assertEquals("b39a", smj.getLeafIDAsString());
+        assertSame(smj.getLeafIDAsString(), smj.getLeafIDAsString());
+        final Map<String, Object> mj = smj.parseStatsAsMap();
+        assertNotNull(mj);
+        assertSame(mj, smj.parseStatsAsMap());
+        assertEquals(550L, ((Number)mj.get("T|C16")).longValue());
+        assertNull(smj.getParsedRemoteBinaryStatsRecord());
+        // Shared map must not be modifiable by any one handler.
+        try { mj.put("x", "y"); fail("shared map must be immutable"); }
+        catch(final UnsupportedOperationException e) { /* expected */ }
+
+        final StatsMessageWithMetadata smb = new StatsMessageWithMetadata("@A45;T21CC;L35;O1", t, false);
+        assertEquals("0a45", smb.getLeafIDAsString());
+        assertNotNull(smb.getParsedRemoteBinaryStatsRecord());
+        assertSame(smb.getParsedRemoteBinaryStatsRecord(), smb.getParsedRemoteBinaryStatsRecord());
+        final Map<String, Object> mb = smb.parseStatsAsMap();
+        assertSame(mb, smb.parseStatsAsMap());
+        assertEquals("35", mb.get("L"));
+        try { mb.put("x", "y"); fail("shared map must be immutable"); }
+        catch(final UnsupportedOperationException e) { /* expected */ }
+
+        // Unparseable results are also remembered.
+        final StatsMessageWithMetadata smx = new StatsMessageWithMetadata("{bogus", t, false);
+        assertNull(smx.getLeafIDAsString());
+        assertNull(smx.getLeafIDAsString());
+        assertNull(smx.parseStatsAsMap());
+        assertNull(smx.parseStatsAsMap());
+        }
     }